@@ -0,0 +1,50 @@
+package dev.aspectj.maven.agent_embedder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Helpers shared by the benchmarks, setting up work copies of synthetic JARs and mojos configured for them
+ */
+public class BenchmarkJars {
+  private BenchmarkJars() {}
+
+  /**
+   * @param template synthetic JAR which must not be modified
+   *
+   * @return fresh work copy of the template JAR in a temporary directory, to be modified by the benchmark
+   */
+  public static Path workCopy(Path template) throws IOException {
+    Path workDirectory = template.getParent().resolve("work");
+    Files.createDirectories(workDirectory);
+    Path workJar = workDirectory.resolve(template.getFileName());
+    Files.copy(template, workJar, REPLACE_EXISTING);
+    return workJar;
+  }
+
+  /**
+   * @param agentInfo agent to embed
+   *
+   * @return mojo embedding the given agent, with a quiet log and the persistent agent cache disabled
+   */
+  public static AgentEmbedderMojo createMojo(JavaAgentInfo agentInfo) {
+    AgentEmbedderMojo mojo = new AgentEmbedderMojo();
+    mojo.setLog(new QuietLog());
+    mojo.javaAgents = Collections.singletonList(agentInfo);
+    mojo.agentCacheDirectory = null;
+    return mojo;
+  }
+
+  /**
+   * @return agent info for a synthetic agent JAR
+   */
+  public static JavaAgentInfo createAgentInfo(Path agentJar) {
+    return new JavaAgentInfo(
+      "org.acme", "synthetic-agent", null, SyntheticJars.AGENT_CLASS, null, agentJar.toString()
+    );
+  }
+}
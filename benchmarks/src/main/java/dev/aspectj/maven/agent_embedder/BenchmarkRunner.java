@@ -0,0 +1,35 @@
+package dev.aspectj.maven.agent_embedder;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of the benchmark uber JAR, accepting the usual JMH command line options
+ * <p>
+ * In addition to JMH's defaults, always enables the GC profiler, so that results include allocations per operation
+ * ({@code gc.alloc.rate.norm}), and writes results to {@code target/jmh-result.json}, unless another result file is
+ * specified.
+ */
+public class BenchmarkRunner {
+  public static void main(String[] args) throws Exception {
+    CommandLineOptions commandLineOptions = new CommandLineOptions(args);
+    if (commandLineOptions.shouldHelp()) {
+      commandLineOptions.showHelp();
+      return;
+    }
+    ChainedOptionsBuilder options = new OptionsBuilder()
+      .parent(commandLineOptions)
+      .addProfiler(GCProfiler.class);
+    if (!commandLineOptions.getResult().hasValue()) {
+      ResultFormatType resultFormat = commandLineOptions.getResultFormat().orElse(ResultFormatType.JSON);
+      options
+        .resultFormat(resultFormat)
+        .result("target/jmh-result." + resultFormat.toString().toLowerCase());
+    }
+    new Runner(options.build()).run();
+  }
+}
@@ -0,0 +1,49 @@
+package dev.aspectj.maven.agent_embedder;
+
+import dev.aspectj.maven.tools.ZipFileSystemTool;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.FileSystem;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link AgentEmbedderMojo.ManifestUpdater#update()} on an executable JAR opened as a zip file system,
+ * including writing the updated executable JAR when closing the file system. For large JARs, the latter dominates,
+ * because the zip file system rewrites the whole archive, even if only the manifest changed.
+ * <p>
+ * Each invocation modifies the executable JAR, so every invocation works on a fresh copy and is measured as a single
+ * shot.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class ManifestUpdaterBenchmark {
+  @Param({ "1000:10", "10000:100", "100000:500" })
+  public String fatJar;
+
+  private Path templateJar;
+  private Path workJar;
+  private AgentEmbedderMojo mojo;
+
+  @Setup(Level.Trial)
+  public void setUpTrial() throws Exception {
+    templateJar = SyntheticJars.fatJar(fatJar);
+    mojo = BenchmarkJars.createMojo(BenchmarkJars.createAgentInfo(SyntheticJars.agentJar("100:1")));
+  }
+
+  @Setup(Level.Invocation)
+  public void setUpInvocation() throws Exception {
+    workJar = BenchmarkJars.workCopy(templateJar);
+  }
+
+  @Benchmark
+  public void updateManifest() throws Exception {
+    try (FileSystem jarFS = ZipFileSystemTool.getZipFS(workJar, false)) {
+      mojo.new ManifestUpdater(jarFS).update();
+    }
+  }
+}
@@ -0,0 +1,27 @@
+package dev.aspectj.maven.agent_embedder;
+
+import org.apache.maven.plugin.logging.SystemStreamLog;
+
+/**
+ * Maven log swallowing debug and info messages, so that log output does not distort benchmark results. Warnings and
+ * errors are still printed.
+ */
+public class QuietLog extends SystemStreamLog {
+  @Override
+  public void debug(CharSequence content) {}
+
+  @Override
+  public void debug(CharSequence content, Throwable error) {}
+
+  @Override
+  public void debug(Throwable error) {}
+
+  @Override
+  public void info(CharSequence content) {}
+
+  @Override
+  public void info(CharSequence content, Throwable error) {}
+
+  @Override
+  public void info(Throwable error) {}
+}
@@ -0,0 +1,422 @@
+package dev.aspectj.maven.agent_embedder;
+
+import org.apache.maven.artifact.DefaultArtifact;
+import org.apache.maven.artifact.handler.DefaultArtifactHandler;
+import org.apache.maven.project.MavenProject;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Measures the startup overhead of embedded java agents, compared to the same agents specified on the command line
+ * <p>
+ * For each requested agent count, builds an executable JAR with that many {@link StartupBenchmarkAgent synthetic
+ * agents} embedded by {@link AgentEmbedderMojo}, then repeatedly forks JVMs running it, as well as JVMs running the
+ * plain executable JAR with the same agents specified via {@code -javaagent:}. For each forked JVM, the harness measures
+ * the time from forking until {@code main} is entered, the time until the first HTTP request to
+ * {@link StartupBenchmarkApp} has been answered and the resident set size at that point. All variants are run in
+ * turns, so that load fluctuations on the machine affect all of them alike. The application only listens on the
+ * loopback interface, i.e. the benchmark does not need any network access.
+ * <p>
+ * Results are printed as a Markdown report and written to the working directory as {@code startup-report.md}, together
+ * with the raw measurements in {@code startup-results.csv}.
+ * <p>
+ * Options:
+ * <ul>
+ *   <li>{@code --agents}: comma-separated agent counts, default {@code 0,1,2,4,8}</li>
+ *   <li>{@code --runs}: measured runs per variant, default 20</li>
+ *   <li>{@code --warmup}: unmeasured runs per variant, warming up the file system cache, default 3</li>
+ *   <li>{@code --java}: java executable for the forked JVMs, default: the one running the harness</li>
+ *   <li>{@code --dir}: working directory for JARs and reports, default {@code target/startup-benchmark}</li>
+ * </ul>
+ * Embedded agents are started by a launcher agent declared in the {@code Launcher-Agent-Class} manifest attribute,
+ * which requires the forked JVMs to be Java 9+.
+ */
+public class StartupBenchmark {
+  private static final String AGENT_CLASS = StartupBenchmarkAgent.class.getName();
+  private static final int AGENT_FILLER_ENTRIES = 200;
+  private static final int AGENT_FILLER_ENTRY_SIZE = 2048;
+  private static final long PROCESS_TIMEOUT_SECONDS = 60;
+
+  private final List<Integer> agentCounts = new ArrayList<>(Arrays.asList(0, 1, 2, 4, 8));
+  private int runs = 20;
+  private int warmup = 3;
+  private String javaExecutable = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+  private Path workDirectory = Paths.get("target", "startup-benchmark");
+
+  public static void main(String[] args) throws Exception {
+    StartupBenchmark benchmark = new StartupBenchmark();
+    benchmark.parseOptions(args);
+    List<Variant> variants = benchmark.prepare();
+    benchmark.run(variants);
+    benchmark.report(variants);
+  }
+
+  private void parseOptions(String[] args) {
+    for (int i = 0; i < args.length; i++) {
+      String option = args[i];
+      if (i + 1 >= args.length)
+        throw new IllegalArgumentException("Missing value for option " + option);
+      String value = args[++i];
+      switch (option) {
+        case "--agents":
+          agentCounts.clear();
+          for (String agentCount : value.split(","))
+            agentCounts.add(Integer.parseInt(agentCount.trim()));
+          break;
+        case "--runs":
+          runs = Integer.parseInt(value);
+          break;
+        case "--warmup":
+          warmup = Integer.parseInt(value);
+          break;
+        case "--java":
+          javaExecutable = value;
+          break;
+        case "--dir":
+          workDirectory = Paths.get(value);
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown option " + option);
+      }
+    }
+    workDirectory = workDirectory.toAbsolutePath();
+  }
+
+  /**
+   * Build the application JAR, the agent JARs and one executable JAR with embedded agents per agent count
+   *
+   * @return variants to be measured
+   */
+  private List<Variant> prepare() throws Exception {
+    Files.createDirectories(workDirectory);
+    Path appJar = workDirectory.resolve("app.jar");
+    writeAppJar(appJar);
+    int maxAgentCount = Collections.max(agentCounts);
+    List<Path> agentJars = new ArrayList<>();
+    for (int i = 1; i <= maxAgentCount; i++) {
+      Path agentJar = workDirectory.resolve("agent-" + i + ".jar");
+      writeAgentJar(agentJar, i);
+      agentJars.add(agentJar);
+    }
+
+    List<Variant> variants = new ArrayList<>();
+    for (int agentCount : agentCounts) {
+      if (agentCount == 0) {
+        variants.add(new Variant("no agents", 0, createCommand(Collections.emptyList(), appJar)));
+        continue;
+      }
+      List<Path> agents = agentJars.subList(0, agentCount);
+      Path embeddedJar = workDirectory.resolve("app-embedded-" + agentCount + ".jar");
+      Files.copy(appJar, embeddedJar, REPLACE_EXISTING);
+      embedAgents(embeddedJar, agents);
+      variants.add(new Variant("embedded", agentCount, createCommand(Collections.emptyList(), embeddedJar)));
+      List<String> agentOptions = new ArrayList<>();
+      for (int i = 0; i < agents.size(); i++)
+        agentOptions.add("-javaagent:" + agents.get(i) + "=" + (i + 1));
+      variants.add(new Variant("-javaagent", agentCount, createCommand(agentOptions, appJar)));
+    }
+    return variants;
+  }
+
+  private List<String> createCommand(List<String> agentOptions, Path jar) {
+    List<String> command = new ArrayList<>();
+    command.add(javaExecutable);
+    // Measure the launcher agent's overhead, not console output
+    command.add("-D" + JavaAgentLauncher.PROPERTY_LOG + "=off");
+    command.addAll(agentOptions);
+    command.add("-jar");
+    command.add(jar.toString());
+    return command;
+  }
+
+  private void embedAgents(Path executableJar, List<Path> agentJars) throws Exception {
+    DefaultArtifact artifact = new DefaultArtifact(
+      "org.acme", "startup-app", "1.0", "compile", "jar", null, new DefaultArtifactHandler("jar")
+    );
+    artifact.setFile(executableJar.toFile());
+    MavenProject project = new MavenProject();
+    project.setArtifact(artifact);
+
+    List<JavaAgentInfo> agents = new ArrayList<>();
+    for (int i = 0; i < agentJars.size(); i++) {
+      agents.add(new JavaAgentInfo(
+        "org.acme", "startup-agent-" + (i + 1), null, AGENT_CLASS, String.valueOf(i + 1), agentJars.get(i).toString()
+      ));
+    }
+    AgentEmbedderMojo mojo = BenchmarkJars.createMojo(agents.get(0));
+    mojo.project = project;
+    mojo.javaAgents = agents;
+    mojo.upToDateCheck = false;
+    mojo.execute();
+  }
+
+  private void run(List<Variant> variants) throws Exception {
+    System.out.println(
+      "Running " + variants.size() + " variants, " + warmup + " warmup and " + runs + " measured runs each"
+    );
+    for (int round = 0; round < warmup + runs; round++) {
+      for (Variant variant : variants) {
+        Sample sample = fork(variant);
+        if (round >= warmup)
+          variant.samples.add(sample);
+      }
+      System.out.println((round < warmup ? "Warmup round " : "Round ") + (round + 1) + " done");
+    }
+  }
+
+  /**
+   * Fork a JVM for the given variant, measure its startup and terminate it again
+   */
+  private Sample fork(Variant variant) throws Exception {
+    List<String> output = new ArrayList<>();
+    long startNanos = System.nanoTime();
+    Process process = new ProcessBuilder(variant.command)
+      .directory(workDirectory.toFile())
+      .redirectErrorStream(true)
+      .start();
+    try (
+      BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))
+    ) {
+      long mainNanos = -1;
+      int port = -1;
+      String line;
+      while (port < 0 && (line = reader.readLine()) != null) {
+        if (line.equals(StartupBenchmarkApp.MAIN_MARKER))
+          mainNanos = System.nanoTime();
+        else if (line.startsWith(StartupBenchmarkApp.LISTENING_MARKER))
+          port = Integer.parseInt(line.substring(StartupBenchmarkApp.LISTENING_MARKER.length()).trim());
+        else
+          output.add(line);
+      }
+      if (mainNanos < 0 || port < 0)
+        throw new IllegalStateException("Application did not start: " + variant + ", output: " + output);
+
+      String[] response = request(port).split(" ");
+      long requestNanos = System.nanoTime();
+      int startedAgents = Integer.parseInt(response[1]);
+      if (startedAgents != variant.agentCount)
+        throw new IllegalStateException(
+          "Expected " + variant.agentCount + " started agents, but got " + startedAgents + ": " + variant +
+            ", output: " + output
+        );
+      return new Sample(
+        (mainNanos - startNanos) / 1e6, (requestNanos - startNanos) / 1e6, Long.parseLong(response[0])
+      );
+    }
+    finally {
+      process.destroy();
+      if (!process.waitFor(PROCESS_TIMEOUT_SECONDS, TimeUnit.SECONDS))
+        process.destroyForcibly();
+    }
+  }
+
+  private static String request(int port) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + port + "/").openConnection();
+    try (InputStream input = connection.getInputStream()) {
+      return new String(readAllBytes(input), StandardCharsets.UTF_8).trim();
+    }
+    finally {
+      connection.disconnect();
+    }
+  }
+
+  private void report(List<Variant> variants) throws IOException {
+    StringBuilder report = new StringBuilder()
+      .append("# Embedded agent startup benchmark\n\n")
+      .append("* Java: ").append(javaExecutable).append('\n')
+      .append("* Harness JVM: ").append(System.getProperty("java.vm.name")).append(' ')
+      .append(System.getProperty("java.version")).append('\n')
+      .append("* OS: ").append(System.getProperty("os.name")).append(' ').append(System.getProperty("os.version"))
+      .append(" (").append(System.getProperty("os.arch")).append(", ")
+      .append(Runtime.getRuntime().availableProcessors()).append(" CPUs)\n")
+      .append("* Runs: ").append(runs).append(" measured, ").append(warmup).append(" warmup per variant\n\n")
+      .append("Median +/- standard deviation, RSS after the first request\n\n")
+      .append("| Agents | Mode | Time to main (ms) | Time to first request (ms) | RSS (MB) |\n")
+      .append("|-------:|------|------------------:|---------------------------:|---------:|\n");
+    for (Variant variant : variants) {
+      report.append("| ").append(variant.agentCount).append(" | ").append(variant.mode)
+        .append(" | ").append(format(variant.statistics(Sample::getTimeToMain)))
+        .append(" | ").append(format(variant.statistics(Sample::getTimeToFirstRequest)))
+        .append(" | ").append(format(variant.statistics(Sample::getResidentSetSizeMB)))
+        .append(" |\n");
+    }
+
+    report
+      .append("\nDifference of medians, embedded minus `-javaagent`. Negative values mean that embedding is cheaper.\n\n")
+      .append("| Agents | Time to main (ms) | Time to first request (ms) | RSS (MB) |\n")
+      .append("|-------:|------------------:|---------------------------:|---------:|\n");
+    for (int i = 0; i + 1 < variants.size(); i++) {
+      Variant embedded = variants.get(i);
+      Variant commandLine = variants.get(i + 1);
+      if (!embedded.mode.equals("embedded"))
+        continue;
+      report.append("| ").append(embedded.agentCount)
+        .append(" | ").append(formatDifference(embedded, commandLine, Sample::getTimeToMain))
+        .append(" | ").append(formatDifference(embedded, commandLine, Sample::getTimeToFirstRequest))
+        .append(" | ").append(formatDifference(embedded, commandLine, Sample::getResidentSetSizeMB))
+        .append(" |\n");
+    }
+
+    System.out.println();
+    System.out.print(report);
+    Files.write(workDirectory.resolve("startup-report.md"), report.toString().getBytes(StandardCharsets.UTF_8));
+    writeResults(variants);
+    System.out.println("\nReport written to " + workDirectory.resolve("startup-report.md"));
+  }
+
+  private void writeResults(List<Variant> variants) throws IOException {
+    try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(workDirectory.resolve("startup-results.csv")))) {
+      writer.println("agents,mode,run,timeToMainMs,timeToFirstRequestMs,rssKB");
+      for (Variant variant : variants) {
+        for (int run = 0; run < variant.samples.size(); run++) {
+          Sample sample = variant.samples.get(run);
+          writer.println(String.format(
+            Locale.ROOT, "%d,%s,%d,%.3f,%.3f,%d",
+            variant.agentCount, variant.mode, run + 1, sample.timeToMain, sample.timeToFirstRequest,
+            sample.residentSetSizeKB
+          ));
+        }
+      }
+    }
+  }
+
+  private static String format(double[] statistics) {
+    return String.format(Locale.ROOT, "%.1f +/- %.1f", statistics[0], statistics[1]);
+  }
+
+  private static String formatDifference(Variant embedded, Variant commandLine, Metric metric) {
+    return String.format(Locale.ROOT, "%+.1f", embedded.statistics(metric)[0] - commandLine.statistics(metric)[0]);
+  }
+
+  private static void writeAppJar(Path jar) throws IOException {
+    Manifest manifest = new Manifest();
+    manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+    manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, StartupBenchmarkApp.class.getName());
+    try (JarOutputStream output = new JarOutputStream(Files.newOutputStream(jar), manifest)) {
+      writeClass(output, StartupBenchmarkApp.class);
+    }
+  }
+
+  /**
+   * Write an agent JAR containing {@link StartupBenchmarkAgent} and filler entries in an agent-specific package, so
+   * that agent JARs have a realistic size and embedding them does not only add a single class
+   */
+  private static void writeAgentJar(Path jar, int agentIndex) throws IOException {
+    Manifest manifest = new Manifest();
+    manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+    manifest.getMainAttributes().put(new Attributes.Name("Premain-Class"), AGENT_CLASS);
+    manifest.getMainAttributes().put(new Attributes.Name("Agent-Class"), AGENT_CLASS);
+    Random random = new Random(agentIndex);
+    try (JarOutputStream output = new JarOutputStream(Files.newOutputStream(jar), manifest)) {
+      writeClass(output, StartupBenchmarkAgent.class);
+      for (int i = 0; i < AGENT_FILLER_ENTRIES; i++) {
+        byte[] filler = new byte[AGENT_FILLER_ENTRY_SIZE];
+        random.nextBytes(filler);
+        output.putNextEntry(new ZipEntry("org/acme/agent" + agentIndex + "/Filler" + i + ".bin"));
+        output.write(filler);
+        output.closeEntry();
+      }
+    }
+  }
+
+  private static void writeClass(JarOutputStream output, Class<?> type) throws IOException {
+    String classFile = type.getName().replace('.', '/') + ".class";
+    try (InputStream input = type.getClassLoader().getResourceAsStream(classFile)) {
+      if (input == null)
+        throw new IOException("Class file " + classFile + " not found");
+      output.putNextEntry(new ZipEntry(classFile));
+      output.write(readAllBytes(input));
+      output.closeEntry();
+    }
+  }
+
+  private static byte[] readAllBytes(InputStream input) throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int read;
+    while ((read = input.read(buffer)) > 0)
+      output.write(buffer, 0, read);
+    return output.toByteArray();
+  }
+
+  @FunctionalInterface
+  private interface Metric {
+    double of(Sample sample);
+  }
+
+  private static class Sample {
+    private final double timeToMain;
+    private final double timeToFirstRequest;
+    private final long residentSetSizeKB;
+
+    Sample(double timeToMain, double timeToFirstRequest, long residentSetSizeKB) {
+      this.timeToMain = timeToMain;
+      this.timeToFirstRequest = timeToFirstRequest;
+      this.residentSetSizeKB = residentSetSizeKB;
+    }
+
+    double getTimeToMain() {
+      return timeToMain;
+    }
+
+    double getTimeToFirstRequest() {
+      return timeToFirstRequest;
+    }
+
+    double getResidentSetSizeMB() {
+      return residentSetSizeKB / 1024.0;
+    }
+  }
+
+  private static class Variant {
+    private final String mode;
+    private final int agentCount;
+    private final List<String> command;
+    private final List<Sample> samples = new ArrayList<>();
+
+    Variant(String mode, int agentCount, List<String> command) {
+      this.mode = mode;
+      this.agentCount = agentCount;
+      this.command = command;
+    }
+
+    /**
+     * @return median and standard deviation of the given metric
+     */
+    double[] statistics(Metric metric) {
+      double[] values = new double[samples.size()];
+      double sum = 0;
+      for (int i = 0; i < values.length; i++) {
+        values[i] = metric.of(samples.get(i));
+        sum += values[i];
+      }
+      Arrays.sort(values);
+      double mean = sum / values.length;
+      double squaredDeviations = 0;
+      for (double value : values)
+        squaredDeviations += (value - mean) * (value - mean);
+      int middle = values.length / 2;
+      double median = values.length % 2 == 1 ? values[middle] : (values[middle - 1] + values[middle]) / 2;
+      return new double[] { median, Math.sqrt(squaredDeviations / Math.max(1, values.length - 1)) };
+    }
+
+    @Override
+    public String toString() {
+      return mode + " (" + agentCount + " agents)";
+    }
+  }
+}
@@ -0,0 +1,47 @@
+package dev.aspectj.maven.agent_embedder;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.security.ProtectionDomain;
+
+/**
+ * Minimal java agent used by {@link StartupBenchmark}, registering a class file transformer which does not transform
+ * anything. That way, each agent adds the typical per-class overhead of an instrumenting agent without distorting the
+ * measurement with actual bytecode manipulation.
+ * <p>
+ * All synthetic agent JARs contain this same class, distinguished only by their agent arguments. When embedded, the
+ * class is therefore unpacked only once, just like it is loaded only once by the system class loader when the agent
+ * JARs are specified via {@code -javaagent:}.
+ * <p>
+ * This class is copied into the agent JARs as a single class file. It must not use anonymous, local or member classes.
+ */
+public class StartupBenchmarkAgent implements ClassFileTransformer {
+  public static final String STARTED_AGENTS_PROPERTY = "startup-benchmark.agents";
+
+  public static void premain(String agentArgs, Instrumentation instrumentation) {
+    instrumentation.addTransformer(new StartupBenchmarkAgent());
+    synchronized (StartupBenchmarkAgent.class) {
+      System.setProperty(STARTED_AGENTS_PROPERTY, String.valueOf(getStartedAgents() + 1));
+    }
+  }
+
+  public static void agentmain(String agentArgs, Instrumentation instrumentation) {
+    premain(agentArgs, instrumentation);
+  }
+
+  /**
+   * @return number of agent instances started in this JVM
+   */
+  public static int getStartedAgents() {
+    return Integer.parseInt(System.getProperty(STARTED_AGENTS_PROPERTY, "0"));
+  }
+
+  @Override
+  public byte[] transform(
+    ClassLoader loader, String className, Class<?> classBeingRedefined, ProtectionDomain protectionDomain,
+    byte[] classfileBuffer
+  )
+  {
+    return null;
+  }
+}
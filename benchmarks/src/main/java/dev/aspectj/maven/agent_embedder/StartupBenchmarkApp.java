@@ -0,0 +1,62 @@
+package dev.aspectj.maven.agent_embedder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Minimal application forked by {@link StartupBenchmark}, packaged as the main class of the executable JARs under test
+ * <p>
+ * Prints {@value #MAIN_MARKER} as soon as {@code main} is entered, then starts an HTTP server on an ephemeral loopback
+ * port and prints {@value #LISTENING_MARKER} followed by the port. Each request is answered with the process's resident
+ * set size in KB, or {@code -1} if it is unknown, and the number of java agents started, as reported by
+ * {@link StartupBenchmarkAgent}.
+ * <p>
+ * This class is copied into the executable JARs as a single class file. It must not use anonymous, local or member
+ * classes, and it must only use compile-time constants of {@link StartupBenchmarkAgent}, because without any agents,
+ * that class is unavailable.
+ */
+public class StartupBenchmarkApp implements HttpHandler {
+  public static final String MAIN_MARKER = "startup-benchmark: main";
+  public static final String LISTENING_MARKER = "startup-benchmark: listening ";
+
+  public static void main(String[] args) throws IOException {
+    System.out.println(MAIN_MARKER);
+    HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext("/", new StartupBenchmarkApp());
+    server.start();
+    System.out.println(LISTENING_MARKER + server.getAddress().getPort());
+  }
+
+  @Override
+  public void handle(HttpExchange exchange) throws IOException {
+    String startedAgents = System.getProperty(StartupBenchmarkAgent.STARTED_AGENTS_PROPERTY, "0");
+    byte[] response = (getResidentSetSize() + " " + startedAgents).getBytes(StandardCharsets.UTF_8);
+    exchange.sendResponseHeaders(200, response.length);
+    try (OutputStream output = exchange.getResponseBody()) {
+      output.write(response);
+    }
+  }
+
+  /**
+   * @return resident set size in KB, read from {@code /proc/self/status}, or {@code -1} on systems without procfs
+   */
+  private static long getResidentSetSize() {
+    try {
+      for (String line : Files.readAllLines(Paths.get("/proc/self/status"), StandardCharsets.UTF_8)) {
+        if (line.startsWith("VmRSS:"))
+          return Long.parseLong(line.replaceAll("[^0-9]", ""));
+      }
+    }
+    catch (IOException | NumberFormatException ignored) {}
+    return -1;
+  }
+}
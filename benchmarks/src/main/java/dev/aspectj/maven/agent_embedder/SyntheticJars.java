@@ -0,0 +1,154 @@
+package dev.aspectj.maven.agent_embedder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+
+/**
+ * Generates synthetic executable fat JARs and agent JARs for benchmarking
+ * <p>
+ * Shapes are given as {@code entries:megabytes}, e.g. {@code 10000:100} for a JAR with 10,000 entries and a size of
+ * about 100 MB. Fat JARs are laid out like Spring Boot executable JARs: about half of the size consists of nested JARs
+ * in {@code BOOT-INF/lib}, stored uncompressed as Spring Boot requires, one nested JAR per 1,000 entries. The other
+ * half consists of class files in {@code BOOT-INF/classes}. Entry contents are pseudo-random and thus incompressible,
+ * so the JAR size matches the requested size closely.
+ * <p>
+ * Generating large JARs takes a while, so generated JARs are kept in {@code target/benchmark-jars} and reused by
+ * subsequent benchmark runs and forks. Content is derived from a fixed seed, i.e. a JAR of a given shape is always the
+ * same.
+ */
+public class SyntheticJars {
+  public static final String AGENT_CLASS = "org.acme.agent.SyntheticAgent";
+
+  private static final Path JAR_DIRECTORY = Paths.get("target", "benchmark-jars");
+  private static final int NESTED_JAR_ENTRIES = 100;
+  private static final long MEGABYTE = 1024 * 1024;
+
+  private SyntheticJars() {}
+
+  /**
+   * @param shape {@code entries:megabytes}
+   *
+   * @return executable fat JAR of the given shape, generated on first use
+   */
+  public static Path fatJar(String shape) throws IOException {
+    return getOrCreate("fat-" + shape.replace(':', '-') + ".jar", shape, SyntheticJars::writeFatJar);
+  }
+
+  /**
+   * @param shape {@code entries:megabytes}
+   *
+   * @return agent JAR of the given shape with {@link #AGENT_CLASS} as its agent class, generated on first use
+   */
+  public static Path agentJar(String shape) throws IOException {
+    return getOrCreate("agent-" + shape.replace(':', '-') + ".jar", shape, SyntheticJars::writeAgentJar);
+  }
+
+  @FunctionalInterface
+  private interface JarWriter {
+    void write(OutputStream output, int entries, long size) throws IOException;
+  }
+
+  private static synchronized Path getOrCreate(String fileName, String shape, JarWriter jarWriter) throws IOException {
+    Path jarPath = JAR_DIRECTORY.resolve(fileName).toAbsolutePath();
+    if (Files.exists(jarPath))
+      return jarPath;
+    String[] parts = shape.split(":");
+    if (parts.length != 2)
+      throw new IllegalArgumentException("Invalid JAR shape '" + shape + "', expected entries:megabytes");
+    Files.createDirectories(JAR_DIRECTORY);
+    Path tempPath = Files.createTempFile(JAR_DIRECTORY, fileName, ".tmp");
+    try {
+      try (OutputStream output = Files.newOutputStream(tempPath)) {
+        jarWriter.write(output, Integer.parseInt(parts[0].trim()), Long.parseLong(parts[1].trim()) * MEGABYTE);
+      }
+      Files.move(tempPath, jarPath, ATOMIC_MOVE);
+    }
+    finally {
+      Files.deleteIfExists(tempPath);
+    }
+    return jarPath;
+  }
+
+  private static void writeFatJar(OutputStream output, int entries, long size) throws IOException {
+    Random random = new Random(entries ^ size);
+    int nestedJarCount = Math.max(1, entries / 1000);
+    int classCount = Math.max(1, entries - nestedJarCount);
+    Manifest manifest = createManifest();
+    manifest.getMainAttributes().put(new Attributes.Name("Main-Class"), "org.springframework.boot.loader.JarLauncher");
+    manifest.getMainAttributes().put(new Attributes.Name("Start-Class"), "org.acme.app.Application");
+    try (JarOutputStream jar = new JarOutputStream(output, manifest)) {
+      writeClasses(jar, random, "BOOT-INF/classes/org/acme/app/", classCount, size / 2);
+      long nestedJarSize = size / 2 / nestedJarCount;
+      for (int i = 0; i < nestedJarCount; i++) {
+        ByteArrayOutputStream nestedJarBytes = new ByteArrayOutputStream((int) Math.min(nestedJarSize + 4096, Integer.MAX_VALUE));
+        try (JarOutputStream nestedJar = new JarOutputStream(nestedJarBytes, createManifest())) {
+          writeClasses(nestedJar, random, "org/acme/lib" + i + "/", NESTED_JAR_ENTRIES, nestedJarSize);
+        }
+        writeStored(jar, "BOOT-INF/lib/lib-" + i + ".jar", nestedJarBytes.toByteArray());
+      }
+    }
+  }
+
+  private static void writeAgentJar(OutputStream output, int entries, long size) throws IOException {
+    Random random = new Random(entries ^ size ^ 0x5eed);
+    Manifest manifest = createManifest();
+    manifest.getMainAttributes().put(new Attributes.Name("Agent-Class"), AGENT_CLASS);
+    manifest.getMainAttributes().put(new Attributes.Name("Premain-Class"), AGENT_CLASS);
+    try (JarOutputStream jar = new JarOutputStream(output, manifest)) {
+      writeEntry(jar, AGENT_CLASS.replace('.', '/') + ".class", randomBytes(random, 1024));
+      writeClasses(jar, random, "org/acme/agent/internal/", Math.max(1, entries - 1), size);
+    }
+  }
+
+  private static Manifest createManifest() {
+    Manifest manifest = new Manifest();
+    manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+    return manifest;
+  }
+
+  private static void writeClasses(ZipOutputStream zip, Random random, String packagePrefix, int count, long size)
+    throws IOException
+  {
+    int entrySize = (int) Math.max(1, size / count);
+    for (int i = 0; i < count; i++)
+      writeEntry(zip, packagePrefix + "p" + i / 100 + "/Class" + i + ".class", randomBytes(random, entrySize));
+  }
+
+  private static void writeEntry(ZipOutputStream zip, String name, byte[] content) throws IOException {
+    zip.putNextEntry(new ZipEntry(name));
+    zip.write(content);
+    zip.closeEntry();
+  }
+
+  private static void writeStored(ZipOutputStream zip, String name, byte[] content) throws IOException {
+    ZipEntry entry = new ZipEntry(name);
+    CRC32 crc = new CRC32();
+    crc.update(content);
+    entry.setMethod(ZipEntry.STORED);
+    entry.setSize(content.length);
+    entry.setCompressedSize(content.length);
+    entry.setCrc(crc.getValue());
+    zip.putNextEntry(entry);
+    zip.write(content);
+    zip.closeEntry();
+  }
+
+  private static byte[] randomBytes(Random random, int size) {
+    byte[] bytes = new byte[size];
+    random.nextBytes(bytes);
+    return bytes;
+  }
+}
@@ -0,0 +1,57 @@
+package dev.aspectj.maven.agent_embedder;
+
+import dev.aspectj.maven.tools.ZipFileSystemTool;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.FileSystem;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link AgentEmbedderMojo#unpackAgentJar(JavaAgentInfo, FileSystem, String)}, i.e. reading an agent JAR and
+ * unpacking it into an executable JAR opened as a zip file system, including writing the updated executable JAR when
+ * closing the file system.
+ * <p>
+ * Each invocation modifies the executable JAR, so every invocation works on a fresh copy and is measured as a single
+ * shot. The in-process agent JAR cache is cleared before each invocation, so the agent JAR is read from disk every time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class UnpackAgentJarBenchmark {
+  @Param({ "1000:10", "10000:100", "100000:500" })
+  public String fatJar;
+
+  @Param({ "100:1", "5000:10" })
+  public String agentJar;
+
+  private Path templateJar;
+  private Path workJar;
+  private String agentPath;
+  private JavaAgentInfo agentInfo;
+  private AgentEmbedderMojo mojo;
+
+  @Setup(Level.Trial)
+  public void setUpTrial() throws Exception {
+    templateJar = SyntheticJars.fatJar(fatJar);
+    agentPath = SyntheticJars.agentJar(agentJar).toString();
+  }
+
+  @Setup(Level.Invocation)
+  public void setUpInvocation() throws Exception {
+    workJar = BenchmarkJars.workCopy(templateJar);
+    agentInfo = BenchmarkJars.createAgentInfo(SyntheticJars.agentJar(agentJar));
+    mojo = BenchmarkJars.createMojo(agentInfo);
+    SharedAgentJarCache.getInstance().clear();
+  }
+
+  @Benchmark
+  public void unpackAgentJar() throws Exception {
+    try (FileSystem jarFS = ZipFileSystemTool.getZipFS(workJar, false)) {
+      mojo.unpackAgentJar(agentInfo, jarFS, agentPath);
+    }
+  }
+}
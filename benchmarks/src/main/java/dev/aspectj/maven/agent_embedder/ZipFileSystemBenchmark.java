@@ -0,0 +1,53 @@
+package dev.aspectj.maven.agent_embedder;
+
+import dev.aspectj.maven.tools.ZipFileSystemTool;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.InputStream;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.Manifest;
+
+import static dev.aspectj.maven.agent_embedder.AgentEmbedderMojo.MANIFEST_PATH;
+
+/**
+ * Measures {@link ZipFileSystemTool#getZipFS(Path, boolean)}, i.e. the fixed cost of opening an executable JAR as a
+ * zip file system, which is dominated by reading the central directory. The executable JAR is not modified, so closing
+ * the file system is cheap.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class ZipFileSystemBenchmark {
+  @Param({ "1000:10", "10000:100", "100000:500" })
+  public String fatJar;
+
+  private Path jar;
+
+  @Setup(Level.Trial)
+  public void setUpTrial() throws Exception {
+    jar = SyntheticJars.fatJar(fatJar);
+  }
+
+  @Benchmark
+  public int openAndClose() throws Exception {
+    try (FileSystem jarFS = ZipFileSystemTool.getZipFS(jar, false)) {
+      return jarFS.getRootDirectories().hashCode();
+    }
+  }
+
+  @Benchmark
+  public Manifest readManifest() throws Exception {
+    try (
+      FileSystem jarFS = ZipFileSystemTool.getZipFS(jar, false);
+      InputStream manifestInput = Files.newInputStream(jarFS.getPath(MANIFEST_PATH))
+    ) {
+      return new Manifest(manifestInput);
+    }
+  }
+}
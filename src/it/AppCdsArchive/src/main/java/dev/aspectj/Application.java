@@ -0,0 +1,7 @@
+package dev.aspectj;
+
+public class Application {
+  public static void main(String[] args) {
+    System.out.println("Hello from " + Application.class.getName());
+  }
+}
@@ -0,0 +1,46 @@
+/*
+  Test setup (identical for each IT)
+
+  Redefine variables injected by Maven Invoker, making them known and type-safe for better IDE code completion.
+  See https://maven.apache.org/plugins/maven-invoker-plugin/examples/post-build-script.html.
+
+  During IT development, when re-running the script manually from target/it/MyTestName/verify.groovy for shorter
+  turn-around times, we want to use fixed variable values, because there is no Maven Invoker around to inject them.
+ */
+
+boolean invokerVariablesBound = binding.hasVariable('basedir')
+
+File basedir = invokerVariablesBound ? basedir : new File('.').canonicalFile
+File localRepositoryPath = invokerVariablesBound ? localRepositoryPath : new File('../local-repo').canonicalFile
+Map<String, String> context = invokerVariablesBound ? context : [:]
+String mavenVersion = invokerVariablesBound ? mavenVersion : '3.9.5'
+
+/*
+  Integration test (IT)
+ */
+
+File buildLog = new File(basedir, 'build.log')
+List<String> logLines = buildLog.readLines()
+
+// --------------------------------------------------------
+// Inspect Maven build output
+// --------------------------------------------------------
+
+// CDS archive and launcher script are created next to the executable JAR
+assert logLines.grep(~/.*Created CDS archive: .*app-cds-it-0\.0\.1-SNAPSHOT\.jsa .*/).size() == 1
+assert logLines.grep(~/.*Writing launcher script: .*app-cds-it-0\.0\.1-SNAPSHOT\.sh/).size() == 1
+assert new File(basedir, 'target/app-cds-it-0.0.1-SNAPSHOT.jsa').size() > 0
+assert new File(basedir, 'target/app-cds-it-0.0.1-SNAPSHOT.sh').canExecute()
+
+// --------------------------------------------------------
+// Inspect runtime output of launcher script with '-Xshare:on'
+// --------------------------------------------------------
+
+// The application runs with its embedded agent
+assert logLines.contains('Starting agent dev.aspectj.agent.NonManifestRemoveFinalAgent with arguments dev.aspectj.Application')
+assert logLines.contains('Hello from dev.aspectj.Application')
+
+// Launcher agent and embedded agent classes are loaded from the CDS archive
+List<String> classLoadLines = new File(basedir, 'target/class-load.log').readLines()
+assert classLoadLines.grep(~/.*dev\.aspectj\.maven\.agent_embedder\.JavaAgentLauncher source: shared objects file.*/).size() == 1
+assert classLoadLines.grep(~/.*dev\.aspectj\.agent\.NonManifestRemoveFinalAgent source: shared objects file.*/).size() == 1
@@ -0,0 +1,95 @@
+import java.util.jar.JarFile
+import java.util.zip.ZipEntry
+import java.util.zip.ZipFile
+
+/*
+  Test setup (identical for each IT)
+
+  Redefine variables injected by Maven Invoker, making them known and type-safe for better IDE code completion.
+  See https://maven.apache.org/plugins/maven-invoker-plugin/examples/post-build-script.html.
+
+  During IT development, when re-running the script manually from target/it/MyTestName/verify.groovy for shorter
+  turn-around times, we want to use fixed variable values, because there is no Maven Invoker around to inject them.
+ */
+
+boolean invokerVariablesBound = binding.hasVariable('basedir')
+
+File basedir = invokerVariablesBound ? basedir : new File('.').canonicalFile
+File localRepositoryPath = invokerVariablesBound ? localRepositoryPath : new File('../local-repo').canonicalFile
+Map<String, String> context = invokerVariablesBound ? context : [:]
+String mavenVersion = invokerVariablesBound ? mavenVersion : '3.9.5'
+
+/*
+  Integration test (IT)
+ */
+
+File buildLog = new File(basedir, 'build.log')
+List<String> logLines = buildLog.readLines()
+
+// --------------------------------------------------------
+// Inspect Maven build output
+// --------------------------------------------------------
+
+// Embedded java agents are loaded from their nested JARs, neither unpacked nor removed
+List<String> nestedAgentJarLines = logLines.grep(~/.*Loading java agent .* from nested JAR .*/)
+assert nestedAgentJarLines.size() == 2
+assert nestedAgentJarLines.grep(~/.*org.aspectj.weaver.loadtime.Agent from nested JAR \/BOOT-INF\/lib\/aspectjweaver-.*\.jar/).size() == 1
+assert nestedAgentJarLines.grep(~/.*NonManifestRemoveFinalAgent from nested JAR \/BOOT-INF\/lib\/remove-final-agent-.*\.jar/).size() == 1
+assert logLines.grep(~/.*Removing embedded java agent: .*/).size() == 0
+assert logLines.grep(~/.*Unpacking: .*/).size() == 0
+
+// --------------------------------------------------------
+// Inspect Spring Boot runtime output
+// --------------------------------------------------------
+
+// AspectJ weaver is started via 'Agent-Class' manifest attribute auto-detection
+assert logLines.contains('Starting agent org.aspectj.weaver.loadtime.Agent with arguments null')
+
+// Remove final agent is started via 'agentClass' config property
+assert logLines.contains('Starting agent dev.aspectj.agent.NonManifestRemoveFinalAgent with arguments dev.aspectj.FirstComponent,dev.aspectj.SecondComponent')
+
+// AspectJ load-time weaving (LTW) happens
+List<String> weaveInfoLines = logLines.grep(~/.*weaveinfo.*/)
+assert weaveInfoLines.size() == 4
+assert weaveInfoLines.grep(~/.*field-set\(java.lang.String dev.aspectj.FirstComponent.field1\).*/).size() == 1
+assert weaveInfoLines.grep(~/.*field-set\(java.lang.Double dev.aspectj.FirstComponent.field4\).*/).size() == 1
+assert weaveInfoLines.grep(~/.*field-set\(java.lang.Integer dev.aspectj.SecondComponent.field2\).*/).size() == 1
+assert weaveInfoLines.grep(~/.*field-set\(boolean dev.aspectj.SecondComponent.field3\).*/).size() == 1
+
+// Remove final agent does its job, removing 'final' modifiers from specified target classes
+assert logLines.grep(~/.*Remove final agent seems to be inactive.*/).size() == 0
+assert logLines.contains('[Remove Final Agent] Removing final from class dev.aspectj.FirstComponent')
+assert logLines.contains('[Remove Final Agent] Removing final from class dev.aspectj.SecondComponent')
+
+// FieldWriteAccessLogAspect kicks in
+assert logLines.contains('set(String dev.aspectj.FirstComponent.field1)')
+assert logLines.contains('set(Double dev.aspectj.FirstComponent.field4)')
+assert logLines.contains('set(Integer dev.aspectj.SecondComponent.field2)')
+assert logLines.contains('set(boolean dev.aspectj.SecondComponent.field3)')
+
+// --------------------------------------------------------
+// Inspect executable JAR with embedded agents
+// --------------------------------------------------------
+
+// Get artifact path from Maven JAR output
+List<String> buildingJarLines = logLines.grep(~/.*Building jar: .*/)
+assert buildingJarLines.size() == 1
+def artifactPath = buildingJarLines[0].split('Building jar: ')[1]
+def artifactJarEntries = new ZipFile(artifactPath).entries().toList()
+
+// Confirm that neither AspectJ weaver nor remove final agent classes have been unpacked into the executable JAR
+assert !artifactJarEntries.any { it.name.startsWith 'org/aspectj/weaver/' }
+assert !artifactJarEntries.any { it.name.startsWith 'dev/aspectj/agent/RemoveFinal' }
+
+// Confirm that the nested agent JARs are still there
+def aspectjWeaverJars = artifactJarEntries
+  .findAll { it.name ==~ /BOOT-INF\/lib\/aspectjweaver.*\.jar/ }
+assert aspectjWeaverJars.size() == 1
+def removeFinalAgentJars = artifactJarEntries
+  .findAll { it.name ==~ /BOOT-INF\/lib\/remove-final-agent.*\.jar/ }
+assert removeFinalAgentJars.size() == 1
+
+// Confirm that the manifest records the nested agent JARs
+def agentAttributes = new JarFile(artifactPath).manifest.getAttributes('dev/aspectj/agent-embedder')
+assert agentAttributes.getValue('Agent-Jar-1') == aspectjWeaverJars[0].name
+assert agentAttributes.getValue('Agent-Jar-2') == removeFinalAgentJars[0].name
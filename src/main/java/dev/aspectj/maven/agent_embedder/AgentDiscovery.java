@@ -0,0 +1,223 @@
+package dev.aspectj.maven.agent_embedder;
+
+import dev.aspectj.maven.tools.ZipCentralDirectory;
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+import java.util.regex.Pattern;
+
+import static dev.aspectj.maven.agent_embedder.AgentEmbedderMojo.HEADER_AGENT_CLASS;
+import static dev.aspectj.maven.agent_embedder.AgentEmbedderMojo.HEADER_PREMAIN_CLASS;
+import static dev.aspectj.maven.agent_embedder.AgentEmbedderMojo.MANIFEST_PATH;
+
+/**
+ * Discovers java agents among the module's dependencies by scanning their manifests for {@code Premain-Class} and
+ * {@code Agent-Class} attributes
+ * <p>
+ * Dependencies are filtered by include and exclude patterns on their coordinates first, so only candidates' manifests
+ * are read. Those are independent of each other, so they are read concurrently, reading only the central directory and
+ * the manifest of each JAR. Discovered agents are returned in dependency order, though, which keeps the agent order
+ * and thus the embedding result deterministic.
+ * <p>
+ * Patterns have the format {@code groupId[:artifactId[:classifier]]}, each part optionally containing {@code *}
+ * wildcards matching any characters. Missing parts match anything.
+ */
+public class AgentDiscovery {
+  private static final AtomicInteger THREAD_COUNTER = new AtomicInteger();
+
+  private final AgentEmbedderMojo mojo;
+  private final Log log;
+  private final List<Pattern[]> includes = new ArrayList<>();
+  private final List<Pattern[]> excludes = new ArrayList<>();
+
+  /**
+   * @param mojo     mojo providing the host file system and reader thread count
+   * @param includes coordinate patterns of dependencies to scan, {@code null} or empty for all dependencies
+   * @param excludes coordinate patterns of dependencies not to scan, may be {@code null}
+   */
+  public AgentDiscovery(AgentEmbedderMojo mojo, List<String> includes, List<String> excludes) {
+    this.mojo = mojo;
+    this.log = mojo.getLog();
+    if (includes != null) {
+      for (String include : includes)
+        this.includes.add(toPatterns(include));
+    }
+    if (excludes != null) {
+      for (String exclude : excludes)
+        this.excludes.add(toPatterns(exclude));
+    }
+  }
+
+  /**
+   * @param artifacts        resolved dependencies
+   * @param configuredAgents agents configured explicitly, which are not discovered again
+   *
+   * @return agents discovered among the dependencies, in dependency order
+   */
+  public List<JavaAgentInfo> discover(Collection<Artifact> artifacts, List<JavaAgentInfo> configuredAgents)
+    throws MojoExecutionException
+  {
+    Set<String> configuredCoordinates = new HashSet<>();
+    for (JavaAgentInfo agent : configuredAgents) {
+      configuredCoordinates.add(
+        DependencyIndex.getCoordinates(agent.getGroupId(), agent.getArtifactId(), agent.getClassifier())
+      );
+    }
+    List<Artifact> candidates = new ArrayList<>();
+    Set<String> candidateCoordinates = new HashSet<>();
+    for (Artifact artifact : artifacts) {
+      String coordinates = DependencyIndex.getCoordinates(
+        artifact.getGroupId(), artifact.getArtifactId(), artifact.getClassifier()
+      );
+      if (
+        "jar".equals(artifact.getType()) && artifact.getFile() != null && isIncluded(artifact) &&
+          !configuredCoordinates.contains(coordinates) && candidateCoordinates.add(coordinates)
+      )
+        candidates.add(artifact);
+    }
+
+    List<String> agentClasses = readAgentClasses(candidates);
+    List<JavaAgentInfo> discoveredAgents = new ArrayList<>();
+    for (int i = 0; i < candidates.size(); i++) {
+      if (agentClasses.get(i) == null)
+        continue;
+      Artifact artifact = candidates.get(i);
+      log.info("Discovered java agent " + artifact.getId() + " with agent class " + agentClasses.get(i));
+      discoveredAgents.add(new JavaAgentInfo(
+        artifact.getGroupId(), artifact.getArtifactId(), artifact.getClassifier(), agentClasses.get(i), null, null
+      ));
+    }
+    log.info(
+      "Agent discovery: scanned " + candidates.size() + " of " + artifacts.size() + " dependencies, found " +
+        discoveredAgents.size() + " java agents"
+    );
+    return discoveredAgents;
+  }
+
+  /**
+   * @param artifact dependency
+   *
+   * @return {@code true}, if the dependency matches any include pattern or there are none, and it matches no exclude
+   * pattern
+   */
+  public boolean isIncluded(Artifact artifact) {
+    return (includes.isEmpty() || matchesAny(includes, artifact)) && !matchesAny(excludes, artifact);
+  }
+
+  private List<String> readAgentClasses(List<Artifact> candidates) throws MojoExecutionException {
+    List<String> agentClasses = new ArrayList<>();
+    int threadCount = mojo.getAgentReaderThreads(candidates.size());
+    if (threadCount <= 1) {
+      for (Artifact candidate : candidates)
+        agentClasses.add(readAgentClass(candidate));
+      return agentClasses;
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(threadCount, runnable -> {
+      Thread thread = new Thread(runnable, "agent-embedder-discovery-" + THREAD_COUNTER.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    try {
+      List<Future<String>> futures = new ArrayList<>();
+      for (Artifact candidate : candidates)
+        futures.add(executor.submit(() -> readAgentClass(candidate)));
+      for (Future<String> future : futures)
+        agentClasses.add(getResult(future));
+      return agentClasses;
+    }
+    finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * @return agent class from the manifest, preferring {@code Premain-Class}, because the launcher agent calls
+   * {@code premain}, or {@code null}, if the dependency is no java agent or cannot be read
+   */
+  private String readAgentClass(Artifact artifact) {
+    Path jarPath = mojo.hostFS.getPath(mojo.adjustPathSeparatorToHostFS(artifact.getFile().getPath(), mojo.hostFS));
+    if (!Files.isRegularFile(jarPath))
+      return null;
+    Attributes mainAttributes;
+    try (ZipCentralDirectory jar = ZipCentralDirectory.open(jarPath)) {
+      ZipCentralDirectory.Entry manifestEntry = jar.getEntry(MANIFEST_PATH);
+      if (manifestEntry == null)
+        return null;
+      try (InputStream manifestInput = jar.getInputStream(manifestEntry)) {
+        mainAttributes = new Manifest(manifestInput).getMainAttributes();
+      }
+    }
+    catch (IOException e) {
+      log.debug("Cannot read manifest of dependency " + jarPath + ": " + e);
+      return null;
+    }
+    for (String header : Arrays.asList(HEADER_PREMAIN_CLASS, HEADER_AGENT_CLASS)) {
+      String agentClass = mainAttributes.getValue(header);
+      if (agentClass != null && !agentClass.trim().isEmpty())
+        return agentClass.trim();
+    }
+    return null;
+  }
+
+  private static String getResult(Future<String> future) throws MojoExecutionException {
+    try {
+      return future.get();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new MojoExecutionException("Interrupted while discovering java agents", e);
+    }
+    catch (ExecutionException e) {
+      throw new MojoExecutionException("Error while discovering java agents", e.getCause());
+    }
+  }
+
+  private static boolean matchesAny(List<Pattern[]> patterns, Artifact artifact) {
+    String[] coordinates = { artifact.getGroupId(), artifact.getArtifactId(), artifact.getClassifier() };
+    for (Pattern[] pattern : patterns) {
+      boolean matches = true;
+      for (int i = 0; i < pattern.length && matches; i++)
+        matches = pattern[i].matcher(coordinates[i] == null ? "" : coordinates[i]).matches();
+      if (matches)
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * @param coordinatePattern pattern in {@code groupId[:artifactId[:classifier]]} format
+   *
+   * @return one regular expression per coordinate part
+   */
+  private static Pattern[] toPatterns(String coordinatePattern) {
+    String[] parts = coordinatePattern.trim().split(":", -1);
+    if (parts.length > 3)
+      throw new IllegalArgumentException(
+        "Invalid agent discovery pattern '" + coordinatePattern + "', expected groupId[:artifactId[:classifier]]"
+      );
+    Pattern[] patterns = new Pattern[parts.length];
+    for (int i = 0; i < parts.length; i++) {
+      String[] literals = parts[i].trim().split("\\*", -1);
+      StringBuilder regex = new StringBuilder();
+      for (int j = 0; j < literals.length; j++) {
+        if (j > 0)
+          regex.append(".*");
+        if (!literals[j].isEmpty())
+          regex.append(Pattern.quote(literals[j]));
+      }
+      patterns[i] = Pattern.compile(regex.toString());
+    }
+    return patterns;
+  }
+}
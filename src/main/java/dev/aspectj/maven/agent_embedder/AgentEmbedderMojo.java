@@ -1,5 +1,7 @@
 package dev.aspectj.maven.agent_embedder;
 
+import dev.aspectj.maven.tools.ZipCentralDirectory;
+import org.apache.maven.artifact.Artifact;
 import org.apache.maven.execution.MavenSession;
 import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
@@ -9,11 +11,14 @@ import org.apache.maven.project.MavenProjectHelper;
 
 import java.io.*;
 import java.nio.file.*;
-import java.util.List;
-import java.util.Objects;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.FileTime;
+import java.time.Clock;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.*;
 import java.util.jar.Attributes;
 import java.util.jar.Manifest;
-import java.util.stream.Stream;
 
 import static dev.aspectj.maven.agent_embedder.JavaAgentLauncher.*;
 import static dev.aspectj.maven.tools.ZipFileSystemTool.getZipFS;
@@ -91,7 +96,14 @@ import static dev.aspectj.maven.tools.ZipFileSystemTool.getZipFS;
 )
 public class AgentEmbedderMojo extends AbstractMojo {
   public static final String MANIFEST_PATH = "META-INF/MANIFEST.MF";
+  public static final String HEADER_PREMAIN_CLASS = "Premain-Class";
   public static final String HEADER_AGENT_CLASS = "Agent-Class";
+  /**
+   * Class file root directories of executable JARs: the archive root, Spring Boot's and the one of WAR archives
+   */
+  public static final List<String> CLASS_DIRECTORIES =
+    Collections.unmodifiableList(Arrays.asList("", "BOOT-INF/classes/", "WEB-INF/classes/"));
+  public static final String NESTED_AGENT_JAR_DIRECTORY = "META-INF/agents/";
 
   /**
    * Host file system the mojo works on. Override for testing.
@@ -132,6 +144,28 @@ public class AgentEmbedderMojo extends AbstractMojo {
    *     weird reason the JAR got there without being a dependency. Again, you can specify {@code agentPath} to point
    *     there. The plugin will find and unpack the JAR from there.
    *   </li>
+   *   <li>
+   *     {@code async}: Start the agent on a background thread, concurrently with other asynchronous agents of the same
+   *     startup group, instead of on the main thread. This is useful for agents performing expensive setup work, e.g.
+   *     loading configuration, starting reporter threads or warming up caches, which neither other agents nor the
+   *     application's main class depend on. Defaults to {@code false}. Not supported by {@link #generateLauncher}.
+   *   </li>
+   *   <li>
+   *     {@code startupGroup}: Agents are started group by group in ascending group number order, and in configuration
+   *     order within each group. Before the next group starts, and finally before the application's main class
+   *     starts, all asynchronous agents of the current group must have finished starting. I.e., an agent depending on
+   *     an asynchronous agent must be in a higher group. Defaults to {@code 0}.
+   *   </li>
+   *   <li>
+   *     {@code lazyTrigger}: Comma-separated fully qualified class name prefixes, e.g. {@code java.sql.,org.h2.}. If
+   *     set, the agent is not started before the application's main class, but only when the first class matching one
+   *     of the prefixes is loaded. This saves startup time for agents only relevant to parts of the application which
+   *     might never be used, e.g. a JDBC tracing agent. The agent is started on a background thread. Afterwards, all
+   *     loaded classes matching the prefixes, including the triggering class, are retransformed, so the agent's
+   *     transformers also see classes loaded before it started. Therefore, the plugin adds
+   *     {@code Can-Retransform-Classes: true} to the executable JAR's manifest. Properties {@code async} and
+   *     {@code startupGroup} do not apply to lazy agents. Not supported by {@link #generateLauncher}.
+   *   </li>
    * </ul>
    * Here is an example for two agents to be embedded into the executable JAR, one of them also taking an option string:
    * <pre>{@code
@@ -173,9 +207,40 @@ public class AgentEmbedderMojo extends AbstractMojo {
    */
   // TODO: In the second code block above, the curly brace derails formatting in Maven Site. Use inline "{@code ...}"
   //       instead of escaped '<' and '>' characters after https://issues.apache.org/jira/browse/MPLUGIN-513 fix.
-  @Parameter(required = true)
+  @Parameter
   protected List<JavaAgentInfo> javaAgents;
 
+  /**
+   * Discover java agents among the module's dependencies, embedding them in addition to the ones configured in
+   * {@link #javaAgents}. Dependency JARs whose manifests contain a {@code Premain-Class} or {@code Agent-Class}
+   * attribute are considered java agents. Discovered agents are embedded after the configured ones, in dependency order.
+   * Use {@link #discoveryIncludes} and {@link #discoveryExcludes} to control which dependencies are scanned, e.g. in
+   * order to skip libraries like Byte Buddy, which contain an agent class, but are no agents to be started.
+   */
+  @Parameter(defaultValue = "false")
+  protected boolean discoverAgents;
+
+  /**
+   * Coordinate patterns of dependencies to be scanned by {@link #discoverAgents}. Patterns have the format
+   * {@code groupId[:artifactId[:classifier]]}, each part optionally containing {@code *} wildcards. Missing parts match
+   * anything. If empty, all dependencies are scanned. Example:
+   * <pre>{@code
+   * <discoveryIncludes>
+   *   <include>org.aspectj:aspectjweaver</include>
+   *   <include>com.acme.agents</include>
+   * </discoveryIncludes>
+   * }</pre>
+   */
+  @Parameter
+  protected List<String> discoveryIncludes;
+
+  /**
+   * Coordinate patterns of dependencies not to be scanned by {@link #discoverAgents}, even if matching
+   * {@link #discoveryIncludes}. See there for the pattern format.
+   */
+  @Parameter
+  protected List<String> discoveryExcludes;
+
   /**
    * Remove nested agent JARs from the executable JAR after unpacking their contents into the executable JAR
    * <p>
@@ -192,10 +257,277 @@ public class AgentEmbedderMojo extends AbstractMojo {
   @Parameter(required = true, defaultValue = "false")
   protected boolean removeEmbeddedAgents;
 
+  /**
+   * Engine used to write the java agents into the main artifact
+   * <ul>
+   *   <li>
+   *     {@code ZIPFS}: Modify the main artifact in place via the JDK zip file system. This is the original, well-tested
+   *     engine. Please note, that upon closing the zip file system, the JDK rewrites the whole archive. For big
+   *     executable JARs, e.g. Spring Boot fat JARs, this can take a while.
+   *   </li>
+   *   <li>
+   *     {@code STREAMING}: Read the main artifact and each agent JAR exactly once and write a new artifact in a single
+   *     sequential pass. The launcher agent, the agent classes, the rewritten manifest and the removal of nested agent
+   *     JARs are all applied on the fly. Finally, the new artifact replaces the original one.
+   *   </li>
+   * </ul>
+   */
+  @Parameter(required = true, defaultValue = "ZIPFS")
+  protected EmbeddingEngine engine = EmbeddingEngine.ZIPFS;
+
+  /**
+   * Order of the entries in the main artifact after embedding
+   * <ul>
+   *   <li>{@code ORIGINAL}: Keep the original entry order, adding launcher and agent entries behind it.</li>
+   *   <li>
+   *     {@code STARTUP}: Write {@code META-INF/MANIFEST.MF} first, followed by the classes loaded during JVM startup in
+   *     the order they are loaded, then all other entries in their original order. The load order is taken from
+   *     {@link #startupClassList}, if configured. Classes missing there are ordered heuristically: launcher agent
+   *     classes, agent classes, then the main class and its package. Placing the local headers of startup classes
+   *     sequentially at the beginning of the archive improves page cache locality, e.g. on cold container starts.
+   *     This order requires the {@code STREAMING} engine, which is used automatically.
+   *   </li>
+   * </ul>
+   */
+  @Parameter(defaultValue = "ORIGINAL")
+  protected EntryOrder entryOrder = EntryOrder.ORIGINAL;
+
+  /**
+   * Recorded class-loading list for {@link #entryOrder} {@code STARTUP}, e.g. the {@code .classlist} file written by
+   * the {@code app-cds} goal, a file written by {@code java -XX:DumpLoadedClassList=<file>} or a class loading log
+   * written by {@code java -Xlog:class+load:file=<file>}. If the file does not exist, the heuristic order is used.
+   */
+  @Parameter
+  protected File startupClassList;
+
+  /**
+   * Compression of the entries written by the plugin, configurable per entry group: the rewritten manifest, the
+   * launcher agent classes, the class files and the other files unpacked from agent JARs. Each group can be configured
+   * as {@code KEEP} (default), {@code STORED}, {@code DEFLATED} or {@code DEFLATED:N} with compression level {@code N}
+   * from 0 to 9, see {@link CompressionPolicy}. E.g., agent classes are loaded eagerly during JVM startup, so storing
+   * them uncompressed saves inflating them:
+   * <pre>{@code
+   * <compression>
+   *   <launcherClasses>STORED</launcherClasses>
+   *   <agentClasses>STORED</agentClasses>
+   *   <agentResources>DEFLATED:9</agentResources>
+   * </compression>
+   * }</pre>
+   * The zip file system cannot write entries with individual compression settings, so this option requires the
+   * {@code STREAMING} engine, which is used automatically.
+   */
+  @Parameter
+  protected CompressionPolicy compression;
+
+  /**
+   * Time stamp for reproducible output, in ISO-8601 format, e.g. {@code 2024-01-01T00:00:00Z}, or as seconds since the
+   * epoch, like for other plugins supporting
+   * <a href="https://maven.apache.org/guides/mini/guide-reproducible-builds.html">reproducible builds</a>. If set, all
+   * entries written by the plugin, i.e. the manifest, the launcher agent classes and the unpacked agent entries, get
+   * this last modification time instead of the current time or the agent JAR entry time. Like other Maven archivers,
+   * the MS-DOS time stamps in the archive show the UTC date and time, no matter which time zone the build runs in.
+   * <p>
+   * Entries are written in a stable order anyway, and the manifest section for the launcher agent is always written
+   * in the same attribute order. Together, two builds with identical inputs produce byte-identical artifacts, which
+   * makes build caches and container image layers effective.
+   */
+  @Parameter(defaultValue = "${project.build.outputTimestamp}")
+  protected String outputTimestamp;
+
+  /**
+   * Skip embedding, if the main artifact already contains the configured java agents
+   * <p>
+   * After embedding, the plugin records a fingerprint in the {@code dev/aspectj/agent-embedder} section of the
+   * artifact's manifest. It comprises hashes of each resolved agent JAR, the effective agent configuration, the plugin
+   * version and other options influencing the result. If the build did not re-create the main artifact, e.g. because
+   * it was up-to-date, and neither the agents nor their configuration changed, the fingerprints match, and there is
+   * nothing left to do.
+   */
+  @Parameter(defaultValue = "true")
+  protected boolean upToDateCheck = true;
+
+  /**
+   * Maximum number of threads used to read java agent JARs concurrently
+   * <p>
+   * Agent JARs are resolved and read in parallel, but always applied to the main artifact in the configured order. I.e.,
+   * if several agent JARs contain the same entry, the first agent still wins. The default value {@code 0} means: use
+   * the number of available processors, divided by the degree of concurrency of parallel Maven builds ({@code -T}).
+   * That way, concurrently executing modules do not oversubscribe the CPU cores. Set this to {@code 1} in order to read
+   * agent JARs sequentially.
+   */
+  @Parameter(defaultValue = "0")
+  protected int agentReaderThreads;
+
+  /**
+   * Directory of a persistent cache for data derived from agent JARs, shared by all builds and modules using the same
+   * local Maven repository. Entries are keyed by agent JAR content hash, i.e. an agent JAR is analysed only once, no
+   * matter how many modules embed it. The cache holds
+   * <ul>
+   *   <li>the agent class from the agent manifest,</li>
+   *   <li>the class references needed by {@link #shrinkAgents},</li>
+   *   <li>the entry content hashes needed by {@link #deduplication}.</li>
+   * </ul>
+   * Concurrent builds can safely share the cache. Errors accessing the cache never fail the build. Clear the parameter
+   * in order to disable the cache.
+   */
+  @Parameter(defaultValue = "${settings.localRepository}/.cache/agent-embedder")
+  protected File agentCacheDirectory;
+
+  /**
+   * Maximum size of the {@link #agentCacheDirectory agent cache} in MB. When exceeded, the least recently used entries
+   * are evicted.
+   */
+  @Parameter(defaultValue = "64")
+  protected int agentCacheMaxSize = 64;
+
+  /**
+   * JSON file receiving performance metrics of the embedding run, e.g. for tracking build time regressions. For each
+   * phase, the report contains the time spent, the numbers of entries scanned, written and skipped, the numbers of
+   * bytes read and written as well as the peak of used heap samples taken when entering and leaving the phase. Used
+   * heap is JVM-wide, i.e. in parallel builds it includes concurrent executions. A one-line summary is logged in any
+   * case. Clear the parameter in order to skip writing the report.
+   */
+  @Parameter(defaultValue = "${project.build.directory}/agent-embedder-report.json")
+  protected File reportFile;
+
+  /**
+   * Heap memory budget in MB for embedding, shared by all executions running concurrently in the same Maven JVM, e.g.
+   * modules of a parallel build ({@code -T}). Before embedding, each execution reserves its estimated heap usage: the
+   * agent JARs read into memory and, with engine {@code ZIPFS}, about the same amount again for agent entries buffered
+   * by the zip file system until writing the executable JAR. When the budget is exceeded, {@link #memoryBudgetMode}
+   * applies. The default value {@code 0} means: half of the maximum heap size. A negative value disables the budget.
+   */
+  @Parameter(defaultValue = "0")
+  protected int memoryBudget;
+
+  /**
+   * What to do when an execution would exceed the {@link #memoryBudget}:
+   * <ul>
+   *   <li>
+   *     {@code SPILL}: let the zip file system write agent entries to temporary files instead of buffering them on the
+   *     heap. If the agent JARs alone still exceed the budget, wait like {@code THROTTLE}.
+   *   </li>
+   *   <li>{@code THROTTLE}: wait until concurrent executions have released enough of the budget.</li>
+   * </ul>
+   */
+  @Parameter(defaultValue = "SPILL")
+  protected MemoryBudgetMode memoryBudgetMode = MemoryBudgetMode.SPILL;
+
+  /**
+   * How the launcher agent loads the embedded agents at runtime
+   * <ul>
+   *   <li>
+   *     {@code UNPACK}: Unpack each agent JAR into the executable JAR's root, because JVM classloaders cannot load
+   *     classes from nested JARs.
+   *   </li>
+   *   <li>
+   *     {@code NESTED}: Do not unpack anything. Agent JARs already nested inside the executable JAR, e.g.
+   *     <i>BOOT-INF/lib/aspectjweaver-x.y.z.jar</i>, stay where they are, other agent JARs are added uncompressed to
+   *     <i>{@value #NESTED_AGENT_JAR_DIRECTORY}</i>. The manifest records each agent's nested JAR. At runtime, the
+   *     launcher agent maps each nested agent JAR from the executable JAR, indexes its entries once and loads agent
+   *     classes lazily from there, i.e. only classes actually used are read. Embedding is faster and the executable
+   *     JAR smaller, but agent classes are only visible to the agent's own classloader, not to the application
+   *     classloader. Agents expected to be found on the application classpath, e.g. by frameworks looking up agent
+   *     classes in order to get hold of the {@code Instrumentation} instance, need {@code UNPACK}. Multi-Release agent
+   *     JARs are loaded from their base entries only. {@link #removeEmbeddedAgents}, {@link #shrinkAgents} and
+   *     {@link #generateLauncher} do not apply. This mode requires the {@code STREAMING} engine, which is used
+   *     automatically.
+   *   </li>
+   * </ul>
+   */
+  @Parameter(defaultValue = "UNPACK")
+  protected AgentLoading agentLoading = AgentLoading.UNPACK;
+
+  /**
+   * Generate a launcher agent class dedicated to the main artifact, instead of using the generic launcher agent
+   * <p>
+   * The generic launcher agent reads the executable JAR's manifest during JVM startup and starts the embedded agents
+   * via reflection. The generated launcher agent has agent classes and arguments baked in as constants and calls each
+   * agent's {@code premain} method directly, removing manifest I/O and reflection from the application's startup path.
+   * The manifest's {@code Launcher-Agent-Class} attribute points to the generated class. Agent classes which cannot be
+   * found in their agent JARs are still started reflectively.
+   */
+  @Parameter(defaultValue = "false")
+  protected boolean generateLauncher;
+
+  /**
+   * Embed only those classes of each agent JAR which are reachable from its agent class
+   * <p>
+   * Reachability is determined by bytecode analysis, starting from the agent class, the agent classes named in the
+   * agent manifest, service providers registered in the agent JAR and class names found in the main artifact's
+   * {@code META-INF/aop.xml} or {@code META-INF/aop-ajc.xml}, including classes referenced by aspects listed there.
+   * Class names in string constants count as references, which covers most classes loaded via reflection. For any
+   * other classes loaded reflectively, e.g. by computed names, use {@link #shrinkKeepClasses}. Resources are always
+   * embedded.
+   * <p>
+   * Smaller JARs are faster to copy, push and open, and the JVM has fewer entries to scan. However, if shrinking
+   * removes a class the agent needs at runtime, it fails with a {@link NoClassDefFoundError}. Therefore, test the
+   * executable JAR thoroughly.
+   */
+  @Parameter(defaultValue = "false")
+  protected boolean shrinkAgents;
+
+  /**
+   * Fully qualified names of agent classes to be kept in any case when {@link #shrinkAgents} is active, in addition to
+   * the classes reachable from the agent classes. Wildcards: {@code *} matches any characters except for {@code .},
+   * {@code **} matches any characters and {@code ?} matches a single character except for {@code .}. Example:
+   * <pre>{@code
+   * <shrinkKeepClasses>
+   *   <keep>org.aspectj.lang.**</keep>
+   *   <keep>org.aspectj.weaver.loadtime.*</keep>
+   * </shrinkKeepClasses>
+   * }</pre>
+   */
+  @Parameter
+  protected List<String> shrinkKeepClasses;
+
+  /**
+   * Find byte-identical duplicate entries across the main artifact, the agent JARs and nested JARs inside the main
+   * artifact
+   * <ul>
+   *   <li>{@code NONE}: Do not look for duplicates.</li>
+   *   <li>
+   *     {@code REPORT}: Log agent entries not embedded, because the main artifact or a preceding agent already contains
+   *     them, warning about ones with different content. Log nested JARs, e.g. in <i>BOOT-INF/lib</i>, containing
+   *     entries which also exist with identical content in the main artifact's root after embedding, e.g. a library
+   *     shaded into an agent JAR or a nested agent JAR which is not removed. Finally, log a summary of duplicate bytes.
+   *   </li>
+   *   <li>
+   *     {@code REMOVE}: Like {@code REPORT}, but also remove nested JARs whose entries all exist with identical content
+   *     in the root, except for metadata like manifests, signatures and licenses. This is safe for executable JARs
+   *     whose classloaders delegate to the JVM application classloader first, e.g. Spring Boot, because their nested
+   *     copies are never loaded.
+   *   </li>
+   * </ul>
+   * Entries are compared by CRC-32 checksum and size first, each match being confirmed by a SHA-256 content hash.
+   */
+  @Parameter(defaultValue = "NONE")
+  protected DeduplicationMode deduplication = DeduplicationMode.NONE;
+
+  /**
+   * Lowest JVM feature version, e.g. {@code 11}, the executable JAR is going to run on. Versioned entries of
+   * Multi-Release agent JARs, i.e. entries in {@code META-INF/versions/N}, which are shadowed by higher versions of the
+   * same entry up to this version are not embedded. Base entries are always embedded, no matter if there is a versioned
+   * entry shadowing them.
+   * <p>
+   * Independently of this setting, versioned entries of agent JARs which are not Multi-Release JARs are never embedded,
+   * because the JVM ignores them when starting the agent via {@code -javaagent}. If any versioned entries of
+   * Multi-Release agent JARs are embedded, the executable JAR's manifest gets a {@code Multi-Release: true} attribute,
+   * in order to make the JVM see the same classes as if the agent was started via {@code -javaagent}.
+   */
+  @Parameter
+  protected Integer multiReleaseMinVersion;
+
+  /**
+   * Highest JVM feature version, e.g. {@code 21}, the executable JAR is going to run on. Versioned entries of
+   * Multi-Release agent JARs for higher versions are not embedded. See also {@link #multiReleaseMinVersion}.
+   */
+  @Parameter
+  protected Integer multiReleaseMaxVersion;
+
   @Parameter(defaultValue = "${project}", readonly = true, required = true)
   protected MavenProject project;
 
-  @SuppressWarnings("unused")  // Keep for future use
   @Parameter(defaultValue = "${session}", readonly = true, required = true)
   protected MavenSession session;
 
@@ -203,45 +535,588 @@ public class AgentEmbedderMojo extends AbstractMojo {
   @Component
   protected MavenProjectHelper projectHelper;
 
+  @Parameter(defaultValue = "${plugin.version}", readonly = true)
+  protected String pluginVersion;
+
+  /**
+   * Fingerprint of the current embedding run, recorded in the manifest by {@link ManifestUpdater}
+   */
+  protected String fingerprint;
+
+  /**
+   * Time stamp for entries written by the plugin, derived from {@link #outputTimestamp} and adjusted for writing
+   * MS-DOS time stamps in UTC, or {@code null} for using current or original time stamps
+   */
+  protected Long outputTime;
+
+  /**
+   * Clock providing the current time for entries written by the plugin, if there is no {@link #outputTime}
+   */
+  protected Clock clock = Clock.systemUTC();
+
+  /**
+   * Index of the module's dependencies, built on first use by {@link #resolveAgentJarLocation(JavaAgentInfo)}
+   */
+  protected DependencyIndex dependencyIndex;
+
+  /**
+   * Performance metrics of the current embedding run, written to {@link #reportFile}
+   */
+  protected EmbeddingReport report = new EmbeddingReport();
+
+  /**
+   * Whether the zip file system should write new entries to temporary files, because the {@link #memoryBudget} is
+   * exhausted
+   */
+  protected boolean spillToTempFiles;
+
+  /**
+   * Whether embedded agent entries require the executable JAR to be a Multi-Release JAR, set by
+   * {@link #mergeMultiReleaseAgentJars} and recorded in the manifest by {@link ManifestUpdater}
+   */
+  protected boolean multiReleaseRequired;
+
+  /**
+   * Names of the nested agent JARs inside the main artifact, in agent order, if {@link #agentLoading} is
+   * {@code NESTED}. Set by {@link StreamingJarEmbedder} and recorded in the manifest by {@link ManifestUpdater}.
+   */
+  protected List<String> nestedAgentJarNames;
+
   public void execute() throws MojoExecutionException {
+    dependencyIndex = null;
+    if (discoverAgents)
+      javaAgents = discoverJavaAgents();
     if (javaAgents == null || javaAgents.isEmpty()) {
       getLog().warn("List of java agents to embed is empty, skipping execution");
       return;
     }
+    if (compression != null) {
+      try {
+        compression.validate();
+      }
+      catch (IllegalArgumentException e) {
+        throw new MojoExecutionException(e.getMessage(), e);
+      }
+    }
+    outputTime = parseOutputTimestamp(outputTimestamp);
+    report = new EmbeddingReport();
+    nestedAgentJarNames = null;
     String artifactJarLocation = adjustPathSeparatorToHostFS(project.getArtifact().getFile().getPath(), hostFS);
     Path artifactPath = hostFS.getPath(artifactJarLocation);
-    try (FileSystem jarFS = getZipFS(artifactPath, false)) {
+    try {
+      fingerprint = computeFingerprint();
+      if (upToDateCheck && fingerprint.equals(readEmbeddedFingerprint(artifactPath))) {
+        getLog().info("Java agents already embedded, artifact is up to date: " + artifactPath);
+        return;
+      }
+      if (generateLauncher && agentLoading == AgentLoading.NESTED)
+        getLog().warn("Generated launcher agent does not support agent loading NESTED, using generic launcher agent");
+      else if (generateLauncher && javaAgents.stream().anyMatch(JavaAgentInfo::isAsync))
+        getLog().warn("Generated launcher agent does not support asynchronous agents, using generic launcher agent");
+      else if (generateLauncher && !isGeneratedLauncherUsed())
+        getLog().warn("Generated launcher agent does not support lazy agents, using generic launcher agent");
+      if (agentLoading == AgentLoading.NESTED && removeEmbeddedAgents)
+        getLog().warn("Agent loading NESTED needs the nested agent JARs, ignoring removeEmbeddedAgents");
+      if (agentLoading == AgentLoading.NESTED && shrinkAgents)
+        getLog().warn("Agent loading NESTED does not unpack agent JARs, ignoring shrinkAgents");
+      String streamingRequirement = getStreamingRequirement();
+      if (engine == EmbeddingEngine.ZIPFS && streamingRequirement != null)
+        getLog().info(streamingRequirement + " requires engine STREAMING, using it instead of ZIPFS");
+      EmbeddingEngine effectiveEngine = streamingRequirement != null ? EmbeddingEngine.STREAMING : engine;
+      try (MemoryBudget.Reservation reservation = reserveMemory(artifactPath, effectiveEngine)) {
+        spillToTempFiles = reservation != null && reservation.isSpill();
+        if (effectiveEngine == EmbeddingEngine.STREAMING)
+          new StreamingJarEmbedder(this).embed(artifactPath);
+        else
+          embedUsingZipFS(artifactPath);
+        report.setMemoryBudget(reservation);
+      }
+      writeReport(effectiveEngine);
+    }
+    catch (IOException | NoExecutableJarException e) {
+      throw new MojoExecutionException("Error while embedding java agents", e);
+    }
+  }
+
+  /**
+   * Log a summary of the {@link #report embedding report} and write it to {@link #reportFile}
+   *
+   * @param effectiveEngine embedding engine actually used
+   */
+  protected void writeReport(EmbeddingEngine effectiveEngine) throws IOException {
+    report.finish(effectiveEngine, javaAgents.size());
+    report.logSummary(getLog());
+    if (reportFile == null)
+      return;
+    Path reportPath = hostFS.getPath(adjustPathSeparatorToHostFS(reportFile.getPath(), hostFS));
+    report.write(reportPath);
+    getLog().debug("Wrote embedding report to " + reportPath);
+  }
+
+  /**
+   * Reserve the estimated heap usage of this execution in the JVM-wide {@link MemoryBudget}, spilling or waiting
+   * according to {@link #memoryBudgetMode}, if the budget is exceeded
+   *
+   * @param artifactPath    main artifact
+   * @param effectiveEngine embedding engine actually used
+   *
+   * @return reservation to be closed after embedding or {@code null}, if the budget is disabled
+   */
+  protected MemoryBudget.Reservation reserveMemory(Path artifactPath, EmbeddingEngine effectiveEngine)
+    throws IOException, MojoExecutionException
+  {
+    if (memoryBudget < 0)
+      return null;
+    long limit = memoryBudget == 0 ? Runtime.getRuntime().maxMemory() / 2 : memoryBudget * 1024L * 1024L;
+    long agentJarBytes = estimateAgentJarBytes(artifactPath);
+    // The zip file system buffers agent entries until closing, compressed, i.e. about the size of the agent JARs again
+    long spillableBytes = effectiveEngine == EmbeddingEngine.ZIPFS ? agentJarBytes : 0;
+    try {
+      return MemoryBudget.getInstance().reserve(agentJarBytes, spillableBytes, limit, memoryBudgetMode, getLog());
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new MojoExecutionException("Interrupted while waiting for memory budget", e);
+    }
+  }
+
+  /**
+   * @param artifactPath main artifact, possibly containing nested agent JARs
+   *
+   * @return total size of all agent JARs to be embedded, i.e. of the data read into memory while embedding
+   */
+  protected long estimateAgentJarBytes(Path artifactPath) throws IOException, MojoExecutionException {
+    long agentJarBytes = 0;
+    ZipCentralDirectory artifact = null;
+    ArtifactIndex artifactIndex = null;
+    try {
+      for (JavaAgentInfo agent : javaAgents) {
+        String agentJarLocation = resolveAgentJarLocation(agent);
+        Path agentJarPath = hostFS.getPath(agentJarLocation);
+        if (Files.isRegularFile(agentJarPath)) {
+          agentJarBytes += Files.size(agentJarPath);
+          continue;
+        }
+        if (artifact == null) {
+          artifact = ZipCentralDirectory.open(artifactPath);
+          artifactIndex = ArtifactIndex.of(artifact);
+        }
+        String nestedJarName = artifactIndex.findNestedJar(agentJarLocation);
+        if (nestedJarName != null)
+          agentJarBytes += artifact.getEntry(nestedJarName).getSize();
+      }
+    }
+    finally {
+      if (artifact != null)
+        artifact.close();
+    }
+    return agentJarBytes;
+  }
+
+  protected void embedUsingZipFS(Path artifactPath) throws IOException, MojoExecutionException, NoExecutableJarException {
+    long artifactSize = Files.size(artifactPath);
+    EmbeddingReport.Timer archiveWriteTimer = null;
+    try (FileSystem jarFS = getZipFS(artifactPath, false, spillToTempFiles)) {
       if (jarFS == null)
         throw new MojoExecutionException("Cannot open artifact JAR file");
-      embedLauncherAgent(jarFS);
-      getLog().info("Embedding java agents");
-      for (JavaAgentInfo agent : javaAgents) {
-        String agentJarLocation = project.getArtifacts().stream()
-          .filter(agent::matchesArtifact)
-          .distinct()
-          .map(artifact -> adjustPathSeparatorToHostFS(artifact.getFile().getPath(), hostFS))
-          .findFirst()
-          .orElse(agent.getAgentPath());
-        if (agentJarLocation == null)
-          throw new MojoExecutionException("Java agent JAR for " + agent + " not found");
-        getLog().info("Processing java agent " + agentJarLocation);
-        unpackAgentJar(agent, jarFS, agentJarLocation);
+      // Index the central directory once, instead of querying the zip file system for each agent entry
+      ArtifactIndex artifactIndex;
+      List<AgentJar> agentJars;
+      Set<String> duplicateJarNames;
+      try (ZipCentralDirectory artifact = ZipCentralDirectory.open(artifactPath)) {
+        artifactIndex = ArtifactIndex.of(artifact);
+        embedLauncherAgent(jarFS);
+        readLauncherAgentClasses().keySet().forEach(artifactIndex::add);
+        getLog().info("Embedding java agents");
+        agentJars = mergeMultiReleaseAgentJars(
+          shrinkAgentJars(
+            new AgentJarReader(this, new ZipFSEmbeddedJarLocator(jarFS, artifactIndex)).readAll(javaAgents),
+            artifact
+          ),
+          artifact
+        );
+        Set<String> removedEntryNames = new HashSet<>();
+        for (AgentJar agentJar : agentJars) {
+          if (agentJar.getEmbeddedAgentJarName() != null)
+            removedEntryNames.add(agentJar.getEmbeddedAgentJarName().replaceFirst("^/", ""));
+        }
+        duplicateJarNames = new EntryDeduplicator(getLog(), deduplication)
+          .deduplicate(artifact, agentJars, removedEntryNames);
+        storeAgentMetadata(agentJars);
       }
+      for (AgentJar agentJar : agentJars)
+        applyAgentJar(jarFS, artifactIndex, agentJar);
+      try (EmbeddingReport.Timer timer = report.start(EmbeddingReport.Phase.NESTED_JAR_REMOVAL)) {
+        for (String duplicateJarName : duplicateJarNames) {
+          timer.getMetrics().addEntriesScanned(1);
+          if (artifactIndex.contains(duplicateJarName)) {
+            Files.delete(jarFS.getPath(duplicateJarName));
+            artifactIndex.remove(duplicateJarName);
+            timer.getMetrics().addEntriesWritten(1);
+          }
+        }
+      }
+      if (isGeneratedLauncherUsed())
+        embedGeneratedLauncherAgent(jarFS, agentJars);
       new ManifestUpdater(jarFS).update();
+      // Closing the zip file system rewrites the whole archive
+      archiveWriteTimer = report.start(EmbeddingReport.Phase.ARCHIVE_WRITE);
     }
-    catch (IOException | NoExecutableJarException e) {
-      throw new MojoExecutionException("Error while embedding java agents", e);
+    finally {
+      if (archiveWriteTimer != null)
+        archiveWriteTimer.close();
     }
+    report.get(EmbeddingReport.Phase.ARCHIVE_WRITE).addBytesRead(artifactSize);
+    report.get(EmbeddingReport.Phase.ARCHIVE_WRITE).addBytesWritten(Files.size(artifactPath));
+  }
+
+  /**
+   * Compute the fingerprint of all inputs influencing the embedding result, except for the main artifact itself.
+   * <p>
+   * The effective agent configuration is taken before embedding, i.e. before {@link #configureJavaAgentClass} fills in
+   * agent classes from agent manifests. This is fine, because the agent manifests are part of the agent JARs, whose
+   * content hashes are part of the fingerprint, too. Nested agent JARs found only inside the main artifact are
+   * represented by their paths.
+   *
+   * @return fingerprint in hex representation
+   */
+  protected String computeFingerprint() throws IOException, MojoExecutionException {
+    EmbeddingFingerprint fingerprint = new EmbeddingFingerprint()
+      .add("pluginVersion", pluginVersion)
+      .add("launcher", getLauncherAgentHash())
+      .add("removeEmbeddedAgents", removeEmbeddedAgents)
+      .add("agentLoading", agentLoading)
+      .add("generateLauncher", generateLauncher)
+      .add("shrinkAgents", shrinkAgents)
+      .add("shrinkKeepClasses", shrinkKeepClasses)
+      .add("deduplication", deduplication)
+      .add("multiReleaseMinVersion", multiReleaseMinVersion)
+      .add("multiReleaseMaxVersion", multiReleaseMaxVersion)
+      .add("entryOrder", entryOrder)
+      .add("compression", compression)
+      .add("outputTimestamp", outputTime == null ? null : outputTimestamp.trim())
+      .add("agentCount", javaAgents.size());
+    Path startupClassListPath = getStartupClassListPath();
+    if (startupClassListPath != null)
+      fingerprint.addFile("startupClassList", startupClassListPath);
+    for (JavaAgentInfo agent : javaAgents) {
+      fingerprint.add("agent", agent);
+      Path agentJarPath = hostFS.getPath(resolveAgentJarLocation(agent));
+      if (Files.exists(agentJarPath))
+        fingerprint.addFile("agentJar", agentJarPath);
+      else
+        fingerprint.add("nestedAgentJar", agentJarPath);
+    }
+    return fingerprint.getValue();
+  }
+
+  /**
+   * Read the fingerprint recorded by a previous embedding run from the artifact manifest
+   *
+   * @param artifactPath main artifact
+   *
+   * @return recorded fingerprint or {@code null}, if the artifact or its manifest do not contain any
+   */
+  protected String readEmbeddedFingerprint(Path artifactPath) throws IOException {
+    if (!Files.exists(artifactPath))
+      return null;
+    try (ZipCentralDirectory artifact = ZipCentralDirectory.open(artifactPath)) {
+      ZipCentralDirectory.Entry manifestEntry = artifact.getEntry(MANIFEST_PATH);
+      if (manifestEntry == null)
+        return null;
+      Manifest manifest;
+      try (InputStream manifestInput = artifact.getInputStream(manifestEntry)) {
+        manifest = new Manifest(manifestInput);
+      }
+      Attributes agentAttributes = manifest.getAttributes(AGENT_ATTRIBUTES_GROUP);
+      return agentAttributes == null ? null : agentAttributes.getValue(ManifestUpdater.MANIFEST_HEADER_FINGERPRINT);
+    }
+  }
+
+  /**
+   * Discover java agents among the module's dependencies, see {@link #discoverAgents}
+   *
+   * @return configured java agents, followed by the discovered ones
+   */
+  protected List<JavaAgentInfo> discoverJavaAgents() throws MojoExecutionException {
+    List<JavaAgentInfo> configuredAgents = javaAgents == null ? Collections.emptyList() : javaAgents;
+    AgentDiscovery agentDiscovery;
+    try {
+      agentDiscovery = new AgentDiscovery(this, discoveryIncludes, discoveryExcludes);
+    }
+    catch (IllegalArgumentException e) {
+      throw new MojoExecutionException(e.getMessage(), e);
+    }
+    List<JavaAgentInfo> agents = new ArrayList<>(configuredAgents);
+    agents.addAll(agentDiscovery.discover(project.getArtifacts(), configuredAgents));
+    return agents;
+  }
+
+  /**
+   * Find the java agent JAR matching the given agent info, either in the module's dependencies or, as a fallback, at the
+   * configured agent path
+   *
+   * @param agent java agent info
+   *
+   * @return agent JAR location on the host file system or, if the agent path points to a nested JAR, inside the
+   * executable JAR
+   *
+   * @throws MojoExecutionException if the agent JAR is neither a dependency nor has an agent path
+   */
+  protected String resolveAgentJarLocation(JavaAgentInfo agent) throws MojoExecutionException {
+    if (dependencyIndex == null)
+      dependencyIndex = DependencyIndex.of(project.getArtifacts());
+    Artifact artifact = dependencyIndex.find(agent);
+    String agentJarLocation = artifact == null
+      ? agent.getAgentPath()
+      : adjustPathSeparatorToHostFS(artifact.getFile().getPath(), hostFS);
+    if (agentJarLocation == null)
+      throw new MojoExecutionException("Java agent JAR for " + agent + " not found");
+    return agentJarLocation;
+  }
+
+  /**
+   * If {@link #shrinkAgents} is active, restrict each agent JAR to the entries reachable from its agent class
+   *
+   * @param agentJars agent JARs read into memory
+   * @param artifact  main artifact, providing additional roots from its AspectJ configuration
+   *
+   * @return shrunk agent JARs or the original ones, if shrinking is inactive
+   */
+  protected List<AgentJar> shrinkAgentJars(List<AgentJar> agentJars, ZipCentralDirectory artifact) throws IOException {
+    if (!shrinkAgents || agentLoading == AgentLoading.NESTED)
+      return agentJars;
+    AgentJarShrinker shrinker = new AgentJarShrinker(getLog(), shrinkKeepClasses);
+    shrinker.addArtifactRoots(artifact);
+    List<AgentJar> shrunkAgentJars = new ArrayList<>();
+    for (AgentJar agentJar : agentJars)
+      shrunkAgentJars.add(shrinker.shrink(agentJar));
+    return shrunkAgentJars;
+  }
+
+  /**
+   * @return persistent agent metadata cache in {@link #agentCacheDirectory} or {@code null}, if the cache is disabled
+   */
+  protected AgentMetadataCache getAgentMetadataCache() {
+    if (agentCacheDirectory == null || agentCacheMaxSize <= 0)
+      return null;
+    Path cacheDirectory = hostFS.getPath(adjustPathSeparatorToHostFS(agentCacheDirectory.getPath(), hostFS));
+    return new AgentMetadataCache(cacheDirectory, agentCacheMaxSize * 1024L * 1024L, getLog());
+  }
+
+  /**
+   * @param agentJarBytes agent JAR content
+   *
+   * @return cached metadata for the agent JAR or new empty metadata, if it is not cached yet or the cache is disabled
+   */
+  protected AgentJarMetadata loadAgentMetadata(byte[] agentJarBytes) {
+    AgentMetadataCache cache = getAgentMetadataCache();
+    if (cache == null)
+      return new AgentJarMetadata(null);
+    return cache.load(EmbeddingFingerprint.sha256(agentJarBytes));
+  }
+
+  /**
+   * Store metadata collected while processing the agent JARs in the persistent agent metadata cache, if enabled
+   *
+   * @param agentJars processed agent JARs
+   */
+  protected void storeAgentMetadata(List<AgentJar> agentJars) {
+    AgentMetadataCache cache = getAgentMetadataCache();
+    if (cache == null)
+      return;
+    for (AgentJar agentJar : agentJars)
+      cache.store(agentJar.getMetadata());
+  }
+
+  /**
+   * Parse an output time stamp like Maven archivers do. Values shorter than two characters, e.g. a single-character
+   * placeholder inherited from a parent POM, disable reproducible time stamps.
+   *
+   * @param outputTimestamp ISO-8601 date and time with offset or seconds since the epoch, may be {@code null}
+   *
+   * @return time stamp in milliseconds since the epoch, adjusted so that MS-DOS time stamps written in the default
+   * time zone show the UTC date and time, or {@code null}, if not set
+   *
+   * @throws MojoExecutionException if the time stamp cannot be parsed
+   */
+  protected static Long parseOutputTimestamp(String outputTimestamp) throws MojoExecutionException {
+    if (outputTimestamp == null || outputTimestamp.trim().length() < 2)
+      return null;
+    String value = outputTimestamp.trim();
+    long time;
+    try {
+      time = value.chars().allMatch(Character::isDigit)
+        ? Long.parseLong(value) * 1000
+        : OffsetDateTime.parse(value).toInstant().toEpochMilli();
+    }
+    catch (NumberFormatException | DateTimeParseException e) {
+      throw new MojoExecutionException(
+        "Invalid output timestamp '" + value + "', expected ISO-8601 date and time with offset or seconds since the " +
+          "epoch", e
+      );
+    }
+    return time - TimeZone.getDefault().getOffset(time);
+  }
+
+  /**
+   * If {@link #outputTimestamp} is set, apply it to a file or directory written to the executable JAR
+   *
+   * @param path path in the executable JAR's zip file system
+   */
+  protected void applyOutputTime(Path path) throws IOException {
+    if (outputTime == null)
+      return;
+    // The zip file system also records access and creation times, which would otherwise be the current time
+    FileTime fileTime = FileTime.fromMillis(outputTime);
+    Files.getFileAttributeView(path, BasicFileAttributeView.class).setTimes(fileTime, fileTime, fileTime);
+  }
+
+  /**
+   * Like {@link Files#createDirectories}, but applying {@link #outputTimestamp} to each created directory
+   *
+   * @param directory path in the executable JAR's zip file system, may be {@code null}
+   */
+  protected void createDirectories(Path directory) throws IOException {
+    if (directory == null || Files.exists(directory))
+      return;
+    createDirectories(directory.getParent());
+    Files.createDirectory(directory);
+    applyOutputTime(directory);
+  }
+
+  /**
+   * @return name of the configured feature only supported by the streaming engine, or {@code null}, if any engine can
+   * be used
+   */
+  protected String getStreamingRequirement() {
+    if (entryOrder == EntryOrder.STARTUP)
+      return "Entry order STARTUP";
+    if (compression != null)
+      return "Compression policy";
+    if (agentLoading == AgentLoading.NESTED)
+      return "Agent loading NESTED";
+    return null;
+  }
+
+  /**
+   * @return path of the recorded class-loading list to be used for {@link #entryOrder} {@code STARTUP}, or
+   * {@code null}, if the heuristic order is to be used
+   */
+  protected Path getStartupClassListPath() {
+    if (entryOrder != EntryOrder.STARTUP || startupClassList == null)
+      return null;
+    Path startupClassListPath = hostFS.getPath(adjustPathSeparatorToHostFS(startupClassList.getPath(), hostFS));
+    return Files.isRegularFile(startupClassListPath) ? startupClassListPath : null;
+  }
+
+  /**
+   * Restrict each agent JAR to its base entries and the versioned entries the JVM would use in the target runtime range
+   * configured by {@link #multiReleaseMinVersion} and {@link #multiReleaseMaxVersion}, and determine whether the
+   * executable JAR needs to become a Multi-Release JAR
+   *
+   * @param agentJars agent JARs read into memory
+   * @param artifact  main artifact
+   *
+   * @return agent JARs restricted to the entries to be embedded
+   */
+  protected List<AgentJar> mergeMultiReleaseAgentJars(List<AgentJar> agentJars, ZipCentralDirectory artifact)
+    throws IOException
+  {
+    MultiReleaseMerger merger = new MultiReleaseMerger(getLog(), multiReleaseMinVersion, multiReleaseMaxVersion);
+    List<AgentJar> mergedAgentJars = new ArrayList<>();
+    for (AgentJar agentJar : agentJars)
+      mergedAgentJars.add(merger.merge(agentJar));
+    multiReleaseRequired = merger.isMultiReleaseRequired();
+    if (
+      multiReleaseRequired &&
+        !MultiReleaseMerger.isMultiRelease(artifact) &&
+        MultiReleaseMerger.hasVersionedEntries(artifact)
+    )
+    {
+      getLog().warn(
+        "Making executable JAR a Multi-Release JAR for embedded agents also activates its own versioned entries in " +
+          "META-INF/versions, which were ignored before"
+      );
+    }
+    return mergedAgentJars;
   }
 
   protected void embedLauncherAgent(FileSystem jarFS) throws IOException, MojoExecutionException {
-    String agentLauncherClassName = JavaAgentLauncher.class.getName();
-    String resourceName = agentLauncherClassName.replace('.', '/') + ".class";
-    Path targetPath = jarFS.getPath(resourceName);
-    Files.createDirectories(targetPath.getParent());
+    try (EmbeddingReport.Timer timer = report.start(EmbeddingReport.Phase.LAUNCHER_EMBEDDING)) {
+      for (Map.Entry<String, byte[]> launcherClass : readLauncherAgentClasses().entrySet()) {
+        Path targetPath = jarFS.getPath(launcherClass.getKey());
+        createDirectories(targetPath.getParent());
+        Files.write(targetPath, launcherClass.getValue());
+        applyOutputTime(targetPath);
+        timer.getMetrics().addEntriesWritten(1);
+        timer.getMetrics().addBytesWritten(launcherClass.getValue().length);
+      }
+    }
+  }
+
+  protected void embedGeneratedLauncherAgent(FileSystem jarFS, List<AgentJar> agentJars) throws IOException {
+    try (EmbeddingReport.Timer timer = report.start(EmbeddingReport.Phase.LAUNCHER_EMBEDDING)) {
+      Path targetPath = jarFS.getPath(LauncherClassGenerator.RESOURCE_NAME);
+      createDirectories(targetPath.getParent());
+      byte[] launcherClass = new LauncherClassGenerator(getLog()).generate(agentJars);
+      Files.write(targetPath, launcherClass);
+      applyOutputTime(targetPath);
+      timer.getMetrics().addEntriesWritten(1);
+      timer.getMetrics().addBytesWritten(launcherClass.length);
+    }
+  }
+
+  /**
+   * @return fully qualified name of the launcher agent class to be set as {@code Launcher-Agent-Class}
+   */
+  protected String getLauncherAgentClassName() {
+    return isGeneratedLauncherUsed() ? LauncherClassGenerator.CLASS_NAME : JavaAgentLauncher.class.getName();
+  }
+
+  /**
+   * @return {@code true}, if a generated launcher agent was requested and supports the agent configuration. The
+   * generated launcher does not support asynchronous or lazy agent startup and loading agents from nested JARs.
+   */
+  protected boolean isGeneratedLauncherUsed() {
+    return generateLauncher &&
+      agentLoading != AgentLoading.NESTED &&
+      javaAgents.stream().noneMatch(agent -> agent.isAsync() || agent.isLazy());
+  }
+
+  /**
+   * @param launcherClass launcher agent class or one of its member classes
+   *
+   * @return JAR entry name of the class, e.g. {@code dev/aspectj/maven/agent_embedder/JavaAgentLauncher.class}
+   */
+  protected String getLauncherAgentResourceName(Class<?> launcherClass) {
+    return launcherClass.getName().replace('.', '/') + ".class";
+  }
+
+  /**
+   * Read the class files of the launcher agent and its member classes, e.g. the startup timing MBean, recursively
+   *
+   * @return class file contents to be embedded into the executable JAR, keyed by JAR entry name
+   *
+   * @throws MojoExecutionException if a launcher agent class file cannot be found
+   */
+  protected Map<String, byte[]> readLauncherAgentClasses() throws IOException, MojoExecutionException {
+    Map<String, byte[]> launcherClasses = new LinkedHashMap<>();
+    Deque<Class<?>> classesToRead = new ArrayDeque<>();
+    classesToRead.add(JavaAgentLauncher.class);
+    while (!classesToRead.isEmpty()) {
+      Class<?> launcherClass = classesToRead.poll();
+      String resourceName = getLauncherAgentResourceName(launcherClass);
+      launcherClasses.put(resourceName, readLauncherAgentClass(resourceName));
+      classesToRead.addAll(Arrays.asList(launcherClass.getDeclaredClasses()));
+    }
+    return launcherClasses;
+  }
+
+  private byte[] readLauncherAgentClass(String resourceName) throws IOException, MojoExecutionException {
     try (
       InputStream input = JavaAgentLauncher.class.getClassLoader().getResourceAsStream(resourceName);
-      OutputStream output = Files.newOutputStream(targetPath, StandardOpenOption.CREATE)
+      ByteArrayOutputStream output = new ByteArrayOutputStream()
     ) {
       if (input == null)
         throw new MojoExecutionException("Cannot find/open launcher agent resource '" + resourceName + "'");
@@ -249,9 +1124,36 @@ public class AgentEmbedderMojo extends AbstractMojo {
       int bytesRead;
       while ((bytesRead = input.read(buffer)) != -1)
         output.write(buffer, 0, bytesRead);
+      return output.toByteArray();
     }
   }
 
+  private String getLauncherAgentHash() throws IOException, MojoExecutionException {
+    EmbeddingFingerprint launcherHash = new EmbeddingFingerprint();
+    for (Map.Entry<String, byte[]> launcherClass : readLauncherAgentClasses().entrySet())
+      launcherHash.add(launcherClass.getKey(), EmbeddingFingerprint.sha256(launcherClass.getValue()));
+    return launcherHash.getValue();
+  }
+
+  /**
+   * Determine the number of threads for reading agent JARs, taking into account {@link #agentReaderThreads} and the
+   * degree of concurrency of the current Maven build
+   *
+   * @param agentCount number of agent JARs to be read
+   *
+   * @return thread count, at least 1 and at most {@code agentCount}
+   */
+  protected int getAgentReaderThreads(int agentCount) {
+    int threadCount = agentReaderThreads;
+    if (threadCount <= 0) {
+      int degreeOfConcurrency = session == null || !session.isParallel()
+        ? 1
+        : Math.max(1, session.getRequest().getDegreeOfConcurrency());
+      threadCount = Runtime.getRuntime().availableProcessors() / degreeOfConcurrency;
+    }
+    return Math.max(1, Math.min(agentCount, threadCount));
+  }
+
   /**
    * Adjusts path separators to the ones expected on the target file system.
    * <p>
@@ -274,65 +1176,88 @@ public class AgentEmbedderMojo extends AbstractMojo {
   }
 
   protected void unpackAgentJar(JavaAgentInfo agentInfo, FileSystem jarFS, String agentPath) throws IOException, MojoExecutionException {
-    Path agentJarPath = hostFS.getPath(agentPath);
-    final boolean externalJarFound = Files.exists(agentJarPath);
-    Path embeddedAgentJarPath = null;
-
-    // Search for embedded agent JAR, if removal is requested or external JAR does not exist
-    if (removeEmbeddedAgents || !externalJarFound) {
-      embeddedAgentJarPath = jarFS.getPath(agentPath);
-      // If embedded agent JAR is not found at exact path, search whole JAR for file name
-      if (!Files.exists(embeddedAgentJarPath)) {
-        Path agentFileName = embeddedAgentJarPath.getFileName();
-        try (
-          Stream<Path> files = Files.find(
-            jarFS.getPath("/"), Integer.MAX_VALUE,
-            (path, basicFileAttributes) -> path.getNameCount() > 0 && path.getFileName().equals(agentFileName)
-          )
-        ) {
-          embeddedAgentJarPath = files.findFirst().orElse(null);
+    ArtifactIndex artifactIndex = ArtifactIndex.of(jarFS);
+    AgentJar agentJar = new AgentJarReader(this, new ZipFSEmbeddedJarLocator(jarFS, artifactIndex)).read(agentInfo, agentPath);
+    applyAgentJar(jarFS, artifactIndex, agentJar);
+  }
+
+  /**
+   * Unpack an agent JAR previously read into memory into the executable JAR, not overwriting any existing files. If
+   * requested, remove the nested agent JAR afterwards.
+   *
+   * @param jarFS         executable JAR file system
+   * @param artifactIndex index of files contained in the executable JAR, kept up to date while unpacking
+   * @param agentJar      in-memory agent JAR
+   */
+  protected void applyAgentJar(FileSystem jarFS, ArtifactIndex artifactIndex, AgentJar agentJar) throws IOException {
+    ZipCentralDirectory agentZip = agentJar.getZip();
+    try (EmbeddingReport.Timer timer = report.start(EmbeddingReport.Phase.UNPACKING)) {
+      EmbeddingReport.PhaseMetrics metrics = timer.getMetrics();
+      for (ZipCentralDirectory.Entry entry : agentJar.getEntries()) {
+        metrics.addEntriesScanned(1);
+        // Do not overwrite existing files, especially META-INF/MANIFEST.MF
+        if (artifactIndex.contains(entry.getName())) {
+          metrics.addEntriesSkipped(1);
+          continue;
         }
+        getLog().debug("Unpacking: /" + entry.getName());
+        Path targetPath = jarFS.getPath(entry.getName());
+        metrics.addEntriesWritten(1);
+        if (entry.isDirectory()) {
+          createDirectories(targetPath);
+          artifactIndex.add(entry.getName());
+          continue;
+        }
+        Path parentPath = targetPath.getParent();
+        if (parentPath != null && !artifactIndex.contains(parentPath.toString()))
+          createDirectories(parentPath);
+        try (InputStream input = agentZip.getInputStream(entry)) {
+          Files.copy(input, targetPath);
+        }
+        applyOutputTime(targetPath);
+        artifactIndex.add(entry.getName());
+        metrics.addBytesRead(entry.getCompressedSize());
+        metrics.addBytesWritten(entry.getSize());
       }
     }
 
-    if (!externalJarFound)
-      agentJarPath = embeddedAgentJarPath;
-    Objects.requireNonNull(agentJarPath, "Java agent JAR not found");
-
-    //noinspection RedundantCast: newFileSystem is overloaded in more recent JDKs
-    try (FileSystem javaAgentFS = getZipFS(agentJarPath, false)) {
-      Objects.requireNonNull(javaAgentFS);
-      configureJavaAgentClass(agentInfo, agentJarPath, javaAgentFS);
-
-      try (
-        Stream<Path> files = Files.find(
-          javaAgentFS.getPath("/"), Integer.MAX_VALUE,
-          // Do not overwrite existing files, especially META-INF/MANIFEST.MF
-          (path, basicFileAttributes) -> !Files.exists(jarFS.getPath(path.toString()))
-        )
-      ) {
-        files.forEach(path -> {
-          getLog().debug("Unpacking: " + path);
-          try {
-            Files.copy(path, jarFS.getPath(path.toString()));
-          }
-          catch (IOException e) {
-            throw new RuntimeException("Problem when unpacking java agent JAR", e);
-          }
-        });
-      }
-      catch (RuntimeException e) {
-        // Catch and re-wrap checked exception from 'forEach' block above
-        if ("Problem when unpacking java agent JAR".equals(e.getMessage()) && e.getCause() instanceof IOException)
-          throw new MojoExecutionException(e.getMessage(), e.getCause());
-        else
-          throw e;
+    String embeddedAgentJarName = agentJar.getEmbeddedAgentJarName();
+    if (embeddedAgentJarName == null)
+      return;
+    try (EmbeddingReport.Timer timer = report.start(EmbeddingReport.Phase.NESTED_JAR_REMOVAL)) {
+      timer.getMetrics().addEntriesScanned(1);
+      if (artifactIndex.contains(embeddedAgentJarName)) {
+        Path embeddedAgentJarPath = jarFS.getPath(embeddedAgentJarName);
+        getLog().info("Removing embedded java agent: " + embeddedAgentJarPath);
+        Files.delete(embeddedAgentJarPath);
+        artifactIndex.remove(embeddedAgentJarName);
+        timer.getMetrics().addEntriesWritten(1);
       }
     }
+  }
+
+  /**
+   * Finds and reads nested agent JARs inside an executable JAR opened as a zip file system, using an index of the
+   * executable JAR's files for lookups
+   */
+  protected static class ZipFSEmbeddedJarLocator implements AgentJarReader.EmbeddedJarLocator {
+    private final FileSystem jarFS;
+    private final ArtifactIndex artifactIndex;
+
+    public ZipFSEmbeddedJarLocator(FileSystem jarFS, ArtifactIndex artifactIndex) {
+      this.jarFS = jarFS;
+      this.artifactIndex = artifactIndex;
+    }
+
+    @Override
+    public String find(String agentPath) {
+      String embeddedAgentJarName = artifactIndex.findNestedJar(agentPath);
+      return embeddedAgentJarName == null ? null : "/" + embeddedAgentJarName;
+    }
 
-    if (removeEmbeddedAgents && embeddedAgentJarPath != null && Files.exists(embeddedAgentJarPath)) {
-      getLog().info("Removing embedded java agent: " + embeddedAgentJarPath);
-      Files.delete(embeddedAgentJarPath);
+    @Override
+    public byte[] read(String name) throws IOException {
+      return Files.readAllBytes(jarFS.getPath(name));
     }
   }
 
@@ -352,9 +1277,40 @@ public class AgentEmbedderMojo extends AbstractMojo {
 
     getLog().debug("Reading agent manifest from path " + agentJarPath);
     Manifest javaAgentManifest = new Manifest(Files.newInputStream(javaAgentFS.getPath("/" + MANIFEST_PATH)));
+    configureJavaAgentClass(agentInfo, javaAgentManifest);
+  }
+
+  /**
+   * Determine and configure the java agent class for a given agent, based on an already parsed agent manifest. See
+   * {@link #configureJavaAgentClass(JavaAgentInfo, Path, FileSystem)} for details.
+   */
+  protected void configureJavaAgentClass(JavaAgentInfo agentInfo, Manifest javaAgentManifest)
+    throws MojoExecutionException
+  {
+    configureJavaAgentClass(agentInfo, getManifestAgentClass(javaAgentManifest));
+  }
 
+  /**
+   * @param javaAgentManifest agent manifest
+   *
+   * @return trimmed {@code Agent-Class} attribute value, or an empty string if there is none
+   */
+  protected static String getManifestAgentClass(Manifest javaAgentManifest) {
     String manifestAgentClass = javaAgentManifest.getMainAttributes().getValue(HEADER_AGENT_CLASS);
-    manifestAgentClass = manifestAgentClass == null ? "" : manifestAgentClass.trim();
+    return manifestAgentClass == null ? "" : manifestAgentClass.trim();
+  }
+
+  /**
+   * Determine and configure the java agent class for a given agent, based on the agent class found in the agent
+   * manifest, e.g. taken from the agent metadata cache. See
+   * {@link #configureJavaAgentClass(JavaAgentInfo, Path, FileSystem)} for details.
+   *
+   * @param agentInfo          java agent info
+   * @param manifestAgentClass trimmed agent class from the agent manifest, or an empty string if there is none
+   */
+  protected void configureJavaAgentClass(JavaAgentInfo agentInfo, String manifestAgentClass)
+    throws MojoExecutionException
+  {
     getLog().debug("Agent class from manifest: " + manifestAgentClass);
 
     agentInfo.setAgentClass(agentInfo.getAgentClass() == null ? "" : agentInfo.getAgentClass().trim());
@@ -379,25 +1335,49 @@ public class AgentEmbedderMojo extends AbstractMojo {
     }
   }
 
+  /**
+   * Manifest attributes keeping their insertion order when written, also on JDK 8, where {@link Attributes} uses a hash
+   * map. This keeps the attribute order in the launcher agent section stable.
+   */
+  protected static class OrderedAttributes extends Attributes {
+    public OrderedAttributes() {
+      map = new LinkedHashMap<>();
+    }
+  }
+
   public class ManifestUpdater {
     public static final String MANIFEST_HEADER_MAIN_CLASS = "Main-Class";
     public static final String MANIFEST_HEADER_LAUNCHER_AGENT = "Launcher-Agent-Class";
+    public static final String MANIFEST_HEADER_MULTI_RELEASE = "Multi-Release";
+    public static final String MANIFEST_HEADER_CAN_RETRANSFORM = "Can-Retransform-Classes";
+    public static final String MANIFEST_HEADER_FINGERPRINT = "Embedder-Fingerprint";
 
     private final Path manifestPath;
     private final Manifest manifest;
 
     public ManifestUpdater(FileSystem fileSystem) throws IOException, NoExecutableJarException {
       manifestPath = fileSystem.getPath(MANIFEST_PATH);
-      manifest = getExecutableJarManifest();
-    }
-
-    private Manifest getExecutableJarManifest() throws IOException, NoExecutableJarException {
       if (!Files.exists(manifestPath))
         throw new NoExecutableJarException("missing manifest file '" + MANIFEST_PATH + "'");
-      Manifest manifest = new Manifest();
       try (InputStream inputStream = Files.newInputStream(manifestPath)) {
-        manifest.read(inputStream);
+        manifest = getExecutableJarManifest(inputStream);
       }
+    }
+
+    /**
+     * Create a manifest updater for an executable JAR manifest which is not located on a file system, e.g. because it
+     * is being streamed from one archive into another. Use {@link #update(OutputStream)} to write the result.
+     *
+     * @param manifestInput input stream for the original manifest
+     */
+    public ManifestUpdater(InputStream manifestInput) throws IOException, NoExecutableJarException {
+      manifestPath = null;
+      manifest = getExecutableJarManifest(manifestInput);
+    }
+
+    private Manifest getExecutableJarManifest(InputStream inputStream) throws IOException, NoExecutableJarException {
+      Manifest manifest = new Manifest();
+      manifest.read(inputStream);
       Attributes mainAttributes = manifest.getMainAttributes();
       if (mainAttributes.getValue(MANIFEST_HEADER_MAIN_CLASS) == null)
         throw new NoExecutableJarException("missing manifest attribute '" + MANIFEST_HEADER_MAIN_CLASS + "'");
@@ -405,9 +1385,26 @@ public class AgentEmbedderMojo extends AbstractMojo {
     }
 
     public void update() throws IOException {
-      addLauncherAgentAttribute();
-      addEmbeddedAgentAttributes();
-      writeManifest();
+      try (EmbeddingReport.Timer timer = report.start(EmbeddingReport.Phase.MANIFEST_REWRITE)) {
+        addLauncherAgentAttribute();
+        addMultiReleaseAttribute();
+        addCanRetransformAttribute();
+        addEmbeddedAgentAttributes();
+        writeManifest(timer.getMetrics());
+      }
+    }
+
+    public void update(OutputStream manifestOut) throws IOException {
+      try (EmbeddingReport.Timer timer = report.start(EmbeddingReport.Phase.MANIFEST_REWRITE)) {
+        addLauncherAgentAttribute();
+        addMultiReleaseAttribute();
+        addCanRetransformAttribute();
+        addEmbeddedAgentAttributes();
+        byte[] manifestBytes = toBytes();
+        manifestOut.write(manifestBytes);
+        timer.getMetrics().addEntriesWritten(1);
+        timer.getMetrics().addBytesWritten(manifestBytes.length);
+      }
     }
 
     private void addLauncherAgentAttribute() {
@@ -418,15 +1415,44 @@ public class AgentEmbedderMojo extends AbstractMojo {
           "Overwriting existing manifest attribute '" +
             MANIFEST_HEADER_LAUNCHER_AGENT + ": " + existingLauncherAgent + "'"
         );
+      String launcherAgentClassName = getLauncherAgentClassName();
       getLog().debug(
-        "Setting manifest attribute '" +
-          MANIFEST_HEADER_LAUNCHER_AGENT + ": " + JavaAgentLauncher.class.getName() + "'"
+        "Setting manifest attribute '" + MANIFEST_HEADER_LAUNCHER_AGENT + ": " + launcherAgentClassName + "'"
       );
-      mainAttributes.putValue(MANIFEST_HEADER_LAUNCHER_AGENT, JavaAgentLauncher.class.getName());
+      mainAttributes.putValue(MANIFEST_HEADER_LAUNCHER_AGENT, launcherAgentClassName);
+    }
+
+    private void addMultiReleaseAttribute() {
+      Attributes mainAttributes = manifest.getMainAttributes();
+      String existingMultiRelease = mainAttributes.getValue(MANIFEST_HEADER_MULTI_RELEASE);
+      if (!multiReleaseRequired || existingMultiRelease != null && Boolean.parseBoolean(existingMultiRelease.trim()))
+        return;
+      getLog().debug("Setting manifest attribute '" + MANIFEST_HEADER_MULTI_RELEASE + ": true'");
+      mainAttributes.putValue(MANIFEST_HEADER_MULTI_RELEASE, "true");
+    }
+
+    /**
+     * Lazy agents are started after classes matching their triggers may have been loaded already. The launcher agent
+     * retransforms those classes, which the JVM only permits if the launcher agent's manifest says so.
+     */
+    private void addCanRetransformAttribute() {
+      if (javaAgents.stream().noneMatch(JavaAgentInfo::isLazy))
+        return;
+      Attributes mainAttributes = manifest.getMainAttributes();
+      String existingCanRetransform = mainAttributes.getValue(MANIFEST_HEADER_CAN_RETRANSFORM);
+      if (existingCanRetransform != null && Boolean.parseBoolean(existingCanRetransform.trim()))
+        return;
+      if (existingCanRetransform != null)
+        getLog().warn(
+          "Overwriting existing manifest attribute '" + MANIFEST_HEADER_CAN_RETRANSFORM + ": " +
+            existingCanRetransform + "', because lazy agents need to retransform classes"
+        );
+      getLog().debug("Setting manifest attribute '" + MANIFEST_HEADER_CAN_RETRANSFORM + ": true'");
+      mainAttributes.putValue(MANIFEST_HEADER_CAN_RETRANSFORM, "true");
     }
 
     private void addEmbeddedAgentAttributes() {
-      Attributes agentAttributes = new Attributes();
+      Attributes agentAttributes = new OrderedAttributes();
       agentAttributes.putValue("Agent-Count", String.valueOf(javaAgents.size()));
       int agentIndex = 0;
       for (JavaAgentInfo agent : javaAgents) {
@@ -434,15 +1460,33 @@ public class AgentEmbedderMojo extends AbstractMojo {
         agentAttributes.putValue(AGENT_CLASS + agentIndex, agent.getAgentClass());
         if (agent.getAgentArgs() != null)
           agentAttributes.putValue(AGENT_ARGS + agentIndex, agent.getAgentArgs());
+        if (agent.isAsync())
+          agentAttributes.putValue(AGENT_ASYNC + agentIndex, "true");
+        if (agent.getStartupGroup() != 0)
+          agentAttributes.putValue(AGENT_GROUP + agentIndex, String.valueOf(agent.getStartupGroup()));
+        if (agent.isLazy())
+          agentAttributes.putValue(AGENT_LAZY + agentIndex, String.join(",", agent.getLazyTriggerPrefixes()));
+        if (nestedAgentJarNames != null)
+          agentAttributes.putValue(AGENT_JAR + agentIndex, nestedAgentJarNames.get(agentIndex - 1));
       }
+      if (fingerprint != null)
+        agentAttributes.putValue(MANIFEST_HEADER_FINGERPRINT, fingerprint);
       manifest.getEntries().put(AGENT_ATTRIBUTES_GROUP, agentAttributes);
     }
 
-    private void writeManifest() throws IOException {
+    private void writeManifest(EmbeddingReport.PhaseMetrics metrics) throws IOException {
+      byte[] manifestBytes = toBytes();
       Files.delete(manifestPath);
-      try (OutputStream manifestOut = Files.newOutputStream(manifestPath)) {
-        manifest.write(manifestOut);
-      }
+      Files.write(manifestPath, manifestBytes);
+      applyOutputTime(manifestPath);
+      metrics.addEntriesWritten(1);
+      metrics.addBytesWritten(manifestBytes.length);
+    }
+
+    private byte[] toBytes() throws IOException {
+      ByteArrayOutputStream manifestOut = new ByteArrayOutputStream();
+      manifest.write(manifestOut);
+      return manifestOut.toByteArray();
     }
   }
 
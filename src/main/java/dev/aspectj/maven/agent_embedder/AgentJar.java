@@ -0,0 +1,94 @@
+package dev.aspectj.maven.agent_embedder;
+
+import dev.aspectj.maven.tools.ZipCentralDirectory;
+
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Java agent JAR read into memory, together with the corresponding agent info, ready to be applied to the main artifact
+ */
+public class AgentJar {
+  private final JavaAgentInfo agentInfo;
+  private final String location;
+  private final ZipCentralDirectory zip;
+  private final String embeddedAgentJarName;
+  private final AgentJarMetadata metadata;
+  private final Set<String> includedEntryNames;
+
+  public AgentJar(JavaAgentInfo agentInfo, String location, ZipCentralDirectory zip, String embeddedAgentJarName) {
+    this(agentInfo, location, zip, embeddedAgentJarName, new AgentJarMetadata(null));
+  }
+
+  public AgentJar(
+    JavaAgentInfo agentInfo, String location, ZipCentralDirectory zip, String embeddedAgentJarName,
+    AgentJarMetadata metadata
+  )
+  {
+    this(agentInfo, location, zip, embeddedAgentJarName, metadata, null);
+  }
+
+  private AgentJar(
+    JavaAgentInfo agentInfo, String location, ZipCentralDirectory zip, String embeddedAgentJarName,
+    AgentJarMetadata metadata, Set<String> includedEntryNames
+  )
+  {
+    this.agentInfo = agentInfo;
+    this.location = location;
+    this.zip = zip;
+    this.embeddedAgentJarName = embeddedAgentJarName;
+    this.metadata = metadata;
+    this.includedEntryNames = includedEntryNames;
+  }
+
+  /**
+   * @param includedEntryNames names of the entries to be embedded, see {@link AgentJarShrinker}
+   *
+   * @return copy of this agent JAR, restricted to the given entries
+   */
+  public AgentJar withIncludedEntryNames(Set<String> includedEntryNames) {
+    return new AgentJar(agentInfo, location, zip, embeddedAgentJarName, metadata, includedEntryNames);
+  }
+
+  public JavaAgentInfo getAgentInfo() {
+    return agentInfo;
+  }
+
+  /**
+   * @return location the agent JAR was read from, either on the host file system or inside the main artifact
+   */
+  public String getLocation() {
+    return location;
+  }
+
+  public ZipCentralDirectory getZip() {
+    return zip;
+  }
+
+  /**
+   * @return data derived from the agent JAR's content, possibly taken from the persistent agent metadata cache
+   */
+  public AgentJarMetadata getMetadata() {
+    return metadata;
+  }
+
+  /**
+   * @return entries to be embedded into the main artifact, i.e. all entries of the agent JAR, unless it was shrunk
+   */
+  public List<ZipCentralDirectory.Entry> getEntries() {
+    if (includedEntryNames == null)
+      return zip.getEntries();
+    return zip.getEntries().stream()
+      .filter(entry -> includedEntryNames.contains(entry.getName()))
+      .collect(Collectors.toList());
+  }
+
+  /**
+   * @return name of the nested agent JAR inside the main artifact to be removed after embedding, or {@code null} if
+   * there is nothing to remove
+   */
+  public String getEmbeddedAgentJarName() {
+    return embeddedAgentJarName;
+  }
+}
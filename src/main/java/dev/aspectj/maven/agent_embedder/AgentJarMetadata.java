@@ -0,0 +1,159 @@
+package dev.aspectj.maven.agent_embedder;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Data derived from an agent JAR's content, which is expensive to compute and never changes for the same content
+ * <ul>
+ *   <li>the {@code Agent-Class} from the agent manifest,</li>
+ *   <li>
+ *     class references within the agent JAR for each class file, determined by bytecode analysis for
+ *     {@link AgentJarShrinker},
+ *   </li>
+ *   <li>SHA-256 hashes of entry contents for {@link EntryDeduplicator}.</li>
+ * </ul>
+ * Instances are filled lazily while processing the agent JAR and can be persisted in an {@link AgentMetadataCache},
+ * keyed by the agent JAR's content hash. Instances are thread-safe.
+ */
+public class AgentJarMetadata {
+  private static final int FORMAT_MAGIC = 0x41454d44;
+  private static final int FORMAT_VERSION = 1;
+
+  private final String contentHash;
+  private volatile String manifestAgentClass;
+  private final Map<String, Set<String>> classReferences = new ConcurrentHashMap<>();
+  private final Map<String, String> entryHashes = new ConcurrentHashMap<>();
+  private volatile boolean modified;
+
+  /**
+   * @param contentHash SHA-256 hash of the agent JAR, or {@code null} for metadata which is not to be cached
+   */
+  public AgentJarMetadata(String contentHash) {
+    this.contentHash = contentHash;
+  }
+
+  public String getContentHash() {
+    return contentHash;
+  }
+
+  /**
+   * @return trimmed {@code Agent-Class} from the agent manifest, empty if there is none, or {@code null} if not known
+   * yet
+   */
+  public String getManifestAgentClass() {
+    return manifestAgentClass;
+  }
+
+  public void setManifestAgentClass(String manifestAgentClass) {
+    if (!manifestAgentClass.equals(this.manifestAgentClass)) {
+      this.manifestAgentClass = manifestAgentClass;
+      modified = true;
+    }
+  }
+
+  /**
+   * @param entryName class file entry name
+   *
+   * @return internal names of the classes within the agent JAR referenced by the class file, or {@code null} if not
+   * known yet
+   */
+  public Set<String> getClassReferences(String entryName) {
+    return classReferences.get(entryName);
+  }
+
+  public void putClassReferences(String entryName, Set<String> references) {
+    classReferences.put(entryName, references);
+    modified = true;
+  }
+
+  /**
+   * @param entryName entry name
+   *
+   * @return SHA-256 hash of the entry content, or {@code null} if not known yet
+   */
+  public String getEntryHash(String entryName) {
+    return entryHashes.get(entryName);
+  }
+
+  public void putEntryHash(String entryName, String hash) {
+    entryHashes.put(entryName, hash);
+    modified = true;
+  }
+
+  /**
+   * @return {@code true}, if any data has been added since creating, reading or last persisting this instance
+   */
+  public boolean isModified() {
+    return modified;
+  }
+
+  /**
+   * Mark this instance as unmodified after persisting it, so that other users of the same instance do not persist it
+   * again unless adding more data
+   */
+  public void clearModified() {
+    modified = false;
+  }
+
+  /**
+   * @param output output stream to write a binary representation of this instance to
+   */
+  public void write(DataOutputStream output) throws IOException {
+    output.writeInt(FORMAT_MAGIC);
+    output.writeInt(FORMAT_VERSION);
+    output.writeUTF(contentHash);
+    output.writeBoolean(manifestAgentClass != null);
+    if (manifestAgentClass != null)
+      output.writeUTF(manifestAgentClass);
+    // Sort entries, making the representation deterministic
+    Map<String, Set<String>> sortedClassReferences = new TreeMap<>(classReferences);
+    output.writeInt(sortedClassReferences.size());
+    for (Map.Entry<String, Set<String>> entry : sortedClassReferences.entrySet()) {
+      output.writeUTF(entry.getKey());
+      output.writeInt(entry.getValue().size());
+      for (String reference : new TreeSet<>(entry.getValue()))
+        output.writeUTF(reference);
+    }
+    Map<String, String> sortedEntryHashes = new TreeMap<>(entryHashes);
+    output.writeInt(sortedEntryHashes.size());
+    for (Map.Entry<String, String> entry : sortedEntryHashes.entrySet()) {
+      output.writeUTF(entry.getKey());
+      output.writeUTF(entry.getValue());
+    }
+  }
+
+  /**
+   * @param input       input stream containing a binary representation written by {@link #write(DataOutputStream)}
+   * @param contentHash expected agent JAR content hash
+   *
+   * @return metadata read from the input stream, not modified yet
+   *
+   * @throws IOException if the input is truncated, was written in an unknown format or for another content hash
+   */
+  public static AgentJarMetadata read(DataInputStream input, String contentHash) throws IOException {
+    if (input.readInt() != FORMAT_MAGIC || input.readInt() != FORMAT_VERSION)
+      throw new IOException("Unknown agent metadata format");
+    if (!input.readUTF().equals(contentHash))
+      throw new IOException("Agent metadata content hash mismatch");
+    AgentJarMetadata metadata = new AgentJarMetadata(contentHash);
+    if (input.readBoolean())
+      metadata.manifestAgentClass = input.readUTF();
+    int classCount = input.readInt();
+    for (int i = 0; i < classCount; i++) {
+      String entryName = input.readUTF();
+      int referenceCount = input.readInt();
+      Set<String> references = new HashSet<>();
+      for (int j = 0; j < referenceCount; j++)
+        references.add(input.readUTF());
+      metadata.classReferences.put(entryName, references);
+    }
+    int hashCount = input.readInt();
+    for (int i = 0; i < hashCount; i++)
+      metadata.entryHashes.put(input.readUTF(), input.readUTF());
+    return metadata;
+  }
+}
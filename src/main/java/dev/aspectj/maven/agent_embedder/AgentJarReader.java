@@ -0,0 +1,203 @@
+package dev.aspectj.maven.agent_embedder;
+
+import dev.aspectj.maven.tools.ZipCentralDirectory;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.Manifest;
+
+import static dev.aspectj.maven.agent_embedder.AgentEmbedderMojo.MANIFEST_PATH;
+
+/**
+ * Reads java agent JARs into memory, configuring their agent classes in the process
+ * <p>
+ * Agent JARs are independent of each other, so they are read concurrently. The results are returned in the configured
+ * agent order, though, which enables callers to apply them to the main artifact deterministically, keeping the "first
+ * agent wins" semantics for entries contained in several agent JARs.
+ */
+public class AgentJarReader {
+  private static final AtomicInteger THREAD_COUNTER = new AtomicInteger();
+
+  private final AgentEmbedderMojo mojo;
+  private final Log log;
+  private final EmbeddedJarLocator embeddedJarLocator;
+
+  /**
+   * Finds and reads nested JARs inside the main artifact, abstracting from how the artifact is being accessed
+   */
+  public interface EmbeddedJarLocator {
+    /**
+     * Find a nested agent JAR inside the artifact, first at the exact agent path, then by file name anywhere in the
+     * artifact
+     *
+     * @param agentPath agent path, either on the host file system or inside the artifact
+     *
+     * @return name of the nested JAR or {@code null}, if not found
+     */
+    String find(String agentPath) throws IOException;
+
+    /**
+     * @param name name of the nested JAR, as returned by {@link #find(String)}
+     *
+     * @return nested JAR content
+     */
+    byte[] read(String name) throws IOException;
+  }
+
+  public AgentJarReader(AgentEmbedderMojo mojo, EmbeddedJarLocator embeddedJarLocator) {
+    this.mojo = mojo;
+    this.log = mojo.getLog();
+    this.embeddedJarLocator = embeddedJarLocator;
+  }
+
+  /**
+   * Resolve and read all given agents concurrently
+   *
+   * @param agents java agent infos
+   *
+   * @return agent JARs in the same order as the agent infos
+   */
+  public List<AgentJar> readAll(List<JavaAgentInfo> agents) throws IOException, MojoExecutionException {
+    try (EmbeddingReport.Timer ignored = mojo.report.start(EmbeddingReport.Phase.AGENT_RESOLUTION)) {
+      return resolveAndReadAll(agents);
+    }
+  }
+
+  private List<AgentJar> resolveAndReadAll(List<JavaAgentInfo> agents) throws IOException, MojoExecutionException {
+    // Resolve sequentially, logging agent locations in configuration order
+    List<String> agentJarLocations = new ArrayList<>();
+    for (JavaAgentInfo agent : agents) {
+      String agentJarLocation = mojo.resolveAgentJarLocation(agent);
+      log.info("Processing java agent " + agentJarLocation);
+      agentJarLocations.add(agentJarLocation);
+    }
+
+    List<AgentJar> agentJars = new ArrayList<>();
+    int threadCount = mojo.getAgentReaderThreads(agents.size());
+    if (threadCount <= 1) {
+      for (int i = 0; i < agents.size(); i++)
+        agentJars.add(read(agents.get(i), agentJarLocations.get(i)));
+      return agentJars;
+    }
+
+    log.debug("Reading " + agents.size() + " java agent JARs using " + threadCount + " threads");
+    ExecutorService executor = Executors.newFixedThreadPool(threadCount, runnable -> {
+      Thread thread = new Thread(runnable, "agent-embedder-reader-" + THREAD_COUNTER.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    try {
+      List<Future<AgentJar>> futures = new ArrayList<>();
+      for (int i = 0; i < agents.size(); i++) {
+        JavaAgentInfo agent = agents.get(i);
+        String agentJarLocation = agentJarLocations.get(i);
+        futures.add(executor.submit(() -> read(agent, agentJarLocation)));
+      }
+      for (Future<AgentJar> future : futures)
+        agentJars.add(getResult(future));
+      return agentJars;
+    }
+    finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Read an agent JAR into memory, either from the host file system or from a nested JAR inside the artifact, and
+   * configure its agent class. If requested, determine the nested agent JAR to be removed.
+   *
+   * @param agentInfo java agent info
+   * @param agentPath resolved agent JAR location
+   *
+   * @return in-memory agent JAR
+   */
+  public AgentJar read(JavaAgentInfo agentInfo, String agentPath) throws IOException, MojoExecutionException {
+    Path agentJarPath = mojo.hostFS.getPath(agentPath);
+    final boolean externalJarFound = Files.exists(agentJarPath);
+    String embeddedAgentJarName = null;
+    // Nested agent JARs are needed at runtime, if agents are loaded from there
+    boolean removeEmbeddedAgent = mojo.removeEmbeddedAgents && mojo.agentLoading != AgentLoading.NESTED;
+
+    // Search for embedded agent JAR, if removal is requested or external JAR does not exist
+    if (removeEmbeddedAgent || !externalJarFound)
+      embeddedAgentJarName = embeddedJarLocator.find(agentPath);
+
+    ZipCentralDirectory agentJar;
+    AgentJarMetadata metadata;
+    String agentJarLocation;
+    if (externalJarFound) {
+      byte[] agentJarBytes = Files.readAllBytes(agentJarPath);
+      mojo.report.get(EmbeddingReport.Phase.AGENT_RESOLUTION).addBytesRead(agentJarBytes.length);
+      // Share agent JAR metadata with other modules and builds in the same JVM, instead of parsing them again
+      SharedAgentJarCache.CachedAgentJar cachedAgentJar = SharedAgentJarCache.getInstance().get(agentJarPath, () -> {
+        log.debug("Parsing agent JAR " + agentJarPath + " into shared agent JAR cache");
+        return new SharedAgentJarCache.CachedAgentJar(
+          ZipCentralDirectory.of(agentJarBytes).getEntries(), mojo.loadAgentMetadata(agentJarBytes)
+        );
+      });
+      agentJar = ZipCentralDirectory.of(agentJarBytes, cachedAgentJar.getEntries());
+      metadata = cachedAgentJar.getMetadata();
+      agentJarLocation = agentJarPath.toString();
+    }
+    else if (embeddedAgentJarName != null) {
+      byte[] agentJarBytes = embeddedJarLocator.read(embeddedAgentJarName);
+      mojo.report.get(EmbeddingReport.Phase.AGENT_RESOLUTION).addBytesRead(agentJarBytes.length);
+      agentJar = ZipCentralDirectory.of(agentJarBytes);
+      metadata = mojo.loadAgentMetadata(agentJarBytes);
+      agentJarLocation = embeddedAgentJarName;
+    }
+    else
+      throw new MojoExecutionException("Java agent JAR not found");
+
+    mojo.report.get(EmbeddingReport.Phase.AGENT_RESOLUTION).addEntriesScanned(agentJar.getEntries().size());
+
+    log.debug("Configuring java agent class for " + agentInfo);
+    try (EmbeddingReport.Timer timer = mojo.report.start(EmbeddingReport.Phase.AGENT_CLASS_CONFIGURATION)) {
+      if (metadata.getManifestAgentClass() == null) {
+        log.debug("Reading agent manifest from path " + agentJarLocation);
+        ZipCentralDirectory.Entry agentManifestEntry = agentJar.getEntry(MANIFEST_PATH);
+        if (agentManifestEntry == null)
+          throw new NoSuchFileException(agentJarLocation + "!/" + MANIFEST_PATH);
+        try (InputStream manifestInput = agentJar.getInputStream(agentManifestEntry)) {
+          metadata.setManifestAgentClass(AgentEmbedderMojo.getManifestAgentClass(new Manifest(manifestInput)));
+        }
+        timer.getMetrics().addEntriesScanned(1);
+        timer.getMetrics().addBytesRead(agentManifestEntry.getCompressedSize());
+      }
+      mojo.configureJavaAgentClass(agentInfo, metadata.getManifestAgentClass());
+    }
+
+    return new AgentJar(
+      agentInfo, agentJarLocation, agentJar, removeEmbeddedAgent ? embeddedAgentJarName : null, metadata
+    );
+  }
+
+  private static AgentJar getResult(Future<AgentJar> future) throws IOException, MojoExecutionException {
+    try {
+      return future.get();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new MojoExecutionException("Interrupted while reading java agent JARs", e);
+    }
+    catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException)
+        throw (IOException) cause;
+      if (cause instanceof MojoExecutionException)
+        throw (MojoExecutionException) cause;
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException) cause;
+      throw new MojoExecutionException("Error while reading java agent JARs", cause);
+    }
+  }
+}
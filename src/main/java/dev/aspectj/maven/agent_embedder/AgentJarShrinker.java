@@ -0,0 +1,304 @@
+package dev.aspectj.maven.agent_embedder;
+
+import dev.aspectj.maven.tools.ZipCentralDirectory;
+import org.apache.maven.plugin.logging.Log;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static dev.aspectj.maven.agent_embedder.AgentEmbedderMojo.CLASS_DIRECTORIES;
+import static dev.aspectj.maven.agent_embedder.AgentEmbedderMojo.HEADER_AGENT_CLASS;
+import static dev.aspectj.maven.agent_embedder.AgentEmbedderMojo.HEADER_PREMAIN_CLASS;
+import static dev.aspectj.maven.agent_embedder.AgentEmbedderMojo.MANIFEST_PATH;
+import static dev.aspectj.maven.agent_embedder.AgentEmbedderMojo.ManifestUpdater.MANIFEST_HEADER_LAUNCHER_AGENT;
+
+/**
+ * Reduces agent JARs to the class files reachable from their agent classes
+ * <p>
+ * Reachability is determined by bytecode analysis: A class references every class named in its constant pool, be it as
+ * a class constant, in a field or method descriptor, in a generic signature, in an annotation or as a string constant.
+ * The latter also covers most classes loaded reflectively by {@code Class.forName("...")}. Roots are
+ * <ul>
+ *   <li>the configured agent class and the agent classes named in the agent manifest,</li>
+ *   <li>classes matching the user's keep rules,</li>
+ *   <li>service providers listed in the agent JAR's {@code META-INF/services} files,</li>
+ *   <li>
+ *     classes named in AspectJ configuration files {@code META-INF/aop.xml} and {@code META-INF/aop-ajc.xml} of the
+ *     main artifact, and classes referenced by aspect classes named there, see {@link #addArtifactRoots}.
+ *   </li>
+ * </ul>
+ * Only class files are removed. Resources are always kept, because they are looked up by computed names, and
+ * directories are kept, if they contain any kept entries.
+ */
+public class AgentJarShrinker {
+  private static final String CLASS_SUFFIX = ".class";
+  private static final String VERSIONS_PREFIX = "META-INF/versions/";
+  private static final String SERVICES_PREFIX = "META-INF/services/";
+  private static final List<String> MANIFEST_AGENT_HEADERS = Arrays.asList(
+    HEADER_PREMAIN_CLASS, HEADER_AGENT_CLASS, MANIFEST_HEADER_LAUNCHER_AGENT
+  );
+  private static final List<String> ASPECTJ_CONFIG_FILES = Arrays.asList("META-INF/aop.xml", "META-INF/aop-ajc.xml");
+  private static final Pattern TYPE_DESCRIPTOR = Pattern.compile("L([\\w/$]+)[;<]");
+  private static final Pattern IDENTIFIER = Pattern.compile("[\\w$.]+");
+
+  private final Log log;
+  private final List<Pattern> keepRules = new ArrayList<>();
+  private final Set<String> artifactReferences = new HashSet<>();
+
+  /**
+   * @param log       Maven log
+   * @param keepRules fully qualified names of classes to be kept in any case, with wildcards: {@code *} matches any
+   *                  characters except for {@code .}, {@code **} matches any characters and {@code ?} matches a single
+   *                  character except for {@code .}. E.g., {@code org.aspectj.lang.**} keeps package
+   *                  {@code org.aspectj.lang} and its subpackages.
+   */
+  public AgentJarShrinker(Log log, List<String> keepRules) {
+    this.log = log;
+    if (keepRules != null) {
+      for (String keepRule : keepRules)
+        this.keepRules.add(toPattern(keepRule.trim()));
+    }
+  }
+
+  /**
+   * Add class references from the main artifact's AspectJ configuration files to the roots of all agent JARs. This
+   * makes sure that classes named in weaver options are kept, as well as agent classes used by aspects listed there,
+   * e.g. AspectJ runtime classes like {@code JoinPoint} or the annotation classes of annotation-style aspects.
+   *
+   * @param artifact main artifact
+   */
+  public void addArtifactRoots(ZipCentralDirectory artifact) throws IOException {
+    for (String classDirectory : CLASS_DIRECTORIES) {
+      for (String configFile : ASPECTJ_CONFIG_FILES) {
+        ZipCentralDirectory.Entry configEntry = artifact.getEntry(classDirectory + configFile);
+        if (configEntry == null)
+          continue;
+        log.debug("Reading class references from " + configEntry.getName());
+        String config = new String(artifact.readAllBytes(configEntry), StandardCharsets.UTF_8);
+        Matcher identifiers = IDENTIFIER.matcher(config);
+        while (identifiers.find()) {
+          String className = identifiers.group().replace('.', '/');
+          artifactReferences.add(className);
+          ZipCentralDirectory.Entry classEntry = artifact.getEntry(classDirectory + className + CLASS_SUFFIX);
+          if (classEntry != null)
+            artifactReferences.addAll(readClassReferences(artifact, classEntry, "main artifact"));
+        }
+      }
+    }
+  }
+
+  /**
+   * @param agentJar agent JAR to be shrunk
+   *
+   * @return agent JAR restricted to the entries reachable from its roots
+   */
+  public AgentJar shrink(AgentJar agentJar) throws IOException {
+    ZipCentralDirectory zip = agentJar.getZip();
+    // Class name -> class file entries, i.e. the regular one and multi-release variants
+    Map<String, List<ZipCentralDirectory.Entry>> classEntries = new HashMap<>();
+    for (ZipCentralDirectory.Entry entry : zip.getEntries()) {
+      String className = getClassName(entry.getName());
+      if (className != null)
+        classEntries.computeIfAbsent(className, name -> new ArrayList<>()).add(entry);
+    }
+
+    Set<String> reachableClasses = new HashSet<>();
+    Deque<String> classesToVisit = new ArrayDeque<>();
+    for (String root : getRoots(agentJar, classEntries.keySet())) {
+      if (classEntries.containsKey(root) && reachableClasses.add(root))
+        classesToVisit.add(root);
+    }
+    while (!classesToVisit.isEmpty()) {
+      for (ZipCentralDirectory.Entry entry : classEntries.get(classesToVisit.poll())) {
+        for (String reference : getAgentClassReferences(agentJar, entry, classEntries.keySet())) {
+          if (reachableClasses.add(reference))
+            classesToVisit.add(reference);
+        }
+      }
+    }
+
+    Set<String> includedEntryNames = new HashSet<>();
+    for (ZipCentralDirectory.Entry entry : zip.getEntries()) {
+      String className = getClassName(entry.getName());
+      if (entry.isDirectory() || className != null && !reachableClasses.contains(className))
+        continue;
+      includedEntryNames.add(entry.getName());
+      for (int index = entry.getName().lastIndexOf('/'); index > 0; index = entry.getName().lastIndexOf('/', index - 1))
+        includedEntryNames.add(entry.getName().substring(0, index + 1));
+    }
+    log.info(
+      "Shrinking java agent " + agentJar.getAgentInfo().getAgentClass() + ": keeping " + reachableClasses.size() +
+        " of " + classEntries.size() + " classes"
+    );
+    return agentJar.withIncludedEntryNames(includedEntryNames);
+  }
+
+  private Set<String> getRoots(AgentJar agentJar, Set<String> classNames) throws IOException {
+    ZipCentralDirectory zip = agentJar.getZip();
+    Set<String> roots = new LinkedHashSet<>();
+    roots.add(toInternalName(agentJar.getAgentInfo().getAgentClass()));
+
+    ZipCentralDirectory.Entry manifestEntry = zip.getEntry(MANIFEST_PATH);
+    if (manifestEntry != null) {
+      Attributes mainAttributes;
+      try (InputStream manifestInput = zip.getInputStream(manifestEntry)) {
+        mainAttributes = new Manifest(manifestInput).getMainAttributes();
+      }
+      for (String header : MANIFEST_AGENT_HEADERS) {
+        String agentClass = mainAttributes.getValue(header);
+        if (agentClass != null)
+          roots.add(toInternalName(agentClass.trim()));
+      }
+    }
+
+    for (String className : classNames) {
+      String qualifiedName = className.replace('/', '.');
+      for (Pattern keepRule : keepRules) {
+        if (keepRule.matcher(qualifiedName).matches()) {
+          roots.add(className);
+          break;
+        }
+      }
+    }
+
+    for (ZipCentralDirectory.Entry entry : zip.getEntries()) {
+      if (entry.isDirectory() || !entry.getName().startsWith(SERVICES_PREFIX))
+        continue;
+      String services = new String(zip.readAllBytes(entry), StandardCharsets.UTF_8);
+      for (String line : services.split("\r?\n|\r")) {
+        int commentIndex = line.indexOf('#');
+        String provider = (commentIndex < 0 ? line : line.substring(0, commentIndex)).trim();
+        if (!provider.isEmpty())
+          roots.add(toInternalName(provider));
+      }
+    }
+
+    roots.addAll(artifactReferences);
+    return roots;
+  }
+
+  /**
+   * @param entryName JAR entry name
+   *
+   * @return internal name of the class contained in the entry, also for multi-release JAR variants, or {@code null},
+   * if the entry is no class file subject to shrinking
+   */
+  static String getClassName(String entryName) {
+    if (!entryName.endsWith(CLASS_SUFFIX))
+      return null;
+    String className = entryName.substring(0, entryName.length() - CLASS_SUFFIX.length());
+    if (className.startsWith(VERSIONS_PREFIX)) {
+      int versionEndIndex = className.indexOf('/', VERSIONS_PREFIX.length());
+      if (versionEndIndex < 0)
+        return null;
+      className = className.substring(versionEndIndex + 1);
+    }
+    // Module and package descriptors are no classes to be referenced by other classes
+    if (className.equals("module-info") || className.endsWith("/package-info") || className.equals("package-info"))
+      return null;
+    return className;
+  }
+
+  /**
+   * @return internal names of the classes within the agent JAR referenced by the class file, taken from the agent JAR
+   * metadata, if available, otherwise read from the class file and added to the metadata
+   */
+  private Set<String> getAgentClassReferences(
+    AgentJar agentJar, ZipCentralDirectory.Entry classEntry, Set<String> classNames
+  )
+  {
+    AgentJarMetadata metadata = agentJar.getMetadata();
+    Set<String> references = metadata.getClassReferences(classEntry.getName());
+    if (references != null)
+      return references;
+    references = new HashSet<>();
+    try {
+      for (String reference : readClassReferences(agentJar.getZip(), classEntry)) {
+        if (classNames.contains(reference))
+          references.add(reference);
+      }
+    }
+    catch (IOException e) {
+      log.warn(
+        "Cannot analyse class file " + classEntry.getName() + " in " + agentJar.getLocation() +
+          ", ignoring its references"
+      );
+      return references;
+    }
+    // Only cache references within the agent JAR, keeping the metadata small
+    metadata.putClassReferences(classEntry.getName(), references);
+    return references;
+  }
+
+  private Set<String> readClassReferences(ZipCentralDirectory zip, ZipCentralDirectory.Entry classEntry, String location) {
+    try {
+      return readClassReferences(zip, classEntry);
+    }
+    catch (IOException e) {
+      log.warn("Cannot analyse class file " + classEntry.getName() + " in " + location + ", ignoring its references");
+      return Collections.emptySet();
+    }
+  }
+
+  /**
+   * @return internal names of all classes which might be referenced in the class file's constant pool
+   */
+  static Set<String> readClassReferences(ZipCentralDirectory zip, ZipCentralDirectory.Entry classEntry)
+    throws IOException
+  {
+    Set<String> references = new HashSet<>();
+    String[] utf8Constants;
+    try (DataInputStream input = new DataInputStream(new BufferedInputStream(zip.getInputStream(classEntry)))) {
+      input.readInt();  // magic
+      input.readInt();  // minor and major version
+      utf8Constants = LauncherClassGenerator.readConstantPool(input);
+    }
+    catch (EOFException e) {
+      throw new IOException("Truncated class file " + classEntry.getName(), e);
+    }
+    for (String constant : utf8Constants) {
+      if (constant == null)
+        continue;
+      // Class constants, string constants with class names
+      references.add(constant.replace('.', '/'));
+      // Descriptors, signatures, annotation types, array class constants
+      if (constant.indexOf(';') > 0) {
+        Matcher typeDescriptors = TYPE_DESCRIPTOR.matcher(constant);
+        while (typeDescriptors.find())
+          references.add(typeDescriptors.group(1));
+      }
+    }
+    return references;
+  }
+
+  private static String toInternalName(String className) {
+    return className.replace('.', '/');
+  }
+
+  private static Pattern toPattern(String keepRule) {
+    StringBuilder regex = new StringBuilder();
+    for (int i = 0; i < keepRule.length(); i++) {
+      char c = keepRule.charAt(i);
+      if (c == '*' && i + 1 < keepRule.length() && keepRule.charAt(i + 1) == '*') {
+        regex.append(".*");
+        i++;
+      }
+      else if (c == '*')
+        regex.append("[^.]*");
+      else if (c == '?')
+        regex.append("[^.]");
+      else
+        regex.append(Pattern.quote(String.valueOf(c)));
+    }
+    return Pattern.compile(regex.toString());
+  }
+}
@@ -0,0 +1,18 @@
+package dev.aspectj.maven.agent_embedder;
+
+/**
+ * How the launcher agent loads embedded java agents at runtime
+ */
+public enum AgentLoading {
+  /**
+   * Unpack agent JARs into the main artifact's root, so the JVM application classloader finds the agent classes
+   */
+  UNPACK,
+
+  /**
+   * Keep each agent JAR as a nested JAR inside the main artifact and load its classes lazily via a dedicated
+   * classloader, see {@link JavaAgentLauncher.NestedJarClassLoader}. Requires the {@link EmbeddingEngine#STREAMING}
+   * engine.
+   */
+  NESTED
+}
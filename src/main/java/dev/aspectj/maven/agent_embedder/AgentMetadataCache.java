@@ -0,0 +1,172 @@
+package dev.aspectj.maven.agent_embedder;
+
+import org.apache.maven.plugin.logging.Log;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Persistent cache of {@link AgentJarMetadata}, shared by builds and modules, keyed by agent JAR content hash
+ * <p>
+ * Each agent JAR's metadata is stored in a separate file. The cache is safe to be shared by concurrent builds:
+ * <ul>
+ *   <li>
+ *     Files are written to a temporary file first and then atomically moved into place, i.e. readers see either the
+ *     old or the new version, never a partially written one.
+ *   </li>
+ *   <li>
+ *     Because the content hash is the key, concurrent writers of the same file write equivalent data, so the last
+ *     one winning is fine.
+ *   </li>
+ *   <li>
+ *     Eviction is serialized across processes by a lock file. A reader finding a file missing or unreadable, e.g.
+ *     because it was evicted while being read, treats it as a cache miss.
+ *   </li>
+ * </ul>
+ * The cache size is bounded. When it is exceeded, the least recently used files are evicted, using file modification
+ * times, which are updated on each cache hit. Cache errors never fail the build, they merely make the cache miss.
+ */
+public class AgentMetadataCache {
+  private static final String FILE_SUFFIX = ".bin";
+  private static final String TEMP_FILE_SUFFIX = ".tmp";
+  private static final String LOCK_FILE_NAME = ".lock";
+  private static final long STALE_TEMP_FILE_MILLIS = 60 * 60 * 1000;
+
+  private final Path directory;
+  private final long maxSize;
+  private final Log log;
+
+  /**
+   * @param directory cache directory, created on demand
+   * @param maxSize   maximum total size of cache files in bytes
+   * @param log       Maven log
+   */
+  public AgentMetadataCache(Path directory, long maxSize, Log log) {
+    this.directory = directory;
+    this.maxSize = maxSize;
+    this.log = log;
+  }
+
+  /**
+   * @param contentHash agent JAR content hash
+   *
+   * @return cached metadata or, on a cache miss, new empty metadata for the content hash
+   */
+  public AgentJarMetadata load(String contentHash) {
+    Path file = directory.resolve(contentHash + FILE_SUFFIX);
+    if (!Files.exists(file)) {
+      log.debug("Agent metadata cache miss for " + contentHash);
+      return new AgentJarMetadata(contentHash);
+    }
+    try (DataInputStream input = new DataInputStream(new GZIPInputStream(Files.newInputStream(file)))) {
+      AgentJarMetadata metadata = AgentJarMetadata.read(input, contentHash);
+      Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+      log.debug("Agent metadata cache hit for " + contentHash);
+      return metadata;
+    }
+    catch (IOException e) {
+      log.debug("Cannot read agent metadata cache file " + file + ", ignoring it: " + e);
+      return new AgentJarMetadata(contentHash);
+    }
+  }
+
+  /**
+   * Store metadata, if it was modified since loading it, then evict the least recently used files, if the cache
+   * exceeds its maximum size
+   *
+   * @param metadata agent JAR metadata
+   */
+  public void store(AgentJarMetadata metadata) {
+    if (metadata.getContentHash() == null || !metadata.isModified())
+      return;
+    Path file = directory.resolve(metadata.getContentHash() + FILE_SUFFIX);
+    Path tempFile = null;
+    try {
+      Files.createDirectories(directory);
+      tempFile = Files.createTempFile(directory, metadata.getContentHash(), TEMP_FILE_SUFFIX);
+      try (DataOutputStream output = new DataOutputStream(new GZIPOutputStream(Files.newOutputStream(tempFile)))) {
+        metadata.write(output);
+      }
+      try {
+        Files.move(tempFile, file, ATOMIC_MOVE);
+      }
+      catch (AtomicMoveNotSupportedException e) {
+        Files.move(tempFile, file, REPLACE_EXISTING);
+      }
+      metadata.clearModified();
+      log.debug("Stored agent metadata in cache file " + file);
+      evict();
+    }
+    catch (IOException e) {
+      log.debug("Cannot write agent metadata cache file " + file + ": " + e);
+    }
+    finally {
+      if (tempFile != null) {
+        try {
+          Files.deleteIfExists(tempFile);
+        }
+        catch (IOException ignored) {}
+      }
+    }
+  }
+
+  /**
+   * Evict the least recently used cache files until the cache does not exceed its maximum size anymore, also deleting
+   * stale temporary files left behind by aborted builds
+   */
+  protected void evict() throws IOException {
+    try (
+      FileChannel lockChannel = FileChannel.open(directory.resolve(LOCK_FILE_NAME), CREATE, WRITE);
+      FileLock ignored = lockChannel.lock()
+    ) {
+      List<Path> files = new ArrayList<>();
+      long totalSize = 0;
+      long now = System.currentTimeMillis();
+      try (Stream<Path> paths = Files.list(directory)) {
+        for (Path path : (Iterable<Path>) paths::iterator) {
+          String fileName = path.getFileName().toString();
+          if (fileName.endsWith(FILE_SUFFIX)) {
+            files.add(path);
+            totalSize += Files.size(path);
+          }
+          else if (fileName.endsWith(TEMP_FILE_SUFFIX) && now - getLastModifiedMillis(path) > STALE_TEMP_FILE_MILLIS)
+            Files.deleteIfExists(path);
+        }
+      }
+      if (totalSize <= maxSize)
+        return;
+      files.sort(Comparator.comparingLong(AgentMetadataCache::getLastModifiedMillis));
+      for (Path file : files) {
+        if (totalSize <= maxSize)
+          break;
+        long size = Files.size(file);
+        Files.deleteIfExists(file);
+        totalSize -= size;
+        log.debug("Evicted agent metadata cache file " + file);
+      }
+    }
+  }
+
+  private static long getLastModifiedMillis(Path path) {
+    try {
+      return Files.getLastModifiedTime(path).toMillis();
+    }
+    catch (IOException e) {
+      return 0;
+    }
+  }
+}
@@ -0,0 +1,367 @@
+package dev.aspectj.maven.agent_embedder;
+
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugins.annotations.Component;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.project.MavenProject;
+import org.apache.maven.project.MavenProjectHelper;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates an AppCDS (application class data sharing) archive for the executable JAR with embedded java agents
+ * <p>
+ * Embedded agents such as the AspectJ weaver load hundreds of classes before the application's main class even starts,
+ * and the JVM pays that price on every start. This goal performs a training run of the finished executable JAR,
+ * recording the classes loaded by the JVM, the launcher agent, the embedded agents and the application, and creates a
+ * CDS archive from them. Started with {@code -XX:SharedArchiveFile=/path/to/archive.jsa}, the JVM maps the pre-parsed
+ * classes from the archive instead of loading, parsing and verifying them again, reducing agent bootstrap time.
+ * <p>
+ * JVM options cannot be specified in a JAR manifest. Therefore, this goal also writes a companion launcher script next
+ * to the executable JAR, running it with the archive. Please note, that the JVM only uses the archive, if
+ * <ul>
+ *   <li>it is the same JDK build which created the archive,</li>
+ *   <li>the executable JAR is unchanged, i.e. no other plugin must modify it after this goal,</li>
+ *   <li>
+ *     the JAR is started by file name from the directory containing it, i.e. {@code java -jar my.jar}, because the
+ *     training run does the same. The launcher script changes into the JAR directory before starting the JVM.
+ *   </li>
+ * </ul>
+ * Otherwise, the JVM silently starts without the archive. Add {@code -Xshare:on} to {@code JAVA_OPTS} in order to make
+ * it fail instead, e.g. for verifying your deployment.
+ * <p>
+ * Run this goal after the {@code embed} goal, e.g. by listing it in a second execution in the same phase:
+ * <pre>{@code
+ * <execution>
+ *   <id>create-cds-archive</id>
+ *   <goals>
+ *     <goal>app-cds</goal>
+ *   </goals>
+ *   <configuration>
+ *     <trainingArguments>
+ *       <argument>--spring.main.web-application-type=none</argument>
+ *     </trainingArguments>
+ *   </configuration>
+ * </execution>
+ * }</pre>
+ */
+@Mojo(
+  name = "app-cds",
+  defaultPhase = LifecyclePhase.PACKAGE,
+  threadSafe = true
+)
+public class AppCdsMojo extends AbstractMojo {
+  /**
+   * Pseudo exit code returned by {@link #runJava(List, Path, Path, int)} for a process terminated after its timeout
+   */
+  protected static final int EXIT_CODE_TIMEOUT = Integer.MIN_VALUE;
+
+  /**
+   * Skip creating the CDS archive
+   */
+  @Parameter(property = "agent-embedder.app-cds.skip", defaultValue = "false")
+  protected boolean skip;
+
+  /**
+   * Java executable used for the training run and for creating the archive. Use the same JDK version and build as in
+   * production, otherwise the JVM cannot use the archive.
+   */
+  @Parameter(defaultValue = "${java.home}/bin/java")
+  protected String javaExecutable;
+
+  /**
+   * Way the CDS archive is created
+   * <ul>
+   *   <li>
+   *     {@code STATIC}: Record the classes loaded during the training run in a class list, then create a static archive
+   *     from it in a second JVM run. Requires JDK 10+. The archive also contains the JDK classes used by the
+   *     application.
+   *   </li>
+   *   <li>
+   *     {@code DYNAMIC}: Create a dynamic archive on top of the JDK's default CDS archive when the training run exits.
+   *     Requires JDK 13+.
+   *   </li>
+   * </ul>
+   */
+  @Parameter(required = true, defaultValue = "STATIC")
+  protected CdsArchiveMode archiveMode = CdsArchiveMode.STATIC;
+
+  /**
+   * CDS archive file to be created
+   */
+  @Parameter(required = true, defaultValue = "${project.build.directory}/${project.build.finalName}.jsa")
+  protected File archiveFile;
+
+  /**
+   * Additional JVM arguments for the training run, e.g. system properties selecting a training profile. Heap and GC
+   * options should match the ones used in production.
+   */
+  @Parameter
+  protected List<String> trainingJvmArguments = new ArrayList<>();
+
+  /**
+   * Program arguments for the training run. The training run should exercise the application's startup path and then
+   * exit. For applications not exiting by themselves, see {@link #trainingTimeout}.
+   */
+  @Parameter
+  protected List<String> trainingArguments = new ArrayList<>();
+
+  /**
+   * Maximum duration of the training run in seconds. If the application still runs afterwards, e.g. because it is a
+   * server, it is asked to shut down gracefully, i.e. the archive covers the classes loaded until then.
+   */
+  @Parameter(defaultValue = "120")
+  protected int trainingTimeout = 120;
+
+  /**
+   * Write a POSIX shell script named like the executable JAR, but with extension {@code .sh}, running the JAR with the
+   * CDS archive. Additional JVM options can be passed to the script via environment variable {@code JAVA_OPTS}.
+   */
+  @Parameter(defaultValue = "true")
+  protected boolean createLauncherScript = true;
+
+  /**
+   * Attach the CDS archive (classifier {@code cds}, type {@code jsa}) and the launcher script (classifier
+   * {@code launcher}, type {@code sh}) to the project, installing and deploying them together with the main artifact
+   */
+  @Parameter(defaultValue = "false")
+  protected boolean attach;
+
+  /**
+   * Skip creating the CDS archive, if it is newer than the main artifact and was created with the same inputs
+   * <p>
+   * The inputs are the java executable, the archive mode and the training run's arguments and timeout. Their
+   * fingerprint is recorded in a file next to the archive, named like the archive with extension {@code .inputs}
+   * appended. Otherwise, a stale archive would be kept, which the JVM silently ignores at runtime.
+   */
+  @Parameter(defaultValue = "true")
+  protected boolean upToDateCheck = true;
+
+  @Parameter(defaultValue = "${project}", readonly = true, required = true)
+  protected MavenProject project;
+
+  @Component
+  protected MavenProjectHelper projectHelper;
+
+  public void execute() throws MojoExecutionException {
+    if (skip) {
+      getLog().info("Skipping CDS archive creation");
+      return;
+    }
+    File artifactFile = project.getArtifact().getFile();
+    if (artifactFile == null || !artifactFile.isFile())
+      throw new MojoExecutionException("Main artifact does not exist, cannot create CDS archive");
+    Path jarPath = artifactFile.toPath().toAbsolutePath();
+    Path archivePath = archiveFile.toPath().toAbsolutePath();
+    Path scriptPath = createLauncherScript ? getLauncherScriptPath(jarPath) : null;
+    try {
+      if (upToDateCheck && isUpToDate(jarPath, archivePath, scriptPath))
+        getLog().info("CDS archive is up to date: " + archivePath);
+      else {
+        createArchive(jarPath, archivePath);
+        if (scriptPath != null) {
+          getLog().info("Writing launcher script: " + scriptPath);
+          writeLauncherScript(scriptPath, jarPath, archivePath);
+        }
+      }
+    }
+    catch (IOException e) {
+      throw new MojoExecutionException("Error while creating CDS archive", e);
+    }
+    if (attach) {
+      projectHelper.attachArtifact(project, "jsa", "cds", archivePath.toFile());
+      if (scriptPath != null)
+        projectHelper.attachArtifact(project, "sh", "launcher", scriptPath.toFile());
+    }
+  }
+
+  protected boolean isUpToDate(Path jarPath, Path archivePath, Path scriptPath) throws IOException {
+    Path inputsPath = getInputsPath(archivePath);
+    return Files.isRegularFile(archivePath) &&
+      Files.getLastModifiedTime(archivePath).compareTo(Files.getLastModifiedTime(jarPath)) >= 0 &&
+      (scriptPath == null || Files.isRegularFile(scriptPath)) &&
+      Files.isRegularFile(inputsPath) &&
+      getInputFingerprint(jarPath).equals(new String(Files.readAllBytes(inputsPath), StandardCharsets.UTF_8).trim());
+  }
+
+  /**
+   * @return fingerprint of all inputs influencing the CDS archive, except for the main artifact itself
+   */
+  protected String getInputFingerprint(Path jarPath) {
+    return new EmbeddingFingerprint()
+      .add("jarName", jarPath.getFileName())
+      .add("javaExecutable", javaExecutable)
+      .add("archiveMode", archiveMode)
+      .add("trainingJvmArguments", trainingJvmArguments)
+      .add("trainingArguments", trainingArguments)
+      .add("trainingTimeout", trainingTimeout)
+      .getValue();
+  }
+
+  protected static Path getInputsPath(Path archivePath) {
+    return archivePath.resolveSibling(archivePath.getFileName() + ".inputs");
+  }
+
+  protected void createArchive(Path jarPath, Path archivePath) throws IOException, MojoExecutionException {
+    Files.createDirectories(archivePath.getParent());
+    Path inputsPath = getInputsPath(archivePath);
+    Files.deleteIfExists(inputsPath);
+    Files.deleteIfExists(archivePath);
+    Path logPath = archivePath.resolveSibling(archivePath.getFileName() + ".log");
+    Files.deleteIfExists(logPath);
+    getLog().info("Training run for CDS archive (timeout " + trainingTimeout + " s), output: " + logPath);
+    if (archiveMode == CdsArchiveMode.DYNAMIC)
+      runTraining(getDynamicTrainingCommand(jarPath, archivePath), jarPath, logPath);
+    else {
+      Path classListPath = archivePath.resolveSibling(archivePath.getFileName() + ".classlist");
+      runTraining(getClassListTrainingCommand(jarPath, classListPath), jarPath, logPath);
+      getLog().info("Creating CDS archive from class list: " + classListPath);
+      int exitCode =
+        runJava(getStaticDumpCommand(jarPath, classListPath, archivePath), jarPath.getParent(), logPath, 0);
+      if (exitCode != 0)
+        throw new MojoExecutionException("Creating CDS archive failed with exit code " + exitCode + ", see " + logPath);
+    }
+    if (!Files.isRegularFile(archivePath))
+      throw new MojoExecutionException("JVM did not create CDS archive " + archivePath + ", see " + logPath);
+    Files.write(inputsPath, (getInputFingerprint(jarPath) + "\n").getBytes(StandardCharsets.UTF_8));
+    getLog().info("Created CDS archive: " + archivePath + " (" + Files.size(archivePath) + " bytes)");
+  }
+
+  private void runTraining(List<String> command, Path jarPath, Path logPath)
+    throws IOException, MojoExecutionException
+  {
+    int exitCode = runJava(command, jarPath.getParent(), logPath, trainingTimeout);
+    // After a timeout, the exit code is the JVM's reaction to the termination request
+    if (exitCode != 0 && exitCode != EXIT_CODE_TIMEOUT)
+      throw new MojoExecutionException("Training run failed with exit code " + exitCode + ", see " + logPath);
+  }
+
+  /**
+   * Runs the java executable, appending its output to a log file
+   *
+   * @param command        command line
+   * @param workingDir     working directory
+   * @param logPath        log file for stdout and stderr
+   * @param timeoutSeconds maximum duration of the run, after which the process is terminated; 0 means no timeout
+   *
+   * @return the process exit code, or {@link #EXIT_CODE_TIMEOUT}, if the process had to be terminated
+   */
+  protected int runJava(List<String> command, Path workingDir, Path logPath, int timeoutSeconds)
+    throws IOException, MojoExecutionException
+  {
+    getLog().debug("Running " + command);
+    Process process = new ProcessBuilder(command)
+      .directory(workingDir.toFile())
+      .redirectErrorStream(true)
+      .redirectOutput(ProcessBuilder.Redirect.appendTo(logPath.toFile()))
+      .redirectInput(ProcessBuilder.Redirect.PIPE)
+      .start();
+    process.getOutputStream().close();
+    try {
+      if (timeoutSeconds <= 0)
+        return process.waitFor();
+      if (process.waitFor(timeoutSeconds, TimeUnit.SECONDS))
+        return process.exitValue();
+      getLog().info("Training run timeout reached, shutting down application");
+      // Graceful termination runs shutdown hooks and lets the JVM write the dynamic archive
+      process.destroy();
+      if (!process.waitFor(30, TimeUnit.SECONDS)) {
+        process.destroyForcibly();
+        throw new MojoExecutionException("Training run did not terminate, see " + logPath);
+      }
+      return EXIT_CODE_TIMEOUT;
+    }
+    catch (InterruptedException e) {
+      process.destroyForcibly();
+      Thread.currentThread().interrupt();
+      throw new MojoExecutionException("Interrupted while waiting for JVM", e);
+    }
+  }
+
+  /**
+   * The JVM validates the classpath recorded in the archive. Therefore, all JVM runs start the JAR by file name from
+   * its directory, like the launcher script does.
+   */
+  protected List<String> getClassListTrainingCommand(Path jarPath, Path classListPath) {
+    List<String> command = new ArrayList<>();
+    command.add(javaExecutable);
+    command.add("-XX:DumpLoadedClassList=" + classListPath);
+    addJarAndArguments(command, jarPath);
+    return command;
+  }
+
+  protected List<String> getStaticDumpCommand(Path jarPath, Path classListPath, Path archivePath) {
+    List<String> command = new ArrayList<>();
+    command.add(javaExecutable);
+    command.add("-Xshare:dump");
+    command.add("-XX:SharedClassListFile=" + classListPath);
+    command.add("-XX:SharedArchiveFile=" + archivePath);
+    command.addAll(trainingJvmArguments);
+    command.add("-jar");
+    command.add(jarPath.getFileName().toString());
+    return command;
+  }
+
+  protected List<String> getDynamicTrainingCommand(Path jarPath, Path archivePath) {
+    List<String> command = new ArrayList<>();
+    command.add(javaExecutable);
+    command.add("-XX:ArchiveClassesAtExit=" + archivePath);
+    addJarAndArguments(command, jarPath);
+    return command;
+  }
+
+  private void addJarAndArguments(List<String> command, Path jarPath) {
+    command.addAll(trainingJvmArguments);
+    command.add("-jar");
+    command.add(jarPath.getFileName().toString());
+    command.addAll(trainingArguments);
+  }
+
+  protected static Path getLauncherScriptPath(Path jarPath) {
+    String jarName = jarPath.getFileName().toString();
+    int extensionIndex = jarName.lastIndexOf('.');
+    return jarPath.resolveSibling((extensionIndex > 0 ? jarName.substring(0, extensionIndex) : jarName) + ".sh");
+  }
+
+  protected void writeLauncherScript(Path scriptPath, Path jarPath, Path archivePath) throws IOException {
+    // Relative to the JAR directory, so the script keeps working after copying JAR, archive and script elsewhere
+    String archiveLocation = jarPath.getParent().relativize(archivePath).toString().replace(File.separatorChar, '/');
+    String script = "#!/bin/sh\n" +
+      "# Runs " + jarPath.getFileName() + " with AppCDS archive " + archiveLocation +
+      ", generated by agent-embedder-maven-plugin.\n" +
+      "# The JVM only uses the archive when started with the same JDK build from the JAR directory, like during the\n" +
+      "# training run. Otherwise, it silently starts without the archive, unless JAVA_OPTS contains -Xshare:on.\n" +
+      "cd \"$(dirname \"$0\")\" || exit 1\n" +
+      "exec \"${JAVA_HOME:+$JAVA_HOME/bin/}java\" -XX:SharedArchiveFile=" + shellQuote(archiveLocation) +
+      " $JAVA_OPTS -jar " + shellQuote(jarPath.getFileName().toString()) + " \"$@\"\n";
+    Files.write(scriptPath, script.getBytes(StandardCharsets.UTF_8));
+    try {
+      Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(scriptPath);
+      Collections.addAll(
+        permissions,
+        PosixFilePermission.OWNER_EXECUTE, PosixFilePermission.GROUP_EXECUTE, PosixFilePermission.OTHERS_EXECUTE
+      );
+      Files.setPosixFilePermissions(scriptPath, permissions);
+    }
+    catch (UnsupportedOperationException ignored) {
+      // Non-POSIX file system, e.g. on Windows
+    }
+  }
+
+  private static String shellQuote(String value) {
+    return "'" + value.replace("'", "'\\''") + "'";
+  }
+}
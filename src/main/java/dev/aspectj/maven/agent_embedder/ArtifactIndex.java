@@ -0,0 +1,128 @@
+package dev.aspectj.maven.agent_embedder;
+
+import dev.aspectj.maven.tools.ZipCentralDirectory;
+
+import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * Index of all file and directory names contained in the main artifact, built once up front
+ * <p>
+ * Serves existence checks for agent JAR entries to be unpacked and file name lookups for nested agent JARs in constant
+ * time, instead of querying the zip file system once per agent entry and walking the whole artifact tree once per
+ * agent.
+ * <p>
+ * Names are stored without leading and trailing slashes. Like in a zip file system, parent directories exist
+ * implicitly, even if the archive contains no explicit directory entries for them, and there is no distinction between
+ * files and directories when checking existence.
+ */
+public class ArtifactIndex {
+  private final Set<String> names = new HashSet<>();
+  private final Map<String, List<String>> filesByFileName = new HashMap<>();
+
+  private ArtifactIndex() {}
+
+  /**
+   * @param artifact main artifact central directory
+   *
+   * @return index of all entries contained in the central directory
+   */
+  public static ArtifactIndex of(ZipCentralDirectory artifact) {
+    ArtifactIndex index = new ArtifactIndex();
+    for (ZipCentralDirectory.Entry entry : artifact.getEntries()) {
+      index.add(entry.getName());
+      if (!entry.isDirectory())
+        index.filesByFileName.computeIfAbsent(entry.getFileName(), key -> new ArrayList<>()).add(entry.getName());
+    }
+    return index;
+  }
+
+  /**
+   * Build an index by walking a zip file system once. Prefer {@link #of(ZipCentralDirectory)}, if the artifact path is
+   * known.
+   *
+   * @param jarFS main artifact zip file system
+   *
+   * @return index of all files and directories contained in the zip file system
+   */
+  public static ArtifactIndex of(FileSystem jarFS) throws IOException {
+    ArtifactIndex index = new ArtifactIndex();
+    try (Stream<Path> paths = Files.walk(jarFS.getPath("/"))) {
+      paths
+        .filter(path -> path.getNameCount() > 0)
+        .forEach(path -> {
+          String name = normalise(path.toString());
+          index.add(name);
+          if (!Files.isDirectory(path))
+            index.filesByFileName.computeIfAbsent(path.getFileName().toString(), key -> new ArrayList<>()).add(name);
+        });
+    }
+    return index;
+  }
+
+  /**
+   * @param name file or directory name, leading and trailing slashes are ignored
+   *
+   * @return {@code true}, if the artifact contains a file or directory of the given name
+   */
+  public boolean contains(String name) {
+    return names.contains(normalise(name));
+  }
+
+  /**
+   * Register a file or directory added to the artifact, including its parent directories
+   *
+   * @param name file or directory name
+   */
+  public void add(String name) {
+    String normalisedName = normalise(name);
+    while (!normalisedName.isEmpty() && names.add(normalisedName)) {
+      int separatorIndex = normalisedName.lastIndexOf('/');
+      normalisedName = separatorIndex < 0 ? "" : normalisedName.substring(0, separatorIndex);
+    }
+  }
+
+  /**
+   * Register a file removed from the artifact
+   *
+   * @param name file name
+   */
+  public void remove(String name) {
+    names.remove(normalise(name));
+  }
+
+  /**
+   * Find a nested agent JAR inside the artifact, first at the exact agent path, then by file name anywhere in the
+   * artifact. If several files of the same name exist, the first one in central directory order wins.
+   *
+   * @param agentPath agent path, either on the host file system or inside the artifact
+   *
+   * @return name of the nested JAR without leading slash, or {@code null} if not found
+   */
+  public String findNestedJar(String agentPath) {
+    String normalisedPath = normalise(agentPath.replace('\\', '/'));
+    List<String> candidates = filesByFileName.get(normalisedPath.substring(normalisedPath.lastIndexOf('/') + 1));
+    if (candidates == null)
+      return null;
+    if (candidates.contains(normalisedPath) && names.contains(normalisedPath))
+      return normalisedPath;
+    return candidates.stream()
+      .filter(names::contains)
+      .findFirst()
+      .orElse(null);
+  }
+
+  private static String normalise(String name) {
+    int start = 0;
+    int end = name.length();
+    while (start < end && name.charAt(start) == '/')
+      start++;
+    while (end > start && name.charAt(end - 1) == '/')
+      end--;
+    return name.substring(start, end);
+  }
+}
@@ -0,0 +1,18 @@
+package dev.aspectj.maven.agent_embedder;
+
+/**
+ * Strategy used by {@link AppCdsMojo} to create an AppCDS archive for the main artifact
+ */
+public enum CdsArchiveMode {
+  /**
+   * Record the classes loaded during the training run in a class list ({@code -XX:DumpLoadedClassList}), then create
+   * a static archive from it in a second JVM run ({@code -Xshare:dump}). Requires JDK 10+.
+   */
+  STATIC,
+
+  /**
+   * Create a dynamic archive on top of the JDK's default CDS archive when the training run exits
+   * ({@code -XX:ArchiveClassesAtExit}). Requires JDK 13+.
+   */
+  DYNAMIC
+}
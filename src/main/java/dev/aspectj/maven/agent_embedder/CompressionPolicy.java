@@ -0,0 +1,172 @@
+package dev.aspectj.maven.agent_embedder;
+
+import java.util.Objects;
+import java.util.zip.Deflater;
+
+import static java.util.zip.ZipEntry.DEFLATED;
+import static java.util.zip.ZipEntry.STORED;
+
+/**
+ * Compression of the entries written by the streaming engine, configurable per entry group
+ * <p>
+ * Each group is configured by one of the following values:
+ * <ul>
+ *   <li>
+ *     {@code KEEP}: Keep the compression of the source entry, copying it without inflating and deflating it. For
+ *     entries generated by the plugin, i.e. the manifest and the launcher agent classes, this equals {@code DEFLATED}.
+ *   </li>
+ *   <li>{@code STORED}: Do not compress the entry, which saves the JVM inflating it when loading it.</li>
+ *   <li>{@code DEFLATED}: Compress the entry with the default compression level.</li>
+ *   <li>{@code DEFLATED:N}: Compress the entry with compression level {@code N} from 0 to 9.</li>
+ * </ul>
+ * Entries of the main artifact except for the manifest always keep their compression.
+ */
+public class CompressionPolicy {
+  private String manifest;
+  private String launcherClasses;
+  private String agentClasses;
+  private String agentResources;
+
+  @SuppressWarnings("unused")
+  public CompressionPolicy() {}
+
+  public CompressionPolicy(String manifest, String launcherClasses, String agentClasses, String agentResources) {
+    this.manifest = manifest;
+    this.launcherClasses = launcherClasses;
+    this.agentClasses = agentClasses;
+    this.agentResources = agentResources;
+  }
+
+  /**
+   * @return compression of the rewritten manifest
+   */
+  public Compression getManifest() {
+    return Compression.parse("manifest", manifest);
+  }
+
+  /**
+   * @return compression of the launcher agent classes, including the generated launcher agent
+   */
+  public Compression getLauncherClasses() {
+    return Compression.parse("launcherClasses", launcherClasses);
+  }
+
+  /**
+   * @return compression of the class files unpacked from agent JARs
+   */
+  public Compression getAgentClasses() {
+    return Compression.parse("agentClasses", agentClasses);
+  }
+
+  /**
+   * @return compression of the other files unpacked from agent JARs
+   */
+  public Compression getAgentResources() {
+    return Compression.parse("agentResources", agentResources);
+  }
+
+  /**
+   * @throws IllegalArgumentException if any group is configured with an invalid value
+   */
+  public void validate() {
+    getManifest();
+    getLauncherClasses();
+    getAgentClasses();
+    getAgentResources();
+  }
+
+  @Override
+  public String toString() {
+    return "CompressionPolicy(" +
+      "manifest=" + manifest +
+      ", launcherClasses=" + launcherClasses +
+      ", agentClasses=" + agentClasses +
+      ", agentResources=" + agentResources +
+      ')';
+  }
+
+  /**
+   * Compression method and level of an entry group
+   */
+  public static class Compression {
+    public static final Compression KEEP = new Compression(-1, Deflater.DEFAULT_COMPRESSION);
+
+    private final int method;
+    private final int level;
+
+    private Compression(int method, int level) {
+      this.method = method;
+      this.level = level;
+    }
+
+    /**
+     * @param group entry group name, used in error messages
+     * @param value {@code KEEP}, {@code STORED}, {@code DEFLATED} or {@code DEFLATED:N}, {@code null} meaning
+     *              {@code KEEP}
+     *
+     * @return parsed compression
+     *
+     * @throws IllegalArgumentException if the value is invalid
+     */
+    static Compression parse(String group, String value) {
+      if (value == null || value.trim().equalsIgnoreCase("KEEP"))
+        return KEEP;
+      String[] parts = value.trim().toUpperCase().split(":", 2);
+      if (parts[0].equals("STORED") && parts.length == 1)
+        return new Compression(STORED, Deflater.NO_COMPRESSION);
+      if (parts[0].equals("DEFLATED")) {
+        if (parts.length == 1)
+          return new Compression(DEFLATED, Deflater.DEFAULT_COMPRESSION);
+        try {
+          int level = Integer.parseInt(parts[1].trim());
+          if (level >= Deflater.NO_COMPRESSION && level <= Deflater.BEST_COMPRESSION)
+            return new Compression(DEFLATED, level);
+        }
+        catch (NumberFormatException ignored) {}
+      }
+      throw new IllegalArgumentException(
+        "Invalid compression for " + group + ": '" + value + "', expected KEEP, STORED, DEFLATED or DEFLATED:0 to " +
+          "DEFLATED:9"
+      );
+    }
+
+    public boolean isKeep() {
+      return method < 0;
+    }
+
+    /**
+     * @return {@link java.util.zip.ZipEntry#STORED} or {@link java.util.zip.ZipEntry#DEFLATED}, the latter also for
+     * {@link #KEEP}
+     */
+    public int getMethod() {
+      return isKeep() ? DEFLATED : method;
+    }
+
+    /**
+     * @return deflater compression level
+     */
+    public int getLevel() {
+      return level;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o)
+        return true;
+      if (o == null || getClass() != o.getClass())
+        return false;
+      Compression that = (Compression) o;
+      return method == that.method && level == that.level;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(method, level);
+    }
+
+    @Override
+    public String toString() {
+      return isKeep() ? "KEEP" : method == STORED ? "STORED" : "DEFLATED:" + level;
+    }
+  }
+}
@@ -0,0 +1,23 @@
+package dev.aspectj.maven.agent_embedder;
+
+/**
+ * Handling of byte-identical duplicate entries in the main artifact after embedding java agents, see
+ * {@link EntryDeduplicator}
+ */
+public enum DeduplicationMode {
+  /**
+   * Do not look for duplicates
+   */
+  NONE,
+
+  /**
+   * Log duplicates and a summary of duplicate bytes, but do not change the embedding result
+   */
+  REPORT,
+
+  /**
+   * Like {@link #REPORT}, but also remove nested JARs whose entries all exist byte-identically in the main artifact's
+   * root after embedding
+   */
+  REMOVE
+}
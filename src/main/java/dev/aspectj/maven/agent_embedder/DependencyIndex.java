@@ -0,0 +1,57 @@
+package dev.aspectj.maven.agent_embedder;
+
+import org.apache.maven.artifact.Artifact;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Index of the module's JAR dependencies by Maven coordinates, built once up front
+ * <p>
+ * Serves lookups of the artifacts matching java agent infos in constant time, instead of filtering all dependencies
+ * once per agent. For each set of coordinates, the first matching dependency wins, like with
+ * {@link JavaAgentInfo#matchesArtifact(Artifact)}.
+ */
+public class DependencyIndex {
+  private static final String TYPE_JAR = "jar";
+
+  private final Map<String, Artifact> artifactsByCoordinates = new HashMap<>();
+
+  private DependencyIndex() {}
+
+  /**
+   * @param artifacts resolved dependencies
+   *
+   * @return index of all JAR dependencies
+   */
+  public static DependencyIndex of(Collection<Artifact> artifacts) {
+    DependencyIndex index = new DependencyIndex();
+    for (Artifact artifact : artifacts) {
+      if (TYPE_JAR.equals(artifact.getType())) {
+        index.artifactsByCoordinates.putIfAbsent(
+          getCoordinates(artifact.getGroupId(), artifact.getArtifactId(), artifact.getClassifier()), artifact
+        );
+      }
+    }
+    return index;
+  }
+
+  /**
+   * @param agent java agent info
+   *
+   * @return dependency matching the agent's coordinates or {@code null}, if none matches
+   */
+  public Artifact find(JavaAgentInfo agent) {
+    if (!TYPE_JAR.equals(agent.getType()))
+      return null;
+    return artifactsByCoordinates.get(getCoordinates(agent.getGroupId(), agent.getArtifactId(), agent.getClassifier()));
+  }
+
+  /**
+   * @return coordinates in {@code groupId:artifactId} or {@code groupId:artifactId:classifier} format
+   */
+  public static String getCoordinates(String groupId, String artifactId, String classifier) {
+    return groupId + ":" + artifactId + (classifier == null ? "" : ":" + classifier);
+  }
+}
@@ -0,0 +1,19 @@
+package dev.aspectj.maven.agent_embedder;
+
+/**
+ * Strategy used by {@link AgentEmbedderMojo} to write java agents into the main artifact
+ */
+public enum EmbeddingEngine {
+  /**
+   * Modify the main artifact in place via the JDK zip file system. Upon closing the file system, the JDK rewrites the
+   * whole archive.
+   */
+  ZIPFS,
+
+  /**
+   * Read the main artifact and each agent JAR exactly once, writing a new artifact in a single sequential pass, then
+   * replace the original artifact. Entries are copied in their compressed form, without inflating and deflating them.
+   * See {@link StreamingJarEmbedder}.
+   */
+  STREAMING
+}
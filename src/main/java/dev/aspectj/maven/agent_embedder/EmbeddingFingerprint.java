@@ -0,0 +1,105 @@
+package dev.aspectj.maven.agent_embedder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * SHA-256 fingerprint of all inputs influencing the outcome of an embedding run
+ * <p>
+ * Each input is added as a key/value pair in a fixed order, file contents are represented by their own SHA-256 hashes.
+ * Two runs with identical fingerprints produce equivalent results, which enables {@link AgentEmbedderMojo} to skip
+ * re-embedding java agents into an artifact which already contains them.
+ */
+public class EmbeddingFingerprint {
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final MessageDigest digest = newDigest();
+
+  /**
+   * Add an input value to the fingerprint
+   *
+   * @param key   input name, making sure that e.g. an agent argument cannot be confused with an agent class
+   * @param value input value, may be {@code null}
+   *
+   * @return this instance, for fluent use
+   */
+  public EmbeddingFingerprint add(String key, Object value) {
+    digest.update((key + '=' + value + '\n').getBytes(StandardCharsets.UTF_8));
+    return this;
+  }
+
+  /**
+   * Add the content hash of an input file to the fingerprint
+   *
+   * @param key  input name
+   * @param file input file, located on any file system
+   *
+   * @return this instance, for fluent use
+   */
+  public EmbeddingFingerprint addFile(String key, Path file) throws IOException {
+    return add(key, sha256(file));
+  }
+
+  /**
+   * @return hex representation of the fingerprint
+   */
+  public String getValue() {
+    try {
+      return toHex(((MessageDigest) digest.clone()).digest());
+    }
+    catch (CloneNotSupportedException e) {
+      throw new IllegalStateException("SHA-256 digest should be cloneable", e);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return getValue();
+  }
+
+  /**
+   * @param file file located on any file system
+   *
+   * @return hex representation of the file content's SHA-256 hash
+   */
+  public static String sha256(Path file) throws IOException {
+    MessageDigest fileDigest = newDigest();
+    byte[] buffer = new byte[BUFFER_SIZE];
+    try (InputStream input = Files.newInputStream(file)) {
+      int bytesRead;
+      while ((bytesRead = input.read(buffer)) != -1)
+        fileDigest.update(buffer, 0, bytesRead);
+    }
+    return toHex(fileDigest.digest());
+  }
+
+  /**
+   * @param content byte array
+   *
+   * @return hex representation of the content's SHA-256 hash
+   */
+  public static String sha256(byte[] content) {
+    return toHex(newDigest().digest(content));
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("Every JRE must support SHA-256", e);
+    }
+  }
+
+  private static String toHex(byte[] bytes) {
+    StringBuilder hex = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes)
+      hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    return hex.toString();
+  }
+}
@@ -0,0 +1,285 @@
+package dev.aspectj.maven.agent_embedder;
+
+import org.apache.maven.plugin.logging.Log;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Performance metrics of a single embedding run, collected per phase, in order to track build time regressions
+ * <p>
+ * Per phase, the report collects the time spent, the number of entries scanned, written and skipped, the number of
+ * bytes read and written as well as the peak of used heap samples. Entries written include entries deleted from the
+ * executable JAR. Bytes read are compressed sizes of source entries or sizes of source files, bytes written are
+ * uncompressed sizes of entries written or sizes of target files. If agents are loaded from nested JARs, agent JARs
+ * added as a whole count as unpacked entries.
+ * <p>
+ * Phases may be entered several times and from several threads, e.g. when agent JARs are read concurrently. Their
+ * times are summed up, i.e. for concurrent phases, the phase time may exceed the elapsed time. Used heap is sampled
+ * when entering and leaving a phase, so short-lived peaks inside a phase are missed. The JVM heap is shared, i.e. in
+ * parallel builds, the samples include memory used by concurrent executions.
+ * <p>
+ * If the {@link MemoryBudget memory budget} is active, the report also contains this execution's reservation and the
+ * peak of all reservations seen while it was held.
+ * <p>
+ * With engine {@link EmbeddingEngine#STREAMING}, entries are planned per phase, but written in a single pass. The time
+ * spent on actually writing them is thus attributed to {@link Phase#ARCHIVE_WRITE}.
+ */
+public class EmbeddingReport {
+  private static final double NANOS_PER_MILLI = 1e6;
+  private static final double BYTES_PER_MB = 1024 * 1024;
+
+  public enum Phase {
+    LAUNCHER_EMBEDDING("launcherEmbedding", "launcher"),
+    AGENT_RESOLUTION("agentResolution", "resolution"),
+    AGENT_CLASS_CONFIGURATION("agentClassConfiguration", "agent class"),
+    UNPACKING("unpacking", "unpacking"),
+    NESTED_JAR_REMOVAL("nestedJarRemoval", "nested JAR removal"),
+    MANIFEST_REWRITE("manifestRewrite", "manifest"),
+    ARCHIVE_WRITE("archiveWrite", "archive write");
+
+    private final String jsonName;
+    private final String displayName;
+
+    Phase(String jsonName, String displayName) {
+      this.jsonName = jsonName;
+      this.displayName = displayName;
+    }
+
+    public String getJsonName() {
+      return jsonName;
+    }
+
+    public String getDisplayName() {
+      return displayName;
+    }
+  }
+
+  /**
+   * Thread-safe metrics of a single phase
+   */
+  public static class PhaseMetrics {
+    private final LongAdder nanos = new LongAdder();
+    private final LongAdder entriesScanned = new LongAdder();
+    private final LongAdder entriesWritten = new LongAdder();
+    private final LongAdder entriesSkipped = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final AtomicLong peakHeap = new AtomicLong();
+
+    public void addNanos(long nanos) {
+      this.nanos.add(nanos);
+    }
+
+    public void addEntriesScanned(long entries) {
+      entriesScanned.add(entries);
+    }
+
+    public void addEntriesWritten(long entries) {
+      entriesWritten.add(entries);
+    }
+
+    public void addEntriesSkipped(long entries) {
+      entriesSkipped.add(entries);
+    }
+
+    public void addBytesRead(long bytes) {
+      bytesRead.add(bytes);
+    }
+
+    public void addBytesWritten(long bytes) {
+      bytesWritten.add(bytes);
+    }
+
+    public void updatePeakHeap(long bytes) {
+      peakHeap.accumulateAndGet(bytes, Math::max);
+    }
+
+    public long getNanos() {
+      return nanos.sum();
+    }
+
+    public long getEntriesScanned() {
+      return entriesScanned.sum();
+    }
+
+    public long getEntriesWritten() {
+      return entriesWritten.sum();
+    }
+
+    public long getEntriesSkipped() {
+      return entriesSkipped.sum();
+    }
+
+    public long getBytesRead() {
+      return bytesRead.sum();
+    }
+
+    public long getBytesWritten() {
+      return bytesWritten.sum();
+    }
+
+    public long getPeakHeap() {
+      return peakHeap.get();
+    }
+  }
+
+  /**
+   * Measures a single execution of a phase. Use it in a try-with-resources statement.
+   */
+  public class Timer implements AutoCloseable {
+    private final PhaseMetrics metrics;
+    private final long startNanos = System.nanoTime();
+
+    private Timer(PhaseMetrics metrics) {
+      this.metrics = metrics;
+      metrics.updatePeakHeap(getUsedHeap());
+    }
+
+    public PhaseMetrics getMetrics() {
+      return metrics;
+    }
+
+    @Override
+    public void close() {
+      metrics.addNanos(System.nanoTime() - startNanos);
+      metrics.updatePeakHeap(getUsedHeap());
+    }
+  }
+
+  private final Map<Phase, PhaseMetrics> phases = new EnumMap<>(Phase.class);
+  private final long startNanos = System.nanoTime();
+  private long totalNanos;
+  private String engine;
+  private int agentCount;
+  private MemoryBudget.Reservation memoryBudget;
+
+  public EmbeddingReport() {
+    for (Phase phase : Phase.values())
+      phases.put(phase, new PhaseMetrics());
+  }
+
+  /**
+   * @param phase phase to be entered
+   *
+   * @return timer to be closed when leaving the phase
+   */
+  public Timer start(Phase phase) {
+    return new Timer(phases.get(phase));
+  }
+
+  public PhaseMetrics get(Phase phase) {
+    return phases.get(phase);
+  }
+
+  /**
+   * Complete the report after embedding
+   *
+   * @param engine     embedding engine actually used
+   * @param agentCount number of embedded agents
+   */
+  public void finish(EmbeddingEngine engine, int agentCount) {
+    this.totalNanos = System.nanoTime() - startNanos;
+    this.engine = engine.name();
+    this.agentCount = agentCount;
+  }
+
+  /**
+   * @param reservation memory budget reservation of this execution, {@code null} if the budget is disabled
+   */
+  public void setMemoryBudget(MemoryBudget.Reservation reservation) {
+    this.memoryBudget = reservation;
+  }
+
+  public long getTotalNanos() {
+    return totalNanos;
+  }
+
+  /**
+   * @return currently used heap of the whole JVM. Unlike resetting and reading memory pool peaks, sampling does not
+   * interfere with concurrent executions.
+   */
+  private static long getUsedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  public String toJson() {
+    StringBuilder json = new StringBuilder("{\n")
+      .append("  \"engine\": \"").append(engine).append("\",\n")
+      .append("  \"agentCount\": ").append(agentCount).append(",\n")
+      .append("  \"totalNanos\": ").append(totalNanos).append(",\n")
+      .append("  \"memoryBudget\": ");
+    if (memoryBudget == null)
+      json.append("null");
+    else {
+      json.append("{\"limitBytes\": ").append(memoryBudget.getLimit())
+        .append(", \"reservedBytes\": ").append(memoryBudget.getBytes())
+        .append(", \"peakReservedBytes\": ").append(memoryBudget.getPeakBytes())
+        .append(", \"spilled\": ").append(memoryBudget.isSpill())
+        .append(", \"waitNanos\": ").append(memoryBudget.getWaitNanos())
+        .append('}');
+    }
+    json.append(",\n  \"phases\": {");
+    boolean first = true;
+    for (Map.Entry<Phase, PhaseMetrics> phase : phases.entrySet()) {
+      PhaseMetrics metrics = phase.getValue();
+      json.append(first ? "\n" : ",\n")
+        .append("    \"").append(phase.getKey().getJsonName()).append("\": {")
+        .append("\"nanos\": ").append(metrics.getNanos())
+        .append(", \"entriesScanned\": ").append(metrics.getEntriesScanned())
+        .append(", \"entriesWritten\": ").append(metrics.getEntriesWritten())
+        .append(", \"entriesSkipped\": ").append(metrics.getEntriesSkipped())
+        .append(", \"bytesRead\": ").append(metrics.getBytesRead())
+        .append(", \"bytesWritten\": ").append(metrics.getBytesWritten())
+        .append(", \"peakHeapBytes\": ").append(metrics.getPeakHeap())
+        .append('}');
+      first = false;
+    }
+    return json.append("\n  }\n}\n").toString();
+  }
+
+  public void write(Path reportPath) throws IOException {
+    Path parentPath = reportPath.toAbsolutePath().getParent();
+    if (parentPath != null)
+      Files.createDirectories(parentPath);
+    Files.write(reportPath, toJson().getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Log a one-line summary with the time spent per phase, the number of unpacked entries and the highest used heap
+   * sample
+   */
+  public void logSummary(Log log) {
+    StringBuilder summary = new StringBuilder("Embedding took ").append(formatMillis(totalNanos));
+    long peakHeap = 0;
+    for (Map.Entry<Phase, PhaseMetrics> phase : phases.entrySet()) {
+      PhaseMetrics metrics = phase.getValue();
+      summary.append(", ").append(phase.getKey().getDisplayName()).append(' ').append(formatMillis(metrics.getNanos()));
+      if (phase.getKey() == Phase.UNPACKING)
+        summary.append(" (").append(metrics.getEntriesWritten()).append(" entries)");
+      peakHeap = Math.max(peakHeap, metrics.getPeakHeap());
+    }
+    summary.append(String.format(Locale.ROOT, ", peak heap %.0f MB", peakHeap / BYTES_PER_MB));
+    if (memoryBudget != null) {
+      summary.append(", memory budget peak ").append(MemoryBudget.formatMB(memoryBudget.getPeakBytes()))
+        .append(" of ").append(MemoryBudget.formatMB(memoryBudget.getLimit()));
+      if (memoryBudget.isSpill())
+        summary.append(", spilled to temporary files");
+      if (memoryBudget.getWaitNanos() > 0)
+        summary.append(", waited ").append(formatMillis(memoryBudget.getWaitNanos()));
+    }
+    log.info(summary.toString());
+  }
+
+  private static String formatMillis(long nanos) {
+    return String.format(Locale.ROOT, "%.0f ms", nanos / NANOS_PER_MILLI);
+  }
+}
@@ -0,0 +1,193 @@
+package dev.aspectj.maven.agent_embedder;
+
+import dev.aspectj.maven.tools.ZipCentralDirectory;
+import org.apache.maven.plugin.logging.Log;
+
+import java.io.IOException;
+import java.util.*;
+
+import static dev.aspectj.maven.agent_embedder.AgentEmbedderMojo.MANIFEST_PATH;
+
+/**
+ * Finds byte-identical duplicate entries across the main artifact, the agent JARs to be embedded and the nested JARs
+ * inside the main artifact
+ * <p>
+ * Candidates are found cheaply by comparing entry names, CRC-32 checksums and sizes from the central directories. Each
+ * candidate is then confirmed by comparing SHA-256 hashes of the uncompressed contents. The following kinds of
+ * duplicates are reported:
+ * <ul>
+ *   <li>
+ *     Agent entries already existing in the main artifact or in a preceding agent JAR. They are never embedded
+ *     anyway. But if their contents differ, the agent gets to see a different class or resource than the one it was
+ *     built with, which is worth a warning.
+ *   </li>
+ *   <li>
+ *     Nested JARs, e.g. in <i>BOOT-INF/lib</i>, containing entries which also exist in the main artifact's root after
+ *     embedding, e.g. a library also shaded into an agent JAR or a nested agent JAR which is not removed. Because the
+ *     classloaders of executable JARs like Spring Boot's delegate to the JVM application classloader first, which
+ *     loads from the main artifact's root, such nested JAR entries are dead weight. If all entries of a nested JAR are
+ *     duplicates, in {@link DeduplicationMode#REMOVE} mode the nested JAR is removed.
+ *   </li>
+ * </ul>
+ */
+public class EntryDeduplicator {
+  private static final String META_INF = "META-INF/";
+
+  private final Log log;
+  private final DeduplicationMode mode;
+
+  public EntryDeduplicator(Log log, DeduplicationMode mode) {
+    this.log = log;
+    this.mode = mode;
+  }
+
+  /**
+   * @param artifact          main artifact before embedding
+   * @param agentJars         agent JARs to be embedded in this order
+   * @param removedEntryNames names of main artifact entries to be removed anyway, e.g. nested agent JARs
+   *
+   * @return names of nested JARs to be removed, always empty unless in {@link DeduplicationMode#REMOVE} mode
+   */
+  public Set<String> deduplicate(ZipCentralDirectory artifact, List<AgentJar> agentJars, Set<String> removedEntryNames)
+    throws IOException
+  {
+    Set<String> removableJarNames = new LinkedHashSet<>();
+    if (mode == DeduplicationMode.NONE)
+      return removableJarNames;
+
+    // Root entries after embedding, i.e. artifact entries plus agent entries not yet present, keyed by name
+    Map<String, Source> rootEntries = new HashMap<>();
+    List<String> nestedJarNames = new ArrayList<>();
+    for (ZipCentralDirectory.Entry entry : artifact.getEntries()) {
+      if (entry.isDirectory() || removedEntryNames.contains(entry.getName()))
+        continue;
+      rootEntries.putIfAbsent(entry.getName(), new Source(artifact, entry, "main artifact", null));
+      if (entry.getName().endsWith(".jar"))
+        nestedJarNames.add(entry.getName());
+    }
+
+    long duplicateBytes = 0;
+    int identicalAgentEntries = 0;
+    List<String> conflictingAgentEntries = new ArrayList<>();
+    for (AgentJar agentJar : agentJars) {
+      for (ZipCentralDirectory.Entry entry : agentJar.getEntries()) {
+        if (entry.isDirectory() || entry.getName().equals(MANIFEST_PATH))
+          continue;
+        Source agentSource = new Source(agentJar.getZip(), entry, agentJar.getLocation(), agentJar.getMetadata());
+        Source existingSource = rootEntries.putIfAbsent(entry.getName(), agentSource);
+        if (existingSource == null)
+          continue;
+        if (isIdentical(existingSource, agentSource)) {
+          identicalAgentEntries++;
+          duplicateBytes += entry.getSize();
+        }
+        else if (!entry.getName().startsWith(META_INF)) {
+          log.debug(
+            "Agent entry " + entry.getName() + " from " + agentJar.getLocation() + " differs from existing entry in " +
+              existingSource.location + ", not embedding it"
+          );
+          conflictingAgentEntries.add(entry.getName());
+        }
+      }
+    }
+    if (identicalAgentEntries > 0)
+      log.info("Skipped " + identicalAgentEntries + " agent entries already existing with identical content");
+    if (!conflictingAgentEntries.isEmpty()) {
+      log.warn(
+        "Skipped " + conflictingAgentEntries.size() + " agent entries already existing with different content, e.g. " +
+          conflictingAgentEntries.get(0) + ". Agents might not work as expected. Use debug log for details."
+      );
+    }
+
+    long savedBytes = 0;
+    for (String nestedJarName : nestedJarNames) {
+      ZipCentralDirectory.Entry nestedJarEntry = artifact.getEntry(nestedJarName);
+      ZipCentralDirectory nestedJar;
+      try {
+        nestedJar = ZipCentralDirectory.of(artifact.readAllBytes(nestedJarEntry));
+      }
+      catch (IOException e) {
+        log.debug("Cannot read nested JAR " + nestedJarName + ": " + e);
+        continue;
+      }
+      int entryCount = 0;
+      int duplicateEntryCount = 0;
+      long nestedDuplicateBytes = 0;
+      for (ZipCentralDirectory.Entry entry : nestedJar.getEntries()) {
+        if (isIgnored(entry))
+          continue;
+        entryCount++;
+        Source rootSource = rootEntries.get(entry.getName());
+        if (rootSource != null && isIdentical(rootSource, new Source(nestedJar, entry, nestedJarName, null))) {
+          duplicateEntryCount++;
+          nestedDuplicateBytes += entry.getSize();
+        }
+      }
+      if (duplicateEntryCount == 0)
+        continue;
+      duplicateBytes += nestedDuplicateBytes;
+      String message = "Nested JAR " + nestedJarName + ": " + duplicateEntryCount + " of " + entryCount +
+        " entries (" + nestedDuplicateBytes + " bytes) also exist in the root with identical content";
+      if (duplicateEntryCount < entryCount)
+        log.info(message);
+      else if (mode == DeduplicationMode.REMOVE) {
+        log.info(message + ", removing nested JAR");
+        removableJarNames.add(nestedJarName);
+        savedBytes += nestedJarEntry.getCompressedSize();
+      }
+      else
+        log.info(message + ", nested JAR could be removed");
+    }
+
+    log.info("Deduplication: found " + duplicateBytes + " bytes of duplicate content, saved " + savedBytes + " bytes");
+    return removableJarNames;
+  }
+
+  /**
+   * Nested JAR entries which need not exist in the root in order to consider the nested JAR redundant
+   */
+  private static boolean isIgnored(ZipCentralDirectory.Entry entry) {
+    if (entry.isDirectory())
+      return true;
+    String name = entry.getName();
+    if (!name.startsWith(META_INF) || name.startsWith(META_INF + "services/") || name.startsWith(META_INF + "versions/"))
+      return false;
+    // Manifest, Maven metadata, signatures, licenses, notices, indexes
+    return name.indexOf('/', META_INF.length()) < 0 && !name.endsWith(".class") || name.startsWith(META_INF + "maven/");
+  }
+
+  private static boolean isIdentical(Source source1, Source source2) throws IOException {
+    if (source1.entry.getCrc() != source2.entry.getCrc() || source1.entry.getSize() != source2.entry.getSize())
+      return false;
+    return source1.getHash().equals(source2.getHash());
+  }
+
+  private static class Source {
+    private final ZipCentralDirectory zip;
+    private final ZipCentralDirectory.Entry entry;
+    private final String location;
+    private final AgentJarMetadata metadata;
+    private String hash;
+
+    /**
+     * @param metadata agent JAR metadata caching entry hashes, or {@code null} for entries of other JARs
+     */
+    Source(ZipCentralDirectory zip, ZipCentralDirectory.Entry entry, String location, AgentJarMetadata metadata) {
+      this.zip = zip;
+      this.entry = entry;
+      this.location = location;
+      this.metadata = metadata;
+    }
+
+    String getHash() throws IOException {
+      if (hash == null && metadata != null)
+        hash = metadata.getEntryHash(entry.getName());
+      if (hash == null) {
+        hash = EmbeddingFingerprint.sha256(zip.readAllBytes(entry));
+        if (metadata != null)
+          metadata.putEntryHash(entry.getName(), hash);
+      }
+      return hash;
+    }
+  }
+}
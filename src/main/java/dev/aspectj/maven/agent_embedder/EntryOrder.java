@@ -0,0 +1,17 @@
+package dev.aspectj.maven.agent_embedder;
+
+/**
+ * Order of the entries in the main artifact after embedding java agents
+ */
+public enum EntryOrder {
+  /**
+   * Keep the main artifact's entries in their original order, adding new entries behind them
+   */
+  ORIGINAL,
+
+  /**
+   * Write the manifest and the classes needed during JVM startup first, in the order they are loaded, see
+   * {@link StartupEntryOrder}. Requires the {@link EmbeddingEngine#STREAMING} engine.
+   */
+  STARTUP
+}
@@ -4,7 +4,11 @@ import org.apache.maven.artifact.Artifact;
 
 import java.nio.file.FileSystem;
 import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Objects;
+import java.util.stream.Collectors;
 
 public class JavaAgentInfo {
   private String groupId;
@@ -13,6 +17,9 @@ public class JavaAgentInfo {
   private String agentClass;
   private String agentArgs;
   private String agentPath;
+  private boolean async;
+  private int startupGroup;
+  private String lazyTrigger;
 
   @SuppressWarnings("unused")
   public JavaAgentInfo() {}
@@ -65,6 +72,65 @@ public class JavaAgentInfo {
     return agentPath;
   }
 
+  public boolean isAsync() {
+    return async;
+  }
+
+  /**
+   * @param async start the agent on a background thread, concurrently with other asynchronous agents of the same
+   *              startup group. Only use this for agents whose {@code premain} method merely performs setup work
+   *              which no other agent and not the application's main class depend on.
+   */
+  public void setAsync(boolean async) {
+    this.async = async;
+  }
+
+  public int getStartupGroup() {
+    return startupGroup;
+  }
+
+  /**
+   * @param startupGroup agents are started group by group in ascending group number order, and in configuration order
+   *                     within each group. All agents of a group, including asynchronous ones, have finished starting
+   *                     before the next group starts. Therefore, an agent depending on another one must be in a higher
+   *                     group than the other agent, if that one is asynchronous.
+   */
+  public void setStartupGroup(int startupGroup) {
+    this.startupGroup = startupGroup;
+  }
+
+  public String getLazyTrigger() {
+    return lazyTrigger;
+  }
+
+  /**
+   * @param lazyTrigger comma-separated fully qualified class name prefixes, e.g. {@code java.sql.,org.postgresql.}.
+   *                    If set, the agent is not started before the application's main class, but when the first class
+   *                    matching one of the prefixes is loaded.
+   */
+  public void setLazyTrigger(String lazyTrigger) {
+    this.lazyTrigger = lazyTrigger;
+  }
+
+  /**
+   * @return {@code true}, if the agent is started lazily, see {@link #setLazyTrigger(String)}
+   */
+  public boolean isLazy() {
+    return !getLazyTriggerPrefixes().isEmpty();
+  }
+
+  /**
+   * @return trimmed, non-empty class name prefixes from {@link #getLazyTrigger()}
+   */
+  public List<String> getLazyTriggerPrefixes() {
+    if (lazyTrigger == null)
+      return Collections.emptyList();
+    return Arrays.stream(lazyTrigger.split(","))
+      .map(String::trim)
+      .filter(prefix -> !prefix.isEmpty())
+      .collect(Collectors.toList());
+  }
+
   /**
    * Checks if the Java agent matches a given Maven artifact
    *
@@ -92,12 +158,17 @@ public class JavaAgentInfo {
       Objects.equals(classifier, javaAgent.classifier) &&
       Objects.equals(agentClass, javaAgent.agentClass) &&
       Objects.equals(agentArgs, javaAgent.agentArgs) &&
-      Objects.equals(agentPath, javaAgent.agentPath);
+      Objects.equals(agentPath, javaAgent.agentPath) &&
+      async == javaAgent.async &&
+      startupGroup == javaAgent.startupGroup &&
+      Objects.equals(lazyTrigger, javaAgent.lazyTrigger);
   }
 
   @Override
   public int hashCode() {
-    return Objects.hash(groupId, artifactId, classifier, agentClass, agentArgs, agentPath);
+    return Objects.hash(
+      groupId, artifactId, classifier, agentClass, agentArgs, agentPath, async, startupGroup, lazyTrigger
+    );
   }
 
   @Override
@@ -109,6 +180,9 @@ public class JavaAgentInfo {
       ", agentClass=" + agentClass +
       ", agentArgs=" + agentArgs +
       ", agentPath=" + agentPath +
+      ", async=" + async +
+      ", startupGroup=" + startupGroup +
+      ", lazyTrigger=" + lazyTrigger +
       ')';
   }
 }
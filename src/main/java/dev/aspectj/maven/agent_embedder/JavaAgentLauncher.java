@@ -1,33 +1,1071 @@
 package dev.aspectj.maven.agent_embedder;
 
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
+import java.lang.annotation.Annotation;
+import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.Instrumentation;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.CodeSource;
+import java.security.ProtectionDomain;
+import java.security.cert.Certificate;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.jar.Attributes;
 import java.util.jar.Manifest;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
+/**
+ * Launcher agent embedded into executable JARs, starting all embedded java agents
+ * <p>
+ * The launcher measures class loading and {@code premain} duration for each agent. The following system properties
+ * control how the results are reported:
+ * <ul>
+ *   <li>
+ *     {@code agent-embedder.log}: {@code off}, {@code info} (default) or {@code debug}. On level {@code info}, each
+ *     agent start is logged to the console, on level {@code debug} also its startup timing.
+ *   </li>
+ *   <li>
+ *     {@code agent-embedder.summary}: If {@code true}, print a single machine-readable JSON summary line, prefixed by
+ *     {@value #SUMMARY_PREFIX}, after all agents have been started.
+ *   </li>
+ *   <li>
+ *     {@code agent-embedder.jmx}: If {@code true}, register an {@link AgentStartupMXBean} named
+ *     {@value #MBEAN_NAME}. Off by default, because initialising JMX during startup takes time.
+ *   </li>
+ *   <li>
+ *     {@code agent-embedder.jfr}: If {@code true} and Java Flight Recorder is available, emit one
+ *     {@code dev.aspectj.AgentStartup} event per agent.
+ *   </li>
+ * </ul>
+ * <p>
+ * Agents with a nested agent JAR recorded in the manifest are loaded from there via a {@link NestedJarClassLoader},
+ * all other agents from the executable JAR's root. Agents with a lazy trigger recorded in the manifest are not started
+ * right away, but by a {@link LazyAgentTrigger} when the first matching class is loaded.
+ * <p>
+ * This class is embedded into executable JARs together with its member classes. It must not use anonymous or local
+ * classes, because only member classes are embedded.
+ */
 public class JavaAgentLauncher {
   public static final String AGENT_ATTRIBUTES_GROUP = "dev/aspectj/agent-embedder";
   public static final String AGENT_CLASS = "Agent-Class-";
   public static final String AGENT_ARGS = "Agent-Args-";
+  public static final String AGENT_ASYNC = "Agent-Async-";
+  public static final String AGENT_GROUP = "Agent-Group-";
+  public static final String AGENT_JAR = "Agent-Jar-";
+  public static final String AGENT_LAZY = "Agent-Lazy-";
+
+  public static final String PROPERTY_LOG = "agent-embedder.log";
+  public static final String PROPERTY_SUMMARY = "agent-embedder.summary";
+  public static final String PROPERTY_JMX = "agent-embedder.jmx";
+  public static final String PROPERTY_JFR = "agent-embedder.jfr";
+  public static final String SUMMARY_PREFIX = "agent-embedder-startup: ";
+  public static final String MBEAN_NAME = "dev.aspectj:type=AgentEmbedder,name=AgentStartup";
+
+  private static final int LOG_LEVEL_OFF = 0;
+  private static final int LOG_LEVEL_INFO = 1;
+  private static final int LOG_LEVEL_DEBUG = 2;
+
+  private static final List<AgentStartup> agentStartups = new ArrayList<>();
+  private static long launcherStartNanos;
 
   public static void premain(String ignoredArgs, Instrumentation inst) throws Exception {
+    launcherStarting();
     Manifest manifest = new Manifest();
     try (InputStream input = JavaAgentLauncher.class.getClassLoader().getResourceAsStream("META-INF/MANIFEST.MF")) {
       manifest.read(input);
     }
-    Attributes attributes = manifest.getAttributes(AGENT_ATTRIBUTES_GROUP);
+    startAgents(manifest.getAttributes(AGENT_ATTRIBUTES_GROUP), inst);
+    agentsStarted();
+  }
+
+  public static void agentmain(String agentArgs, Instrumentation inst) throws Exception {
+    premain(agentArgs, inst);
+  }
+
+  static void startAgents(Attributes attributes, Instrumentation inst) throws Exception {
     int agentCount = Integer.parseInt(attributes.getValue("Agent-Count"));
+
+    // Group agents by startup group, keeping configuration order inside each group
+    SortedMap<Integer, List<Integer>> startupGroups = new TreeMap<>();
+    int asyncAgentCount = 0;
     for (int i = 1; i <= agentCount; i++) {
-      String agentClass = attributes.getValue(AGENT_CLASS + i);
-      String agentArgs = attributes.getValue(AGENT_ARGS + i);
+      String startupGroup = attributes.getValue(AGENT_GROUP + i);
+      startupGroups
+        .computeIfAbsent(startupGroup == null ? 0 : Integer.parseInt(startupGroup), group -> new ArrayList<>())
+        .add(i);
+      if (Boolean.parseBoolean(attributes.getValue(AGENT_ASYNC + i)) && attributes.getValue(AGENT_LAZY + i) == null)
+        asyncAgentCount++;
+    }
+
+    ExecutorService executor = asyncAgentCount == 0 ? null : newExecutor(asyncAgentCount);
+    try {
+      for (List<Integer> startupGroup : startupGroups.values()) {
+        List<Future<Void>> asyncAgentStarts = new ArrayList<>();
+        for (int i : startupGroup) {
+          String agentClass = attributes.getValue(AGENT_CLASS + i);
+          String agentArgs = attributes.getValue(AGENT_ARGS + i);
+          String agentJar = attributes.getValue(AGENT_JAR + i);
+          String lazyTrigger = attributes.getValue(AGENT_LAZY + i);
+          if (lazyTrigger != null)
+            LazyAgentTrigger.register(agentClass, agentArgs, agentJar, lazyTrigger, inst);
+          else if (executor != null && Boolean.parseBoolean(attributes.getValue(AGENT_ASYNC + i))) {
+            asyncAgentStarts.add(executor.submit(() -> {
+              startAgent(agentClass, agentArgs, agentJar, inst);
+              return null;
+            }));
+          }
+          else
+            startAgent(agentClass, agentArgs, agentJar, inst);
+        }
+        // Join point: The next group, and finally the main class, only start after all agents of this group started
+        for (Future<Void> asyncAgentStart : asyncAgentStarts)
+          awaitAgentStart(asyncAgentStart);
+      }
+    }
+    finally {
+      if (executor != null)
+        executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Load an agent class and call its {@code premain} method via reflection, recording startup timing
+   */
+  public static void startAgent(String agentClass, String agentArgs, Instrumentation inst) throws Exception {
+    startAgent(agentClass, agentArgs, null, inst);
+  }
+
+  /**
+   * Load an agent class, either from the executable JAR's root or from a nested agent JAR, and call its
+   * {@code premain} method via reflection, recording startup timing. Class loading time includes opening the nested
+   * agent JAR.
+   *
+   * @param agentJar name of the nested agent JAR inside the executable JAR or {@code null}, if the agent was unpacked
+   */
+  public static void startAgent(String agentClass, String agentArgs, String agentJar, Instrumentation inst)
+    throws Exception
+  {
+    long startNanos = agentStarting(agentClass, agentArgs);
+    Class<?> agentType = agentJar == null
+      ? Class.forName(agentClass)
+      : Class.forName(agentClass, true, NestedJarClassLoader.of(agentJar));
+    Method premain = agentType.getMethod("premain", String.class, Instrumentation.class);
+    long classLoadedNanos = System.nanoTime();
+    premain.invoke(null, agentArgs, inst);
+    recordAgentStartup(agentClass, startNanos, classLoadedNanos, System.nanoTime());
+  }
+
+  /**
+   * Hook called by the generated launcher agent before starting all agents
+   */
+  public static void launcherStarting() {
+    synchronized (agentStartups) {
+      agentStartups.clear();
+      launcherStartNanos = System.nanoTime();
+    }
+  }
+
+  /**
+   * Hook called before starting an agent, also by the generated launcher agent
+   *
+   * @return start time in nanoseconds
+   */
+  public static long agentStarting(String agentClass, String agentArgs) {
+    if (getLogLevel() >= LOG_LEVEL_INFO)
       System.out.printf("Starting agent %s with arguments %s%n", agentClass, agentArgs);
-      Class.forName(agentClass)
-        .getMethod("premain", String.class, Instrumentation.class)
-        .invoke(null, agentArgs, inst);
+    return System.nanoTime();
+  }
+
+  /**
+   * Hook called by the generated launcher agent after an agent has been started. Class loading time cannot be
+   * distinguished from {@code premain} duration there, because the JVM loads agent classes implicitly.
+   */
+  public static void agentStarted(String agentClass, long startNanos) {
+    recordAgentStartup(agentClass, startNanos, -1, System.nanoTime());
+  }
+
+  /**
+   * Hook called after all agents have been started, also by the generated launcher agent. Reports startup timing
+   * as configured by system properties.
+   */
+  public static void agentsStarted() {
+    List<AgentStartup> startups;
+    long totalNanos;
+    synchronized (agentStartups) {
+      startups = new ArrayList<>(agentStartups);
+      totalNanos = System.nanoTime() - launcherStartNanos;
     }
+    if (Boolean.getBoolean(PROPERTY_SUMMARY))
+      System.out.println(SUMMARY_PREFIX + toJson(startups, totalNanos));
+    if (Boolean.getBoolean(PROPERTY_JMX))
+      registerMBean(new AgentStartupStatistics(startups, totalNanos));
   }
 
-  public static void agentmain(String agentArgs, Instrumentation inst) throws Exception {
-    premain(agentArgs, inst);
+  private static int getLogLevel() {
+    String logLevel = System.getProperty(PROPERTY_LOG, "info");
+    if (logLevel.equalsIgnoreCase("off"))
+      return LOG_LEVEL_OFF;
+    if (logLevel.equalsIgnoreCase("debug"))
+      return LOG_LEVEL_DEBUG;
+    return LOG_LEVEL_INFO;
+  }
+
+  private static void recordAgentStartup(String agentClass, long startNanos, long classLoadedNanos, long endNanos) {
+    AgentStartup agentStartup = new AgentStartup(
+      agentClass,
+      Thread.currentThread().getName(),
+      classLoadedNanos < 0 ? -1 : classLoadedNanos - startNanos,
+      endNanos - (classLoadedNanos < 0 ? startNanos : classLoadedNanos)
+    );
+    synchronized (agentStartups) {
+      agentStartups.add(agentStartup);
+    }
+    if (getLogLevel() >= LOG_LEVEL_DEBUG) {
+      if (agentStartup.classLoadNanos < 0)
+        System.out.printf("Started agent %s in %.3f ms%n", agentClass, (endNanos - startNanos) / 1e6);
+      else
+        System.out.printf(
+          "Started agent %s in %.3f ms (class loading %.3f ms, premain %.3f ms)%n", agentClass,
+          (endNanos - startNanos) / 1e6, agentStartup.classLoadNanos / 1e6, agentStartup.premainNanos / 1e6
+        );
+    }
+    if (Boolean.getBoolean(PROPERTY_JFR))
+      JfrEvents.commit(agentStartup);
+  }
+
+  static String toJson(List<AgentStartup> startups, long totalNanos) {
+    StringBuilder json = new StringBuilder("{\"totalNanos\":").append(totalNanos).append(",\"agents\":[");
+    for (int i = 0; i < startups.size(); i++) {
+      AgentStartup startup = startups.get(i);
+      if (i > 0)
+        json.append(',');
+      json
+        .append("{\"agentClass\":\"").append(escapeJson(startup.agentClass))
+        .append("\",\"thread\":\"").append(escapeJson(startup.threadName))
+        .append("\",\"classLoadNanos\":").append(startup.classLoadNanos)
+        .append(",\"premainNanos\":").append(startup.premainNanos)
+        .append('}');
+    }
+    return json.append("]}").toString();
+  }
+
+  private static String escapeJson(String value) {
+    StringBuilder escaped = new StringBuilder(value.length());
+    for (char c : value.toCharArray()) {
+      if (c == '"' || c == '\\')
+        escaped.append('\\').append(c);
+      else if (c < 0x20)
+        escaped.append(String.format("\\u%04x", (int) c));
+      else
+        escaped.append(c);
+    }
+    return escaped.toString();
+  }
+
+  private static void registerMBean(AgentStartupStatistics statistics) {
+    try {
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      ObjectName objectName = new ObjectName(MBEAN_NAME);
+      if (mBeanServer.isRegistered(objectName))
+        mBeanServer.unregisterMBean(objectName);
+      mBeanServer.registerMBean(statistics, objectName);
+    }
+    catch (Exception e) {
+      System.err.println("Cannot register agent startup MBean: " + e);
+    }
+  }
+
+  private static ExecutorService newExecutor(int asyncAgentCount) {
+    AtomicInteger threadCounter = new AtomicInteger();
+    int threadCount = Math.min(asyncAgentCount, Runtime.getRuntime().availableProcessors());
+    return Executors.newFixedThreadPool(threadCount, runnable -> {
+      Thread thread = new Thread(runnable, "agent-embedder-launcher-" + threadCounter.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  private static void awaitAgentStart(Future<Void> agentStart) throws Exception {
+    try {
+      agentStart.get();
+    }
+    catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof Exception)
+        throw (Exception) cause;
+      if (cause instanceof Error)
+        throw (Error) cause;
+      throw e;
+    }
+  }
+
+  /**
+   * Defers starting an agent until the first class matching one of its trigger prefixes is loaded
+   * <p>
+   * The trigger is a class file transformer which only claims the agent start when it sees the first matching class.
+   * The agent is then started on a separate thread, because running its {@code premain} method inside the JVM's
+   * class definition callback fails as soon as the agent touches the triggering class, and agent code taking locks
+   * could deadlock against class loading locks held by the loading thread. The starting thread waits for the
+   * triggering class to be defined, starts the agent and removes the trigger. Finally, it retransforms all loaded
+   * classes matching the trigger prefixes, including the triggering class, so the agent also sees classes loaded
+   * before or while it was starting.
+   * <p>
+   * Retransformation only passes classes to retransformation capable transformers. Therefore, the agent gets an
+   * {@link Instrumentation} proxy registering all its transformers as retransformation capable. Retransformation
+   * requires {@code Can-Retransform-Classes: true} in the executable JAR's manifest, which the plugin adds for lazy
+   * agents. Methods of matching classes already running while retransforming keep their old code until they are
+   * invoked again.
+   */
+  public static class LazyAgentTrigger implements ClassFileTransformer {
+    private static final AtomicInteger threadCounter = new AtomicInteger();
+
+    private final String agentClass;
+    private final String agentArgs;
+    private final String agentJar;
+    private final String[] prefixes;
+    private final Instrumentation inst;
+    private final AtomicBoolean triggered = new AtomicBoolean();
+    private final CountDownLatch started = new CountDownLatch(1);
+
+    /**
+     * @param agentClass  agent class
+     * @param agentArgs   agent arguments
+     * @param agentJar    name of the nested agent JAR inside the executable JAR or {@code null}, if the agent was
+     *                    unpacked
+     * @param lazyTrigger comma-separated fully qualified class name prefixes
+     * @param inst        instrumentation instance
+     */
+    public static LazyAgentTrigger register(
+      String agentClass, String agentArgs, String agentJar, String lazyTrigger, Instrumentation inst
+    )
+    {
+      LazyAgentTrigger trigger = new LazyAgentTrigger(agentClass, agentArgs, agentJar, lazyTrigger, inst);
+      if (getLogLevel() >= LOG_LEVEL_INFO)
+        System.out.printf("Deferring agent %s until loading a class matching %s%n", agentClass, lazyTrigger);
+      if (!inst.isRetransformClassesSupported())
+        System.err.println(
+          "Cannot retransform classes, lazy agent " + agentClass + " will miss classes loaded before it started"
+        );
+      inst.addTransformer(trigger);
+      return trigger;
+    }
+
+    LazyAgentTrigger(String agentClass, String agentArgs, String agentJar, String lazyTrigger, Instrumentation inst) {
+      this.agentClass = agentClass;
+      this.agentArgs = agentArgs;
+      this.agentJar = agentJar;
+      this.inst = inst;
+      List<String> prefixList = new ArrayList<>();
+      for (String prefix : lazyTrigger.split(",")) {
+        if (!prefix.trim().isEmpty())
+          prefixList.add(prefix.trim());
+      }
+      prefixes = prefixList.toArray(new String[0]);
+    }
+
+    public boolean isTriggered() {
+      return triggered.get();
+    }
+
+    /**
+     * Wait for the agent start to finish, successfully or not
+     *
+     * @return {@code true}, if the agent start finished before the timeout elapsed
+     */
+    public boolean awaitStart(long timeout, TimeUnit unit) throws InterruptedException {
+      return started.await(timeout, unit);
+    }
+
+    @Override
+    public byte[] transform(
+      ClassLoader loader, String className, Class<?> classBeingRedefined, ProtectionDomain protectionDomain,
+      byte[] classfileBuffer
+    )
+    {
+      if (triggered.get() || className == null || classBeingRedefined != null)
+        return null;
+      // Transformers get internal class names, e.g. 'java/sql/Driver'
+      String triggerClassName = className.replace('/', '.');
+      if (!matches(triggerClassName))
+        return null;
+      // Only the first matching class starts the agent, and never inside this callback
+      if (triggered.compareAndSet(false, true)) {
+        Thread starter = new Thread(
+          () -> start(triggerClassName, loader),
+          "agent-embedder-lazy-" + threadCounter.incrementAndGet()
+        );
+        starter.setDaemon(true);
+        starter.start();
+      }
+      return null;
+    }
+
+    private void start(String triggerClassName, ClassLoader triggerClassLoader) {
+      try {
+        try {
+          awaitDefinition(triggerClassName, triggerClassLoader);
+          Instrumentation retransformingInst = (Instrumentation) Proxy.newProxyInstance(
+            JavaAgentLauncher.class.getClassLoader(), new Class<?>[] { Instrumentation.class },
+            new RetransformingInstrumentation(inst)
+          );
+          startAgent(agentClass, agentArgs, agentJar, retransformingInst);
+        }
+        finally {
+          inst.removeTransformer(this);
+        }
+        retransformMatchingClasses();
+      }
+      catch (Exception e) {
+        Throwable cause = e instanceof InvocationTargetException ? e.getCause() : e;
+        System.err.println("Cannot start lazy agent " + agentClass + ": " + cause);
+      }
+      finally {
+        started.countDown();
+      }
+    }
+
+    /**
+     * Block until the thread loading the triggering class has defined it. Class loading locks make the lookup wait for
+     * the loading thread. If the class cannot be found this way, e.g. because it was defined directly instead of via
+     * its class loader, there is nothing to wait for.
+     */
+    private void awaitDefinition(String triggerClassName, ClassLoader triggerClassLoader) {
+      try {
+        Class.forName(triggerClassName, false, triggerClassLoader);
+      }
+      catch (ClassNotFoundException | LinkageError ignored) {
+        // Nothing to wait for
+      }
+    }
+
+    private void retransformMatchingClasses() {
+      if (!inst.isRetransformClassesSupported())
+        return;
+      List<Class<?>> matchingClasses = new ArrayList<>();
+      for (Class<?> loadedClass : inst.getAllLoadedClasses()) {
+        if (matches(loadedClass.getName()) && inst.isModifiableClass(loadedClass))
+          matchingClasses.add(loadedClass);
+      }
+      if (matchingClasses.isEmpty())
+        return;
+      try {
+        inst.retransformClasses(matchingClasses.toArray(new Class<?>[0]));
+      }
+      catch (Exception | LinkageError e) {
+        System.err.println("Cannot retransform classes for lazy agent " + agentClass + ": " + e);
+      }
+    }
+
+    private boolean matches(String className) {
+      for (String prefix : prefixes) {
+        if (className.startsWith(prefix))
+          return true;
+      }
+      return false;
+    }
+  }
+
+  /**
+   * Forwards all calls to an {@link Instrumentation} instance, registering class file transformers as
+   * retransformation capable, if the JVM supports retransformation
+   */
+  static class RetransformingInstrumentation implements InvocationHandler {
+    private final Instrumentation inst;
+
+    RetransformingInstrumentation(Instrumentation inst) {
+      this.inst = inst;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      if (method.getName().equals("addTransformer") && args.length == 1 && inst.isRetransformClassesSupported()) {
+        inst.addTransformer((ClassFileTransformer) args[0], true);
+        return null;
+      }
+      try {
+        return method.invoke(inst, args);
+      }
+      catch (InvocationTargetException e) {
+        throw e.getCause();
+      }
+    }
+  }
+
+  /**
+   * Loads classes and resources lazily from a JAR nested inside the executable JAR, without extracting it
+   * <p>
+   * The nested JAR is located via the executable JAR's central directory. If stored uncompressed, like nested JARs
+   * written by Spring Boot or by this plugin, it is memory-mapped in place, otherwise inflated into memory once. Its
+   * central directory is indexed once, while entries are only read when requested. Loading delegates to the parent
+   * classloader first. Multi-Release JARs are loaded from their base entries only. ZIP64 archives are supported, e.g.
+   * executable JARs with more than 65535 entries.
+   */
+  public static class NestedJarClassLoader extends ClassLoader {
+    public static final String URL_PROTOCOL = "agent-jar";
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final int LOCAL_HEADER_LENGTH = 30;
+    private static final int CENTRAL_HEADER_LENGTH = 46;
+    private static final int END_LENGTH = 22;
+    private static final int ZIP64_END_LENGTH = 56;
+    private static final int ZIP64_LOCATOR_LENGTH = 20;
+    private static final int MAX_COMMENT_LENGTH = 0xFFFF;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+
+    private static final Map<String, NestedJarClassLoader> classLoaders = new HashMap<>();
+
+    static {
+      registerAsParallelCapable();
+    }
+
+    private final String nestedJarName;
+    private final ByteBuffer nestedJar;
+    private final long preambleLength;
+    private final Map<String, NestedEntry> entries;
+    private final ProtectionDomain protectionDomain;
+    private final Attributes manifestAttributes;
+    private final URLStreamHandler urlStreamHandler = new NestedJarURLStreamHandler(this);
+
+    /**
+     * @param nestedJarName name of the nested JAR inside the executable JAR containing the launcher agent
+     *
+     * @return classloader for the nested JAR, shared by all agents loaded from it
+     */
+    public static synchronized NestedJarClassLoader of(String nestedJarName) throws IOException {
+      NestedJarClassLoader classLoader = classLoaders.get(nestedJarName);
+      if (classLoader == null) {
+        classLoader = new NestedJarClassLoader(
+          getExecutableJar(), nestedJarName, JavaAgentLauncher.class.getClassLoader()
+        );
+        classLoaders.put(nestedJarName, classLoader);
+      }
+      return classLoader;
+    }
+
+    /**
+     * @param executableJar executable JAR
+     * @param nestedJarName name of the nested JAR inside the executable JAR
+     * @param parent        parent classloader
+     */
+    public NestedJarClassLoader(Path executableJar, String nestedJarName, ClassLoader parent) throws IOException {
+      super(parent);
+      this.nestedJarName = nestedJarName;
+      nestedJar = mapNestedJar(executableJar, nestedJarName);
+      CentralDirectory centralDirectory = CentralDirectory.locate(nestedJar, 0, findEnd(nestedJar));
+      preambleLength = centralDirectory.preambleLength;
+      entries = index(
+        nestedJar, (int) centralDirectory.position, (int) (centralDirectory.position + centralDirectory.size), null
+      );
+      protectionDomain = new ProtectionDomain(
+        new CodeSource(executableJar.toUri().toURL(), (Certificate[]) null), null, this, null
+      );
+      NestedEntry manifestEntry = entries.get("META-INF/MANIFEST.MF");
+      manifestAttributes = manifestEntry == null
+        ? new Attributes()
+        : new Manifest(new ByteArrayInputStream(readEntry(manifestEntry))).getMainAttributes();
+    }
+
+    public String getNestedJarName() {
+      return nestedJarName;
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+      NestedEntry entry = entries.get(name.replace('.', '/') + ".class");
+      if (entry == null)
+        throw new ClassNotFoundException(name);
+      byte[] classBytes;
+      try {
+        classBytes = readEntry(entry);
+      }
+      catch (IOException e) {
+        throw new ClassNotFoundException(name, e);
+      }
+      int packageEnd = name.lastIndexOf('.');
+      if (packageEnd > 0)
+        definePackageIfAbsent(name.substring(0, packageEnd));
+      return defineClass(name, classBytes, 0, classBytes.length, protectionDomain);
+    }
+
+    @SuppressWarnings("deprecation")
+    private void definePackageIfAbsent(String packageName) {
+      if (getPackage(packageName) != null)
+        return;
+      try {
+        definePackage(
+          packageName,
+          manifestAttributes.getValue(Attributes.Name.SPECIFICATION_TITLE),
+          manifestAttributes.getValue(Attributes.Name.SPECIFICATION_VERSION),
+          manifestAttributes.getValue(Attributes.Name.SPECIFICATION_VENDOR),
+          manifestAttributes.getValue(Attributes.Name.IMPLEMENTATION_TITLE),
+          manifestAttributes.getValue(Attributes.Name.IMPLEMENTATION_VERSION),
+          manifestAttributes.getValue(Attributes.Name.IMPLEMENTATION_VENDOR),
+          null
+        );
+      }
+      catch (IllegalArgumentException ignored) {
+        // Package defined concurrently by another thread
+      }
+    }
+
+    @Override
+    protected URL findResource(String name) {
+      if (!entries.containsKey(name))
+        return null;
+      try {
+        return new URL(URL_PROTOCOL, "", -1, "/" + nestedJarName + "!/" + name, urlStreamHandler);
+      }
+      catch (MalformedURLException e) {
+        return null;
+      }
+    }
+
+    @Override
+    protected Enumeration<URL> findResources(String name) {
+      URL resource = findResource(name);
+      return resource == null
+        ? Collections.<URL>emptyEnumeration()
+        : Collections.enumeration(Collections.singletonList(resource));
+    }
+
+    /**
+     * @return uncompressed content of an entry of the nested JAR
+     */
+    byte[] readEntry(NestedEntry entry) throws IOException {
+      int localHeaderOffset = (int) (preambleLength + entry.localHeaderOffset);
+      if (nestedJar.getInt(localHeaderOffset) != LOCAL_HEADER_SIGNATURE)
+        throw new IOException("Invalid local header for entry " + entry.name + " in nested JAR " + nestedJarName);
+      int dataOffset = localHeaderOffset + LOCAL_HEADER_LENGTH +
+        getUnsignedShort(nestedJar, localHeaderOffset + 26) + getUnsignedShort(nestedJar, localHeaderOffset + 28);
+      byte[] data = new byte[(int) entry.compressedSize];
+      // Absolute bulk reads require Java 13+, so read from a duplicate in order to stay thread-safe
+      ByteBuffer source = nestedJar.duplicate();
+      source.position(dataOffset);
+      source.get(data);
+      return uncompress(data, entry);
+    }
+
+    private static ByteBuffer mapNestedJar(Path executableJar, String nestedJarName) throws IOException {
+      try (FileChannel channel = FileChannel.open(executableJar, StandardOpenOption.READ)) {
+        long size = channel.size();
+        // The tail also covers the ZIP64 end of central directory record and locator, if any
+        int tailLength =
+          (int) Math.min(size, ZIP64_END_LENGTH + ZIP64_LOCATOR_LENGTH + END_LENGTH + MAX_COMMENT_LENGTH);
+        long tailPosition = size - tailLength;
+        ByteBuffer tail = read(channel, tailPosition, tailLength);
+        CentralDirectory centralDirectoryLocation = CentralDirectory.locate(tail, tailPosition, findEnd(tail));
+        if (centralDirectoryLocation.size > Integer.MAX_VALUE)
+          throw new IOException("Central directory of " + executableJar + " too big");
+        // Launch scripts in front of the archive, e.g. of Spring Boot fully executable JARs, shift all offsets
+        long preambleLength = centralDirectoryLocation.preambleLength;
+        ByteBuffer centralDirectory =
+          read(channel, centralDirectoryLocation.position, (int) centralDirectoryLocation.size);
+        NestedEntry entry = index(centralDirectory, 0, centralDirectory.limit(), nestedJarName).get(nestedJarName);
+        if (entry == null)
+          throw new FileNotFoundException("Nested JAR " + nestedJarName + " not found in " + executableJar);
+        long localHeaderPosition = preambleLength + entry.localHeaderOffset;
+        ByteBuffer localHeader = read(channel, localHeaderPosition, LOCAL_HEADER_LENGTH);
+        if (localHeader.getInt(0) != LOCAL_HEADER_SIGNATURE)
+          throw new IOException("Invalid local header for nested JAR " + nestedJarName + " in " + executableJar);
+        long dataPosition = localHeaderPosition + LOCAL_HEADER_LENGTH +
+          getUnsignedShort(localHeader, 26) + getUnsignedShort(localHeader, 28);
+        if (entry.method == ZipEntry.STORED)
+          return channel.map(FileChannel.MapMode.READ_ONLY, dataPosition, entry.compressedSize)
+            .order(ByteOrder.LITTLE_ENDIAN);
+        if (entry.compressedSize > Integer.MAX_VALUE)
+          throw new IOException("Nested JAR " + nestedJarName + " in " + executableJar + " too big");
+        byte[] data = read(channel, dataPosition, (int) entry.compressedSize).array();
+        return ByteBuffer.wrap(uncompress(data, entry)).order(ByteOrder.LITTLE_ENDIAN);
+      }
+    }
+
+    private static Path getExecutableJar() throws IOException {
+      CodeSource codeSource = JavaAgentLauncher.class.getProtectionDomain().getCodeSource();
+      if (codeSource == null || codeSource.getLocation() == null)
+        throw new IOException("Cannot locate executable JAR containing the launcher agent");
+      try {
+        return Paths.get(codeSource.getLocation().toURI());
+      }
+      catch (URISyntaxException | IllegalArgumentException e) {
+        throw new IOException(
+          "Cannot locate executable JAR containing the launcher agent: " + codeSource.getLocation(), e
+        );
+      }
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+      ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer, position + buffer.position()) < 0)
+          throw new IOException("Unexpected end of file");
+      }
+      buffer.flip();
+      return buffer;
+    }
+
+    /**
+     * @return offset of the end of central directory record, searching backwards from the end of the buffer, because
+     * the record may be followed by a comment
+     */
+    private static int findEnd(ByteBuffer zip) throws IOException {
+      int start = Math.max(0, zip.limit() - END_LENGTH - MAX_COMMENT_LENGTH);
+      for (int offset = zip.limit() - END_LENGTH; offset >= start; offset--) {
+        if (zip.getInt(offset) == END_SIGNATURE)
+          return offset;
+      }
+      throw new IOException("End of central directory not found");
+    }
+
+    /**
+     * @param zip      buffer containing a central directory
+     * @param start    offset of the first central directory header
+     * @param end      offset behind the last central directory header
+     * @param onlyName name of the only entry to be indexed or {@code null}, if all entries are to be indexed
+     *
+     * @return entries keyed by name
+     */
+    private static Map<String, NestedEntry> index(ByteBuffer zip, int start, int end, String onlyName) {
+      Map<String, NestedEntry> entries = new HashMap<>();
+      int offset = start;
+      while (offset + CENTRAL_HEADER_LENGTH <= end && zip.getInt(offset) == CENTRAL_HEADER_SIGNATURE) {
+        int nameLength = getUnsignedShort(zip, offset + 28);
+        byte[] nameBytes = new byte[nameLength];
+        ByteBuffer nameBuffer = zip.duplicate();
+        nameBuffer.position(offset + CENTRAL_HEADER_LENGTH);
+        nameBuffer.get(nameBytes);
+        String name = new String(nameBytes, StandardCharsets.UTF_8);
+        if (onlyName == null || onlyName.equals(name)) {
+          // Values overflowing the regular header, e.g. offsets beyond 4 GB, are stored in the ZIP64 extra field
+          long[] sizesAndOffset = {
+            getUnsignedInt(zip, offset + 24), getUnsignedInt(zip, offset + 20), getUnsignedInt(zip, offset + 42)
+          };
+          int extraOffset = offset + CENTRAL_HEADER_LENGTH + nameLength;
+          applyZip64Extra(zip, extraOffset, extraOffset + getUnsignedShort(zip, offset + 30), sizesAndOffset);
+          entries.put(name, new NestedEntry(
+            name, getUnsignedShort(zip, offset + 10), sizesAndOffset[1], sizesAndOffset[0], sizesAndOffset[2]
+          ));
+          if (onlyName != null)
+            break;
+        }
+        offset += CENTRAL_HEADER_LENGTH + nameLength + getUnsignedShort(zip, offset + 30) +
+          getUnsignedShort(zip, offset + 32);
+      }
+      return entries;
+    }
+
+    /**
+     * Replace overflowing values by the ones from the ZIP64 extra field. The field only contains overflowing values,
+     * always in the order size, compressed size, local header offset.
+     *
+     * @param sizesAndOffset size, compressed size and local header offset from the central directory header
+     */
+    private static void applyZip64Extra(ByteBuffer zip, int extraStart, int extraEnd, long[] sizesAndOffset) {
+      int offset = extraStart;
+      while (offset + 4 <= extraEnd) {
+        int id = getUnsignedShort(zip, offset);
+        int next = offset + 4 + getUnsignedShort(zip, offset + 2);
+        if (next > extraEnd)
+          return;
+        if (id == ZIP64_EXTRA_ID) {
+          int valueOffset = offset + 4;
+          for (int i = 0; i < sizesAndOffset.length; i++) {
+            if (sizesAndOffset[i] == ZIP64_MAGIC && valueOffset + 8 <= next) {
+              sizesAndOffset[i] = zip.getLong(valueOffset);
+              valueOffset += 8;
+            }
+          }
+          return;
+        }
+        offset = next;
+      }
+    }
+
+    private static byte[] uncompress(byte[] data, NestedEntry entry) throws IOException {
+      if (entry.method == ZipEntry.STORED)
+        return data;
+      if (entry.method != ZipEntry.DEFLATED)
+        throw new IOException("Unsupported compression method " + entry.method + " for entry " + entry.name);
+      byte[] content = new byte[(int) entry.size];
+      Inflater inflater = new Inflater(true);
+      try {
+        inflater.setInput(data);
+        int length = 0;
+        while (length < content.length) {
+          int inflated = inflater.inflate(content, length, content.length - length);
+          if (inflated == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+            throw new IOException("Truncated entry " + entry.name);
+          length += inflated;
+        }
+        return content;
+      }
+      catch (DataFormatException e) {
+        throw new IOException("Invalid compressed data for entry " + entry.name, e);
+      }
+      finally {
+        inflater.end();
+      }
+    }
+
+    private static int getUnsignedShort(ByteBuffer buffer, int offset) {
+      return buffer.getShort(offset) & 0xFFFF;
+    }
+
+    private static long getUnsignedInt(ByteBuffer buffer, int offset) {
+      return buffer.getInt(offset) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Location of a central directory and length of data prepended to the archive without adjusting its offsets
+     */
+    static class CentralDirectory {
+      final long position;
+      final long size;
+      final long preambleLength;
+
+      CentralDirectory(long position, long size, long preambleLength) {
+        this.position = position;
+        this.size = size;
+        this.preambleLength = preambleLength;
+      }
+
+      /**
+       * @param zip            buffer containing the end of central directory record and, if present, the ZIP64 end
+       *                       of central directory record and locator in front of it
+       * @param bufferPosition position of the buffer in the archive file
+       * @param endOffset      offset of the end of central directory record in the buffer
+       */
+      static CentralDirectory locate(ByteBuffer zip, long bufferPosition, int endOffset) throws IOException {
+        long size = getUnsignedInt(zip, endOffset + 12);
+        long offset = getUnsignedInt(zip, endOffset + 16);
+        int directoryEnd = endOffset;
+        int locatorOffset = endOffset - ZIP64_LOCATOR_LENGTH;
+        if (locatorOffset >= ZIP64_END_LENGTH && zip.getInt(locatorOffset) == ZIP64_LOCATOR_SIGNATURE) {
+          directoryEnd = locatorOffset - ZIP64_END_LENGTH;
+          if (zip.getInt(directoryEnd) != ZIP64_END_SIGNATURE)
+            throw new IOException("Invalid ZIP64 end of central directory");
+          size = zip.getLong(directoryEnd + 40);
+          offset = zip.getLong(directoryEnd + 48);
+        }
+        else if (size == ZIP64_MAGIC || offset == ZIP64_MAGIC)
+          throw new IOException("ZIP64 end of central directory not found");
+        long position = bufferPosition + directoryEnd - size;
+        return new CentralDirectory(position, size, position - offset);
+      }
+    }
+
+    /**
+     * Central directory information of a nested JAR entry
+     */
+    static class NestedEntry {
+      final String name;
+      final int method;
+      final long compressedSize;
+      final long size;
+      final long localHeaderOffset;
+
+      NestedEntry(String name, int method, long compressedSize, long size, long localHeaderOffset) {
+        this.name = name;
+        this.method = method;
+        this.compressedSize = compressedSize;
+        this.size = size;
+        this.localHeaderOffset = localHeaderOffset;
+      }
+    }
+
+    /**
+     * Opens resource URLs of the form {@code agent-jar:/<nested JAR>!/<entry>}, reading entries from the nested JAR
+     */
+    static class NestedJarURLStreamHandler extends URLStreamHandler {
+      private final NestedJarClassLoader classLoader;
+
+      NestedJarURLStreamHandler(NestedJarClassLoader classLoader) {
+        this.classLoader = classLoader;
+      }
+
+      @Override
+      protected URLConnection openConnection(URL url) {
+        return new NestedJarURLConnection(url, classLoader);
+      }
+    }
+
+    static class NestedJarURLConnection extends URLConnection {
+      private final NestedJarClassLoader classLoader;
+
+      NestedJarURLConnection(URL url, NestedJarClassLoader classLoader) {
+        super(url);
+        this.classLoader = classLoader;
+      }
+
+      @Override
+      public void connect() {
+        connected = true;
+      }
+
+      @Override
+      public InputStream getInputStream() throws IOException {
+        String file = url.getFile();
+        NestedEntry entry = classLoader.entries.get(file.substring(file.indexOf("!/") + 2));
+        if (entry == null)
+          throw new FileNotFoundException(url.toString());
+        return new ByteArrayInputStream(classLoader.readEntry(entry));
+      }
+    }
+  }
+
+  /**
+   * Startup timing of a single agent
+   */
+  static class AgentStartup {
+    final String agentClass;
+    final String threadName;
+    final long classLoadNanos;
+    final long premainNanos;
+
+    AgentStartup(String agentClass, String threadName, long classLoadNanos, long premainNanos) {
+      this.agentClass = agentClass;
+      this.threadName = threadName;
+      this.classLoadNanos = classLoadNanos;
+      this.premainNanos = premainNanos;
+    }
+  }
+
+  /**
+   * Agent startup timing, in agent start completion order. Class loading times are {@code -1} for agents started
+   * directly by the generated launcher agent.
+   */
+  public interface AgentStartupMXBean {
+    String[] getAgentClasses();
+
+    long[] getClassLoadNanos();
+
+    long[] getPremainNanos();
+
+    long getTotalNanos();
+  }
+
+  static class AgentStartupStatistics implements AgentStartupMXBean {
+    private final List<AgentStartup> startups;
+    private final long totalNanos;
+
+    AgentStartupStatistics(List<AgentStartup> startups, long totalNanos) {
+      this.startups = startups;
+      this.totalNanos = totalNanos;
+    }
+
+    @Override
+    public String[] getAgentClasses() {
+      return startups.stream().map(startup -> startup.agentClass).toArray(String[]::new);
+    }
+
+    @Override
+    public long[] getClassLoadNanos() {
+      return startups.stream().mapToLong(startup -> startup.classLoadNanos).toArray();
+    }
+
+    @Override
+    public long[] getPremainNanos() {
+      return startups.stream().mapToLong(startup -> startup.premainNanos).toArray();
+    }
+
+    @Override
+    public long getTotalNanos() {
+      return totalNanos;
+    }
+  }
+
+  /**
+   * Emits JFR events via reflection, because the launcher must run on Java 8, where JFR is not generally available
+   */
+  static class JfrEvents {
+    private static Object eventFactory;
+    private static boolean initialised;
+
+    static synchronized void commit(AgentStartup startup) {
+      try {
+        if (!initialised) {
+          initialised = true;
+          eventFactory = createEventFactory();
+        }
+        if (eventFactory == null)
+          return;
+        Object event = eventFactory.getClass().getMethod("newEvent").invoke(eventFactory);
+        Method set = event.getClass().getMethod("set", int.class, Object.class);
+        set.invoke(event, 0, startup.agentClass);
+        set.invoke(event, 1, startup.classLoadNanos);
+        set.invoke(event, 2, startup.premainNanos);
+        event.getClass().getMethod("commit").invoke(event);
+      }
+      catch (ReflectiveOperationException | RuntimeException e) {
+        System.err.println("Cannot emit agent startup JFR event: " + e);
+      }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object createEventFactory() throws ReflectiveOperationException {
+      Class<?> eventFactoryClass;
+      try {
+        eventFactoryClass = Class.forName("jdk.jfr.EventFactory");
+      }
+      catch (ClassNotFoundException e) {
+        return null;
+      }
+      Class<?> annotationElementClass = Class.forName("jdk.jfr.AnnotationElement");
+      Class<?> valueDescriptorClass = Class.forName("jdk.jfr.ValueDescriptor");
+      Constructor<?> annotationElement = annotationElementClass.getConstructor(Class.class, Object.class);
+      Constructor<?> valueDescriptor = valueDescriptorClass.getConstructor(Class.class, String.class, List.class);
+      Class<? extends Annotation> name = (Class<? extends Annotation>) Class.forName("jdk.jfr.Name");
+      Class<? extends Annotation> label = (Class<? extends Annotation>) Class.forName("jdk.jfr.Label");
+      Class<? extends Annotation> category = (Class<? extends Annotation>) Class.forName("jdk.jfr.Category");
+      Class<? extends Annotation> timespan = (Class<? extends Annotation>) Class.forName("jdk.jfr.Timespan");
+
+      List<Object> eventAnnotations = Arrays.asList(
+        annotationElement.newInstance(name, "dev.aspectj.AgentStartup"),
+        annotationElement.newInstance(label, "Agent Startup"),
+        annotationElement.newInstance(category, new String[] { "Agent Embedder" })
+      );
+      List<Object> nanosAnnotations = Collections.singletonList(annotationElement.newInstance(timespan, "NANOSECONDS"));
+      List<Object> fields = Arrays.asList(
+        valueDescriptor.newInstance(String.class, "agentClass", Collections.emptyList()),
+        valueDescriptor.newInstance(long.class, "classLoadDuration", nanosAnnotations),
+        valueDescriptor.newInstance(long.class, "premainDuration", nanosAnnotations)
+      );
+      return eventFactoryClass.getMethod("create", List.class, List.class).invoke(null, eventAnnotations, fields);
+    }
   }
 }
@@ -0,0 +1,369 @@
+package dev.aspectj.maven.agent_embedder;
+
+import dev.aspectj.maven.tools.ZipCentralDirectory;
+import org.apache.maven.plugin.logging.Log;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Generates a launcher agent class dedicated to a specific executable JAR
+ * <p>
+ * In contrast to {@link JavaAgentLauncher}, which reads the executable JAR's manifest during JVM startup and starts the
+ * agents found there via reflection, the generated launcher has agent classes and arguments baked in as constants and
+ * calls each agent's {@code premain} method directly. That way, no manifest I/O and no reflection happen on the
+ * critical startup path, and the launcher cannot pick up a wrong manifest when several ones are on the classpath.
+ * <p>
+ * Direct calls are only generated for agent classes found in their agent JARs with a public static {@code premain}
+ * method. Any other agent is started by {@link JavaAgentLauncher#startAgent(String, String,
+ * java.lang.instrument.Instrumentation)}, which is why {@link JavaAgentLauncher} is always embedded, too.
+ * <p>
+ * This class writes Java 8 class files directly, because the generated code is trivial, i.e. a linear sequence of
+ * static method calls without any branches, and a bytecode engineering library would be a heavy dependency for that.
+ */
+public class LauncherClassGenerator {
+  public static final String CLASS_NAME = "dev.aspectj.maven.agent_embedder.GeneratedJavaAgentLauncher";
+  public static final String RESOURCE_NAME = CLASS_NAME.replace('.', '/') + ".class";
+
+  private static final String PREMAIN = "premain";
+  private static final String PREMAIN_DESCRIPTOR = "(Ljava/lang/String;Ljava/lang/instrument/Instrumentation;)V";
+  private static final String PREMAIN_DESCRIPTOR_NO_INSTRUMENTATION = "(Ljava/lang/String;)V";
+  private static final String START_AGENT_DESCRIPTOR =
+    "(Ljava/lang/String;Ljava/lang/String;Ljava/lang/instrument/Instrumentation;)V";
+  private static final String AGENT_STARTING_DESCRIPTOR = "(Ljava/lang/String;Ljava/lang/String;)J";
+  private static final String AGENT_STARTED_DESCRIPTOR = "(Ljava/lang/String;J)V";
+  private static final String NO_ARGS_DESCRIPTOR = "()V";
+
+  private static final int CLASS_FILE_MAGIC = 0xCAFEBABE;
+  private static final int JAVA_8_MAJOR_VERSION = 52;
+  private static final int ACC_PUBLIC = 0x0001;
+  private static final int ACC_STATIC = 0x0008;
+  private static final int ACC_FINAL = 0x0010;
+  private static final int ACC_SUPER = 0x0020;
+  private static final int ACC_INTERFACE = 0x0200;
+
+  private static final int ACONST_NULL = 0x01;
+  private static final int LDC_W = 0x13;
+  private static final int ALOAD_0 = 0x2A;
+  private static final int ALOAD_1 = 0x2B;
+  private static final int LLOAD_2 = 0x20;
+  private static final int LSTORE_2 = 0x41;
+  private static final int RETURN = 0xB1;
+  private static final int INVOKESTATIC = 0xB8;
+
+  private final Log log;
+
+  public LauncherClassGenerator(Log log) {
+    this.log = log;
+  }
+
+  /**
+   * @param agentJars agent JARs with configured agent classes in configuration order, started group by group in
+   *                  ascending startup group order. Asynchronous startup is not supported.
+   *
+   * @return class file content of the generated launcher agent
+   */
+  public byte[] generate(List<AgentJar> agentJars) throws IOException {
+    ConstantPool constantPool = new ConstantPool();
+    String thisClass = toInternalName(CLASS_NAME);
+    int thisClassIndex = constantPool.addClass(thisClass);
+    int superClassIndex = constantPool.addClass("java/lang/Object");
+
+    String launcherClass = toInternalName(JavaAgentLauncher.class.getName());
+    ByteArrayOutputStream premainCode = new ByteArrayOutputStream();
+    DataOutputStream premain = new DataOutputStream(premainCode);
+    premain.writeByte(INVOKESTATIC);
+    premain.writeShort(constantPool.addMethodRef(launcherClass, "launcherStarting", NO_ARGS_DESCRIPTOR));
+    List<AgentJar> agentJarsInStartOrder = new ArrayList<>(agentJars);
+    // Stable sort, keeping configuration order inside each startup group
+    agentJarsInStartOrder.sort(Comparator.comparingInt(agentJar -> agentJar.getAgentInfo().getStartupGroup()));
+    for (AgentJar agentJar : agentJarsInStartOrder) {
+      JavaAgentInfo agentInfo = agentJar.getAgentInfo();
+      String agentClass = agentInfo.getAgentClass();
+      String agentArgs = agentInfo.getAgentArgs();
+      String premainDescriptor = findPremainDescriptor(agentJar.getZip(), agentClass);
+      if (premainDescriptor == null) {
+        log.debug("Agent class " + agentClass + " not found in agent JAR, starting it reflectively");
+        premain.writeByte(LDC_W);
+        premain.writeShort(constantPool.addString(agentClass));
+        writeAgentArgs(premain, constantPool, agentArgs);
+        premain.writeByte(ALOAD_1);
+        premain.writeByte(INVOKESTATIC);
+        premain.writeShort(constantPool.addMethodRef(launcherClass, "startAgent", START_AGENT_DESCRIPTOR));
+        continue;
+      }
+      log.debug("Generating direct premain call for agent class " + agentClass);
+      // Logging and timing hooks: long startNanos = JavaAgentLauncher.agentStarting(agentClass, agentArgs)
+      premain.writeByte(LDC_W);
+      premain.writeShort(constantPool.addString(agentClass));
+      writeAgentArgs(premain, constantPool, agentArgs);
+      premain.writeByte(INVOKESTATIC);
+      premain.writeShort(constantPool.addMethodRef(launcherClass, "agentStarting", AGENT_STARTING_DESCRIPTOR));
+      premain.writeByte(LSTORE_2);
+      writeAgentArgs(premain, constantPool, agentArgs);
+      if (premainDescriptor.equals(PREMAIN_DESCRIPTOR))
+        premain.writeByte(ALOAD_1);
+      premain.writeByte(INVOKESTATIC);
+      premain.writeShort(constantPool.addMethodRef(toInternalName(agentClass), PREMAIN, premainDescriptor));
+      // JavaAgentLauncher.agentStarted(agentClass, startNanos)
+      premain.writeByte(LDC_W);
+      premain.writeShort(constantPool.addString(agentClass));
+      premain.writeByte(LLOAD_2);
+      premain.writeByte(INVOKESTATIC);
+      premain.writeShort(constantPool.addMethodRef(launcherClass, "agentStarted", AGENT_STARTED_DESCRIPTOR));
+    }
+    premain.writeByte(INVOKESTATIC);
+    premain.writeShort(constantPool.addMethodRef(launcherClass, "agentsStarted", NO_ARGS_DESCRIPTOR));
+    premain.writeByte(RETURN);
+
+    ByteArrayOutputStream agentmainCode = new ByteArrayOutputStream();
+    DataOutputStream agentmain = new DataOutputStream(agentmainCode);
+    agentmain.writeByte(ALOAD_0);
+    agentmain.writeByte(ALOAD_1);
+    agentmain.writeByte(INVOKESTATIC);
+    agentmain.writeShort(constantPool.addMethodRef(thisClass, PREMAIN, PREMAIN_DESCRIPTOR));
+    agentmain.writeByte(RETURN);
+
+    int premainNameIndex = constantPool.addUtf8(PREMAIN);
+    int agentmainNameIndex = constantPool.addUtf8("agentmain");
+    int descriptorIndex = constantPool.addUtf8(PREMAIN_DESCRIPTOR);
+    int codeIndex = constantPool.addUtf8("Code");
+
+    ByteArrayOutputStream classFile = new ByteArrayOutputStream();
+    DataOutputStream output = new DataOutputStream(classFile);
+    output.writeInt(CLASS_FILE_MAGIC);
+    output.writeShort(0);
+    output.writeShort(JAVA_8_MAJOR_VERSION);
+    constantPool.write(output);
+    output.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+    output.writeShort(thisClassIndex);
+    output.writeShort(superClassIndex);
+    output.writeShort(0);  // interfaces
+    output.writeShort(0);  // fields
+    output.writeShort(2);  // methods
+    // Locals: agent arguments, instrumentation, agent start time (long, occupying two slots)
+    writeMethod(output, premainNameIndex, descriptorIndex, codeIndex, 3, 4, premainCode.toByteArray());
+    writeMethod(output, agentmainNameIndex, descriptorIndex, codeIndex, 2, 2, agentmainCode.toByteArray());
+    output.writeShort(0);  // attributes
+    return classFile.toByteArray();
+  }
+
+  private static void writeAgentArgs(DataOutputStream code, ConstantPool constantPool, String agentArgs)
+    throws IOException
+  {
+    if (agentArgs == null)
+      code.writeByte(ACONST_NULL);
+    else {
+      code.writeByte(LDC_W);
+      code.writeShort(constantPool.addString(agentArgs));
+    }
+  }
+
+  private static void writeMethod(
+    DataOutputStream output, int nameIndex, int descriptorIndex, int codeIndex, int maxStack, int maxLocals,
+    byte[] code
+  )
+    throws IOException
+  {
+    output.writeShort(ACC_PUBLIC | ACC_STATIC);
+    output.writeShort(nameIndex);
+    output.writeShort(descriptorIndex);
+    output.writeShort(1);  // attributes
+    output.writeShort(codeIndex);
+    output.writeInt(12 + code.length);
+    output.writeShort(maxStack);
+    output.writeShort(maxLocals);
+    output.writeInt(code.length);
+    output.write(code);
+    output.writeShort(0);  // exception table
+    output.writeShort(0);  // attributes
+  }
+
+  /**
+   * Find the preferred {@code premain} method of a public agent class, i.e. the one with an {@code Instrumentation}
+   * parameter, if it exists, otherwise the one without
+   *
+   * @param agentJar   agent JAR
+   * @param agentClass fully qualified agent class name
+   *
+   * @return method descriptor or {@code null}, if the agent class cannot be found in the agent JAR or has no suitable
+   * public static {@code premain} method
+   */
+  protected static String findPremainDescriptor(ZipCentralDirectory agentJar, String agentClass) throws IOException {
+    ZipCentralDirectory.Entry classEntry = agentJar.getEntry(toInternalName(agentClass) + ".class");
+    if (classEntry == null)
+      return null;
+    Set<String> premainDescriptors = new HashSet<>();
+    try (DataInputStream input = new DataInputStream(new BufferedInputStream(agentJar.getInputStream(classEntry)))) {
+      if (input.readInt() != CLASS_FILE_MAGIC)
+        return null;
+      input.readInt();  // minor and major version
+      String[] utf8Constants = readConstantPool(input);
+      int classAccessFlags = input.readUnsignedShort();
+      if ((classAccessFlags & ACC_PUBLIC) == 0 || (classAccessFlags & ACC_INTERFACE) != 0)
+        return null;
+      input.readUnsignedShort();  // this class
+      input.readUnsignedShort();  // super class
+      skipFully(input, 2 * input.readUnsignedShort());  // interfaces
+      skipMembers(input);  // fields
+      int methodCount = input.readUnsignedShort();
+      for (int i = 0; i < methodCount; i++) {
+        int accessFlags = input.readUnsignedShort();
+        String name = utf8Constants[input.readUnsignedShort()];
+        String descriptor = utf8Constants[input.readUnsignedShort()];
+        skipAttributes(input);
+        if ((accessFlags & (ACC_PUBLIC | ACC_STATIC)) == (ACC_PUBLIC | ACC_STATIC) && PREMAIN.equals(name))
+          premainDescriptors.add(descriptor);
+      }
+    }
+    catch (EOFException e) {
+      return null;
+    }
+    if (premainDescriptors.contains(PREMAIN_DESCRIPTOR))
+      return PREMAIN_DESCRIPTOR;
+    if (premainDescriptors.contains(PREMAIN_DESCRIPTOR_NO_INSTRUMENTATION))
+      return PREMAIN_DESCRIPTOR_NO_INSTRUMENTATION;
+    return null;
+  }
+
+  /**
+   * Read a class file's constant pool, starting at the constant pool count
+   *
+   * @param input class file input, positioned after magic number and version
+   *
+   * @return UTF-8 constants by constant pool index, {@code null} for all other constant types
+   */
+  static String[] readConstantPool(DataInputStream input) throws IOException {
+    int constantPoolCount = input.readUnsignedShort();
+    String[] utf8Constants = new String[constantPoolCount];
+    for (int i = 1; i < constantPoolCount; i++) {
+      int tag = input.readUnsignedByte();
+      switch (tag) {
+        case 1:   // Utf8
+          utf8Constants[i] = input.readUTF();
+          break;
+        case 7:   // Class
+        case 8:   // String
+        case 16:  // MethodType
+        case 19:  // Module
+        case 20:  // Package
+          skipFully(input, 2);
+          break;
+        case 15:  // MethodHandle
+          skipFully(input, 3);
+          break;
+        case 3:   // Integer
+        case 4:   // Float
+        case 9:   // Fieldref
+        case 10:  // Methodref
+        case 11:  // InterfaceMethodref
+        case 12:  // NameAndType
+        case 17:  // Dynamic
+        case 18:  // InvokeDynamic
+          skipFully(input, 4);
+          break;
+        case 5:   // Long
+        case 6:   // Double
+          skipFully(input, 8);
+          i++;
+          break;
+        default:
+          throw new IOException("Unknown constant pool tag " + tag);
+      }
+    }
+    return utf8Constants;
+  }
+
+  private static void skipMembers(DataInputStream input) throws IOException {
+    int memberCount = input.readUnsignedShort();
+    for (int i = 0; i < memberCount; i++) {
+      skipFully(input, 6);  // access flags, name, descriptor
+      skipAttributes(input);
+    }
+  }
+
+  private static void skipAttributes(DataInputStream input) throws IOException {
+    int attributeCount = input.readUnsignedShort();
+    for (int i = 0; i < attributeCount; i++) {
+      input.readUnsignedShort();  // name
+      skipFully(input, input.readInt() & 0xFFFFFFFFL);
+    }
+  }
+
+  private static void skipFully(DataInputStream input, long byteCount) throws IOException {
+    for (long remaining = byteCount; remaining > 0; ) {
+      long skipped = input.skip(remaining);
+      if (skipped <= 0) {
+        input.readByte();
+        skipped = 1;
+      }
+      remaining -= skipped;
+    }
+  }
+
+  private static String toInternalName(String className) {
+    return className.replace('.', '/');
+  }
+
+  /**
+   * Class file constant pool, re-using identical constants
+   */
+  private static class ConstantPool {
+    private static final int UTF8 = 1;
+    private static final int CLASS = 7;
+    private static final int STRING = 8;
+    private static final int METHOD_REF = 10;
+    private static final int NAME_AND_TYPE = 12;
+
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private final DataOutputStream output = new DataOutputStream(bytes);
+    private final Map<String, Integer> indexes = new HashMap<>();
+    private int nextIndex = 1;
+
+    int addUtf8(String value) throws IOException {
+      Integer index = indexes.get(UTF8 + ":" + value);
+      if (index != null)
+        return index;
+      output.writeByte(UTF8);
+      output.writeUTF(value);
+      return register(UTF8 + ":" + value);
+    }
+
+    int addClass(String internalName) throws IOException {
+      return addReference(CLASS, addUtf8(internalName));
+    }
+
+    int addString(String value) throws IOException {
+      return addReference(STRING, addUtf8(value));
+    }
+
+    int addMethodRef(String owner, String name, String descriptor) throws IOException {
+      return addReference(METHOD_REF, addClass(owner), addNameAndType(name, descriptor));
+    }
+
+    private int addNameAndType(String name, String descriptor) throws IOException {
+      return addReference(NAME_AND_TYPE, addUtf8(name), addUtf8(descriptor));
+    }
+
+    private int addReference(int tag, int... referencedIndexes) throws IOException {
+      String key = tag + ":" + Arrays.toString(referencedIndexes);
+      Integer index = indexes.get(key);
+      if (index != null)
+        return index;
+      output.writeByte(tag);
+      for (int referencedIndex : referencedIndexes)
+        output.writeShort(referencedIndex);
+      return register(key);
+    }
+
+    private int register(String key) {
+      indexes.put(key, nextIndex);
+      return nextIndex++;
+    }
+
+    void write(DataOutputStream classFile) throws IOException {
+      classFile.writeShort(nextIndex);
+      classFile.write(bytes.toByteArray());
+    }
+  }
+}
@@ -0,0 +1,159 @@
+package dev.aspectj.maven.agent_embedder;
+
+import org.apache.maven.plugin.logging.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * JVM-wide heap memory budget for embedding runs, shared by all mojo executions running in the plugin's class loader,
+ * e.g. modules of a parallel reactor build ({@code mvn -T})
+ * <p>
+ * The budget does not measure actual heap usage, but accounts for estimates reserved by each execution before
+ * embedding and released afterwards. An execution exceeding the remaining budget either spills to temporary files or
+ * waits, see {@link MemoryBudgetMode}. An execution never waits, if no other execution holds a reservation, i.e. a
+ * single execution exceeding the whole budget still proceeds instead of waiting forever.
+ * <p>
+ * Executions may pass different limits, e.g. if modules configure different budgets. Each execution compares the total
+ * of all reservations to its own limit.
+ */
+public class MemoryBudget {
+  private static final MemoryBudget INSTANCE = new MemoryBudget();
+  private static final double BYTES_PER_MB = 1024 * 1024;
+
+  private final List<Reservation> reservations = new ArrayList<>();
+  private long reservedBytes;
+
+  /**
+   * @return JVM-wide instance
+   */
+  public static MemoryBudget getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Reserve memory for an embedding run, spilling or waiting, if the budget is exceeded
+   *
+   * @param bytes          estimated heap usage which cannot be spilled to temporary files
+   * @param spillableBytes estimated heap usage which can be spilled to temporary files
+   * @param limit          budget in bytes
+   * @param mode           strategy when exceeding the budget
+   * @param log            log for reporting spilling and waiting
+   *
+   * @return reservation to be closed after embedding
+   */
+  public synchronized Reservation reserve(long bytes, long spillableBytes, long limit, MemoryBudgetMode mode, Log log)
+    throws InterruptedException
+  {
+    boolean spill = false;
+    long requiredBytes = bytes + spillableBytes;
+    if (!fits(requiredBytes, limit) && mode == MemoryBudgetMode.SPILL && spillableBytes > 0) {
+      log.info(
+        "Memory budget exceeded, spilling agent entries to temporary files: " +
+          formatMB(requiredBytes) + " needed, " + formatMB(reservedBytes) + " of " + formatMB(limit) + " reserved"
+      );
+      spill = true;
+      requiredBytes = bytes;
+    }
+    long waitNanos = 0;
+    if (!fits(requiredBytes, limit)) {
+      log.info(
+        "Waiting for memory budget: " +
+          formatMB(requiredBytes) + " needed, " + formatMB(reservedBytes) + " of " + formatMB(limit) + " reserved"
+      );
+      long waitStartNanos = System.nanoTime();
+      while (!fits(requiredBytes, limit))
+        wait();
+      waitNanos = System.nanoTime() - waitStartNanos;
+    }
+    Reservation reservation = new Reservation(requiredBytes, limit, spill, waitNanos);
+    reservations.add(reservation);
+    reservedBytes += requiredBytes;
+    for (Reservation activeReservation : reservations)
+      activeReservation.peakBytes = Math.max(activeReservation.peakBytes, reservedBytes);
+    return reservation;
+  }
+
+  /**
+   * @return total number of bytes currently reserved
+   */
+  public synchronized long getReservedBytes() {
+    return reservedBytes;
+  }
+
+  private boolean fits(long bytes, long limit) {
+    return reservations.isEmpty() || reservedBytes + bytes <= limit;
+  }
+
+  private synchronized void release(Reservation reservation) {
+    if (!reservations.remove(reservation))
+      return;
+    reservedBytes -= reservation.bytes;
+    notifyAll();
+  }
+
+  static String formatMB(long bytes) {
+    return String.format(Locale.ROOT, "%.1f MB", bytes / BYTES_PER_MB);
+  }
+
+  /**
+   * Memory reserved by a single embedding run. Closing it releases the memory.
+   */
+  public class Reservation implements AutoCloseable {
+    private final long bytes;
+    private final long limit;
+    private final boolean spill;
+    private final long waitNanos;
+    private long peakBytes;
+
+    private Reservation(long bytes, long limit, boolean spill, long waitNanos) {
+      this.bytes = bytes;
+      this.limit = limit;
+      this.spill = spill;
+      this.waitNanos = waitNanos;
+    }
+
+    /**
+     * @return reserved bytes
+     */
+    public long getBytes() {
+      return bytes;
+    }
+
+    /**
+     * @return budget in bytes
+     */
+    public long getLimit() {
+      return limit;
+    }
+
+    /**
+     * @return {@code true}, if the embedding run should spill to temporary files
+     */
+    public boolean isSpill() {
+      return spill;
+    }
+
+    /**
+     * @return time spent waiting for the budget
+     */
+    public long getWaitNanos() {
+      return waitNanos;
+    }
+
+    /**
+     * @return peak of the bytes reserved by all executions while this reservation was held
+     */
+    public long getPeakBytes() {
+      synchronized (MemoryBudget.this) {
+        return peakBytes;
+      }
+    }
+
+    @Override
+    public void close() {
+      release(this);
+    }
+  }
+}
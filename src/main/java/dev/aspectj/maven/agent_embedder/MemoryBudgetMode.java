@@ -0,0 +1,17 @@
+package dev.aspectj.maven.agent_embedder;
+
+/**
+ * Strategy for embedding runs exceeding the {@link MemoryBudget memory budget} shared by concurrent executions
+ */
+public enum MemoryBudgetMode {
+  /**
+   * Let the zip file system write new entries to temporary files instead of buffering them on the heap. Agent JARs
+   * read into memory cannot be spilled, so if they alone exceed the remaining budget, wait like {@link #THROTTLE}.
+   */
+  SPILL,
+
+  /**
+   * Wait until concurrent executions have released enough of the budget
+   */
+  THROTTLE
+}
@@ -0,0 +1,180 @@
+package dev.aspectj.maven.agent_embedder;
+
+import dev.aspectj.maven.tools.ZipCentralDirectory;
+import org.apache.maven.plugin.logging.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+import java.util.jar.Manifest;
+
+import static dev.aspectj.maven.agent_embedder.AgentEmbedderMojo.MANIFEST_PATH;
+import static dev.aspectj.maven.agent_embedder.AgentEmbedderMojo.ManifestUpdater.MANIFEST_HEADER_MULTI_RELEASE;
+
+/**
+ * Merges the versioned entries of Multi-Release agent JARs into the executable JAR
+ * <p>
+ * Classes in {@code META-INF/versions/N} are only used by the JVM, if the manifest of the JAR containing them has a
+ * {@code Multi-Release: true} attribute. When started via {@code -javaagent}, an agent JAR's own manifest is what
+ * counts. After embedding, it is the executable JAR's manifest. Therefore, this class
+ * <ul>
+ *   <li>
+ *     drops versioned entries of agent JARs which are not Multi-Release JARs, because the JVM would never use them
+ *     anyway,
+ *   </li>
+ *   <li>
+ *     optionally drops versioned entries of Multi-Release agent JARs which would never be used on any JVM version in a
+ *     target runtime range, because either they are for newer JVMs or another version shadows them,
+ *   </li>
+ *   <li>
+ *     determines whether the executable JAR needs to become a Multi-Release JAR, see
+ *     {@link #isMultiReleaseRequired()}.
+ *   </li>
+ * </ul>
+ * Base entries, i.e. entries outside of {@code META-INF/versions}, are always kept.
+ */
+public class MultiReleaseMerger {
+  private static final String VERSIONS_PREFIX = "META-INF/versions/";
+
+  private final Log log;
+  private final Integer minVersion;
+  private final Integer maxVersion;
+  private boolean multiReleaseRequired;
+
+  /**
+   * @param log        Maven log
+   * @param minVersion lowest JVM feature version the executable JAR is going to run on, or {@code null} for no limit
+   * @param maxVersion highest JVM feature version the executable JAR is going to run on, or {@code null} for no limit
+   */
+  public MultiReleaseMerger(Log log, Integer minVersion, Integer maxVersion) {
+    this.log = log;
+    this.minVersion = minVersion;
+    this.maxVersion = maxVersion;
+  }
+
+  /**
+   * @param agentJar agent JAR, possibly already restricted to a subset of its entries
+   *
+   * @return agent JAR restricted to the base entries and the versioned entries used in the target runtime range
+   */
+  public AgentJar merge(AgentJar agentJar) throws IOException {
+    List<ZipCentralDirectory.Entry> entries = agentJar.getEntries();
+    boolean multiRelease = isMultiRelease(agentJar.getZip());
+
+    // Base entry name -> versions available for it
+    Map<String, TreeSet<Integer>> entryVersions = new HashMap<>();
+    for (ZipCentralDirectory.Entry entry : entries) {
+      VersionedName versionedName = VersionedName.of(entry.getName());
+      if (versionedName != null && !entry.isDirectory())
+        entryVersions.computeIfAbsent(versionedName.baseName, name -> new TreeSet<>()).add(versionedName.version);
+    }
+    if (entryVersions.isEmpty())
+      return agentJar;
+
+    Set<String> includedEntryNames = new HashSet<>();
+    Set<String> includedVersionDirectories = new HashSet<>();
+    int droppedEntries = 0;
+    for (ZipCentralDirectory.Entry entry : entries) {
+      VersionedName versionedName = VersionedName.of(entry.getName());
+      if (versionedName == null || entry.isDirectory()) {
+        includedEntryNames.add(entry.getName());
+        continue;
+      }
+      if (multiRelease && isUsedInTargetRange(versionedName, entryVersions.get(versionedName.baseName))) {
+        includedEntryNames.add(entry.getName());
+        for (int index = entry.getName().lastIndexOf('/'); index > 0; index = entry.getName().lastIndexOf('/', index - 1))
+          includedVersionDirectories.add(entry.getName().substring(0, index + 1));
+      }
+      else
+        droppedEntries++;
+    }
+    // Drop directories of versions without any remaining entries
+    includedEntryNames.removeIf(
+      name -> name.startsWith(VERSIONS_PREFIX) && name.endsWith("/") && !includedVersionDirectories.contains(name)
+    );
+
+    if (multiRelease && droppedEntries < entryVersions.values().stream().mapToInt(Set::size).sum())
+      multiReleaseRequired = true;
+    if (droppedEntries > 0) {
+      log.info(
+        "Dropping " + droppedEntries + " versioned entries of " + (multiRelease ? "" : "non-") +
+          "Multi-Release agent JAR " + agentJar.getLocation() +
+          (multiRelease ? " not used in target runtime range" : ", which the JVM would never use")
+      );
+    }
+    return agentJar.withIncludedEntryNames(includedEntryNames);
+  }
+
+  /**
+   * @return {@code true}, if any versioned entries of Multi-Release agent JARs have been kept, i.e. the executable JAR
+   * needs a {@code Multi-Release: true} manifest attribute
+   */
+  public boolean isMultiReleaseRequired() {
+    return multiReleaseRequired;
+  }
+
+  /**
+   * A versioned entry for version {@code v} is used by JVMs of versions {@code v} up to right before the next higher
+   * version available for the same entry. It is used in the target runtime range, if that interval overlaps with it.
+   */
+  private boolean isUsedInTargetRange(VersionedName versionedName, TreeSet<Integer> versions) {
+    if (maxVersion != null && versionedName.version > maxVersion)
+      return false;
+    Integer nextVersion = versions.higher(versionedName.version);
+    return minVersion == null || nextVersion == null || nextVersion > minVersion;
+  }
+
+  /**
+   * @param zip JAR file
+   *
+   * @return {@code true}, if the JAR manifest contains a {@code Multi-Release: true} attribute
+   */
+  public static boolean isMultiRelease(ZipCentralDirectory zip) throws IOException {
+    ZipCentralDirectory.Entry manifestEntry = zip.getEntry(MANIFEST_PATH);
+    if (manifestEntry == null)
+      return false;
+    try (InputStream manifestInput = zip.getInputStream(manifestEntry)) {
+      String multiRelease = new Manifest(manifestInput).getMainAttributes().getValue(MANIFEST_HEADER_MULTI_RELEASE);
+      return multiRelease != null && Boolean.parseBoolean(multiRelease.trim());
+    }
+  }
+
+  /**
+   * @param zip JAR file
+   *
+   * @return {@code true}, if the JAR contains versioned entries, no matter if it is a Multi-Release JAR
+   */
+  public static boolean hasVersionedEntries(ZipCentralDirectory zip) {
+    return zip.getEntries().stream().anyMatch(entry -> !entry.isDirectory() && VersionedName.of(entry.getName()) != null);
+  }
+
+  private static class VersionedName {
+    private final int version;
+    private final String baseName;
+
+    private VersionedName(int version, String baseName) {
+      this.version = version;
+      this.baseName = baseName;
+    }
+
+    /**
+     * @return versioned name or {@code null}, if the entry is not contained in a {@code META-INF/versions/N} directory
+     */
+    static VersionedName of(String entryName) {
+      if (!entryName.startsWith(VERSIONS_PREFIX))
+        return null;
+      int versionEndIndex = entryName.indexOf('/', VERSIONS_PREFIX.length());
+      if (versionEndIndex < 0)
+        return null;
+      try {
+        return new VersionedName(
+          Integer.parseInt(entryName.substring(VERSIONS_PREFIX.length(), versionEndIndex)),
+          entryName.substring(versionEndIndex + 1)
+        );
+      }
+      catch (NumberFormatException e) {
+        return null;
+      }
+    }
+  }
+}
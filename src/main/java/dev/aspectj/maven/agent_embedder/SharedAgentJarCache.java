@@ -0,0 +1,206 @@
+package dev.aspectj.maven.agent_embedder;
+
+import dev.aspectj.maven.tools.ZipCentralDirectory;
+
+import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * JVM-wide in-memory cache of agent JAR metadata, shared by all mojo executions running in the plugin's class loader,
+ * e.g. modules of a parallel reactor build ({@code mvn -T}) or subsequent builds in a Maven daemon like mvnd
+ * <p>
+ * Each cached agent JAR consists of its parsed central directory entries and its {@link AgentJarMetadata}, i.e. the
+ * agent class from its manifest and data filled in later by shrinking and deduplication. The agent JAR content itself
+ * is not cached, each execution reads it again and releases it when done, as accounted for by {@link MemoryBudget}.
+ * Agent JARs are keyed by path, file size and modification time, so a changed file is parsed again.
+ * <p>
+ * The cache is thread-safe. If several threads request the same agent JAR concurrently, only one of them parses it,
+ * the others wait for the result. The number of cached agent JARs is bounded. When exceeded, the least recently used
+ * agent JARs are evicted.
+ */
+public class SharedAgentJarCache {
+  /**
+   * Maximum number of agent JARs whose metadata is kept in memory by the JVM-wide instance
+   */
+  public static final int DEFAULT_MAX_AGENT_JARS = 64;
+
+  private static final SharedAgentJarCache INSTANCE = new SharedAgentJarCache(DEFAULT_MAX_AGENT_JARS);
+
+  private final int maxAgentJars;
+  // Access-ordered, i.e. least recently used entries come first
+  private final Map<Key, FutureTask<CachedAgentJar>> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+  /**
+   * Parses an agent JAR on a cache miss
+   */
+  @FunctionalInterface
+  public interface Loader {
+    /**
+     * @return metadata of the agent JAR read from the file system
+     */
+    CachedAgentJar load() throws IOException;
+  }
+
+  /**
+   * @param maxAgentJars maximum number of cached agent JARs
+   */
+  public SharedAgentJarCache(int maxAgentJars) {
+    this.maxAgentJars = maxAgentJars;
+  }
+
+  /**
+   * @return JVM-wide instance
+   */
+  public static SharedAgentJarCache getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * @param agentJarPath agent JAR path
+   * @param loader       loader parsing the agent JAR on a cache miss
+   *
+   * @return cached or freshly loaded agent JAR metadata
+   */
+  public CachedAgentJar get(Path agentJarPath, Loader loader) throws IOException {
+    Key key = Key.of(agentJarPath);
+    FutureTask<CachedAgentJar> task;
+    boolean loading = false;
+    synchronized (this) {
+      task = entries.get(key);
+      if (task == null) {
+        task = new FutureTask<>(loader::load);
+        entries.put(key, task);
+        loading = true;
+      }
+    }
+    if (loading)
+      task.run();
+
+    CachedAgentJar agentJar;
+    try {
+      agentJar = task.get();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for agent JAR " + agentJarPath, e);
+    }
+    catch (ExecutionException e) {
+      synchronized (this) {
+        entries.remove(key, task);
+      }
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException)
+        throw (IOException) cause;
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException) cause;
+      throw new IOException("Cannot read agent JAR " + agentJarPath, cause);
+    }
+
+    if (loading) {
+      synchronized (this) {
+        evict();
+      }
+    }
+    return agentJar;
+  }
+
+  /**
+   * @return number of cached agent JARs, including ones still being parsed
+   */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /**
+   * Remove all cached agent JARs
+   */
+  public synchronized void clear() {
+    entries.entrySet().removeIf(entry -> entry.getValue().isDone());
+  }
+
+  private void evict() {
+    int removable = entries.size() - maxAgentJars;
+    Iterator<FutureTask<CachedAgentJar>> tasks = entries.values().iterator();
+    while (removable > 0 && tasks.hasNext()) {
+      // Agent JARs still being parsed are removed by the thread parsing them, if parsing fails
+      if (tasks.next().isDone()) {
+        tasks.remove();
+        removable--;
+      }
+    }
+  }
+
+  /**
+   * Agent JAR metadata, shareable between threads
+   */
+  public static class CachedAgentJar {
+    private final List<ZipCentralDirectory.Entry> entries;
+    private final AgentJarMetadata metadata;
+
+    /**
+     * @param entries  agent JAR entries, see {@link ZipCentralDirectory#of(byte[], List)}
+     * @param metadata agent JAR metadata
+     */
+    public CachedAgentJar(List<ZipCentralDirectory.Entry> entries, AgentJarMetadata metadata) {
+      this.entries = entries;
+      this.metadata = metadata;
+    }
+
+    public List<ZipCentralDirectory.Entry> getEntries() {
+      return entries;
+    }
+
+    public AgentJarMetadata getMetadata() {
+      return metadata;
+    }
+  }
+
+  private static class Key {
+    // Compared by identity, distinguishing equal paths on different in-memory file systems
+    private final FileSystem fileSystem;
+    private final String path;
+    private final long size;
+    private final long lastModified;
+
+    private Key(FileSystem fileSystem, String path, long size, long lastModified) {
+      this.fileSystem = fileSystem;
+      this.path = path;
+      this.size = size;
+      this.lastModified = lastModified;
+    }
+
+    static Key of(Path path) throws IOException {
+      Path absolutePath = path.toAbsolutePath().normalize();
+      BasicFileAttributes attributes = Files.readAttributes(absolutePath, BasicFileAttributes.class);
+      return new Key(
+        absolutePath.getFileSystem(), absolutePath.toString(), attributes.size(), attributes.lastModifiedTime().toMillis()
+      );
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o)
+        return true;
+      if (o == null || getClass() != o.getClass())
+        return false;
+      Key key = (Key) o;
+      return fileSystem == key.fileSystem && size == key.size && lastModified == key.lastModified &&
+        path.equals(key.path);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(System.identityHashCode(fileSystem), path, size, lastModified);
+    }
+  }
+}
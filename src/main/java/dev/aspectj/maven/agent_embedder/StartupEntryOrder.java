@@ -0,0 +1,172 @@
+package dev.aspectj.maven.agent_embedder;
+
+import dev.aspectj.maven.tools.ZipCentralDirectory;
+import org.apache.maven.plugin.logging.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+
+import static dev.aspectj.maven.agent_embedder.AgentEmbedderMojo.CLASS_DIRECTORIES;
+import static dev.aspectj.maven.agent_embedder.AgentEmbedderMojo.MANIFEST_PATH;
+
+/**
+ * Determines the order of the entries to be placed at the beginning of an executable JAR, in order to make the JVM
+ * read them sequentially during startup
+ * <p>
+ * The directory {@code META-INF/} and the manifest always come first, because the JVM reads the manifest before
+ * anything else, and {@link java.util.jar.JarInputStream} expects to find it there. They are followed by
+ * <ul>
+ *   <li>
+ *     the classes named in a recorded class-loading list, if any, in the order they were loaded. Class files in
+ *     {@code BOOT-INF/classes} and {@code WEB-INF/classes} are found, too.
+ *   </li>
+ *   <li>
+ *     the launcher agent classes, the agent classes and the other classes of each agent JAR, the main class and the
+ *     other classes in its package, as a heuristic for classes missing in the class-loading list. For Spring Boot
+ *     executable JARs, the {@code Start-Class} is treated like the main class.
+ *   </li>
+ * </ul>
+ * All other entries keep their original order behind those.
+ */
+public class StartupEntryOrder {
+  private static final String CLASS_SUFFIX = ".class";
+  private static final List<String> MAIN_CLASS_HEADERS = Arrays.asList("Main-Class", "Start-Class");
+
+  private final Log log;
+  private final List<String> loadedClasses;
+
+  /**
+   * @param log           Maven log
+   * @param loadedClasses internal names of classes in the order they were loaded, or {@code null} for using the
+   *                      heuristic only
+   */
+  public StartupEntryOrder(Log log, List<String> loadedClasses) {
+    this.log = log;
+    this.loadedClasses = loadedClasses;
+  }
+
+  /**
+   * Read a class-loading list, as written by {@code -XX:DumpLoadedClassList=<file>}, e.g. by the {@code app-cds} goal,
+   * or by {@code -Xlog:class+load:file=<file>}. Comments, CDS directives like {@code @lambda-proxy} and class loading
+   * details following the class names are ignored.
+   *
+   * @param classList class-loading list
+   *
+   * @return internal names of the classes in the order they were loaded
+   */
+  public static List<String> readClassList(Path classList) throws IOException {
+    List<String> loadedClasses = new ArrayList<>();
+    for (String line : Files.readAllLines(classList, StandardCharsets.UTF_8)) {
+      line = line.trim();
+      // Unified logging decorations like '[0.015s][info][class,load]'
+      while (line.startsWith("[") && line.indexOf(']') > 0)
+        line = line.substring(line.indexOf(']') + 1).trim();
+      if (line.isEmpty() || line.startsWith("#") || line.startsWith("@"))
+        continue;
+      int separatorIndex = line.indexOf(' ');
+      loadedClasses.add((separatorIndex < 0 ? line : line.substring(0, separatorIndex)).replace('.', '/'));
+    }
+    return loadedClasses;
+  }
+
+  /**
+   * @param artifact            main artifact
+   * @param entryNames          names of all entries to be written
+   * @param launcherEntryNames  names of the launcher agent class entries in the order they are loaded
+   * @param agentJars           agent JARs to be embedded in this order
+   *
+   * @return entry names to be written first, in this order. Entry names not contained are to be written afterwards.
+   */
+  public List<String> getStartupEntryNames(
+    ZipCentralDirectory artifact, Set<String> entryNames, List<String> launcherEntryNames, List<AgentJar> agentJars
+  )
+    throws IOException
+  {
+    Set<String> startupEntryNames = new LinkedHashSet<>();
+    for (String name : Arrays.asList("META-INF/", MANIFEST_PATH)) {
+      if (entryNames.contains(name))
+        startupEntryNames.add(name);
+    }
+
+    int recordedEntryCount = 0;
+    if (loadedClasses != null) {
+      for (String loadedClass : loadedClasses) {
+        String name = findClassEntry(entryNames, loadedClass);
+        if (name != null && startupEntryNames.add(name))
+          recordedEntryCount++;
+      }
+    }
+
+    for (String name : launcherEntryNames) {
+      if (entryNames.contains(name))
+        startupEntryNames.add(name);
+    }
+    for (AgentJar agentJar : agentJars) {
+      String agentClass = agentJar.getAgentInfo().getAgentClass();
+      if (agentClass != null)
+        addIfContained(startupEntryNames, entryNames, agentClass.replace('.', '/') + CLASS_SUFFIX);
+      for (ZipCentralDirectory.Entry entry : agentJar.getEntries()) {
+        if (entry.getName().endsWith(CLASS_SUFFIX))
+          addIfContained(startupEntryNames, entryNames, entry.getName());
+      }
+    }
+    for (String mainClass : getMainClasses(artifact)) {
+      String name = findClassEntry(entryNames, mainClass);
+      if (name == null)
+        continue;
+      startupEntryNames.add(name);
+      String packagePrefix = name.substring(0, name.lastIndexOf('/') + 1);
+      for (ZipCentralDirectory.Entry entry : artifact.getEntries()) {
+        String entryName = entry.getName();
+        if (
+          entryName.startsWith(packagePrefix) && entryName.endsWith(CLASS_SUFFIX) &&
+            entryName.indexOf('/', packagePrefix.length()) < 0
+        )
+          addIfContained(startupEntryNames, entryNames, entryName);
+      }
+    }
+
+    log.info(
+      "Ordering " + startupEntryNames.size() + " entries for startup" +
+        (loadedClasses == null ? "" : ", " + recordedEntryCount + " of them from class-loading list")
+    );
+    return new ArrayList<>(startupEntryNames);
+  }
+
+  private static void addIfContained(Set<String> startupEntryNames, Set<String> entryNames, String name) {
+    if (entryNames.contains(name))
+      startupEntryNames.add(name);
+  }
+
+  private static String findClassEntry(Set<String> entryNames, String className) {
+    String classFileName = className.replace('.', '/') + CLASS_SUFFIX;
+    for (String classDirectory : CLASS_DIRECTORIES) {
+      if (entryNames.contains(classDirectory + classFileName))
+        return classDirectory + classFileName;
+    }
+    return null;
+  }
+
+  private static List<String> getMainClasses(ZipCentralDirectory artifact) throws IOException {
+    List<String> mainClasses = new ArrayList<>();
+    ZipCentralDirectory.Entry manifestEntry = artifact.getEntry(MANIFEST_PATH);
+    if (manifestEntry == null)
+      return mainClasses;
+    Attributes mainAttributes;
+    try (InputStream manifestInput = artifact.getInputStream(manifestEntry)) {
+      mainAttributes = new Manifest(manifestInput).getMainAttributes();
+    }
+    for (String header : MAIN_CLASS_HEADERS) {
+      String mainClass = mainAttributes.getValue(header);
+      if (mainClass != null)
+        mainClasses.add(mainClass.trim());
+    }
+    return mainClasses;
+  }
+}
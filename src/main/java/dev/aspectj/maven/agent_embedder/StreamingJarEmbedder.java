@@ -0,0 +1,428 @@
+package dev.aspectj.maven.agent_embedder;
+
+import dev.aspectj.maven.agent_embedder.AgentEmbedderMojo.ManifestUpdater;
+import dev.aspectj.maven.agent_embedder.AgentEmbedderMojo.NoExecutableJarException;
+import dev.aspectj.maven.agent_embedder.CompressionPolicy.Compression;
+import dev.aspectj.maven.agent_embedder.EmbeddingReport.Phase;
+import dev.aspectj.maven.tools.RawZipOutputStream;
+import dev.aspectj.maven.tools.ZipCentralDirectory;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import static dev.aspectj.maven.agent_embedder.AgentEmbedderMojo.MANIFEST_PATH;
+import static dev.aspectj.maven.agent_embedder.AgentEmbedderMojo.NESTED_AGENT_JAR_DIRECTORY;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Embeds java agents into an executable JAR in a single sequential pass
+ * <p>
+ * In contrast to {@link AgentEmbedderMojo#embedUsingZipFS(Path)}, which modifies the main artifact in place and lets
+ * the JDK zip file system rewrite the whole archive when closing it, this engine reads the original artifact and each
+ * agent JAR exactly once and writes a new artifact next to the original one. All modifications are applied as stream
+ * transforms while copying:
+ * <ul>
+ *   <li>the manifest is replaced by the updated one,</li>
+ *   <li>versioned agent entries not used in the target runtime range are skipped,</li>
+ *   <li>the launcher agent class and, if requested, the generated launcher agent class are added or replaced,</li>
+ *   <li>nested agent JARs are dropped, if {@link AgentEmbedderMojo#removeEmbeddedAgents} is active,</li>
+ *   <li>redundant nested JARs are dropped, if {@link AgentEmbedderMojo#deduplication} is {@code REMOVE},</li>
+ *   <li>agent JAR entries not yet contained in the artifact are appended,</li>
+ *   <li>instead of agent JAR entries, agent JARs not yet nested inside the artifact are appended as a whole, if
+ *   {@link AgentEmbedderMojo#agentLoading} is {@code NESTED},</li>
+ *   <li>entries needed during JVM startup are moved to the front, if {@link AgentEmbedderMojo#entryOrder} is
+ *   {@code STARTUP},</li>
+ *   <li>agent entries are recompressed according to {@link AgentEmbedderMojo#compression}.</li>
+ * </ul>
+ * Entries are transferred in their compressed form without inflating and re-deflating them. Finally, the new artifact
+ * replaces the original one.
+ */
+public class StreamingJarEmbedder {
+  // Nested agent JARs are stored uncompressed, so the launcher agent can map them from the artifact
+  private static final Compression NESTED_AGENT_JAR_COMPRESSION = Compression.parse("nested agent JARs", "STORED");
+
+  private final AgentEmbedderMojo mojo;
+  private final Log log;
+
+  public StreamingJarEmbedder(AgentEmbedderMojo mojo) {
+    this.mojo = mojo;
+    this.log = mojo.getLog();
+  }
+
+  public void embed(Path artifactPath) throws IOException, MojoExecutionException, NoExecutableJarException {
+    Path tempPath = writeTempArtifact(artifactPath);
+    try (EmbeddingReport.Timer ignored = mojo.report.start(Phase.ARCHIVE_WRITE)) {
+      // Only replace the artifact after closing it, because replacing an open file fails on some platforms
+      Files.move(tempPath, artifactPath, REPLACE_EXISTING);
+    }
+    finally {
+      Files.deleteIfExists(tempPath);
+    }
+  }
+
+  /**
+   * Write the artifact with embedded agents to a temporary file next to the original artifact
+   *
+   * @return temporary file, to be moved or deleted by the caller
+   */
+  private Path writeTempArtifact(Path artifactPath)
+    throws IOException, MojoExecutionException, NoExecutableJarException
+  {
+    try (ZipCentralDirectory artifact = ZipCentralDirectory.open(artifactPath)) {
+      ZipCentralDirectory.Entry manifestEntry = artifact.getEntry(MANIFEST_PATH);
+      if (manifestEntry == null)
+        throw new NoExecutableJarException("missing manifest file '" + MANIFEST_PATH + "'");
+      ManifestUpdater manifestUpdater;
+      try (InputStream manifestInput = artifact.getInputStream(manifestEntry)) {
+        manifestUpdater = mojo.new ManifestUpdater(manifestInput);
+      }
+
+      log.info("Embedding java agents");
+      ArtifactEmbeddedJarLocator embeddedJarLocator = new ArtifactEmbeddedJarLocator(artifact);
+      List<AgentJar> agentJars = new AgentJarReader(mojo, embeddedJarLocator).readAll(mojo.javaAgents);
+      // Agent JARs to be unpacked or, if agents are loaded from nested JARs, to be added as nested JARs
+      List<AgentJar> unpackedAgentJars = Collections.emptyList();
+      Map<String, AgentJar> addedAgentJars = Collections.emptyMap();
+      if (mojo.agentLoading == AgentLoading.NESTED)
+        addedAgentJars = locateNestedAgentJars(embeddedJarLocator, agentJars);
+      else {
+        agentJars = mojo.mergeMultiReleaseAgentJars(mojo.shrinkAgentJars(agentJars, artifact), artifact);
+        unpackedAgentJars = agentJars;
+      }
+      Set<String> removedEntryNames = new HashSet<>();
+      try (EmbeddingReport.Timer ignored = mojo.report.start(Phase.NESTED_JAR_REMOVAL)) {
+        for (AgentJar agentJar : agentJars) {
+          String embeddedAgentJarName = agentJar.getEmbeddedAgentJarName();
+          if (embeddedAgentJarName != null && removedEntryNames.add(embeddedAgentJarName))
+            log.info("Removing embedded java agent: /" + embeddedAgentJarName);
+        }
+      }
+      Set<String> duplicateJarNames =
+        new EntryDeduplicator(log, mojo.deduplication).deduplicate(artifact, unpackedAgentJars, removedEntryNames);
+      if (mojo.nestedAgentJarNames != null)
+        duplicateJarNames.removeAll(mojo.nestedAgentJarNames);
+      removedEntryNames.addAll(duplicateJarNames);
+      mojo.storeAgentMetadata(agentJars);
+
+      ArtifactWriter artifactWriter = new ArtifactWriter();
+      artifactWriter.plan(artifact, manifestUpdater, agentJars, unpackedAgentJars, addedAgentJars, removedEntryNames);
+      Path targetDir = artifactPath.toAbsolutePath().getParent();
+      Path tempPath = Files.createTempFile(targetDir, artifactPath.getFileName().toString(), ".tmp");
+      try (EmbeddingReport.Timer timer = mojo.report.start(Phase.ARCHIVE_WRITE)) {
+        try (RawZipOutputStream output = new RawZipOutputStream(Files.newOutputStream(tempPath))) {
+          artifactWriter.write(artifact, output);
+        }
+        timer.getMetrics().addBytesRead(Files.size(artifactPath));
+        timer.getMetrics().addBytesWritten(Files.size(tempPath));
+      }
+      catch (IOException | RuntimeException | Error e) {
+        Files.deleteIfExists(tempPath);
+        throw e;
+      }
+      return tempPath;
+    }
+  }
+
+  /**
+   * Determine the nested JAR each agent is loaded from at runtime and record it in
+   * {@link AgentEmbedderMojo#nestedAgentJarNames}. Agent JARs already nested inside the artifact are used in place,
+   * other ones are going to be added to {@link AgentEmbedderMojo#NESTED_AGENT_JAR_DIRECTORY}.
+   *
+   * @param embeddedJarLocator locator for agent JARs nested inside the artifact
+   * @param agentJars          agent JARs in agent order
+   *
+   * @return agent JARs to be added, keyed by nested JAR name
+   */
+  private Map<String, AgentJar> locateNestedAgentJars(
+    ArtifactEmbeddedJarLocator embeddedJarLocator, List<AgentJar> agentJars
+  )
+  {
+    List<String> nestedAgentJarNames = new ArrayList<>();
+    Map<String, AgentJar> addedAgentJars = new LinkedHashMap<>();
+    for (AgentJar agentJar : agentJars) {
+      String nestedAgentJarName = embeddedJarLocator.find(agentJar.getLocation());
+      if (nestedAgentJarName == null) {
+        String fileName = mojo.hostFS.getPath(agentJar.getLocation()).getFileName().toString();
+        nestedAgentJarName = NESTED_AGENT_JAR_DIRECTORY + fileName;
+        // Several agents can share an agent JAR, but different agent JARs of the same name must not collide
+        AgentJar addedAgentJar = addedAgentJars.get(nestedAgentJarName);
+        if (addedAgentJar != null && !addedAgentJar.getLocation().equals(agentJar.getLocation()))
+          nestedAgentJarName = NESTED_AGENT_JAR_DIRECTORY + (nestedAgentJarNames.size() + 1) + "/" + fileName;
+        addedAgentJars.putIfAbsent(nestedAgentJarName, agentJar);
+      }
+      log.info(
+        "Loading java agent " + agentJar.getAgentInfo().getAgentClass() + " from nested JAR /" + nestedAgentJarName
+      );
+      nestedAgentJarNames.add(nestedAgentJarName);
+    }
+    mojo.nestedAgentJarNames = nestedAgentJarNames;
+    return addedAgentJars;
+  }
+
+  /**
+   * Finds and reads nested agent JARs inside the artifact via its central directory
+   */
+  protected static class ArtifactEmbeddedJarLocator implements AgentJarReader.EmbeddedJarLocator {
+    private final ZipCentralDirectory artifact;
+    private final ArtifactIndex artifactIndex;
+
+    public ArtifactEmbeddedJarLocator(ZipCentralDirectory artifact) {
+      this.artifact = artifact;
+      this.artifactIndex = ArtifactIndex.of(artifact);
+    }
+
+    @Override
+    public String find(String agentPath) {
+      return artifactIndex.findNestedJar(agentPath);
+    }
+
+    @Override
+    public byte[] read(String name) throws IOException {
+      return artifact.readAllBytes(artifact.getEntry(name));
+    }
+  }
+
+  /**
+   * Writes the new artifact, keeping track of entries already present in order to emulate the zip file system
+   * engine's semantics: Existing entries are never overwritten by agent entries, and the first agent providing an
+   * entry wins.
+   * <p>
+   * Entries from the original artifact and from agent JARs are transferred in their raw, compressed form, keeping
+   * CRCs, sizes and compression methods. Only the manifest and the launcher agent class are actually compressed,
+   * unless {@link AgentEmbedderMojo#compression} demands recompressing agent entries.
+   * <p>
+   * All entries are planned before writing any of them, so they can be reordered according to
+   * {@link AgentEmbedderMojo#entryOrder}.
+   */
+  private class ArtifactWriter {
+    private final CompressionPolicy compressionPolicy =
+      mojo.compression == null ? new CompressionPolicy() : mojo.compression;
+    private final List<PlannedEntry> plannedEntries = new ArrayList<>();
+    private final Set<String> writtenEntryNames = new HashSet<>();
+    private final Set<String> implicitDirectoryNames = new HashSet<>();
+
+    void plan(
+      ZipCentralDirectory artifact, ManifestUpdater manifestUpdater, List<AgentJar> agentJars,
+      List<AgentJar> unpackedAgentJars, Map<String, AgentJar> addedAgentJars, Set<String> removedEntryNames
+    )
+      throws IOException, MojoExecutionException
+    {
+      // Launcher agent classes replace existing entries of the same name
+      Map<String, byte[]> launcherClasses = new LinkedHashMap<>();
+      try (EmbeddingReport.Timer timer = mojo.report.start(Phase.LAUNCHER_EMBEDDING)) {
+        if (mojo.isGeneratedLauncherUsed())
+          launcherClasses.put(LauncherClassGenerator.RESOURCE_NAME, new LauncherClassGenerator(log).generate(agentJars));
+        launcherClasses.putAll(mojo.readLauncherAgentClasses());
+        for (byte[] launcherClass : launcherClasses.values()) {
+          timer.getMetrics().addEntriesWritten(1);
+          timer.getMetrics().addBytesWritten(launcherClass.length);
+        }
+      }
+
+      // Added agent JARs replace existing entries of the same name, e.g. from a previous embedding run
+      Map<String, byte[]> agentJarContents = new LinkedHashMap<>();
+      try (EmbeddingReport.Timer timer = mojo.report.start(Phase.UNPACKING)) {
+        for (Map.Entry<String, AgentJar> addedAgentJar : addedAgentJars.entrySet()) {
+          log.debug("Adding nested agent JAR: /" + addedAgentJar.getKey());
+          byte[] agentJarContent = Files.readAllBytes(mojo.hostFS.getPath(addedAgentJar.getValue().getLocation()));
+          agentJarContents.put(addedAgentJar.getKey(), agentJarContent);
+          timer.getMetrics().addEntriesWritten(1);
+          timer.getMetrics().addBytesRead(agentJarContent.length);
+          timer.getMetrics().addBytesWritten(agentJarContent.length);
+        }
+      }
+
+      EmbeddingReport.PhaseMetrics removalMetrics = mojo.report.get(Phase.NESTED_JAR_REMOVAL);
+      removalMetrics.addEntriesScanned(removedEntryNames.size());
+      for (ZipCentralDirectory.Entry entry : artifact.getEntries()) {
+        String name = entry.getName();
+        if (removedEntryNames.contains(name)) {
+          removalMetrics.addEntriesWritten(1);
+          continue;
+        }
+        if (writtenEntryNames.contains(name)) {
+          log.warn("Skipping duplicate artifact entry " + name);
+          continue;
+        }
+        if (name.equals(MANIFEST_PATH)) {
+          ByteArrayOutputStream manifestOut = new ByteArrayOutputStream();
+          manifestUpdater.update(manifestOut);
+          planEntry(name, getTime(entry.getTime()), manifestOut.toByteArray(), compressionPolicy.getManifest());
+        }
+        else if (launcherClasses.containsKey(name))
+          planEntry(name, getTime(entry.getTime()), launcherClasses.get(name), compressionPolicy.getLauncherClasses());
+        else if (agentJarContents.containsKey(name))
+          planEntry(name, getTime(entry.getTime()), agentJarContents.get(name), NESTED_AGENT_JAR_COMPRESSION);
+        else
+          planEntry(artifact, entry, entry.getTime(), Compression.KEEP);
+      }
+
+      for (Map.Entry<String, byte[]> launcherClass : launcherClasses.entrySet()) {
+        String launcherName = launcherClass.getKey();
+        if (!writtenEntryNames.contains(launcherName)) {
+          planParentDirectories(launcherName);
+          planEntry(
+            launcherName, getTime(mojo.clock.millis()), launcherClass.getValue(),
+            compressionPolicy.getLauncherClasses()
+          );
+        }
+      }
+
+      for (Map.Entry<String, byte[]> agentJarContent : agentJarContents.entrySet()) {
+        String agentJarName = agentJarContent.getKey();
+        if (!writtenEntryNames.contains(agentJarName)) {
+          planParentDirectories(agentJarName);
+          planEntry(
+            agentJarName, getTime(mojo.clock.millis()), agentJarContent.getValue(), NESTED_AGENT_JAR_COMPRESSION
+          );
+        }
+      }
+
+      try (EmbeddingReport.Timer timer = mojo.report.start(Phase.UNPACKING)) {
+        EmbeddingReport.PhaseMetrics metrics = timer.getMetrics();
+        for (AgentJar agentJar : unpackedAgentJars) {
+          for (ZipCentralDirectory.Entry entry : agentJar.getEntries()) {
+            metrics.addEntriesScanned(1);
+            // Do not overwrite existing files, especially META-INF/MANIFEST.MF
+            if (isPresent(entry.getName())) {
+              metrics.addEntriesSkipped(1);
+              continue;
+            }
+            log.debug("Unpacking: /" + entry.getName());
+            Compression compression = entry.isDirectory() ? Compression.KEEP
+              : entry.getName().endsWith(".class") ? compressionPolicy.getAgentClasses()
+              : compressionPolicy.getAgentResources();
+            planEntry(agentJar.getZip(), entry, getTime(entry.getTime()), compression);
+            metrics.addEntriesWritten(1);
+            metrics.addBytesRead(entry.getCompressedSize());
+            metrics.addBytesWritten(entry.getSize());
+          }
+        }
+      }
+
+      if (mojo.entryOrder == EntryOrder.STARTUP)
+        sortForStartup(artifact, new ArrayList<>(launcherClasses.keySet()), unpackedAgentJars);
+    }
+
+    void write(ZipCentralDirectory artifact, RawZipOutputStream output) throws IOException {
+      // Keep launch scripts in front of the first entry, e.g. for Spring Boot fully executable JARs
+      byte[] preamble = artifact.readPreamble();
+      if (preamble.length > 0)
+        output.writePreamble(preamble);
+      for (PlannedEntry plannedEntry : plannedEntries)
+        plannedEntry.write(output);
+      mojo.report.get(Phase.ARCHIVE_WRITE).addEntriesWritten(plannedEntries.size());
+    }
+
+    private void sortForStartup(ZipCentralDirectory artifact, List<String> launcherEntryNames, List<AgentJar> agentJars)
+      throws IOException
+    {
+      List<String> loadedClasses = null;
+      Path startupClassListPath = mojo.getStartupClassListPath();
+      if (startupClassListPath != null)
+        loadedClasses = StartupEntryOrder.readClassList(startupClassListPath);
+      else if (mojo.startupClassList != null)
+        log.warn("Startup class list " + mojo.startupClassList + " not found, using heuristic entry order");
+      List<String> startupEntryNames = new StartupEntryOrder(log, loadedClasses)
+        .getStartupEntryNames(artifact, writtenEntryNames, launcherEntryNames, agentJars);
+      Map<String, Integer> ranks = new HashMap<>();
+      for (String name : startupEntryNames)
+        ranks.put(name, ranks.size());
+      // Stable sort, i.e. all other entries keep their relative order
+      plannedEntries.sort(
+        Comparator.comparingInt(plannedEntry -> ranks.getOrDefault(plannedEntry.name, Integer.MAX_VALUE))
+      );
+    }
+
+    /**
+     * @param defaultTime time stamp to be used, unless {@link AgentEmbedderMojo#outputTimestamp} is set
+     *
+     * @return time stamp for an entry written or modified by the plugin
+     */
+    private long getTime(long defaultTime) {
+      return mojo.outputTime == null ? defaultTime : mojo.outputTime;
+    }
+
+    private void planEntry(
+      ZipCentralDirectory zip, ZipCentralDirectory.Entry entry, long time, Compression compression
+    )
+    {
+      plannedEntries.add(new PlannedEntry(entry.getName(), zip, entry, time, null, compression));
+      registerEntry(entry.getName());
+    }
+
+    private void planEntry(String name, long time, byte[] content, Compression compression) {
+      plannedEntries.add(new PlannedEntry(name, null, null, time, content, compression));
+      registerEntry(name);
+    }
+
+    private void planParentDirectories(String name) {
+      int separatorIndex = name.indexOf('/');
+      while (separatorIndex > 0) {
+        String directoryName = name.substring(0, separatorIndex + 1);
+        if (!isPresent(directoryName)) {
+          plannedEntries.add(
+            new PlannedEntry(directoryName, null, null, getTime(mojo.clock.millis()), null, Compression.KEEP)
+          );
+          registerEntry(directoryName);
+        }
+        separatorIndex = name.indexOf('/', separatorIndex + 1);
+      }
+    }
+
+    private boolean isPresent(String name) {
+      return writtenEntryNames.contains(name) || implicitDirectoryNames.contains(name);
+    }
+
+    private void registerEntry(String name) {
+      writtenEntryNames.add(name);
+      // Parent directories exist implicitly, even if the archive contains no explicit directory entries for them
+      for (int i = name.lastIndexOf('/', name.length() - 2); i > 0; i = name.lastIndexOf('/', i - 1))
+        implicitDirectoryNames.add(name.substring(0, i + 1));
+    }
+  }
+
+  /**
+   * Entry to be written to the new artifact: either copied from a source archive, written from in-memory content or,
+   * if there is neither, written as a directory. Entries from source archives are copied raw, unless a specific
+   * compression is requested.
+   */
+  private static class PlannedEntry {
+    private final String name;
+    private final ZipCentralDirectory zip;
+    private final ZipCentralDirectory.Entry entry;
+    private final long time;
+    private final byte[] content;
+    private final Compression compression;
+
+    PlannedEntry(
+      String name, ZipCentralDirectory zip, ZipCentralDirectory.Entry entry, long time, byte[] content,
+      Compression compression
+    )
+    {
+      this.name = name;
+      this.zip = zip;
+      this.entry = entry;
+      this.time = time;
+      this.content = content;
+      this.compression = compression;
+    }
+
+    void write(RawZipOutputStream output) throws IOException {
+      if (zip != null && compression.isKeep() && time == entry.getTime())
+        output.putRawEntry(zip, entry);
+      else if (zip != null && compression.isKeep())
+        output.putRawEntry(zip, entry, time);
+      else if (zip != null)
+        output.putEntry(name, time, zip.readAllBytes(entry), compression.getMethod(), compression.getLevel());
+      else if (content != null)
+        output.putEntry(name, time, content, compression.getMethod(), compression.getLevel());
+      else
+        output.putDirectory(name, time);
+    }
+  }
+}
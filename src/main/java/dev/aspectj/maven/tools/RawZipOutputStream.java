@@ -0,0 +1,380 @@
+package dev.aspectj.maven.tools;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import static java.util.zip.ZipEntry.DEFLATED;
+import static java.util.zip.ZipEntry.STORED;
+
+/**
+ * Minimal ZIP archive writer, capable of transferring entries from another archive in their raw, i.e. still compressed
+ * form
+ * <p>
+ * {@link java.util.zip.ZipOutputStream} always (re-)compresses entry data. When copying entries from one archive into
+ * another, this means inflating and deflating each entry, which costs a lot of CPU time for big archives. This class
+ * copies compressed entry data byte for byte instead, together with their CRCs, sizes and compression methods.
+ * <p>
+ * Entries are always written with known sizes, i.e. without data descriptors. ZIP64 extensions are used whenever
+ * necessary, i.e. for more than 65,535 entries or for sizes and offsets exceeding 4 GB.
+ */
+public class RawZipOutputStream implements Closeable {
+  private static final int LOC_SIGNATURE = 0x04034b50;
+  private static final int CEN_SIGNATURE = 0x02014b50;
+  private static final int END_SIGNATURE = 0x06054b50;
+  private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+  private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+  private static final int ZIP64_EXTRA_ID = 0x0001;
+  private static final int EXTRA_ID_NTFS = 0x000a;
+  private static final int EXTRA_ID_EXTENDED_TIMESTAMP = 0x5455;
+
+  private static final int VERSION_DEFAULT = 20;
+  private static final int VERSION_ZIP64 = 45;
+  private static final int FLAG_DATA_DESCRIPTOR = 0x08;
+  private static final int FLAG_UTF8 = 0x800;
+  private static final long ZIP32_LIMIT = 0xFFFFFFFFL;
+  private static final int ZIP32_ENTRY_LIMIT = 0xFFFF;
+
+  private final CountingOutputStream output;
+  private final List<CentralEntry> centralEntries = new ArrayList<>();
+  private final byte[] buffer = new byte[64 * 1024];
+  private boolean finished;
+
+  public RawZipOutputStream(OutputStream output) {
+    this.output = new CountingOutputStream(output instanceof BufferedOutputStream ? output : new BufferedOutputStream(output, 64 * 1024));
+  }
+
+  /**
+   * Write data in front of the first entry, e.g. a launch script. Must be called before writing any entries.
+   *
+   * @param preamble data to be written verbatim
+   */
+  public void writePreamble(byte[] preamble) throws IOException {
+    if (!centralEntries.isEmpty())
+      throw new IllegalStateException("Preamble must be written before any entries");
+    output.write(preamble);
+  }
+
+  /**
+   * Copy an entry from another archive without inflating and deflating it
+   *
+   * @param source source archive
+   * @param entry  entry belonging to the source archive
+   */
+  public void putRawEntry(ZipCentralDirectory source, ZipCentralDirectory.Entry entry) throws IOException {
+    putRawEntry(source, entry, entry.getDosTime(), entry.getExtra());
+  }
+
+  /**
+   * Copy an entry from another archive without inflating and deflating it, replacing its last modification time.
+   * Extra fields containing additional time stamps are dropped, so they cannot contradict the new time.
+   *
+   * @param source source archive
+   * @param entry  entry belonging to the source archive
+   * @param time   last modification time in milliseconds since the epoch
+   */
+  public void putRawEntry(ZipCentralDirectory source, ZipCentralDirectory.Entry entry, long time) throws IOException {
+    putRawEntry(source, entry, toDosTime(time), removeTimeExtraFields(entry.getExtra()));
+  }
+
+  private void putRawEntry(ZipCentralDirectory source, ZipCentralDirectory.Entry entry, int dosTime, byte[] extra)
+    throws IOException
+  {
+    CentralEntry centralEntry = new CentralEntry(
+      entry.getName(), entry.getFlags() & ~FLAG_DATA_DESCRIPTOR, entry.getMethod(), dosTime,
+      entry.getCrc(), entry.getCompressedSize(), entry.getSize()
+    );
+    centralEntry.versionMadeBy = entry.getVersionMadeBy();
+    centralEntry.externalAttributes = entry.getExternalAttributes();
+    centralEntry.extra = extra;
+    centralEntry.comment = entry.getComment();
+    writeLocalHeader(centralEntry);
+    try (InputStream input = source.getRawInputStream(entry)) {
+      int bytesRead;
+      while ((bytesRead = input.read(buffer)) != -1)
+        output.write(buffer, 0, bytesRead);
+    }
+  }
+
+  /**
+   * Write an entry, compressing its content with the default compression level
+   *
+   * @param name    entry name
+   * @param time    last modification time in milliseconds since the epoch
+   * @param content uncompressed entry content
+   */
+  public void putEntry(String name, long time, byte[] content) throws IOException {
+    putEntry(name, time, content, DEFLATED, Deflater.DEFAULT_COMPRESSION);
+  }
+
+  /**
+   * Write an entry with a specific compression method and level
+   *
+   * @param name    entry name
+   * @param time    last modification time in milliseconds since the epoch
+   * @param content uncompressed entry content
+   * @param method  {@link java.util.zip.ZipEntry#STORED} or {@link java.util.zip.ZipEntry#DEFLATED}
+   * @param level   deflater compression level, ignored for stored entries
+   */
+  public void putEntry(String name, long time, byte[] content, int method, int level) throws IOException {
+    CRC32 crc = new CRC32();
+    crc.update(content, 0, content.length);
+    byte[] data = content;
+    if (method == DEFLATED) {
+      Deflater deflater = new Deflater(level, true);
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(64, content.length / 2));
+      try (DeflaterOutputStream deflaterOutput = new DeflaterOutputStream(compressed, deflater, 8192)) {
+        deflaterOutput.write(content);
+      }
+      finally {
+        deflater.end();
+      }
+      data = compressed.toByteArray();
+    }
+    else if (method != STORED)
+      throw new IllegalArgumentException("Unsupported compression method " + method);
+
+    CentralEntry centralEntry = new CentralEntry(
+      name, getUtf8Flag(name), method, toDosTime(time), (int) crc.getValue(), data.length, content.length
+    );
+    writeLocalHeader(centralEntry);
+    output.write(data);
+  }
+
+  /**
+   * Write a directory entry
+   *
+   * @param name directory name, ending with a slash
+   * @param time last modification time in milliseconds since the epoch
+   */
+  public void putDirectory(String name, long time) throws IOException {
+    if (!name.endsWith("/"))
+      throw new IllegalArgumentException("Directory name must end with '/': " + name);
+    writeLocalHeader(new CentralEntry(name, getUtf8Flag(name), STORED, toDosTime(time), 0, 0, 0));
+  }
+
+  /**
+   * Write the central directory. Called automatically by {@link #close()}.
+   */
+  public void finish() throws IOException {
+    if (finished)
+      return;
+    finished = true;
+    long directoryOffset = output.getCount();
+    for (CentralEntry entry : centralEntries)
+      writeCentralHeader(entry);
+    long directorySize = output.getCount() - directoryOffset;
+    long entryCount = centralEntries.size();
+
+    boolean zip64 = entryCount > ZIP32_ENTRY_LIMIT || directoryOffset >= ZIP32_LIMIT || directorySize >= ZIP32_LIMIT;
+    if (zip64) {
+      long zip64EndOffset = output.getCount();
+      ByteBuffer zip64End = newBuffer(56);
+      zip64End.putInt(ZIP64_END_SIGNATURE).putLong(44)
+        .putShort((short) VERSION_ZIP64).putShort((short) VERSION_ZIP64)
+        .putInt(0).putInt(0)
+        .putLong(entryCount).putLong(entryCount)
+        .putLong(directorySize).putLong(directoryOffset);
+      output.write(zip64End.array());
+      ByteBuffer locator = newBuffer(20);
+      locator.putInt(ZIP64_LOCATOR_SIGNATURE).putInt(0).putLong(zip64EndOffset).putInt(1);
+      output.write(locator.array());
+    }
+    ByteBuffer end = newBuffer(22);
+    end.putInt(END_SIGNATURE).putShort((short) 0).putShort((short) 0)
+      .putShort((short) Math.min(entryCount, ZIP32_ENTRY_LIMIT))
+      .putShort((short) Math.min(entryCount, ZIP32_ENTRY_LIMIT))
+      .putInt((int) Math.min(directorySize, ZIP32_LIMIT))
+      .putInt((int) Math.min(directoryOffset, ZIP32_LIMIT))
+      .putShort((short) 0);
+    output.write(end.array());
+    output.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      finish();
+    }
+    finally {
+      output.close();
+    }
+  }
+
+  /**
+   * @return number of bytes written so far
+   */
+  public long getBytesWritten() {
+    return output.getCount();
+  }
+
+  /**
+   * Convert a Java time stamp to MS-DOS date and time in the default time zone, like {@link java.util.zip.ZipEntry}
+   * does
+   *
+   * @param time milliseconds since the epoch
+   *
+   * @return MS-DOS date and time
+   */
+  public static int toDosTime(long time) {
+    LocalDateTime dateTime = LocalDateTime.ofInstant(java.time.Instant.ofEpochMilli(time), ZoneId.systemDefault());
+    int year = dateTime.getYear();
+    if (year < 1980)
+      return (1 << 21) | (1 << 16);
+    return (year - 1980) << 25 | dateTime.getMonthValue() << 21 | dateTime.getDayOfMonth() << 16 |
+      dateTime.getHour() << 11 | dateTime.getMinute() << 5 | dateTime.getSecond() >> 1;
+  }
+
+  private void writeLocalHeader(CentralEntry entry) throws IOException {
+    if (finished)
+      throw new IllegalStateException("Archive already finished");
+    entry.localHeaderOffset = output.getCount();
+    centralEntries.add(entry);
+
+    boolean zip64 = entry.size >= ZIP32_LIMIT || entry.compressedSize >= ZIP32_LIMIT;
+    byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+    int extraLength = entry.extra.length + (zip64 ? 20 : 0);
+    ByteBuffer header = newBuffer(30 + name.length + extraLength);
+    header.putInt(LOC_SIGNATURE)
+      .putShort((short) (zip64 ? VERSION_ZIP64 : VERSION_DEFAULT))
+      .putShort((short) entry.flags)
+      .putShort((short) entry.method)
+      .putInt(entry.dosTime)
+      .putInt(entry.crc)
+      .putInt((int) (zip64 ? ZIP32_LIMIT : entry.compressedSize))
+      .putInt((int) (zip64 ? ZIP32_LIMIT : entry.size))
+      .putShort((short) name.length)
+      .putShort((short) extraLength)
+      .put(name);
+    if (zip64)
+      header.putShort((short) ZIP64_EXTRA_ID).putShort((short) 16).putLong(entry.size).putLong(entry.compressedSize);
+    header.put(entry.extra);
+    output.write(header.array());
+  }
+
+  private void writeCentralHeader(CentralEntry entry) throws IOException {
+    byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+    boolean sizeOverflow = entry.size >= ZIP32_LIMIT;
+    boolean compressedSizeOverflow = entry.compressedSize >= ZIP32_LIMIT;
+    boolean offsetOverflow = entry.localHeaderOffset >= ZIP32_LIMIT;
+    int zip64DataLength = (sizeOverflow ? 8 : 0) + (compressedSizeOverflow ? 8 : 0) + (offsetOverflow ? 8 : 0);
+    int extraLength = entry.extra.length + (zip64DataLength > 0 ? 4 + zip64DataLength : 0);
+    int version = zip64DataLength > 0 ? VERSION_ZIP64 : VERSION_DEFAULT;
+
+    ByteBuffer header = newBuffer(46 + name.length + extraLength + entry.comment.length);
+    header.putInt(CEN_SIGNATURE)
+      .putShort((short) (entry.versionMadeBy == 0 ? version : entry.versionMadeBy))
+      .putShort((short) version)
+      .putShort((short) entry.flags)
+      .putShort((short) entry.method)
+      .putInt(entry.dosTime)
+      .putInt(entry.crc)
+      .putInt((int) Math.min(entry.compressedSize, ZIP32_LIMIT))
+      .putInt((int) Math.min(entry.size, ZIP32_LIMIT))
+      .putShort((short) name.length)
+      .putShort((short) extraLength)
+      .putShort((short) entry.comment.length)
+      .putShort((short) 0)
+      .putShort((short) 0)
+      .putInt(entry.externalAttributes)
+      .putInt((int) Math.min(entry.localHeaderOffset, ZIP32_LIMIT))
+      .put(name);
+    if (zip64DataLength > 0) {
+      header.putShort((short) ZIP64_EXTRA_ID).putShort((short) zip64DataLength);
+      if (sizeOverflow)
+        header.putLong(entry.size);
+      if (compressedSizeOverflow)
+        header.putLong(entry.compressedSize);
+      if (offsetOverflow)
+        header.putLong(entry.localHeaderOffset);
+    }
+    header.put(entry.extra).put(entry.comment);
+    output.write(header.array());
+  }
+
+  /**
+   * @return extra field data without NTFS and extended timestamp fields
+   */
+  private static byte[] removeTimeExtraFields(byte[] extra) {
+    ByteBuffer input = ByteBuffer.wrap(extra).order(ByteOrder.LITTLE_ENDIAN);
+    ByteArrayOutputStream output = new ByteArrayOutputStream(extra.length);
+    while (input.remaining() >= 4) {
+      int start = input.position();
+      int headerId = input.getShort() & 0xFFFF;
+      int dataSize = Math.min(input.getShort() & 0xFFFF, input.remaining());
+      input.position(input.position() + dataSize);
+      if (headerId != EXTRA_ID_NTFS && headerId != EXTRA_ID_EXTENDED_TIMESTAMP)
+        output.write(extra, start, 4 + dataSize);
+    }
+    return output.toByteArray();
+  }
+
+  private static int getUtf8Flag(String name) {
+    for (int i = 0; i < name.length(); i++) {
+      if (name.charAt(i) > 0x7F)
+        return FLAG_UTF8;
+    }
+    return 0;
+  }
+
+  private static ByteBuffer newBuffer(int size) {
+    return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  private static class CentralEntry {
+    final String name;
+    final int flags;
+    final int method;
+    final int dosTime;
+    final int crc;
+    final long compressedSize;
+    final long size;
+    long localHeaderOffset;
+    int versionMadeBy;
+    int externalAttributes;
+    byte[] extra = new byte[0];
+    byte[] comment = new byte[0];
+
+    CentralEntry(String name, int flags, int method, int dosTime, int crc, long compressedSize, long size) {
+      this.name = name;
+      this.flags = flags;
+      this.method = method;
+      this.dosTime = dosTime;
+      this.crc = crc;
+      this.compressedSize = compressedSize;
+      this.size = size;
+    }
+  }
+
+  private static class CountingOutputStream extends FilterOutputStream {
+    private long count;
+
+    CountingOutputStream(OutputStream output) {
+      super(output);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      count++;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+      out.write(bytes, offset, length);
+      count += length;
+    }
+
+    long getCount() {
+      return count;
+    }
+  }
+}
@@ -0,0 +1,574 @@
+package dev.aspectj.maven.tools;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+import static java.util.zip.ZipEntry.DEFLATED;
+import static java.util.zip.ZipEntry.STORED;
+
+/**
+ * Read-only view of a ZIP archive, based on its central directory
+ * <p>
+ * In contrast to {@link java.util.zip.ZipFile}, this class does not need the archive to be located on the default file
+ * system, and in contrast to {@link java.util.zip.ZipInputStream}, it knows all entry names, sizes and checksums up
+ * front without reading any entry data. Entry data are read on demand via random access, using the local header offsets
+ * recorded in the central directory.
+ * <p>
+ * The archive can be backed by a {@link SeekableByteChannel}, e.g. a file on any NIO file system, or by an in-memory
+ * byte array, e.g. a nested JAR read from an enclosing archive. ZIP64 archives are supported.
+ */
+public class ZipCentralDirectory implements Closeable {
+  private static final int LOC_SIGNATURE = 0x04034b50;
+  private static final int CEN_SIGNATURE = 0x02014b50;
+  private static final int END_SIGNATURE = 0x06054b50;
+  private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+  private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+  private static final int ZIP64_EXTRA_ID = 0x0001;
+
+  private static final int LOC_HEADER_SIZE = 30;
+  private static final int CEN_HEADER_SIZE = 46;
+  private static final int END_HEADER_SIZE = 22;
+  private static final int ZIP64_END_HEADER_SIZE = 56;
+  private static final int ZIP64_LOCATOR_SIZE = 20;
+  private static final int MAX_COMMENT_SIZE = 0xFFFF;
+
+  private static final int BUFFER_SIZE = 8192;
+
+  private final Source source;
+  private final List<Entry> entries;
+  private final Map<String, Entry> entriesByName;
+  // Offset correction for archives with prepended data, e.g. launch scripts, whose offsets do not account for it
+  private long baseOffset;
+
+  private ZipCentralDirectory(Source source) throws IOException {
+    this.source = source;
+    try {
+      entries = Collections.unmodifiableList(readCentralDirectory());
+    }
+    catch (IOException | RuntimeException e) {
+      source.close();
+      throw e;
+    }
+    entriesByName = indexByName(entries);
+  }
+
+  private ZipCentralDirectory(Source source, List<Entry> entries) {
+    this.source = source;
+    this.entries = entries;
+    entriesByName = indexByName(entries);
+  }
+
+  /**
+   * Opens a ZIP archive located on any NIO file system for random access reading
+   *
+   * @param zipPath path of the ZIP archive
+   *
+   * @return central directory view of the archive, to be closed by the caller
+   *
+   * @throws IOException if the archive cannot be read or is not a valid ZIP archive
+   */
+  public static ZipCentralDirectory open(Path zipPath) throws IOException {
+    return new ZipCentralDirectory(new ChannelSource(Files.newByteChannel(zipPath)));
+  }
+
+  /**
+   * Creates a view of an in-memory ZIP archive, e.g. a nested JAR read from an enclosing archive
+   *
+   * @param zipBytes ZIP archive content
+   *
+   * @return central directory view of the archive
+   *
+   * @throws IOException if the archive is not a valid ZIP archive
+   */
+  public static ZipCentralDirectory of(byte[] zipBytes) throws IOException {
+    return new ZipCentralDirectory(new BufferSource(ByteBuffer.wrap(zipBytes)));
+  }
+
+  /**
+   * Creates a view of an in-memory ZIP archive, reusing the entries of an earlier view of the same archive content
+   * instead of parsing its central directory again
+   *
+   * @param zipBytes ZIP archive content
+   * @param entries  {@link #getEntries() entries} of another view of the same content
+   *
+   * @return central directory view of the archive
+   */
+  public static ZipCentralDirectory of(byte[] zipBytes, List<Entry> entries) {
+    return new ZipCentralDirectory(new BufferSource(ByteBuffer.wrap(zipBytes)), entries);
+  }
+
+  /**
+   * @return all entries in central directory order
+   */
+  public List<Entry> getEntries() {
+    return entries;
+  }
+
+  /**
+   * @param name entry name, e.g. {@code META-INF/MANIFEST.MF}
+   *
+   * @return the first entry with the given name, or {@code null} if none exists
+   */
+  public Entry getEntry(String name) {
+    return entriesByName.get(name);
+  }
+
+  /**
+   * Opens an input stream for an entry's raw content, i.e. still compressed if the entry is compressed. Together with
+   * the entry's CRC, sizes and compression method, this enables copying entries from one archive into another without
+   * inflating and deflating them.
+   *
+   * @param entry entry belonging to this archive
+   *
+   * @return input stream to be closed by the caller
+   *
+   * @throws IOException if the entry cannot be read
+   */
+  public InputStream getRawInputStream(Entry entry) throws IOException {
+    return new SourceInputStream(getDataOffset(entry), entry.getCompressedSize());
+  }
+
+  /**
+   * Reads any data located in front of the first local header, e.g. a launch script making the archive executable on
+   * Unix-like systems
+   *
+   * @return preamble bytes, an empty array if there are none
+   *
+   * @throws IOException if the preamble cannot be read
+   */
+  public byte[] readPreamble() throws IOException {
+    long preambleLength = entries.stream()
+      .mapToLong(Entry::getLocalHeaderOffset)
+      .min()
+      .orElse(0);
+    if (preambleLength > Integer.MAX_VALUE)
+      throw new ZipException("Preamble too big: " + preambleLength + " bytes");
+    byte[] preamble = new byte[(int) preambleLength];
+    source.read(0, ByteBuffer.wrap(preamble));
+    return preamble;
+  }
+
+  /**
+   * Opens an input stream for an entry's uncompressed content
+   *
+   * @param entry entry belonging to this archive
+   *
+   * @return input stream to be closed by the caller
+   *
+   * @throws IOException if the entry cannot be read or uses an unsupported compression method
+   */
+  public InputStream getInputStream(Entry entry) throws IOException {
+    InputStream rawInput = getRawInputStream(entry);
+    switch (entry.getMethod()) {
+      case STORED:
+        return rawInput;
+      case DEFLATED:
+        return new InflaterInputStream(rawInput, new Inflater(true), BUFFER_SIZE) {
+          @Override
+          public void close() throws IOException {
+            // Non-default inflaters are not released by InflaterInputStream itself
+            inf.end();
+            super.close();
+          }
+        };
+      default:
+        throw new ZipException("Unsupported compression method " + entry.getMethod() + " for entry " + entry.getName());
+    }
+  }
+
+  /**
+   * @param entry entry belonging to this archive
+   *
+   * @return the entry's uncompressed content
+   *
+   * @throws IOException if the entry cannot be read or uses an unsupported compression method
+   */
+  public byte[] readAllBytes(Entry entry) throws IOException {
+    if (entry.getSize() > Integer.MAX_VALUE)
+      throw new ZipException("Entry too big to be read into memory: " + entry.getName());
+    byte[] content = new byte[(int) entry.getSize()];
+    try (InputStream input = getInputStream(entry)) {
+      int offset = 0;
+      int bytesRead;
+      while (offset < content.length && (bytesRead = input.read(content, offset, content.length - offset)) != -1)
+        offset += bytesRead;
+      if (offset < content.length)
+        throw new EOFException("Unexpected end of entry " + entry.getName());
+    }
+    return content;
+  }
+
+  @Override
+  public void close() throws IOException {
+    source.close();
+  }
+
+  private static Map<String, Entry> indexByName(List<Entry> entries) {
+    Map<String, Entry> entriesByName = new HashMap<>(entries.size() * 4 / 3 + 1);
+    for (Entry entry : entries)
+      entriesByName.putIfAbsent(entry.getName(), entry);
+    return entriesByName;
+  }
+
+  private long getDataOffset(Entry entry) throws IOException {
+    ByteBuffer header = read(entry.getLocalHeaderOffset(), LOC_HEADER_SIZE);
+    if (header.getInt(0) != LOC_SIGNATURE)
+      throw new ZipException("Invalid local header signature for entry " + entry.getName());
+    return entry.getLocalHeaderOffset() + LOC_HEADER_SIZE + getUnsignedShort(header, 26) + getUnsignedShort(header, 28);
+  }
+
+  private List<Entry> readCentralDirectory() throws IOException {
+    long endOffset = findEndOfCentralDirectory();
+    ByteBuffer end = read(endOffset, END_HEADER_SIZE);
+    long entryCount = getUnsignedShort(end, 10);
+    long directorySize = getUnsignedInt(end, 12);
+    long directoryOffset = getUnsignedInt(end, 16);
+    // If data was prepended without adjusting offsets, e.g. a launch script, the central directory is not where it
+    // claims to be. The difference needs to be added to all offsets.
+    baseOffset = endOffset - directorySize - directoryOffset;
+
+    if (endOffset >= ZIP64_LOCATOR_SIZE + ZIP64_END_HEADER_SIZE) {
+      ByteBuffer locator = read(endOffset - ZIP64_LOCATOR_SIZE, ZIP64_LOCATOR_SIZE);
+      if (locator.getInt(0) == ZIP64_LOCATOR_SIGNATURE) {
+        long zip64EndOffset = endOffset - ZIP64_LOCATOR_SIZE - ZIP64_END_HEADER_SIZE;
+        ByteBuffer zip64End = read(zip64EndOffset, ZIP64_END_HEADER_SIZE);
+        if (zip64End.getInt(0) != ZIP64_END_SIGNATURE)
+          throw new ZipException("Invalid ZIP64 end of central directory signature");
+        entryCount = zip64End.getLong(32);
+        directorySize = zip64End.getLong(40);
+        directoryOffset = zip64End.getLong(48);
+        baseOffset = zip64EndOffset - locator.getLong(8);
+      }
+    }
+    if (baseOffset < 0)
+      throw new ZipException("Invalid central directory offset");
+    if (directorySize > Integer.MAX_VALUE)
+      throw new ZipException("Central directory too big: " + directorySize + " bytes");
+
+    ByteBuffer directory = read(baseOffset + directoryOffset, (int) directorySize);
+    List<Entry> entries = new ArrayList<>((int) Math.min(entryCount, 0xFFFF));
+    int position = 0;
+    for (long i = 0; i < entryCount; i++) {
+      if (directory.getInt(position) != CEN_SIGNATURE)
+        throw new ZipException("Invalid central directory header signature at entry #" + i);
+      int nameLength = getUnsignedShort(directory, position + 28);
+      int extraLength = getUnsignedShort(directory, position + 30);
+      int commentLength = getUnsignedShort(directory, position + 32);
+      byte[] nameBytes = new byte[nameLength];
+      directory.position(position + CEN_HEADER_SIZE);
+      directory.get(nameBytes);
+      byte[] extra = new byte[extraLength];
+      directory.get(extra);
+      byte[] comment = new byte[commentLength];
+      directory.get(comment);
+
+      Entry entry = new Entry(
+        new String(nameBytes, StandardCharsets.UTF_8),
+        getUnsignedShort(directory, position + 8),
+        getUnsignedShort(directory, position + 10),
+        directory.getInt(position + 12),
+        getUnsignedInt(directory, position + 16),
+        getUnsignedInt(directory, position + 20),
+        getUnsignedInt(directory, position + 24),
+        getUnsignedInt(directory, position + 42)
+      );
+      entry.versionMadeBy = getUnsignedShort(directory, position + 4);
+      entry.externalAttributes = directory.getInt(position + 38);
+      entry.comment = comment;
+      entry.applyZip64Extra(extra);
+      entry.localHeaderOffset += baseOffset;
+      entries.add(entry);
+      position += CEN_HEADER_SIZE + nameLength + extraLength + commentLength;
+    }
+    return entries;
+  }
+
+  private long findEndOfCentralDirectory() throws IOException {
+    long size = source.size();
+    if (size < END_HEADER_SIZE)
+      throw new ZipException("Not a ZIP archive, too small");
+    int tailSize = (int) Math.min(size, END_HEADER_SIZE + MAX_COMMENT_SIZE);
+    long tailOffset = size - tailSize;
+    ByteBuffer tail = read(tailOffset, tailSize);
+    for (int position = tailSize - END_HEADER_SIZE; position >= 0; position--) {
+      if (tail.getInt(position) == END_SIGNATURE && position + END_HEADER_SIZE + getUnsignedShort(tail, position + 20) == tailSize)
+        return tailOffset + position;
+    }
+    throw new ZipException("Not a ZIP archive, end of central directory not found");
+  }
+
+  private ByteBuffer read(long offset, int length) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+    source.read(offset, buffer);
+    buffer.flip();
+    return buffer;
+  }
+
+  private static int getUnsignedShort(ByteBuffer buffer, int index) {
+    return buffer.getShort(index) & 0xFFFF;
+  }
+
+  private static long getUnsignedInt(ByteBuffer buffer, int index) {
+    return buffer.getInt(index) & 0xFFFFFFFFL;
+  }
+
+  /**
+   * Central directory entry of a ZIP archive
+   */
+  public static class Entry {
+    private final String name;
+    private final int flags;
+    private final int method;
+    private final int dosTime;
+    private final int crc;
+    private long compressedSize;
+    private long size;
+    private long localHeaderOffset;
+    private int versionMadeBy;
+    private int externalAttributes;
+    private byte[] extra = new byte[0];
+    private byte[] comment = new byte[0];
+
+    Entry(String name, int flags, int method, int dosTime, long crc, long compressedSize, long size, long localHeaderOffset) {
+      this.name = name;
+      this.flags = flags;
+      this.method = method;
+      this.dosTime = dosTime;
+      this.crc = (int) crc;
+      this.compressedSize = compressedSize;
+      this.size = size;
+      this.localHeaderOffset = localHeaderOffset;
+    }
+
+    /**
+     * Apply ZIP64 values from the extra field, keeping all other extra field blocks
+     */
+    private void applyZip64Extra(byte[] extra) {
+      ByteBuffer buffer = ByteBuffer.wrap(extra).order(ByteOrder.LITTLE_ENDIAN);
+      ByteBuffer otherBlocks = ByteBuffer.allocate(extra.length);
+      while (buffer.remaining() >= 4) {
+        int start = buffer.position();
+        int id = buffer.getShort() & 0xFFFF;
+        int length = buffer.getShort() & 0xFFFF;
+        if (length > buffer.remaining())
+          break;
+        int next = buffer.position() + length;
+        if (id == ZIP64_EXTRA_ID) {
+          // Only values overflowing in the regular header are present, always in this order
+          if (size == 0xFFFFFFFFL && buffer.position() + 8 <= next)
+            size = buffer.getLong();
+          if (compressedSize == 0xFFFFFFFFL && buffer.position() + 8 <= next)
+            compressedSize = buffer.getLong();
+          if (localHeaderOffset == 0xFFFFFFFFL && buffer.position() + 8 <= next)
+            localHeaderOffset = buffer.getLong();
+        }
+        else
+          otherBlocks.put(extra, start, next - start);
+        buffer.position(next);
+      }
+      this.extra = new byte[otherBlocks.position()];
+      System.arraycopy(otherBlocks.array(), 0, this.extra, 0, this.extra.length);
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * @return last path segment of the entry name, without trailing slash for directories
+     */
+    public String getFileName() {
+      String trimmedName = isDirectory() ? name.substring(0, name.length() - 1) : name;
+      return trimmedName.substring(trimmedName.lastIndexOf('/') + 1);
+    }
+
+    public boolean isDirectory() {
+      return name.endsWith("/");
+    }
+
+    public int getFlags() {
+      return flags;
+    }
+
+    public int getMethod() {
+      return method;
+    }
+
+    public int getDosTime() {
+      return dosTime;
+    }
+
+    /**
+     * @return last modification time in milliseconds since the epoch, interpreting the MS-DOS date and time in the
+     * default time zone like {@link java.util.zip.ZipEntry#getTime()} does
+     */
+    public long getTime() {
+      LocalDateTime dateTime = LocalDateTime.of(
+        ((dosTime >> 25) & 0x7F) + 1980,
+        Math.max(1, Math.min(12, (dosTime >> 21) & 0x0F)),
+        Math.max(1, (dosTime >> 16) & 0x1F),
+        Math.min(23, (dosTime >> 11) & 0x1F),
+        Math.min(59, (dosTime >> 5) & 0x3F),
+        Math.min(59, (dosTime << 1) & 0x3E)
+      );
+      return dateTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    public int getCrc() {
+      return crc;
+    }
+
+    public long getCompressedSize() {
+      return compressedSize;
+    }
+
+    public long getSize() {
+      return size;
+    }
+
+    public long getLocalHeaderOffset() {
+      return localHeaderOffset;
+    }
+
+    public int getVersionMadeBy() {
+      return versionMadeBy;
+    }
+
+    public int getExternalAttributes() {
+      return externalAttributes;
+    }
+
+    /**
+     * @return central directory extra field blocks, except for the ZIP64 block which has already been applied to sizes
+     * and offsets
+     */
+    public byte[] getExtra() {
+      return extra;
+    }
+
+    public byte[] getComment() {
+      return comment;
+    }
+
+    @Override
+    public String toString() {
+      return name;
+    }
+  }
+
+  private interface Source extends Closeable {
+    long size() throws IOException;
+
+    /**
+     * Fills the remaining space of the target buffer with data read from the given position
+     */
+    void read(long position, ByteBuffer target) throws IOException;
+  }
+
+  private static class ChannelSource implements Source {
+    private final SeekableByteChannel channel;
+
+    ChannelSource(SeekableByteChannel channel) {
+      this.channel = channel;
+    }
+
+    @Override
+    public long size() throws IOException {
+      return channel.size();
+    }
+
+    @Override
+    public synchronized void read(long position, ByteBuffer target) throws IOException {
+      channel.position(position);
+      while (target.hasRemaining()) {
+        if (channel.read(target) < 0)
+          throw new EOFException("Unexpected end of ZIP archive");
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+  }
+
+  private static class BufferSource implements Source {
+    private final ByteBuffer buffer;
+
+    BufferSource(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public long size() {
+      return buffer.limit();
+    }
+
+    @Override
+    public void read(long position, ByteBuffer target) throws IOException {
+      if (position < 0 || position + target.remaining() > buffer.limit())
+        throw new EOFException("Unexpected end of ZIP archive");
+      ByteBuffer slice = buffer.duplicate();
+      slice.position((int) position);
+      slice.limit((int) position + target.remaining());
+      target.put(slice);
+    }
+
+    @Override
+    public void close() {}
+  }
+
+  /**
+   * Reads a byte range of the underlying source in chunks
+   */
+  private class SourceInputStream extends InputStream {
+    private long position;
+    private long remaining;
+
+    SourceInputStream(long position, long length) {
+      this.position = position;
+      this.remaining = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] singleByte = new byte[1];
+      return read(singleByte, 0, 1) == -1 ? -1 : singleByte[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] target, int offset, int length) throws IOException {
+      if (remaining <= 0)
+        return -1;
+      int bytesToRead = (int) Math.min(Math.min(length, remaining), BUFFER_SIZE * 8);
+      ByteBuffer buffer = ByteBuffer.wrap(target, offset, bytesToRead);
+      source.read(position, buffer);
+      position += bytesToRead;
+      remaining -= bytesToRead;
+      return bytesToRead;
+    }
+
+    @Override
+    public int available() {
+      return (int) Math.min(remaining, Integer.MAX_VALUE);
+    }
+  }
+}
@@ -9,6 +9,7 @@ import java.nio.file.*;
 import java.nio.file.attribute.UserPrincipalLookupService;
 import java.nio.file.spi.FileSystemProvider;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.zip.ZipOutputStream;
@@ -18,7 +19,8 @@ import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 public class ZipFileSystemTool {
   public final static int JAVA_VERSION_MAJOR = Integer.parseInt(System.getProperty("java.version").split("[.]")[0]);
 
-  private static final Map<String, String> ZIP_FS_CREATE_MODE = Collections.singletonMap("create", "true");
+  private static final Map<String, ?> ZIP_FS_CREATE_MODE = Collections.singletonMap("create", "true");
+  private static final Map<String, ?> ZIP_FS_CREATE_MODE_TEMP_FILES = createTempFileMode();
   private static final MethodHandle newFileSystem_JRE13;
 
   static {
@@ -41,7 +43,37 @@ public class ZipFileSystemTool {
     }
   }
 
+  private static Map<String, ?> createTempFileMode() {
+    Map<String, Object> env = new HashMap<>(ZIP_FS_CREATE_MODE);
+    // JDK 8 zip FS only accepts a boolean, newer JDKs also a string
+    env.put("useTempFile", Boolean.TRUE);
+    return Collections.unmodifiableMap(env);
+  }
+
   public static FileSystem getZipFS(Path jarPath, boolean create) throws IOException {
+    return getZipFS(jarPath, create, false);
+  }
+
+  /**
+   * @param jarPath     zip archive path
+   * @param create      create the zip archive, if it does not exist
+   * @param useTempFile write new or modified entries to temporary files instead of buffering them on the heap until
+   *                    the zip file system is closed, trading I/O for memory
+   *
+   * @return zip file system or {@code null}, if the zip archive does not exist and {@code create} is {@code false}
+   */
+  public static FileSystem getZipFS(Path jarPath, boolean create, boolean useTempFile) throws IOException {
+    return getZipFS(jarPath, create, useTempFile, JAVA_VERSION_MAJOR);
+  }
+
+  /**
+   * Like {@link #getZipFS(Path, boolean, boolean)}, but choosing the way to open the zip FS for the given Java version
+   * instead of the running one, so the choices for older Java versions can be tested on newer ones
+   *
+   * @param javaVersion Java major version, must not be 13+ when running on Java 12 or older
+   */
+  static FileSystem getZipFS(Path jarPath, boolean create, boolean useTempFile, int javaVersion) throws IOException {
+    final Map<String, ?> env = useTempFile ? ZIP_FS_CREATE_MODE_TEMP_FILES : ZIP_FS_CREATE_MODE;
     if (!create && !Files.exists(jarPath))
       return null;
 
@@ -50,9 +82,9 @@ public class ZipFileSystemTool {
       Files.createDirectories(jarPathParent);
 
     // Java 13+ has a new constructor capable of creating a zip FS from a path in create-if-not-exists mode
-    if (JAVA_VERSION_MAJOR >= 13) {
+    if (javaVersion >= 13) {
       try {
-        return (FileSystem) newFileSystem_JRE13.invoke(jarPath, ZIP_FS_CREATE_MODE);
+        return (FileSystem) newFileSystem_JRE13.invoke(jarPath, env);
       }
       catch (WrongMethodTypeException | ClassCastException thrownByMethodHandlerInvocation) {
         // Re-throw exception that can happen in MethodHandle.invoke
@@ -69,17 +101,36 @@ public class ZipFileSystemTool {
 
     // Java 12 can open a zip FS from a path, if the zip archive exists already.
     // Therefore, create an empty zip archive first, if necessary.
-    if (JAVA_VERSION_MAJOR == 12) {
+    if (javaVersion == 12) {
       if (!Files.exists(jarPath))
         try (ZipOutputStream emptyZip = new ZipOutputStream(Files.newOutputStream(jarPath))) {}
+      if (useTempFile && jarPath.getFileSystem() == FileSystems.getDefault())
+        return getZipFSProvider().newFileSystem(jarPath, env);
       //noinspection RedundantCast
       return FileSystems.newFileSystem(jarPath, (ClassLoader) null);
     }
 
+    // On Java <= 11, a zip FS located on the default FS can be opened directly via the zip FS provider, also in
+    // create mode. This avoids copying the whole archive to a temp file and moving it back when closing the zip FS.
+    if (jarPath.getFileSystem() == FileSystems.getDefault())
+      return getZipFSProvider().newFileSystem(jarPath, env);
+
     // On Java <= 11, trying to create a nested zip FS yields a ProviderNotFoundException. Therefore, we need a
     // temporary top-level copy of the zip archive. On Java <= 11, a zip FS also must be located on the default FS.
     // I.e., we also cannot put the temp-file on an in-memory FS. If we wanted to do that, we would have to unpack it.
-    return new VirtualNestedZipFileSystem(jarPath);
+    return new VirtualNestedZipFileSystem(jarPath, env);
+  }
+
+  /**
+   * @return the JDK zip FS provider, which on all JDK versions supports opening zip archives located on the default FS
+   * from a path, also in create mode
+   */
+  public static FileSystemProvider getZipFSProvider() {
+    for (FileSystemProvider provider : FileSystemProvider.installedProviders()) {
+      if ("jar".equalsIgnoreCase(provider.getScheme()))
+        return provider;
+    }
+    throw new ProviderNotFoundException("Zip file system provider not found");
   }
 
   public static class VirtualNestedZipFileSystem extends FileSystem {
@@ -89,6 +140,14 @@ public class ZipFileSystemTool {
     private FileSystem delegate;
 
     public VirtualNestedZipFileSystem(Path zipPath) throws IOException {
+      this(zipPath, Collections.emptyMap());
+    }
+
+    /**
+     * @param zipPath zip archive path
+     * @param env     zip file system provider environment, e.g. {@code useTempFile}
+     */
+    public VirtualNestedZipFileSystem(Path zipPath, Map<String, ?> env) throws IOException {
       this.zipPath = zipPath;
       tempDir = Files.createTempDirectory(null);
       tempFile = tempDir.resolve("temp.zip");
@@ -96,8 +155,8 @@ public class ZipFileSystemTool {
         Files.copy(zipPath, tempFile);
       else
         try (ZipOutputStream emptyZip = new ZipOutputStream(Files.newOutputStream(tempFile))) {}
-      //noinspection RedundantCast
-      delegate = FileSystems.newFileSystem(tempFile, (ClassLoader) null);
+      // The temp file is located on the default FS, so the zip FS provider can open it directly
+      delegate = getZipFSProvider().newFileSystem(tempFile, env);
     }
 
     @Override
@@ -1,7 +1,9 @@
 package dev.aspectj.maven.agent_embedder
 
+import dev.aspectj.maven.tools.ZipCentralDirectory
 import org.apache.maven.artifact.DefaultArtifact
 import org.apache.maven.artifact.handler.ArtifactHandler
+import org.apache.maven.plugin.MojoExecutionException
 import org.apache.maven.plugin.logging.Log
 import org.apache.maven.project.MavenProject
 import spock.lang.Specification
@@ -9,7 +11,14 @@ import spock.lang.Unroll
 
 import java.nio.file.FileSystem
 import java.nio.file.Files
+import java.nio.file.StandardOpenOption
+import java.time.Clock
+import java.time.Instant
+import java.time.ZoneOffset
 import java.util.jar.Manifest
+import java.util.zip.ZipEntry
+import java.util.zip.ZipInputStream
+import java.util.zip.ZipOutputStream
 
 import static dev.aspectj.maven.agent_embedder.JavaAgentLauncher.AGENT_ATTRIBUTES_GROUP
 
@@ -97,7 +106,7 @@ class AgentEmbedderMojoTest extends Specification {
 //    'create no agent JARs'             | false            | false
   }
 
-  @Unroll('#scenario')
+  @Unroll('#scenario (#engine)')
   def 'execute embedder mojo'() {
     given:
     InMemoryFileSystemTool fsTool = new InMemoryFileSystemTool()
@@ -110,7 +119,7 @@ class AgentEmbedderMojoTest extends Specification {
     List<FileInfo> hostFSInfo = fsTool.hostFSInfo
     List<FileInfo> agentFSInfo = fsTool.agentFSInfo
     List<FileInfo> targetFSInfo = fsTool.targetFSInfo
-    AgentEmbedderMojo mojo = new AgentEmbedderMojo(hostFS: hostFS, removeEmbeddedAgents: true, log: log)
+    AgentEmbedderMojo mojo = new AgentEmbedderMojo(hostFS: hostFS, removeEmbeddedAgents: true, engine: engine, log: log)
 
     expect:
     !doCreateAgentJar || hostFSInfo.find { it.path.toString() == fsTool.agentJarLocation1 }
@@ -175,11 +184,824 @@ class AgentEmbedderMojoTest extends Specification {
     hostFS?.close()
 
     where:
-    scenario                           | doCreateAgentJar | doCreateNestedAgentJar
-    'create agent + nested agent JARs' | true             | true
-    'create agent JARs only'           | true             | false
-    'create nested agent JARs only'    | false            | true
-//    'create no agent JARs'             | false            | false
+    scenario                           | doCreateAgentJar | doCreateNestedAgentJar | engine
+    'create agent + nested agent JARs' | true             | true                   | EmbeddingEngine.ZIPFS
+    'create agent JARs only'           | true             | false                  | EmbeddingEngine.ZIPFS
+    'create nested agent JARs only'    | false            | true                   | EmbeddingEngine.ZIPFS
+//    'create no agent JARs'             | false            | false                  | EmbeddingEngine.ZIPFS
+    'create agent + nested agent JARs' | true             | true                   | EmbeddingEngine.STREAMING
+    'create agent JARs only'           | true             | false                  | EmbeddingEngine.STREAMING
+    'create nested agent JARs only'    | false            | true                   | EmbeddingEngine.STREAMING
+  }
+
+  @Unroll('#engine')
+  def 'skip execution if artifact is up to date'() {
+    given:
+    InMemoryFileSystemTool fsTool = new InMemoryFileSystemTool()
+    FileSystem hostFS = fsTool.createHostFS()
+    AgentEmbedderMojo mojo = new AgentEmbedderMojo(hostFS: hostFS, removeEmbeddedAgents: true, engine: engine, log: log)
+    mojo.javaAgents = [
+      new JavaAgentInfo('org.aspectj', 'aspectjweaver', null, null, null, null),
+      new JavaAgentInfo('org.acme', 'my-agent', null, null, 'arg1=one,arg2=two', null)
+    ]
+    mojo.project = createMavenProject(fsTool)
+    def targetJarPath = hostFS.getPath(fsTool.targetJarLocation)
+
+    when: 'embedding agents for the first time'
+    mojo.execute()
+    def embeddedJarHash = EmbeddingFingerprint.sha256(targetJarPath)
+    def agentAttributes = readManifest(fsTool).getAttributes(AGENT_ATTRIBUTES_GROUP)
+
+    then: 'fingerprint is recorded'
+    agentAttributes.getValue('Embedder-Fingerprint') ==~ /[0-9a-f]{64}/
+    1 * log.info('Embedding java agents')
+
+    when: 'executing again with identical configuration'
+    mojo.javaAgents = [
+      new JavaAgentInfo('org.aspectj', 'aspectjweaver', null, null, null, null),
+      new JavaAgentInfo('org.acme', 'my-agent', null, null, 'arg1=one,arg2=two', null)
+    ]
+    mojo.execute()
+
+    then: 'execution is skipped'
+    1 * log.info({ String msg -> msg.startsWith('Java agents already embedded, artifact is up to date') })
+    0 * log.info('Embedding java agents')
+    EmbeddingFingerprint.sha256(targetJarPath) == embeddedJarHash
+
+    when: 'executing again with changed agent arguments'
+    mojo.javaAgents = [
+      new JavaAgentInfo('org.aspectj', 'aspectjweaver', null, null, null, null),
+      new JavaAgentInfo('org.acme', 'my-agent', null, null, 'arg1=three', null)
+    ]
+    mojo.execute()
+
+    then: 'agents are embedded again'
+    1 * log.info('Embedding java agents')
+    readManifest(fsTool).getAttributes(AGENT_ATTRIBUTES_GROUP).getValue('Agent-Args-2') == 'arg1=three'
+
+    cleanup:
+    hostFS?.close()
+
+    where:
+    engine << [EmbeddingEngine.ZIPFS, EmbeddingEngine.STREAMING]
+  }
+
+  @Unroll('#engine')
+  def 'read agent JARs concurrently, applying them in configured order'() {
+    given:
+    InMemoryFileSystemTool fsTool = new InMemoryFileSystemTool()
+    FileSystem hostFS = fsTool.createHostFS()
+    AgentEmbedderMojo mojo = new AgentEmbedderMojo(
+      hostFS: hostFS, removeEmbeddedAgents: true, engine: engine, agentReaderThreads: 2, log: log
+    )
+    mojo.javaAgents = [
+      new JavaAgentInfo('org.acme', 'my-agent', null, null, 'arg1=one,arg2=two', null),
+      new JavaAgentInfo('org.aspectj', 'aspectjweaver', null, null, null, null)
+    ]
+    mojo.project = createMavenProject(fsTool)
+
+    when:
+    mojo.execute()
+    def agentAttributes = readManifest(fsTool).getAttributes(AGENT_ATTRIBUTES_GROUP)
+    def targetFSInfo = fsTool.targetFSInfo
+
+    then:
+    1 * log.info('Processing java agent ' + fsTool.agentJarLocation2)
+
+    then:
+    1 * log.info('Processing java agent ' + fsTool.agentJarLocation1)
+
+    then:
+    1 * log.debug('Reading 2 java agent JARs using 2 threads')
+
+    and:
+    agentAttributes.getValue('Agent-Class-1') == 'org.acme.MyAgent'
+    agentAttributes.getValue('Agent-Args-1') == 'arg1=one,arg2=two'
+    agentAttributes.getValue('Agent-Class-2') == 'org.aspectj.weaver.loadtime.Agent'
+    targetFSInfo.find { it.path.toString() == '/org/aspectj/weaver/loadtime/Agent.class' }
+    targetFSInfo.find { it.path.toString() == '/org/acme/MyAgent.class' }
+    !targetFSInfo.find { it.path.toString() == '/BOOT-INF/lib/aspectjweaver-1.9.21.jar' }
+    !targetFSInfo.find { it.path.toString() == '/BOOT-INF/lib/my-agent-3.5.jar' }
+
+    cleanup:
+    hostFS?.close()
+
+    where:
+    engine << [EmbeddingEngine.ZIPFS, EmbeddingEngine.STREAMING]
+  }
+
+  def 'streaming engine copies compressed entries raw, keeping launch script'() {
+    given:
+    InMemoryFileSystemTool fsTool = new InMemoryFileSystemTool()
+    FileSystem hostFS = fsTool.createHostFS()
+    AgentEmbedderMojo mojo = new AgentEmbedderMojo(
+      hostFS: hostFS, removeEmbeddedAgents: true, engine: EmbeddingEngine.STREAMING, log: log
+    )
+    mojo.javaAgents = [new JavaAgentInfo('org.aspectj', 'aspectjweaver', null, null, null, null)]
+    mojo.project = createMavenProject(fsTool)
+
+    and: 'a launch script in front of the executable JAR'
+    def targetJarPath = hostFS.getPath(fsTool.targetJarLocation)
+    byte[] launchScript = '#!/bin/sh\nexec java -jar "$0" "$@"\n'.bytes
+    byte[] targetJarBytes = Files.readAllBytes(targetJarPath)
+    Files.write(targetJarPath, launchScript)
+    Files.write(targetJarPath, targetJarBytes, StandardOpenOption.APPEND)
+
+    when:
+    mojo.execute()
+
+    then: 'launch script is preserved'
+    try (
+      ZipCentralDirectory targetJar = ZipCentralDirectory.open(targetJarPath)
+      ZipCentralDirectory agentJar = ZipCentralDirectory.open(hostFS.getPath(fsTool.agentJarLocation1))
+    ) {
+      assert targetJar.readPreamble() == launchScript
+      assert targetJar.getEntry('BOOT-INF/lib/aspectjweaver-1.9.21.jar') == null
+
+      and: 'agent entries are identical to the original ones, including their compressed form'
+      def agentEntries = agentJar.entries.findAll { !it.directory && it.name != 'META-INF/MANIFEST.MF' }
+      assert agentEntries
+      agentEntries.every { agentEntry ->
+        def targetEntry = targetJar.getEntry(agentEntry.name)
+        targetEntry.method == agentEntry.method &&
+          targetEntry.crc == agentEntry.crc &&
+          targetEntry.size == agentEntry.size &&
+          targetEntry.compressedSize == agentEntry.compressedSize &&
+          targetJar.getRawInputStream(targetEntry).bytes == agentJar.getRawInputStream(agentEntry).bytes
+      }
+    }
+
+    cleanup:
+    hostFS?.close()
+  }
+
+  @Unroll('#engine')
+  def 'embed generated launcher agent'() {
+    given:
+    InMemoryFileSystemTool fsTool = new InMemoryFileSystemTool()
+    FileSystem hostFS = fsTool.createHostFS()
+    AgentEmbedderMojo mojo = new AgentEmbedderMojo(
+      hostFS: hostFS, removeEmbeddedAgents: true, engine: engine, generateLauncher: true, log: log
+    )
+    mojo.javaAgents = [
+      new JavaAgentInfo('org.aspectj', 'aspectjweaver', null, null, null, null),
+      new JavaAgentInfo('org.acme', 'my-agent', null, null, 'arg1=one,arg2=two', null)
+    ]
+    mojo.project = createMavenProject(fsTool)
+
+    when:
+    mojo.execute()
+    def manifest = readManifest(fsTool)
+    def targetFSInfo = fsTool.targetFSInfo
+
+    then:
+    1 * log.debug("Setting manifest attribute 'Launcher-Agent-Class: " + LauncherClassGenerator.CLASS_NAME + "'")
+    manifest.mainAttributes.getValue('Launcher-Agent-Class') == LauncherClassGenerator.CLASS_NAME
+    targetFSInfo.find { it.path.toString() == '/' + LauncherClassGenerator.RESOURCE_NAME }
+    targetFSInfo.find { it.path.toString() == '/dev/aspectj/maven/agent_embedder/JavaAgentLauncher.class' }
+    targetFSInfo.find { it.path.toString() == '/dev/aspectj/maven/agent_embedder/JavaAgentLauncher$AgentStartupMXBean.class' }
+
+    cleanup:
+    hostFS?.close()
+
+    where:
+    engine << [EmbeddingEngine.ZIPFS, EmbeddingEngine.STREAMING]
+  }
+
+  @Unroll('#engine')
+  def 'shrink agent JARs to reachable classes and keep rules'() {
+    given:
+    InMemoryFileSystemTool fsTool = new InMemoryFileSystemTool()
+    FileSystem hostFS = fsTool.createHostFS()
+    AgentEmbedderMojo mojo = new AgentEmbedderMojo(
+      hostFS: hostFS, removeEmbeddedAgents: true, engine: engine, log: log,
+      shrinkAgents: true, shrinkKeepClasses: ['org.aspectj.weaver.loadtime.definition.*']
+    )
+    mojo.javaAgents = [new JavaAgentInfo('org.aspectj', 'aspectjweaver', null, null, null, null)]
+    mojo.project = createMavenProject(fsTool)
+
+    when:
+    mojo.execute()
+    def targetFSInfo = fsTool.targetFSInfo
+    def embeddedClasses = targetFSInfo*.path*.toString().findAll { it.startsWith('/org/aspectj/') && it.endsWith('.class') }
+
+    then: 'agent class and kept classes are embedded, the others are not'
+    1 * log.info('Shrinking java agent org.aspectj.weaver.loadtime.Agent: keeping 12 of 971 classes')
+    embeddedClasses.contains('/org/aspectj/weaver/loadtime/Agent.class')
+    embeddedClasses.findAll { it.startsWith('/org/aspectj/weaver/loadtime/definition/') }.size() == 11
+    embeddedClasses.size() == 12
+    !targetFSInfo.find { it.path.toString() == '/org/aspectj/weaver/tools/cache/' }
+
+    and: 'resources are embedded'
+    targetFSInfo.find { it.path.toString() == '/org/aspectj/weaver/weaver-messages.properties' }
+
+    cleanup:
+    hostFS?.close()
+
+    where:
+    engine << [EmbeddingEngine.ZIPFS, EmbeddingEngine.STREAMING]
+  }
+
+  @Unroll('#engine')
+  def 'reuse agent metadata from persistent cache'() {
+    given:
+    InMemoryFileSystemTool fsTool = new InMemoryFileSystemTool()
+    FileSystem hostFS = fsTool.createHostFS()
+    File cacheDir = new File('/home/me/.m2/repository/.cache/agent-embedder')
+    def createMojo = {
+      AgentEmbedderMojo mojo = new AgentEmbedderMojo(
+        hostFS: hostFS, removeEmbeddedAgents: true, engine: engine, log: log, upToDateCheck: false,
+        shrinkAgents: true, deduplication: DeduplicationMode.REPORT, agentCacheDirectory: cacheDir
+      )
+      mojo.javaAgents = [new JavaAgentInfo('org.aspectj', 'aspectjweaver', null, null, null, null)]
+      mojo.project = createMavenProject(fsTool)
+      mojo
+    }
+
+    when: 'first run fills the cache'
+    createMojo().execute()
+
+    then:
+    1 * log.debug({ it.startsWith('Agent metadata cache miss for ') })
+    1 * log.debug({ it.startsWith('Stored agent metadata in cache file ') })
+    1 * log.info('Shrinking java agent org.aspectj.weaver.loadtime.Agent: keeping 1 of 971 classes')
+    Files.list(hostFS.getPath(cacheDir.path)).withCloseable { files ->
+      files.filter { it.fileName.toString().endsWith('.bin') }.count() == 1
+    }
+
+    when: 'second run in a fresh JVM reuses the cached metadata, producing the same result'
+    SharedAgentJarCache.instance.clear()
+    createMojo().execute()
+
+    then:
+    1 * log.debug({ it.startsWith('Agent metadata cache hit for ') })
+    0 * log.debug({ it.startsWith('Stored agent metadata in cache file ') })
+    1 * log.info('Shrinking java agent org.aspectj.weaver.loadtime.Agent: keeping 1 of 971 classes')
+    fsTool.targetFSInfo.find { it.path.toString() == '/org/aspectj/weaver/loadtime/Agent.class' }
+
+    cleanup:
+    hostFS?.close()
+
+    where:
+    engine << [EmbeddingEngine.ZIPFS, EmbeddingEngine.STREAMING]
+  }
+
+  @Unroll('#engine')
+  def 'share agent JAR metadata between executions in the same JVM'() {
+    given:
+    InMemoryFileSystemTool fsTool = new InMemoryFileSystemTool()
+    FileSystem hostFS = fsTool.createHostFS()
+    def createMojo = {
+      AgentEmbedderMojo mojo = new AgentEmbedderMojo(
+        hostFS: hostFS, removeEmbeddedAgents: true, engine: engine, log: log, upToDateCheck: false, shrinkAgents: true
+      )
+      mojo.javaAgents = [new JavaAgentInfo('org.aspectj', 'aspectjweaver', null, null, null, null)]
+      mojo.project = createMavenProject(fsTool)
+      mojo
+    }
+
+    when:
+    createMojo().execute()
+
+    then:
+    1 * log.debug({ it.startsWith('Parsing agent JAR ') && it.endsWith(' into shared agent JAR cache') })
+    1 * log.info('Shrinking java agent org.aspectj.weaver.loadtime.Agent: keeping 1 of 971 classes')
+
+    when: 'second execution, e.g. another module, reuses the agent JAR metadata parsed by the first one'
+    createMojo().execute()
+
+    then:
+    0 * log.debug({ it.startsWith('Parsing agent JAR ') })
+    0 * log.debug('Reading agent manifest from path ' + fsTool.agentJarLocation1)
+    1 * log.info('Shrinking java agent org.aspectj.weaver.loadtime.Agent: keeping 1 of 971 classes')
+    fsTool.targetFSInfo.find { it.path.toString() == '/org/aspectj/weaver/loadtime/Agent.class' }
+
+    cleanup:
+    hostFS?.close()
+
+    where:
+    engine << [EmbeddingEngine.ZIPFS, EmbeddingEngine.STREAMING]
+  }
+
+  @Unroll('includes #includes, excludes #excludes')
+  def 'discover java agents among dependencies'() {
+    given:
+    InMemoryFileSystemTool fsTool = new InMemoryFileSystemTool()
+    FileSystem hostFS = fsTool.createHostFS()
+    AgentEmbedderMojo mojo = new AgentEmbedderMojo(
+      hostFS: hostFS, removeEmbeddedAgents: true, log: log, agentReaderThreads: 2,
+      discoverAgents: true, discoveryIncludes: includes, discoveryExcludes: excludes
+    )
+    mojo.javaAgents = [new JavaAgentInfo('org.acme', 'my-agent', null, null, 'arg1=one', null)]
+    DefaultArtifact libraryArtifact = Spy(new DefaultArtifact('org.acme', 'my-library', '1.0', 'compile', 'jar', null, Mock(ArtifactHandler))) {
+      getFile() >> new File(fsTool.targetJarLocation)
+    }
+    MavenProject project = createMavenProject(fsTool)
+    mojo.project = Mock(MavenProject) {
+      getArtifacts() >> project.artifacts + libraryArtifact
+      getArtifact() >> project.artifact
+    }
+
+    when:
+    mojo.execute()
+    def agentAttributes = readManifest(fsTool).getAttributes(AGENT_ATTRIBUTES_GROUP)
+
+    then: 'configured agents come first and are not discovered again'
+    agentAttributes.getValue('Agent-Class-1') == 'org.acme.MyAgent'
+    agentAttributes.getValue('Agent-Args-1') == 'arg1=one'
+    agentAttributes.getValue('Agent-Count') == (weaverDiscovered ? '2' : '1')
+    agentAttributes.getValue('Agent-Class-2') == (weaverDiscovered ? 'org.aspectj.weaver.loadtime.Agent' : null)
+    (weaverDiscovered ? 1 : 0) * log.info('Discovered java agent org.aspectj:aspectjweaver:jar:1.9.21 with agent class org.aspectj.weaver.loadtime.Agent')
+    1 * log.info("Agent discovery: scanned $scanned of 3 dependencies, found ${weaverDiscovered ? 1 : 0} java agents")
+
+    cleanup:
+    hostFS?.close()
+
+    where:
+    includes                   | excludes         | scanned | weaverDiscovered
+    null                       | null             | 2       | true
+    ['org.aspectj']            | null             | 1       | true
+    ['*:aspectj*', 'org.acme'] | ['*:my-library'] | 1       | true
+    null                       | ['org.aspect*']  | 1       | false
+  }
+
+  def 'reject invalid agent discovery pattern'() {
+    given:
+    InMemoryFileSystemTool fsTool = new InMemoryFileSystemTool()
+    FileSystem hostFS = fsTool.createHostFS()
+    AgentEmbedderMojo mojo = new AgentEmbedderMojo(
+      hostFS: hostFS, log: log, discoverAgents: true, discoveryIncludes: ['org.aspectj:aspectjweaver:jar:1.9.21']
+    )
+    mojo.project = createMavenProject(fsTool)
+
+    when:
+    mojo.execute()
+
+    then:
+    MojoExecutionException exception = thrown()
+    exception.message.startsWith("Invalid agent discovery pattern 'org.aspectj:aspectjweaver:jar:1.9.21'")
+
+    cleanup:
+    hostFS?.close()
+  }
+
+  @Unroll('#engine')
+  def 'write embedding report with per-phase metrics'() {
+    given:
+    InMemoryFileSystemTool fsTool = new InMemoryFileSystemTool()
+    FileSystem hostFS = fsTool.createHostFS()
+    File reportFile = new File('/home/me/projects/my-project/target/agent-embedder-report.json')
+    AgentEmbedderMojo mojo = new AgentEmbedderMojo(
+      hostFS: hostFS, removeEmbeddedAgents: true, engine: engine, log: log, reportFile: reportFile
+    )
+    mojo.javaAgents = [new JavaAgentInfo('org.aspectj', 'aspectjweaver', null, null, null, null)]
+    mojo.project = createMavenProject(fsTool)
+
+    when:
+    mojo.execute()
+    String json = new String(Files.readAllBytes(hostFS.getPath(reportFile.path)), 'UTF-8')
+
+    then:
+    1 * log.info({ it.startsWith('Embedding took ') && it.contains(', unpacking ') && it.contains(' MB') })
+    json.contains("\"engine\": \"$engine\"")
+    json.contains('"agentCount": 1')
+    EmbeddingReport.Phase.values().every { json.contains("\"$it.jsonName\": {") }
+    getMetric(json, 'launcherEmbedding', 'entriesWritten') >= 1
+    getMetric(json, 'agentResolution', 'entriesScanned') > 900
+    getMetric(json, 'agentResolution', 'bytesRead') > 0
+    getMetric(json, 'agentClassConfiguration', 'entriesScanned') == 1
+    getMetric(json, 'unpacking', 'entriesWritten') > 900
+    getMetric(json, 'unpacking', 'entriesScanned') ==
+      getMetric(json, 'unpacking', 'entriesWritten') + getMetric(json, 'unpacking', 'entriesSkipped')
+    getMetric(json, 'unpacking', 'bytesRead') > 0
+    getMetric(json, 'nestedJarRemoval', 'entriesWritten') == 1
+    getMetric(json, 'manifestRewrite', 'entriesWritten') == 1
+    getMetric(json, 'archiveWrite', 'bytesWritten') > 0
+    getMetric(json, 'archiveWrite', 'peakHeapBytes') > 0
+
+    cleanup:
+    hostFS?.close()
+
+    where:
+    engine << [EmbeddingEngine.ZIPFS, EmbeddingEngine.STREAMING]
+  }
+
+  @Unroll('#mode')
+  def 'respect memory budget shared with concurrent executions'() {
+    given:
+    InMemoryFileSystemTool fsTool = new InMemoryFileSystemTool()
+    FileSystem hostFS = fsTool.createHostFS()
+    File reportFile = new File('/home/me/projects/my-project/target/agent-embedder-report.json')
+    AgentEmbedderMojo mojo = new AgentEmbedderMojo(
+      hostFS: hostFS, log: log, reportFile: reportFile, memoryBudget: 1, memoryBudgetMode: mode
+    )
+    mojo.javaAgents = [new JavaAgentInfo('org.aspectj', 'aspectjweaver', null, null, null, null)]
+    mojo.project = createMavenProject(fsTool)
+    long agentJarSize = Files.size(hostFS.getPath(fsTool.agentJarLocation1))
+    // Simulate a concurrent execution leaving room for the agent JAR, but not for buffering its entries again
+    def concurrentReservation = MemoryBudget.instance.reserve(
+      1024 * 1024 - agentJarSize - 1024, 0, 1024 * 1024, MemoryBudgetMode.SPILL, log
+    )
+
+    when:
+    if (mode == MemoryBudgetMode.THROTTLE)
+      Thread.start { sleep 200; concurrentReservation.close() }
+    mojo.execute()
+    String json = new String(Files.readAllBytes(hostFS.getPath(reportFile.path)), 'UTF-8')
+
+    then:
+    (mode == MemoryBudgetMode.SPILL ? 1 : 0) * log.info({ it.startsWith('Memory budget exceeded, spilling agent entries') })
+    (mode == MemoryBudgetMode.THROTTLE ? 1 : 0) * log.info({ it.startsWith('Waiting for memory budget: ') })
+    json.contains("\"spilled\": ${mode == MemoryBudgetMode.SPILL}")
+    fsTool.targetFSInfo.find { it.path.toString() == '/org/aspectj/weaver/loadtime/Agent.class' }
+    MemoryBudget.instance.reservedBytes == (mode == MemoryBudgetMode.SPILL ? concurrentReservation.bytes : 0)
+
+    cleanup:
+    concurrentReservation?.close()
+    hostFS?.close()
+
+    where:
+    mode << [MemoryBudgetMode.SPILL, MemoryBudgetMode.THROTTLE]
+  }
+
+  @Unroll('#engine, #mode')
+  def 'report and remove nested JARs duplicated by embedded agent entries'() {
+    given:
+    InMemoryFileSystemTool fsTool = new InMemoryFileSystemTool()
+    FileSystem hostFS = fsTool.createHostFS()
+    AgentEmbedderMojo mojo = new AgentEmbedderMojo(
+      hostFS: hostFS, removeEmbeddedAgents: false, engine: engine, deduplication: mode, log: log
+    )
+    mojo.javaAgents = [
+      new JavaAgentInfo('org.aspectj', 'aspectjweaver', null, null, null, null),
+      new JavaAgentInfo('org.acme', 'my-agent', null, null, null, null)
+    ]
+    mojo.project = createMavenProject(fsTool)
+
+    when:
+    mojo.execute()
+    def targetFSInfo = fsTool.targetFSInfo
+
+    then:
+    1 * log.info({ it.startsWith('Nested JAR BOOT-INF/lib/aspectjweaver-1.9.21.jar: 976 of 976 entries (0 bytes) also exist') })
+    1 * log.info({ it.startsWith('Nested JAR BOOT-INF/lib/my-agent-3.5.jar: 1 of 1 entries (0 bytes) also exist') })
+    1 * log.info({ it.startsWith('Deduplication: found 0 bytes of duplicate content, saved ') })
+    (targetFSInfo.find { it.path.toString() == fsTool.nestedAgentJarLocation1 } == null) == removed
+    (targetFSInfo.find { it.path.toString() == fsTool.nestedAgentJarLocation2 } == null) == removed
+    targetFSInfo.find { it.path.toString() == '/org/aspectj/weaver/loadtime/Agent.class' }
+
+    cleanup:
+    hostFS?.close()
+
+    where:
+    [engine, mode] << [
+      [EmbeddingEngine.ZIPFS, EmbeddingEngine.STREAMING],
+      [DeduplicationMode.REPORT, DeduplicationMode.REMOVE]
+    ].combinations()
+    removed = mode == DeduplicationMode.REMOVE
+  }
+
+  @Unroll('#engine, #agentManifest')
+  def 'merge versioned entries of multi-release agent JARs into executable JAR'() {
+    given:
+    InMemoryFileSystemTool fsTool = new InMemoryFileSystemTool()
+      .agentJarLayoutDescriptor2('src/test/resources/files_my-mr-agent-jar.txt')
+      .agentJarManifest2(agentManifest)
+    FileSystem hostFS = fsTool.createHostFS()
+    AgentEmbedderMojo mojo = new AgentEmbedderMojo(
+      hostFS: hostFS, removeEmbeddedAgents: true, engine: engine, log: log,
+      multiReleaseMinVersion: 17, multiReleaseMaxVersion: 17
+    )
+    mojo.javaAgents = [new JavaAgentInfo('org.acme', 'my-agent', null, null, null, null)]
+    mojo.project = createMavenProject(fsTool)
+
+    when:
+    mojo.execute()
+    def embeddedEntries = fsTool.targetFSInfo*.path*.toString().findAll { it.startsWith('/META-INF/versions/') }
+
+    then: 'base entries are always embedded'
+    fsTool.targetFSInfo.find { it.path.toString() == '/org/acme/MyAgent.class' }
+
+    and: 'for multi-release agents, only versioned entries used in target runtime range are embedded'
+    embeddedEntries.findAll { it.endsWith('.class') } == (multiRelease ? ['/META-INF/versions/17/org/acme/MyAgent.class'] : [])
+    !embeddedEntries.find { it.startsWith('/META-INF/versions/11/') || it.startsWith('/META-INF/versions/21/') }
+    readManifest(fsTool).mainAttributes.getValue('Multi-Release') == (multiRelease ? 'true' : null)
+
+    cleanup:
+    hostFS?.close()
+
+    where:
+    [engine, agentManifest] << [
+      [EmbeddingEngine.ZIPFS, EmbeddingEngine.STREAMING],
+      ['src/test/resources/manifest_my-mr-agent-jar.txt', 'src/test/resources/manifest_my-agent-jar.txt']
+    ].combinations()
+    multiRelease = agentManifest.contains('-mr-')
+  }
+
+  def 'write manifest and startup classes first, using recorded class-loading list'() {
+    given:
+    InMemoryFileSystemTool fsTool = new InMemoryFileSystemTool()
+    FileSystem hostFS = fsTool.createHostFS()
+    AgentEmbedderMojo mojo = new AgentEmbedderMojo(
+      hostFS: hostFS, removeEmbeddedAgents: true, log: log,
+      entryOrder: EntryOrder.STARTUP, startupClassList: new File('/home/me/startup.classlist')
+    )
+    mojo.javaAgents = [new JavaAgentInfo('org.aspectj', 'aspectjweaver', null, null, null, null)]
+    mojo.project = createMavenProject(fsTool)
+
+    and: 'a class-loading list, as written by -XX:DumpLoadedClassList'
+    Files.write(
+      hostFS.getPath('/home/me/startup.classlist'),
+      [
+        '# NOTE: Do not modify this file.',
+        'java/lang/Object id: 0',
+        'org/springframework/boot/loader/Launcher id: 1',
+        '@lambda-proxy org/springframework/boot/loader/Launcher run ()Ljava/lang/Runnable;',
+        'org/aspectj/weaver/loadtime/Options id: 2'
+      ]
+    )
+
+    when:
+    mojo.execute()
+    List<String> entryNames = ZipCentralDirectory.open(hostFS.getPath(fsTool.targetJarLocation)).withCloseable {
+      it.entries*.name
+    }
+
+    then: 'zip file system engine cannot reorder entries'
+    1 * log.info('Entry order STARTUP requires engine STREAMING, using it instead of ZIPFS')
+
+    and: 'manifest, recorded classes, then launcher and agent classes come first'
+    1 * log.info({ it.startsWith('Ordering ') && it.endsWith(' entries for startup, 2 of them from class-loading list') })
+    entryNames.take(5) == [
+      'META-INF/',
+      'META-INF/MANIFEST.MF',
+      'org/springframework/boot/loader/Launcher.class',
+      'org/aspectj/weaver/loadtime/Options.class',
+      JavaAgentLauncher.name.replace('.', '/') + '.class'
+    ]
+    entryNames.indexOf('org/aspectj/weaver/loadtime/Agent.class') < entryNames.indexOf('org/springframework/boot/loader/JarLauncher.class')
+    entryNames.indexOf('org/springframework/boot/loader/JarLauncher.class') < entryNames.indexOf('BOOT-INF/lib/')
+
+    cleanup:
+    hostFS?.close()
+  }
+
+  def 'compress entries according to per-group compression policy'() {
+    given:
+    InMemoryFileSystemTool fsTool = new InMemoryFileSystemTool()
+    FileSystem hostFS = fsTool.createHostFS()
+    AgentEmbedderMojo mojo = new AgentEmbedderMojo(
+      hostFS: hostFS, removeEmbeddedAgents: true, log: log,
+      compression: new CompressionPolicy('DEFLATED:9', 'STORED', 'STORED', 'DEFLATED:9')
+    )
+    mojo.javaAgents = [new JavaAgentInfo('org.aspectj', 'aspectjweaver', null, null, null, null)]
+    mojo.project = createMavenProject(fsTool)
+
+    when:
+    mojo.execute()
+
+    then: 'zip file system engine cannot compress entries individually'
+    1 * log.info('Compression policy requires engine STREAMING, using it instead of ZIPFS')
+
+    and:
+    ZipCentralDirectory.open(hostFS.getPath(fsTool.targetJarLocation)).withCloseable { targetJar ->
+      assert targetJar.getEntry('META-INF/MANIFEST.MF').method == ZipEntry.DEFLATED
+      assert targetJar.getEntry(JavaAgentLauncher.name.replace('.', '/') + '.class').method == ZipEntry.STORED
+      assert targetJar.getEntry('org/aspectj/weaver/loadtime/Agent.class').method == ZipEntry.STORED
+      assert targetJar.getEntry('org/aspectj/weaver/weaver-messages.properties').method == ZipEntry.DEFLATED
+      true
+    }
+
+    cleanup:
+    hostFS?.close()
+  }
+
+  def 'reject invalid compression policy'() {
+    given:
+    AgentEmbedderMojo mojo = new AgentEmbedderMojo(log: log, compression: new CompressionPolicy(null, null, 'ZIP', null))
+    mojo.javaAgents = [new JavaAgentInfo('org.aspectj', 'aspectjweaver', null, null, null, null)]
+
+    when:
+    mojo.execute()
+
+    then:
+    MojoExecutionException exception = thrown()
+    exception.message.startsWith("Invalid compression for agentClasses: 'ZIP'")
+  }
+
+  @Unroll('#engine')
+  def 'produce byte-identical artifacts with output timestamp'() {
+    given:
+    InMemoryFileSystemTool fsTool = new InMemoryFileSystemTool()
+    FileSystem hostFS = fsTool.createHostFS()
+    // Use a fresh mojo for each build, like Maven does, because embedding updates the agent configuration
+    def createMojo = { String buildTime ->
+      AgentEmbedderMojo mojo = new AgentEmbedderMojo(
+        hostFS: hostFS, removeEmbeddedAgents: true, engine: engine, log: log, outputTimestamp: '2024-01-01T00:00:00Z',
+        clock: Clock.fixed(Instant.parse(buildTime), ZoneOffset.UTC)
+      )
+      mojo.javaAgents = [
+        new JavaAgentInfo('org.aspectj', 'aspectjweaver', null, null, null, null),
+        new JavaAgentInfo('org.acme', 'my-agent', null, null, 'arg1=one,arg2=two', null)
+      ]
+      mojo.project = createMavenProject(fsTool)
+      mojo
+    }
+    def targetJarPath = hostFS.getPath(fsTool.targetJarLocation)
+    // Back-date input entries, so entries with the current time can only stem from the build clock
+    byte[] originalTargetJar = backDate(Files.readAllBytes(targetJarPath), Instant.parse('2000-06-01T00:00:00Z'))
+    Files.write(targetJarPath, originalTargetJar)
+
+    when: 'embedding twice into the same input, at different build clock times'
+    createMojo('2030-01-01T00:00:00Z').execute()
+    byte[] firstResult = Files.readAllBytes(targetJarPath)
+    Files.write(targetJarPath, originalTargetJar)
+    createMojo('2030-06-01T12:00:00Z').execute()
+    byte[] secondResult = Files.readAllBytes(targetJarPath)
+
+    then:
+    firstResult == secondResult
+
+    and: 'all entries show either their original time stamp or the output timestamp, never the current time'
+    ZipCentralDirectory.open(targetJarPath).withCloseable { targetJar ->
+      targetJar.entries.every {
+        it.dosTime == ((2024 - 1980) << 25 | 1 << 21 | 1 << 16) || (it.dosTime >>> 25) + 1980 == 2000
+      }
+    }
+
+    and: 'entries written by the plugin show the output timestamp in UTC'
+    ZipCentralDirectory.open(targetJarPath).withCloseable { targetJar ->
+      ['META-INF/MANIFEST.MF', 'org/aspectj/weaver/loadtime/Agent.class', JavaAgentLauncher.name.replace('.', '/') + '.class'].every {
+        targetJar.getEntry(it).dosTime == ((2024 - 1980) << 25 | 1 << 21 | 1 << 16)
+      }
+    }
+
+    cleanup:
+    hostFS?.close()
+
+    where:
+    engine << [EmbeddingEngine.ZIPFS, EmbeddingEngine.STREAMING]
+  }
+
+  private static byte[] backDate(byte[] jar, Instant time) {
+    def output = new ByteArrayOutputStream()
+    new ZipInputStream(new ByteArrayInputStream(jar)).withCloseable { zipInput ->
+      new ZipOutputStream(output).withCloseable { zipOutput ->
+        for (ZipEntry entry = zipInput.nextEntry; entry != null; entry = zipInput.nextEntry) {
+          def backDatedEntry = new ZipEntry(entry.name)
+          backDatedEntry.time = time.toEpochMilli()
+          zipOutput.putNextEntry(backDatedEntry)
+          zipOutput << zipInput
+          zipOutput.closeEntry()
+        }
+      }
+    }
+    output.toByteArray()
+  }
+
+  def 'parse output timestamp'() {
+    expect:
+    AgentEmbedderMojo.parseOutputTimestamp(outputTimestamp) == expectedUtcTime?.with { it - TimeZone.default.getOffset(it) }
+
+    where:
+    outputTimestamp             | expectedUtcTime
+    null                        | null
+    ''                          | null
+    '1'                         | null
+    '1704067200'                | 1704067200000L
+    '2024-01-01T00:00:00Z'      | 1704067200000L
+    '2024-01-01T02:00:00+02:00' | 1704067200000L
+  }
+
+  def 'reject invalid output timestamp'() {
+    when:
+    AgentEmbedderMojo.parseOutputTimestamp('yesterday')
+
+    then:
+    MojoExecutionException exception = thrown()
+    exception.message.startsWith("Invalid output timestamp 'yesterday'")
+  }
+
+  def 'record asynchronous agents and startup groups in manifest'() {
+    given:
+    InMemoryFileSystemTool fsTool = new InMemoryFileSystemTool()
+    FileSystem hostFS = fsTool.createHostFS()
+    AgentEmbedderMojo mojo = new AgentEmbedderMojo(hostFS: hostFS, removeEmbeddedAgents: true, generateLauncher: true, log: log)
+    mojo.javaAgents = [
+      new JavaAgentInfo('org.aspectj', 'aspectjweaver', null, null, null, null),
+      new JavaAgentInfo('org.acme', 'my-agent', null, null, 'arg1=one,arg2=two', null)
+    ]
+    mojo.javaAgents[0].async = true
+    mojo.javaAgents[1].startupGroup = 1
+    mojo.project = createMavenProject(fsTool)
+
+    when:
+    mojo.execute()
+    def manifest = readManifest(fsTool)
+    def agentAttributes = manifest.getAttributes(AGENT_ATTRIBUTES_GROUP)
+
+    then:
+    agentAttributes.getValue('Agent-Async-1') == 'true'
+    agentAttributes.getValue('Agent-Group-1') == null
+    agentAttributes.getValue('Agent-Async-2') == null
+    agentAttributes.getValue('Agent-Group-2') == '1'
+
+    and: 'generated launcher does not support asynchronous agents'
+    1 * log.warn('Generated launcher agent does not support asynchronous agents, using generic launcher agent')
+    manifest.mainAttributes.getValue('Launcher-Agent-Class') == JavaAgentLauncher.name
+
+    cleanup:
+    hostFS?.close()
+  }
+
+  def 'record lazy agent trigger prefixes in manifest'() {
+    given:
+    InMemoryFileSystemTool fsTool = new InMemoryFileSystemTool()
+    FileSystem hostFS = fsTool.createHostFS()
+    AgentEmbedderMojo mojo = new AgentEmbedderMojo(hostFS: hostFS, removeEmbeddedAgents: true, generateLauncher: true, log: log)
+    mojo.javaAgents = [
+      new JavaAgentInfo('org.aspectj', 'aspectjweaver', null, null, null, null),
+      new JavaAgentInfo('org.acme', 'my-agent', null, null, 'arg1=one,arg2=two', null)
+    ]
+    mojo.javaAgents[1].lazyTrigger = ' java.sql., ,org.h2. '
+    mojo.project = createMavenProject(fsTool)
+
+    when:
+    mojo.execute()
+    def manifest = readManifest(fsTool)
+    def agentAttributes = manifest.getAttributes(AGENT_ATTRIBUTES_GROUP)
+
+    then:
+    agentAttributes.getValue('Agent-Lazy-1') == null
+    agentAttributes.getValue('Agent-Lazy-2') == 'java.sql.,org.h2.'
+
+    and: 'launcher agent may retransform classes loaded before a lazy agent starts'
+    manifest.mainAttributes.getValue('Can-Retransform-Classes') == 'true'
+
+    and: 'generated launcher does not support lazy agents'
+    1 * log.warn('Generated launcher agent does not support lazy agents, using generic launcher agent')
+    manifest.mainAttributes.getValue('Launcher-Agent-Class') == JavaAgentLauncher.name
+
+    cleanup:
+    hostFS?.close()
+  }
+
+  def 'load agents from nested JARs instead of unpacking them'() {
+    given: 'agent 1 nested in BOOT-INF/lib, agent 2 only available externally'
+    InMemoryFileSystemTool fsTool = new InMemoryFileSystemTool().doCreateNestedAgentJar2(false)
+    FileSystem hostFS = fsTool.createHostFS()
+    AgentEmbedderMojo mojo = new AgentEmbedderMojo(
+      hostFS: hostFS, removeEmbeddedAgents: true, agentLoading: AgentLoading.NESTED, log: log
+    )
+    mojo.javaAgents = [
+      new JavaAgentInfo('org.aspectj', 'aspectjweaver', null, 'org.aspectj.weaver.loadtime.Agent', null, null),
+      new JavaAgentInfo('org.acme', 'my-agent', null, 'org.acme.MyAgent', 'arg1=one,arg2=two', null)
+    ]
+    mojo.project = createMavenProject(fsTool)
+
+    when:
+    mojo.execute()
+    def agentAttributes = readManifest(fsTool).getAttributes(AGENT_ATTRIBUTES_GROUP)
+    def targetFSInfo = fsTool.targetFSInfo
+
+    then: 'nothing is unpacked'
+    1 * log.info('Agent loading NESTED requires engine STREAMING, using it instead of ZIPFS')
+    !targetFSInfo.find { it.path.toString() == '/org/aspectj/weaver/loadtime/Agent.class' }
+    !targetFSInfo.find { it.path.toString() == '/org/acme/MyAgent.class' }
+    targetFSInfo.find { it.path.toString() == '/dev/aspectj/maven/agent_embedder/JavaAgentLauncher$NestedJarClassLoader.class' }
+
+    and: 'nested agent JAR is kept, external agent JAR is added uncompressed'
+    1 * log.warn('Agent loading NESTED needs the nested agent JARs, ignoring removeEmbeddedAgents')
+    0 * log.info({ it.startsWith('Removing embedded java agent') })
+    try (ZipCentralDirectory targetJar = ZipCentralDirectory.open(hostFS.getPath(fsTool.targetJarLocation))) {
+      assert targetJar.getEntry('BOOT-INF/lib/aspectjweaver-1.9.21.jar') != null
+      def addedAgentJar = targetJar.getEntry('META-INF/agents/my-agent-3.5.jar')
+      assert addedAgentJar.method == ZipEntry.STORED
+      assert targetJar.readAllBytes(addedAgentJar) == Files.readAllBytes(hostFS.getPath(fsTool.agentJarLocation2))
+    }
+
+    and: 'manifest records the nested agent JARs'
+    agentAttributes.getValue('Agent-Jar-1') == 'BOOT-INF/lib/aspectjweaver-1.9.21.jar'
+    agentAttributes.getValue('Agent-Jar-2') == 'META-INF/agents/my-agent-3.5.jar'
+
+    cleanup:
+    hostFS?.close()
+  }
+
+  @Unroll('agent reader threads: configured #configuredThreads, #agentCount agents -> #expectedThreads')
+  def 'agent reader thread count is bounded'() {
+    given:
+    AgentEmbedderMojo mojo = new AgentEmbedderMojo(agentReaderThreads: configuredThreads)
+
+    expect:
+    mojo.getAgentReaderThreads(agentCount) == expectedThreads
+
+    where:
+    configuredThreads | agentCount | expectedThreads
+    1                 | 4          | 1
+    2                 | 4          | 2
+    8                 | 3          | 3
+    4                 | 0          | 1
   }
 
   @Unroll('#scenario')
@@ -204,4 +1026,33 @@ class AgentEmbedderMojoTest extends Specification {
     'backslash separator, mixed path'     | '\\'        | 'c:\\Users\\me\\repository\\org/acme/foo/1.0/foo-1.0.jar'
     'slash separator, mixed path'         | '/'         | 'c:\\Users\\me\\repository\\org/acme/foo/1.0/foo-1.0.jar'
   }
+
+  private MavenProject createMavenProject(InMemoryFileSystemTool fsTool) {
+    DefaultArtifact javaAgentArtifact1 = Spy(new DefaultArtifact('org.aspectj', 'aspectjweaver', '1.9.21', 'compile', 'jar', null, Mock(ArtifactHandler))) {
+      getFile() >> new File(fsTool.agentJarLocation1)
+    }
+    DefaultArtifact javaAgentArtifact2 = Spy(new DefaultArtifact('org.acme', 'my-agent', '3.5', 'compile', 'jar', null, Mock(ArtifactHandler))) {
+      getFile() >> new File(fsTool.agentJarLocation2)
+    }
+    DefaultArtifact buildArtifact = Spy(new DefaultArtifact('dev.aspectj', 'my-project', '1.0', 'compile', 'jar', null, Mock(ArtifactHandler))) {
+      getFile() >> new File(fsTool.targetJarLocation)
+    }
+    Mock(MavenProject) {
+      getArtifacts() >> [javaAgentArtifact1, javaAgentArtifact2]
+      getArtifact() >> buildArtifact
+    }
+  }
+
+  private static long getMetric(String json, String phase, String metric) {
+    String phaseJson = (json =~ /"$phase": \{([^}]*)}/)[0][1]
+    (phaseJson =~ /"$metric": (\d+)/)[0][1] as long
+  }
+
+  private static Manifest readManifest(InMemoryFileSystemTool fsTool) {
+    Manifest manifest = new Manifest()
+    try (FileSystem targetJarFS = fsTool.getTargetJarFS(false)) {
+      manifest.read(Files.newInputStream(targetJarFS.getPath('META-INF/MANIFEST.MF')))
+    }
+    manifest
+  }
 }
@@ -0,0 +1,166 @@
+package dev.aspectj.maven.agent_embedder
+
+import dev.aspectj.maven.tools.ZipCentralDirectory
+import org.apache.maven.plugin.logging.Log
+import spock.lang.Specification
+
+import java.lang.instrument.Instrumentation
+import java.util.zip.ZipEntry
+import java.util.zip.ZipOutputStream
+
+class AgentJarShrinkerTest extends Specification {
+  static final String PACKAGE_DIR = 'dev/aspectj/maven/agent_embedder/'
+
+  Log log = Mock()
+
+  def 'keep classes reachable from agent class, services, keep rules and resources'() {
+    given:
+    ZipCentralDirectory agentZip = ZipCentralDirectory.of(createZip(
+      'META-INF/': null,
+      'META-INF/MANIFEST.MF': 'Manifest-Version: 1.0\nAgent-Class: dev.aspectj.maven.agent_embedder.ShrinkAgent\n\n'.bytes,
+      'META-INF/services/': null,
+      'META-INF/services/java.lang.Runnable': '# Comment\ndev.aspectj.maven.agent_embedder.ShrinkService # comment\n'.bytes,
+      'META-INF/versions/11/dev/aspectj/maven/agent_embedder/ShrinkHelper.class': classBytes(ShrinkHelper),
+      'META-INF/versions/11/dev/aspectj/maven/agent_embedder/ShrinkUnused.class': classBytes(ShrinkUnused),
+      'dev/': null,
+      'dev/aspectj/': null,
+      'dev/aspectj/maven/': null,
+      (PACKAGE_DIR): null,
+      (PACKAGE_DIR + 'ShrinkAgent.class'): classBytes(ShrinkAgent),
+      (PACKAGE_DIR + 'ShrinkHelper.class'): classBytes(ShrinkHelper),
+      (PACKAGE_DIR + 'ShrinkReflective.class'): classBytes(ShrinkReflective),
+      (PACKAGE_DIR + 'ShrinkService.class'): classBytes(ShrinkService),
+      (PACKAGE_DIR + 'ShrinkKept.class'): classBytes(ShrinkKept),
+      (PACKAGE_DIR + 'ShrinkUnused.class'): classBytes(ShrinkUnused),
+      (PACKAGE_DIR + 'shrink.properties'): 'key=value'.bytes,
+      'unused/': null,
+      'unused/ShrinkUnused.class': classBytes(ShrinkUnused)
+    ))
+    JavaAgentInfo agentInfo = new JavaAgentInfo('dev.aspectj', 'my-agent', null, 'dev.aspectj.maven.agent_embedder.ShrinkAgent', null, null)
+    AgentJar agentJar = new AgentJar(agentInfo, '/agent.jar', agentZip, null)
+
+    when:
+    AgentJar shrunkAgentJar = new AgentJarShrinker(log, ['dev.aspectj.maven.agent_embedder.ShrinkK*']).shrink(agentJar)
+
+    then:
+    shrunkAgentJar.entries*.name as Set == [
+      'META-INF/',
+      'META-INF/MANIFEST.MF',
+      'META-INF/services/',
+      'META-INF/services/java.lang.Runnable',
+      'META-INF/versions/',
+      'META-INF/versions/11/',
+      'META-INF/versions/11/dev/',
+      'META-INF/versions/11/dev/aspectj/',
+      'META-INF/versions/11/dev/aspectj/maven/',
+      'META-INF/versions/11/' + PACKAGE_DIR,
+      'META-INF/versions/11/' + PACKAGE_DIR + 'ShrinkHelper.class',
+      'dev/',
+      'dev/aspectj/',
+      'dev/aspectj/maven/',
+      PACKAGE_DIR,
+      PACKAGE_DIR + 'ShrinkAgent.class',
+      PACKAGE_DIR + 'ShrinkHelper.class',
+      PACKAGE_DIR + 'ShrinkReflective.class',
+      PACKAGE_DIR + 'ShrinkService.class',
+      PACKAGE_DIR + 'ShrinkKept.class',
+      PACKAGE_DIR + 'shrink.properties'
+    ].findAll { agentZip.getEntry(it) } as Set
+    1 * log.info('Shrinking java agent dev.aspectj.maven.agent_embedder.ShrinkAgent: keeping 5 of 7 classes')
+
+    and:
+    agentJar.entries.size() == agentZip.entries.size()
+  }
+
+  def 'keep agent classes referenced by aspects listed in aop.xml of main artifact'() {
+    given:
+    ZipCentralDirectory artifact = ZipCentralDirectory.of(createZip(
+      'META-INF/MANIFEST.MF': 'Manifest-Version: 1.0\nMain-Class: org.acme.Main\n\n'.bytes,
+      'BOOT-INF/classes/META-INF/aop.xml': '''
+        <aspectj>
+          <aspects><aspect name="dev.aspectj.maven.agent_embedder.ShrinkAspect"/></aspects>
+          <weaver options="-XmessageHandlerClass:dev.aspectj.maven.agent_embedder.ShrinkKept"/>
+        </aspectj>
+      '''.bytes,
+      ('BOOT-INF/classes/' + PACKAGE_DIR + 'ShrinkAspect.class'): classBytes(ShrinkAspect)
+    ))
+    ZipCentralDirectory agentZip = ZipCentralDirectory.of(createZip(
+      'META-INF/MANIFEST.MF': 'Manifest-Version: 1.0\n\n'.bytes,
+      (PACKAGE_DIR + 'ShrinkAgent.class'): classBytes(ShrinkAgent),
+      (PACKAGE_DIR + 'ShrinkHelper.class'): classBytes(ShrinkHelper),
+      (PACKAGE_DIR + 'ShrinkReflective.class'): classBytes(ShrinkReflective),
+      (PACKAGE_DIR + 'ShrinkKept.class'): classBytes(ShrinkKept),
+      (PACKAGE_DIR + 'ShrinkUnused.class'): classBytes(ShrinkUnused)
+    ))
+    JavaAgentInfo agentInfo = new JavaAgentInfo('dev.aspectj', 'my-agent', null, 'dev.aspectj.maven.agent_embedder.ShrinkAgent', null, null)
+    AgentJarShrinker shrinker = new AgentJarShrinker(log, null)
+
+    when:
+    shrinker.addArtifactRoots(artifact)
+    AgentJar shrunkAgentJar = shrinker.shrink(new AgentJar(agentInfo, '/agent.jar', agentZip, null))
+
+    then:
+    shrunkAgentJar.entries*.name.findAll { it.endsWith('.class') }.collect { it - PACKAGE_DIR } as Set ==
+      ['ShrinkAgent.class', 'ShrinkHelper.class', 'ShrinkReflective.class', 'ShrinkKept.class', 'ShrinkUnused.class'] as Set
+  }
+
+  def 'class names of multi-release, module and package descriptor entries'() {
+    expect:
+    AgentJarShrinker.getClassName(entryName) == className
+
+    where:
+    entryName                               | className
+    'org/acme/Agent.class'                  | 'org/acme/Agent'
+    'org/acme/Agent$Inner.class'            | 'org/acme/Agent$Inner'
+    'META-INF/versions/9/org/acme/A.class'  | 'org/acme/A'
+    'META-INF/versions/9/module-info.class' | null
+    'module-info.class'                     | null
+    'org/acme/package-info.class'           | null
+    'org/acme/agent.properties'             | null
+  }
+
+  static byte[] classBytes(Class<?> type) {
+    AgentJarShrinkerTest.getResourceAsStream('/' + type.name.replace('.', '/') + '.class').bytes
+  }
+
+  static byte[] createZip(Map<String, byte[]> entries) {
+    ByteArrayOutputStream zipBytes = new ByteArrayOutputStream()
+    new ZipOutputStream(zipBytes).withCloseable { zip ->
+      entries.each { name, content ->
+        zip.putNextEntry(new ZipEntry(name))
+        if (content != null)
+          zip.write(content)
+        zip.closeEntry()
+      }
+    }
+    zipBytes.toByteArray()
+  }
+}
+
+// Test fixtures, deliberately top-level classes, because nested classes would all reference their outer class
+
+class ShrinkAgent {
+  static void premain(String args, Instrumentation instrumentation) {
+    new ShrinkHelper().help()
+  }
+}
+
+class ShrinkHelper {
+  void help() {
+    Class.forName('dev.aspectj.maven.agent_embedder.ShrinkReflective')
+  }
+}
+
+class ShrinkReflective {}
+
+class ShrinkService implements Runnable {
+  void run() {}
+}
+
+class ShrinkKept {}
+
+class ShrinkUnused {}
+
+class ShrinkAspect {
+  ShrinkUnused unused
+}
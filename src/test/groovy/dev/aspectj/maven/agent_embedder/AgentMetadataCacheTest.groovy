@@ -0,0 +1,95 @@
+package dev.aspectj.maven.agent_embedder
+
+import org.apache.maven.plugin.logging.Log
+import spock.lang.Specification
+import spock.lang.TempDir
+
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.attribute.FileTime
+
+class AgentMetadataCacheTest extends Specification {
+  static final String HASH_1 = '1' * 64
+  static final String HASH_2 = '2' * 64
+  static final String HASH_3 = '3' * 64
+
+  @TempDir
+  Path cacheDir
+
+  Log log = Mock()
+
+  def 'store and load metadata'() {
+    given:
+    AgentMetadataCache cache = new AgentMetadataCache(cacheDir, 1024 * 1024, log)
+    AgentJarMetadata metadata = new AgentJarMetadata(HASH_1)
+    metadata.manifestAgentClass = 'org.acme.MyAgent'
+    metadata.putClassReferences('org/acme/MyAgent.class', ['org/acme/Helper'] as Set)
+    metadata.putClassReferences('org/acme/Helper.class', [] as Set)
+    metadata.putEntryHash('org/acme/MyAgent.class', 'a' * 64)
+
+    when:
+    cache.store(metadata)
+    AgentJarMetadata loadedMetadata = cache.load(HASH_1)
+
+    then:
+    Files.exists(cacheDir.resolve(HASH_1 + '.bin'))
+    !loadedMetadata.modified
+    loadedMetadata.manifestAgentClass == 'org.acme.MyAgent'
+    loadedMetadata.getClassReferences('org/acme/MyAgent.class') == ['org/acme/Helper'] as Set
+    loadedMetadata.getClassReferences('org/acme/Helper.class') == [] as Set
+    loadedMetadata.getClassReferences('org/acme/Unknown.class') == null
+    loadedMetadata.getEntryHash('org/acme/MyAgent.class') == 'a' * 64
+    Files.list(cacheDir).withCloseable { files -> files.noneMatch { it.fileName.toString().endsWith('.tmp') } }
+  }
+
+  def 'treat missing, corrupt and mismatching files as cache misses'() {
+    given:
+    AgentMetadataCache cache = new AgentMetadataCache(cacheDir, 1024 * 1024, log)
+    Files.write(cacheDir.resolve(HASH_2 + '.bin'), 'corrupt'.bytes)
+    AgentJarMetadata metadata = new AgentJarMetadata(HASH_1)
+    metadata.manifestAgentClass = 'org.acme.MyAgent'
+    cache.store(metadata)
+    Files.move(cacheDir.resolve(HASH_1 + '.bin'), cacheDir.resolve(HASH_3 + '.bin'))
+
+    expect:
+    [HASH_1, HASH_2, HASH_3].each { hash ->
+      AgentJarMetadata loadedMetadata = cache.load(hash)
+      assert loadedMetadata.contentHash == hash
+      assert loadedMetadata.manifestAgentClass == null
+    }
+  }
+
+  def 'do not store unmodified metadata'() {
+    given:
+    AgentMetadataCache cache = new AgentMetadataCache(cacheDir, 1024 * 1024, log)
+
+    when:
+    cache.store(new AgentJarMetadata(HASH_1))
+    cache.store(new AgentJarMetadata(null))
+
+    then:
+    Files.list(cacheDir).withCloseable { files -> files.count() == 0 }
+  }
+
+  def 'evict least recently used files when exceeding maximum size'() {
+    given:
+    AgentMetadataCache unboundedCache = new AgentMetadataCache(cacheDir, Long.MAX_VALUE, log)
+    [HASH_1, HASH_2, HASH_3].eachWithIndex { hash, index ->
+      AgentJarMetadata metadata = new AgentJarMetadata(hash)
+      metadata.manifestAgentClass = 'org.acme.MyAgent'
+      unboundedCache.store(metadata)
+      Files.setLastModifiedTime(cacheDir.resolve(hash + '.bin'), FileTime.fromMillis(1_000_000L * (index + 1)))
+    }
+    long fileSize = Files.size(cacheDir.resolve(HASH_1 + '.bin'))
+    AgentMetadataCache cache = new AgentMetadataCache(cacheDir, 2 * fileSize + 8, log)
+
+    when: 'loading the oldest file makes it the most recently used one'
+    cache.load(HASH_1)
+    cache.evict()
+
+    then:
+    Files.exists(cacheDir.resolve(HASH_1 + '.bin'))
+    !Files.exists(cacheDir.resolve(HASH_2 + '.bin'))
+    Files.exists(cacheDir.resolve(HASH_3 + '.bin'))
+  }
+}
@@ -0,0 +1,190 @@
+package dev.aspectj.maven.agent_embedder
+
+import org.apache.maven.artifact.Artifact
+import org.apache.maven.plugin.MojoExecutionException
+import org.apache.maven.plugin.logging.Log
+import org.apache.maven.project.MavenProject
+import org.apache.maven.project.MavenProjectHelper
+import spock.lang.Specification
+
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.attribute.FileTime
+
+class AppCdsMojoTest extends Specification {
+  Log log = Mock()
+  Path tempDir
+
+  def setup() {
+    tempDir = Files.createTempDirectory('app-cds')
+  }
+
+  def cleanup() {
+    tempDir.toFile().deleteDir()
+  }
+
+  def 'training and dump commands start JAR by file name'() {
+    given:
+    AppCdsMojo mojo = new AppCdsMojo(
+      javaExecutable: '/jdk/bin/java',
+      trainingJvmArguments: ['-Xmx256m'],
+      trainingArguments: ['--exit']
+    )
+    Path jarPath = tempDir.resolve('my-app.jar')
+    Path classListPath = tempDir.resolve('my-app.jsa.classlist')
+    Path archivePath = tempDir.resolve('my-app.jsa')
+
+    expect:
+    mojo.getClassListTrainingCommand(jarPath, classListPath) ==
+      ['/jdk/bin/java', "-XX:DumpLoadedClassList=$classListPath", '-Xmx256m', '-jar', 'my-app.jar', '--exit']
+    mojo.getStaticDumpCommand(jarPath, classListPath, archivePath) ==
+      ['/jdk/bin/java', '-Xshare:dump', "-XX:SharedClassListFile=$classListPath", "-XX:SharedArchiveFile=$archivePath", '-Xmx256m', '-jar', 'my-app.jar']
+    mojo.getDynamicTrainingCommand(jarPath, archivePath) ==
+      ['/jdk/bin/java', "-XX:ArchiveClassesAtExit=$archivePath", '-Xmx256m', '-jar', 'my-app.jar', '--exit']
+  }
+
+  def 'launcher script runs JAR with archive relative to JAR directory'() {
+    given:
+    AppCdsMojo mojo = new AppCdsMojo()
+    Path jarPath = tempDir.resolve('my-app-1.0.jar')
+    Path archivePath = tempDir.resolve('cds/my-app.jsa')
+    Path scriptPath = AppCdsMojo.getLauncherScriptPath(jarPath)
+
+    when:
+    mojo.writeLauncherScript(scriptPath, jarPath, archivePath)
+    def script = scriptPath.toFile().text
+
+    then:
+    scriptPath.fileName.toString() == 'my-app-1.0.sh'
+    script.startsWith('#!/bin/sh\n')
+    script.contains('cd "$(dirname "$0")" || exit 1\n')
+    script.contains("exec \"\${JAVA_HOME:+\$JAVA_HOME/bin/}java\" -XX:SharedArchiveFile='cds/my-app.jsa' \$JAVA_OPTS -jar 'my-app-1.0.jar' \"\$@\"\n")
+    !Files.getFileStore(scriptPath).supportsFileAttributeView('posix') || Files.isExecutable(scriptPath)
+  }
+
+  def 'create archive in #archiveMode mode'() {
+    given:
+    Path jarPath = Files.write(tempDir.resolve('my-app.jar'), [1, 2, 3] as byte[])
+    Path archivePath = tempDir.resolve('my-app.jsa')
+    List<List<String>> commands = []
+    AppCdsMojo mojo = new FakeJvmAppCdsMojo(commands: commands, exitCode: exitCode, archivePath: archivePath)
+    configureMojo(mojo, jarPath, archivePath)
+    mojo.archiveMode = archiveMode
+
+    when:
+    mojo.execute()
+
+    then:
+    commands*.get(1)*.replaceFirst(/=.*/, '') == expectedOptions
+    Files.exists(archivePath)
+    Files.exists(tempDir.resolve('my-app.sh'))
+    1 * log.info({ it.startsWith('Created CDS archive') })
+
+    where:
+    archiveMode            | exitCode                     | expectedOptions
+    CdsArchiveMode.STATIC  | 0                            | ['-XX:DumpLoadedClassList', '-Xshare:dump']
+    CdsArchiveMode.DYNAMIC | 0                            | ['-XX:ArchiveClassesAtExit']
+    CdsArchiveMode.DYNAMIC | AppCdsMojo.EXIT_CODE_TIMEOUT | ['-XX:ArchiveClassesAtExit']
+  }
+
+  def 'failed training run fails build'() {
+    given:
+    Path jarPath = Files.write(tempDir.resolve('my-app.jar'), [1, 2, 3] as byte[])
+    Path archivePath = tempDir.resolve('my-app.jsa')
+    AppCdsMojo mojo = new FakeJvmAppCdsMojo(commands: [], exitCode: 1, archivePath: archivePath)
+    configureMojo(mojo, jarPath, archivePath)
+
+    when:
+    mojo.execute()
+
+    then:
+    def exception = thrown MojoExecutionException
+    exception.message.startsWith('Training run failed with exit code 1')
+  }
+
+  def 'skip up-to-date archive, attach archive and script'() {
+    given:
+    Path jarPath = Files.write(tempDir.resolve('my-app.jar'), [1, 2, 3] as byte[])
+    Path archivePath = Files.write(tempDir.resolve('my-app.jsa'), [4, 5, 6] as byte[])
+    Files.write(tempDir.resolve('my-app.sh'), [7, 8, 9] as byte[])
+    Files.setLastModifiedTime(jarPath, FileTime.fromMillis(archivePath.toFile().lastModified() - 1000))
+    List<List<String>> commands = []
+    AppCdsMojo mojo = new FakeJvmAppCdsMojo(commands: commands, exitCode: 0, archivePath: archivePath)
+    configureMojo(mojo, jarPath, archivePath)
+    Files.write(tempDir.resolve('my-app.jsa.inputs'), mojo.getInputFingerprint(jarPath).bytes)
+    mojo.attach = true
+    mojo.projectHelper = Mock(MavenProjectHelper)
+
+    when:
+    mojo.execute()
+
+    then:
+    commands.empty
+    1 * log.info({ it.startsWith('CDS archive is up to date') })
+    1 * mojo.projectHelper.attachArtifact(mojo.project, 'jsa', 'cds', archivePath.toFile())
+    1 * mojo.projectHelper.attachArtifact(mojo.project, 'sh', 'launcher', tempDir.resolve('my-app.sh').toFile())
+  }
+
+  def 'recreate archive created with other inputs'() {
+    given: 'an archive newer than the JAR, created by a previous run'
+    Path jarPath = Files.write(tempDir.resolve('my-app.jar'), [1, 2, 3] as byte[])
+    Path archivePath = tempDir.resolve('my-app.jsa')
+    List<List<String>> commands = []
+    AppCdsMojo mojo = new FakeJvmAppCdsMojo(commands: commands, exitCode: 0, archivePath: archivePath)
+    configureMojo(mojo, jarPath, archivePath)
+    mojo.execute()
+    Files.setLastModifiedTime(jarPath, FileTime.fromMillis(archivePath.toFile().lastModified() - 1000))
+    commands.clear()
+
+    when: 'executing again with a changed input'
+    mojo[property] = value
+    mojo.execute()
+
+    then:
+    !commands.empty
+    Files.readAllLines(tempDir.resolve('my-app.jsa.inputs'))[0] == mojo.getInputFingerprint(jarPath)
+
+    when: 'executing again with the same inputs'
+    commands.clear()
+    Files.setLastModifiedTime(jarPath, FileTime.fromMillis(archivePath.toFile().lastModified() - 1000))
+    mojo.execute()
+
+    then:
+    commands.empty
+
+    where:
+    property               | value
+    'javaExecutable'       | '/other-jdk/bin/java'
+    'archiveMode'          | CdsArchiveMode.DYNAMIC
+    'trainingJvmArguments' | ['-Xmx1g']
+    'trainingArguments'    | ['--exit']
+  }
+
+  private void configureMojo(AppCdsMojo mojo, Path jarPath, Path archivePath) {
+    mojo.log = log
+    mojo.javaExecutable = 'java'
+    mojo.archiveFile = archivePath.toFile()
+    mojo.project = Mock(MavenProject) {
+      getArtifact() >> Mock(Artifact) {
+        getFile() >> jarPath.toFile()
+      }
+    }
+  }
+
+  /**
+   * Records JVM command lines instead of running them, creating the archive file like a real JVM would
+   */
+  static class FakeJvmAppCdsMojo extends AppCdsMojo {
+    List<List<String>> commands
+    int exitCode
+    Path archivePath
+
+    @Override
+    protected int runJava(List<String> command, Path workingDir, Path logPath, int timeoutSeconds) {
+      commands << command
+      if (command.any { it.startsWith('-XX:ArchiveClassesAtExit=') || it == '-Xshare:dump' })
+        Files.write(archivePath, [1] as byte[])
+      return exitCode
+    }
+  }
+}
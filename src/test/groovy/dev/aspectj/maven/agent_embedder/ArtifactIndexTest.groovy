@@ -0,0 +1,73 @@
+package dev.aspectj.maven.agent_embedder
+
+import dev.aspectj.maven.tools.ZipCentralDirectory
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import java.util.zip.ZipEntry
+import java.util.zip.ZipOutputStream
+
+class ArtifactIndexTest extends Specification {
+  ArtifactIndex index = ArtifactIndex.of(ZipCentralDirectory.of(createZip(
+    'META-INF/MANIFEST.MF',
+    'BOOT-INF/',
+    'BOOT-INF/lib/',
+    'BOOT-INF/lib/my-agent-3.5.jar',
+    'BOOT-INF/classes/org/acme/App.class',
+    'other/lib/my-agent-3.5.jar'
+  )))
+
+  @Unroll('#name -> #exists')
+  def 'explicit and implicit entries exist'() {
+    expect:
+    index.contains(name) == exists
+
+    where:
+    name                                | exists
+    'META-INF/MANIFEST.MF'              | true
+    '/META-INF/MANIFEST.MF'             | true
+    'META-INF/'                         | true
+    'BOOT-INF/lib'                      | true
+    'BOOT-INF/classes/org/acme/'        | true
+    'BOOT-INF/classes/org/acme/X.class' | false
+    'org/'                              | false
+  }
+
+  @Unroll('#agentPath -> #nestedJar')
+  def 'find nested agent JAR'() {
+    expect:
+    index.findNestedJar(agentPath) == nestedJar
+
+    where:
+    agentPath                                   | nestedJar
+    '/other/lib/my-agent-3.5.jar'               | 'other/lib/my-agent-3.5.jar'
+    'C:\\Users\\me\\.m2\\my-agent-3.5.jar'      | 'BOOT-INF/lib/my-agent-3.5.jar'
+    '/home/me/.m2/my-agent-3.5.jar'             | 'BOOT-INF/lib/my-agent-3.5.jar'
+    '/home/me/.m2/aspectjweaver-1.9.21.jar'     | null
+    '/home/me/.m2/lib'                          | null
+  }
+
+  def 'index reflects added and removed files'() {
+    when:
+    index.add('org/aspectj/weaver/loadtime/Agent.class')
+    index.remove('BOOT-INF/lib/my-agent-3.5.jar')
+
+    then:
+    index.contains('org/aspectj/weaver/loadtime/Agent.class')
+    index.contains('org/aspectj/')
+    !index.contains('BOOT-INF/lib/my-agent-3.5.jar')
+    index.contains('BOOT-INF/lib/')
+    index.findNestedJar('/home/me/.m2/my-agent-3.5.jar') == 'other/lib/my-agent-3.5.jar'
+  }
+
+  private static byte[] createZip(String... names) {
+    def bytes = new ByteArrayOutputStream()
+    new ZipOutputStream(bytes).withCloseable { zip ->
+      names.each { name ->
+        zip.putNextEntry(new ZipEntry(name))
+        zip.closeEntry()
+      }
+    }
+    bytes.toByteArray()
+  }
+}
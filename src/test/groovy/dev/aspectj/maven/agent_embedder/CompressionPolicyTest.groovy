@@ -0,0 +1,43 @@
+package dev.aspectj.maven.agent_embedder
+
+import dev.aspectj.maven.agent_embedder.CompressionPolicy.Compression
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import java.util.zip.Deflater
+import java.util.zip.ZipEntry
+
+class CompressionPolicyTest extends Specification {
+  @Unroll("parse '#value'")
+  def 'parse valid compression values'() {
+    when:
+    Compression compression = Compression.parse('agentClasses', value)
+
+    then:
+    compression.keep == keep
+    compression.method == method
+    compression.level == level
+
+    where:
+    value         | keep  | method            | level
+    null          | true  | ZipEntry.DEFLATED | Deflater.DEFAULT_COMPRESSION
+    'KEEP'        | true  | ZipEntry.DEFLATED | Deflater.DEFAULT_COMPRESSION
+    'stored'      | false | ZipEntry.STORED   | Deflater.NO_COMPRESSION
+    'DEFLATED'    | false | ZipEntry.DEFLATED | Deflater.DEFAULT_COMPRESSION
+    ' DEFLATED:9' | false | ZipEntry.DEFLATED | 9
+    'DEFLATED:0'  | false | ZipEntry.DEFLATED | 0
+  }
+
+  @Unroll("reject '#value'")
+  def 'reject invalid compression values'() {
+    when:
+    new CompressionPolicy(null, null, null, value).validate()
+
+    then:
+    IllegalArgumentException exception = thrown()
+    exception.message.startsWith("Invalid compression for agentResources: '$value'")
+
+    where:
+    value << ['ZIP', 'STORED:1', 'DEFLATED:10', 'DEFLATED:-1', 'DEFLATED:x', '']
+  }
+}
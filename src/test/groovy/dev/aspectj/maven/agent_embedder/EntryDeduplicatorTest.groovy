@@ -0,0 +1,57 @@
+package dev.aspectj.maven.agent_embedder
+
+import dev.aspectj.maven.tools.ZipCentralDirectory
+import org.apache.maven.plugin.logging.Log
+import spock.lang.Specification
+
+import static dev.aspectj.maven.agent_embedder.AgentJarShrinkerTest.createZip
+
+class EntryDeduplicatorTest extends Specification {
+  Log log = Mock()
+
+  def 'report identical and conflicting agent entries, keep partially duplicated nested JARs'() {
+    given:
+    byte[] nestedJar = createZip(
+      'META-INF/MANIFEST.MF': 'Manifest-Version: 1.0\n\n'.bytes,
+      'org/acme/Shared.class': 'shared'.bytes,
+      'org/acme/Other.class': 'other'.bytes
+    )
+    ZipCentralDirectory artifact = ZipCentralDirectory.of(createZip(
+      'META-INF/MANIFEST.MF': 'Manifest-Version: 1.0\nMain-Class: org.acme.Main\n\n'.bytes,
+      'org/acme/Identical.class': 'identical'.bytes,
+      'org/acme/Conflicting.class': 'artifact version'.bytes,
+      'BOOT-INF/lib/nested.jar': nestedJar
+    ))
+    ZipCentralDirectory agentZip = ZipCentralDirectory.of(createZip(
+      'META-INF/MANIFEST.MF': 'Manifest-Version: 1.0\n\n'.bytes,
+      'org/acme/Identical.class': 'identical'.bytes,
+      'org/acme/Conflicting.class': 'agent version'.bytes,
+      'org/acme/Shared.class': 'shared'.bytes
+    ))
+    AgentJar agentJar = new AgentJar(new JavaAgentInfo(), '/agent.jar', agentZip, null)
+
+    when:
+    Set<String> removableJarNames = new EntryDeduplicator(log, DeduplicationMode.REMOVE)
+      .deduplicate(artifact, [agentJar], [] as Set)
+
+    then:
+    1 * log.info('Skipped 1 agent entries already existing with identical content')
+    1 * log.warn({ it.startsWith('Skipped 1 agent entries already existing with different content, e.g. org/acme/Conflicting.class.') })
+    1 * log.info('Nested JAR BOOT-INF/lib/nested.jar: 1 of 2 entries (6 bytes) also exist in the root with identical content')
+    1 * log.info('Deduplication: found 15 bytes of duplicate content, saved 0 bytes')
+    removableJarNames.empty
+  }
+
+  def 'do nothing in NONE mode'() {
+    given:
+    ZipCentralDirectory artifact = Mock()
+
+    when:
+    Set<String> removableJarNames = new EntryDeduplicator(log, DeduplicationMode.NONE).deduplicate(artifact, [], [] as Set)
+
+    then:
+    removableJarNames.empty
+    0 * artifact._
+    0 * log._
+  }
+}
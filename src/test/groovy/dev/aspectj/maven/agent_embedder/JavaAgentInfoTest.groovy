@@ -67,7 +67,8 @@ class JavaAgentInfoTest extends Specification {
     expect:
     agentInfo.toString() == 'JavaAgentInfo(' +
       'groupId=dev.aspectj, artifactId=my-artifact, classifier=my-classifier, ' +
-      'agentClass=dev.aspectj.MyAgent, agentArgs=my-args, agentPath=/home/me/agent.jar' +
+      'agentClass=dev.aspectj.MyAgent, agentArgs=my-args, agentPath=/home/me/agent.jar, ' +
+      'async=false, startupGroup=0, lazyTrigger=null' +
       ')'
   }
 
@@ -79,6 +80,25 @@ class JavaAgentInfoTest extends Specification {
     agentInfo.type == 'jar'
   }
 
+  def 'lazy trigger prefixes are trimmed, empty ones ignored'() {
+    given:
+    JavaAgentInfo agentInfo = createJavaAgentInfo()
+
+    when:
+    agentInfo.lazyTrigger = lazyTrigger
+
+    then:
+    agentInfo.lazy == lazy
+    agentInfo.lazyTriggerPrefixes == prefixes
+
+    where:
+    lazyTrigger                    | lazy  | prefixes
+    null                           | false | []
+    ' , '                          | false | []
+    'java.sql.'                    | true  | ['java.sql.']
+    ' java.sql., org.postgresql.,' | true  | ['java.sql.', 'org.postgresql.']
+  }
+
   def 'check POJO methods'() {
     expect:
     assertPojoMethodsFor(JavaAgentInfo)
@@ -0,0 +1,475 @@
+package dev.aspectj.maven.agent_embedder
+
+import groovy.transform.CompileStatic
+import spock.lang.Specification
+import spock.lang.TempDir
+import spock.lang.Unroll
+
+import java.lang.instrument.ClassFileTransformer
+import java.lang.instrument.Instrumentation
+import java.lang.management.ManagementFactory
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.Paths
+import java.nio.file.StandardOpenOption
+import java.security.ProtectionDomain
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.jar.Attributes
+import java.util.jar.JarOutputStream
+import java.util.jar.Manifest
+import java.util.zip.CRC32
+import java.util.zip.ZipEntry
+import java.util.zip.ZipOutputStream
+import javax.management.ObjectName
+
+import static dev.aspectj.maven.agent_embedder.JavaAgentLauncher.*
+
+class JavaAgentLauncherTest extends Specification {
+  @TempDir
+  Path tempDir
+
+  def setup() {
+    RecordingAgent.starts.clear()
+    BlockingAgent.released = new CountDownLatch(1)
+  }
+
+  def 'start agents group by group, joining asynchronous agents before next group'() {
+    given:
+    def attributes = new Attributes()
+    attributes.putValue('Agent-Count', '4')
+    addAgent(attributes, 1, RecordingAgent.name, 'late', false, 1)
+    addAgent(attributes, 2, BlockingAgent.name, 'async-1', true, 0)
+    addAgent(attributes, 3, RecordingAgent.name, 'async-2', true, 0)
+    addAgent(attributes, 4, ReleasingAgent.name, 'sync', false, 0)
+
+    when:
+    startAgents(attributes, Mock(Instrumentation))
+    def startedAgents = RecordingAgent.starts.collect { it[0] }
+
+    then: 'the blocking async agent runs concurrently with the sync agent releasing it'
+    noExceptionThrown()
+    startedAgents.take(3).toSet() == ['async-1', 'async-2', 'sync'].toSet()
+    startedAgents[3] == 'late'
+
+    and: 'async agents run on launcher threads, others on the calling thread'
+    RecordingAgent.starts.findAll { it[0].startsWith('async') }.every { it[1].startsWith('agent-embedder-launcher-') }
+    RecordingAgent.starts.findAll { !it[0].startsWith('async') }.every { it[1] == Thread.currentThread().name }
+  }
+
+  def 'exception thrown by asynchronous agent is propagated'() {
+    given:
+    def attributes = new Attributes()
+    attributes.putValue('Agent-Count', '1')
+    addAgent(attributes, 1, FailingAgent.name, null, true, 0)
+
+    when:
+    startAgents(attributes, Mock(Instrumentation))
+
+    then:
+    def exception = thrown(java.lang.reflect.InvocationTargetException)
+    exception.cause instanceof IllegalStateException
+  }
+
+  def 'report startup timing via summary line and MBean'() {
+    given:
+    def attributes = new Attributes()
+    attributes.putValue('Agent-Count', '1')
+    addAgent(attributes, 1, RecordingAgent.name, 'one', false, 0)
+    System.setProperty(PROPERTY_SUMMARY, 'true')
+    System.setProperty(PROPERTY_JMX, 'true')
+    System.setProperty(PROPERTY_LOG, 'debug')
+    def originalOut = System.out
+    def output = new ByteArrayOutputStream()
+    System.out = new PrintStream(output, true)
+
+    when:
+    launcherStarting()
+    startAgents(attributes, Mock(Instrumentation))
+    agentsStarted()
+    def lines = output.toString().readLines()
+
+    then: 'agent start and timing are logged'
+    lines[0] == 'Starting agent ' + RecordingAgent.name + ' with arguments one'
+    lines[1] ==~ /Started agent .+ in [\d.]+ ms \(class loading [\d.]+ ms, premain [\d.]+ ms\)/
+
+    and: 'summary line is printed'
+    lines[2].startsWith(SUMMARY_PREFIX + '{"totalNanos":')
+    lines[2].contains('"agentClass":"' + RecordingAgent.name + '"')
+
+    and: 'MBean is registered'
+    def mBeanServer = ManagementFactory.platformMBeanServer
+    mBeanServer.getAttribute(new ObjectName(MBEAN_NAME), 'AgentClasses') == [RecordingAgent.name] as String[]
+    (mBeanServer.getAttribute(new ObjectName(MBEAN_NAME), 'PremainNanos') as long[])[0] >= 0
+
+    cleanup:
+    System.out = originalOut
+    [PROPERTY_SUMMARY, PROPERTY_JMX, PROPERTY_LOG].each { System.clearProperty(it) }
+  }
+
+  def 'log level off suppresses agent start messages'() {
+    given:
+    def attributes = new Attributes()
+    attributes.putValue('Agent-Count', '1')
+    addAgent(attributes, 1, RecordingAgent.name, 'one', false, 0)
+    System.setProperty(PROPERTY_LOG, 'off')
+    def originalOut = System.out
+    def output = new ByteArrayOutputStream()
+    System.out = new PrintStream(output, true)
+
+    when:
+    startAgents(attributes, Mock(Instrumentation))
+
+    then:
+    output.size() == 0
+    RecordingAgent.starts.size() == 1
+
+    cleanup:
+    System.out = originalOut
+    System.clearProperty(PROPERTY_LOG)
+  }
+
+  def 'start lazy agent outside of class loading callback and retransform matching classes'() {
+    given: 'a lazy agent using the triggering class and adding a transformer in its premain method'
+    def attributes = new Attributes()
+    attributes.putValue('Agent-Count', '2')
+    addAgent(attributes, 1, TransformingAgent.name, 'lazy', true, 1)
+    attributes.putValue(AGENT_LAZY + 1, 'org.h2., ' + LazyTarget.name)
+    addAgent(attributes, 2, RecordingAgent.name, 'eager', false, 0)
+    def inst = Mock(Instrumentation) {
+      isRetransformClassesSupported() >> true
+      getAllLoadedClasses() >> ([String, LazyTarget] as Class[])
+      isModifiableClass(_) >> true
+    }
+    ClassFileTransformer trigger = null
+
+    when: 'starting agents'
+    startAgents(attributes, inst)
+
+    then: 'only the trigger is registered for the lazy agent'
+    1 * inst.addTransformer(_) >> { trigger = it[0] }
+    trigger instanceof LazyAgentTrigger
+    RecordingAgent.starts.collect { it[0] } == ['eager']
+
+    when: 'loading a non-matching class'
+    def result = trigger.transform(getClass().classLoader, 'org/h3/Foo', null, null, new byte[3])
+
+    then: 'the agent is not started'
+    result == null
+    !(trigger as LazyAgentTrigger).triggered
+
+    when: 'loading a matching class'
+    result = trigger.transform(getClass().classLoader, LazyTarget.name.replace('.', '/'), null, null, new byte[3])
+    def startFinished = (trigger as LazyAgentTrigger).awaitStart(10, TimeUnit.SECONDS)
+
+    then: 'the class is not transformed inside the callback, the agent is started on a separate thread'
+    result == null
+    startFinished
+    RecordingAgent.starts.collect { it[0] } == ['eager', 'lazy']
+    RecordingAgent.starts.last()[1].startsWith('agent-embedder-lazy-')
+
+    and: 'the agent transformer is retransformation capable, the trigger removed and matching classes retransformed'
+    1 * inst.addTransformer(_ as AppendingTransformer, true)
+    1 * inst.removeTransformer(trigger) >> true
+    1 * inst.retransformClasses(LazyTarget)
+
+    when: 'loading another matching class'
+    result = trigger.transform(getClass().classLoader, 'org/h2/Driver', null, null, new byte[3])
+
+    then: 'the agent is not started again'
+    result == null
+    RecordingAgent.starts.size() == 2
+  }
+
+  def 'start lazy agent using its triggering class in premain in a forked JVM'() {
+    given: 'an executable JAR using the launcher agent and a lazy agent triggered by a class used by the main class'
+    def manifest = new Manifest()
+    manifest.mainAttributes.putValue('Manifest-Version', '1.0')
+    manifest.mainAttributes.putValue('Main-Class', LazyMain.name)
+    manifest.mainAttributes.putValue('Launcher-Agent-Class', JavaAgentLauncher.name)
+    manifest.mainAttributes.putValue('Can-Retransform-Classes', 'true')
+    manifest.mainAttributes.putValue(
+      'Class-Path',
+      [JavaAgentLauncher, LazyMain, GroovyObject].collect { it.protectionDomain.codeSource.location }.unique().join(' ')
+    )
+    def agentAttributes = new Attributes()
+    agentAttributes.putValue('Agent-Count', '1')
+    addAgent(agentAttributes, 1, LazyTracingAgent.name, null, false, 0)
+    agentAttributes.putValue(AGENT_LAZY + 1, LazyTarget.name)
+    manifest.entries.put(AGENT_ATTRIBUTES_GROUP, agentAttributes)
+    Path executableJar = tempDir.resolve('lazy-app.jar')
+    new JarOutputStream(Files.newOutputStream(executableJar), manifest).close()
+
+    when:
+    def process = new ProcessBuilder(
+      Paths.get(System.getProperty('java.home'), 'bin', 'java').toString(), '-jar', executableJar.toString()
+    ).redirectErrorStream(true).start()
+    def output = process.inputStream.text
+    process.waitFor(30, TimeUnit.SECONDS)
+
+    then: 'the agent starts on a separate thread and sees the triggering class, which is retransformed'
+    process.exitValue() == 0
+    output.contains('main sees hello')
+    output =~ /premain on agent-embedder-lazy-\d+ sees hello/
+    output.contains('transform ' + LazyTarget.name.replace('.', '/') + ' retransforming=true')
+    output.contains('retransformed: true')
+    !output.contains('Error')
+  }
+
+  @Unroll('load classes and resources from nested JAR (nested JAR #nestedJarMethod, entries #entryMethod, preamble: #preamble)')
+  def 'load classes and resources from nested JAR'() {
+    given: 'an executable JAR containing a nested JAR with a class file and a resource'
+    def className = AgentStartup.name
+    def classResource = className.replace('.', '/') + '.class'
+    byte[] nestedJar = createZip(
+      [(classResource): JavaAgentLauncher.getResourceAsStream('/' + classResource).bytes, 'META-INF/aop.xml': '<aspectj/>'.bytes],
+      entryMethod
+    )
+    Path executableJar = tempDir.resolve('executable.jar')
+    Files.write(executableJar, (preamble ? '#!/bin/sh\nexec java -jar "$0" "$@"\n'.bytes : new byte[0]) as byte[])
+    Files.write(
+      executableJar,
+      createZip(['BOOT-INF/classes/Main.class': new byte[10], 'BOOT-INF/lib/agent.jar': nestedJar], nestedJarMethod),
+      StandardOpenOption.APPEND
+    )
+
+    when: 'using the bootstrap classloader as parent, so the class can only be found in the nested JAR'
+    def classLoader = new NestedJarClassLoader(executableJar, 'BOOT-INF/lib/agent.jar', null)
+    def loadedClass = classLoader.loadClass(className)
+
+    then:
+    loadedClass.classLoader.is(classLoader)
+    loadedClass.package.name == AgentStartup.package.name
+    !loadedClass.is(AgentStartup)
+    classLoader.getResource('META-INF/aop.xml').toString() == 'agent-jar:/BOOT-INF/lib/agent.jar!/META-INF/aop.xml'
+    classLoader.getResourceAsStream('META-INF/aop.xml').text == '<aspectj/>'
+    classLoader.getResource('missing.xml') == null
+
+    when:
+    classLoader.loadClass('org.acme.Missing')
+
+    then:
+    thrown ClassNotFoundException
+
+    where:
+    nestedJarMethod   | entryMethod       | preamble
+    ZipEntry.STORED   | ZipEntry.DEFLATED | false
+    ZipEntry.STORED   | ZipEntry.STORED   | true
+    ZipEntry.DEFLATED | ZipEntry.DEFLATED | false
+    ZipEntry.DEFLATED | ZipEntry.STORED   | true
+  }
+
+  def 'read DEFLATED nested agent JAR completely'() {
+    given: 'a compressed nested JAR bigger than a single file channel read, containing incompressible data'
+    def classResource = AgentStartup.name.replace('.', '/') + '.class'
+    byte[] payload = new byte[8 * 1024 * 1024]
+    new Random(42).nextBytes(payload)
+    byte[] nestedJar = createZip(
+      [(classResource): JavaAgentLauncher.getResourceAsStream('/' + classResource).bytes, 'payload.bin': payload],
+      ZipEntry.STORED
+    )
+    Path executableJar = tempDir.resolve('executable.jar')
+    Files.write(executableJar, '#!/bin/sh\nexec java -jar "$0" "$@"\n'.bytes)
+    Files.write(
+      executableJar,
+      createZip(['BOOT-INF/classes/Main.class': new byte[10], 'BOOT-INF/lib/agent.jar': nestedJar], ZipEntry.DEFLATED),
+      StandardOpenOption.APPEND
+    )
+
+    when:
+    def classLoader = new NestedJarClassLoader(executableJar, 'BOOT-INF/lib/agent.jar', null)
+
+    then: 'the whole nested JAR was inflated, not just the part returned by the first read'
+    !classLoader.loadClass(AgentStartup.name).is(AgentStartup)
+    Arrays.equals(classLoader.getResourceAsStream('payload.bin').bytes, payload)
+  }
+
+  def 'load nested JAR from ZIP64 executable JAR with preamble'() {
+    given: 'an executable JAR with more than 65535 entries, i.e. with a ZIP64 end of central directory record'
+    def classResource = AgentStartup.name.replace('.', '/') + '.class'
+    byte[] nestedJar = createZip(
+      [(classResource): JavaAgentLauncher.getResourceAsStream('/' + classResource).bytes], ZipEntry.DEFLATED
+    )
+    Path executableJar = tempDir.resolve('executable.jar')
+    Files.write(executableJar, '#!/bin/sh\nexec java -jar "$0" "$@"\n'.bytes)
+    def output = new BufferedOutputStream(Files.newOutputStream(executableJar, StandardOpenOption.APPEND))
+    try (ZipOutputStream zip = new ZipOutputStream(output)) {
+      for (int i = 0; i < 0x10000; i++) {
+        zip.putNextEntry(new ZipEntry('BOOT-INF/classes/C' + i + '.class'))
+        zip.closeEntry()
+      }
+      zip.putNextEntry(new ZipEntry('BOOT-INF/lib/agent.jar'))
+      zip.write(nestedJar)
+      zip.closeEntry()
+    }
+
+    when:
+    def loadedClass = new NestedJarClassLoader(executableJar, 'BOOT-INF/lib/agent.jar', null).loadClass(AgentStartup.name)
+
+    then:
+    !loadedClass.is(AgentStartup)
+  }
+
+  def 'ZIP64 extra field replaces overflowing central directory values'() {
+    given: 'a central directory header with overflowing compressed size and offset, preceded by another extra block'
+    def name = 'agent.jar'.bytes
+    def centralDirectory = ByteBuffer.allocate(46 + name.length + 4 + 20).order(ByteOrder.LITTLE_ENDIAN)
+    centralDirectory.putInt(0x02014b50).putShort(45 as short).putShort(45 as short).putShort(0 as short)
+      .putShort(ZipEntry.STORED as short).putInt(0).putInt(0)
+      .putInt(0xFFFFFFFF as int).putInt(1234).putShort(name.length as short).putShort(24 as short)
+      .putShort(0 as short).putShort(0 as short).putShort(0 as short).putInt(0).putInt(0xFFFFFFFF as int)
+      .put(name)
+      .putShort(0xCAFE as short).putShort(0 as short)
+      .putShort(1 as short).putShort(16 as short).putLong(0x100000000L).putLong(0x200000000L)
+
+    when:
+    Map<String, ?> entries = NestedJarClassLoader.index(centralDirectory, 0, centralDirectory.limit(), null)
+    def entry = entries['agent.jar']
+
+    then:
+    entry.size == 1234
+    entry.compressedSize == 0x100000000L
+    entry.localHeaderOffset == 0x200000000L
+  }
+
+  def 'nested JAR not found'() {
+    given:
+    Path executableJar = tempDir.resolve('executable.jar')
+    Files.write(executableJar, createZip(['BOOT-INF/classes/Main.class': new byte[10]], ZipEntry.DEFLATED))
+
+    when:
+    new NestedJarClassLoader(executableJar, 'BOOT-INF/lib/agent.jar', null)
+
+    then:
+    def exception = thrown(FileNotFoundException)
+    exception.message.startsWith('Nested JAR BOOT-INF/lib/agent.jar not found')
+  }
+
+  private static void addAgent(Attributes attributes, int index, String agentClass, String agentArgs, boolean async, int group) {
+    attributes.putValue(AGENT_CLASS + index, agentClass)
+    if (agentArgs != null)
+      attributes.putValue(AGENT_ARGS + index, agentArgs)
+    if (async)
+      attributes.putValue(AGENT_ASYNC + index, 'true')
+    if (group != 0)
+      attributes.putValue(AGENT_GROUP + index, String.valueOf(group))
+  }
+
+  private static byte[] createZip(Map<String, byte[]> entries, int method) {
+    def output = new ByteArrayOutputStream()
+    try (ZipOutputStream zip = new ZipOutputStream(output)) {
+      entries.each { name, content ->
+        def entry = new ZipEntry(name)
+        entry.method = method
+        if (method == ZipEntry.STORED) {
+          def crc = new CRC32()
+          crc.update(content)
+          entry.size = content.length
+          entry.compressedSize = content.length
+          entry.crc = crc.value
+        }
+        zip.putNextEntry(entry)
+        zip.write(content)
+        zip.closeEntry()
+      }
+    }
+    output.toByteArray()
+  }
+
+  static class RecordingAgent {
+    static final Queue<List<String>> starts = new ConcurrentLinkedQueue<>()
+
+    static void premain(String agentArgs, Instrumentation inst) {
+      starts << [agentArgs, Thread.currentThread().name]
+    }
+  }
+
+  static class BlockingAgent {
+    static CountDownLatch released
+
+    static void premain(String agentArgs, Instrumentation inst) {
+      if (!released.await(10, TimeUnit.SECONDS))
+        throw new IllegalStateException('Asynchronous agent did not start concurrently')
+      RecordingAgent.premain(agentArgs, inst)
+    }
+  }
+
+  static class ReleasingAgent {
+    static void premain(String agentArgs, Instrumentation inst) {
+      RecordingAgent.premain(agentArgs, inst)
+      BlockingAgent.released.countDown()
+    }
+  }
+
+  static class TransformingAgent {
+    static void premain(String agentArgs, Instrumentation inst) {
+      assert LazyTarget.greet() == 'hello'
+      RecordingAgent.premain(agentArgs, inst)
+      inst.addTransformer(new AppendingTransformer())
+    }
+  }
+
+  static class AppendingTransformer implements ClassFileTransformer {
+    @Override
+    byte[] transform(
+      ClassLoader loader, String className, Class<?> classBeingRedefined, ProtectionDomain protectionDomain,
+      byte[] classfileBuffer
+    )
+    {
+      (classfileBuffer.toList() + (42 as byte)) as byte[]
+    }
+  }
+
+  @CompileStatic
+  static class LazyTarget {
+    static String greet() {
+      'hello'
+    }
+  }
+
+  @CompileStatic
+  static class LazyMain {
+    static final CountDownLatch retransformed = new CountDownLatch(1)
+
+    static void main(String[] args) {
+      println "main sees ${LazyTarget.greet()}"
+      println "retransformed: ${retransformed.await(10, TimeUnit.SECONDS)}"
+    }
+  }
+
+  @CompileStatic
+  static class LazyTracingAgent {
+    static void premain(String agentArgs, Instrumentation inst) {
+      println "premain on ${Thread.currentThread().name} sees ${LazyTarget.greet()}"
+      inst.addTransformer(new TracingTransformer())
+    }
+  }
+
+  @CompileStatic
+  static class TracingTransformer implements ClassFileTransformer {
+    static final String TARGET = LazyTarget.name.replace('.', '/')
+
+    @Override
+    byte[] transform(
+      ClassLoader loader, String className, Class<?> classBeingRedefined, ProtectionDomain protectionDomain,
+      byte[] classfileBuffer
+    )
+    {
+      if (className == TARGET) {
+        println "transform $className retransforming=${classBeingRedefined != null}"
+        if (classBeingRedefined != null)
+          LazyMain.retransformed.countDown()
+      }
+      null
+    }
+  }
+
+  static class FailingAgent {
+    static void premain(String agentArgs, Instrumentation inst) {
+      throw new IllegalStateException('Agent failed')
+    }
+  }
+}
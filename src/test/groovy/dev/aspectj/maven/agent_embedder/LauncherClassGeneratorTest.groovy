@@ -0,0 +1,82 @@
+package dev.aspectj.maven.agent_embedder
+
+import dev.aspectj.maven.tools.ZipCentralDirectory
+import groovy.transform.CompileStatic
+import org.apache.maven.plugin.logging.Log
+import spock.lang.Specification
+
+import java.lang.instrument.Instrumentation
+import java.util.zip.ZipEntry
+import java.util.zip.ZipOutputStream
+
+class LauncherClassGeneratorTest extends Specification {
+  Log log = Mock()
+
+  def 'generated launcher starts agents directly or reflectively'() {
+    given: 'an agent JAR containing the agent class and one without it'
+    def agentClassName = RecordingAgent.name
+    def agentClassResource = agentClassName.replace('.', '/') + '.class'
+    def agentJar = ZipCentralDirectory.of(createZip((agentClassResource): RecordingAgent.getResourceAsStream('/' + agentClassResource).bytes))
+    def emptyJar = ZipCentralDirectory.of(createZip([:]))
+    def agentJars = [
+      new AgentJar(new JavaAgentInfo('org.acme', 'direct', null, agentClassName, 'one', null), 'direct.jar', agentJar, null),
+      new AgentJar(new JavaAgentInfo('org.acme', 'reflective', null, agentClassName, 'two', null), 'reflective.jar', emptyJar, null),
+      new AgentJar(new JavaAgentInfo('org.acme', 'no-args', null, agentClassName, null, null), 'no-args.jar', agentJar, null)
+    ]
+    Instrumentation instrumentation = Mock()
+    RecordingAgent.calls.clear()
+
+    when:
+    byte[] classFile = new LauncherClassGenerator(log).generate(agentJars)
+    Class<?> launcherClass = new DefiningClassLoader(getClass().classLoader).define(classFile)
+    launcherClass.getMethod('agentmain', String, Instrumentation).invoke(null, 'ignored', instrumentation)
+
+    then:
+    launcherClass.name == LauncherClassGenerator.CLASS_NAME
+    RecordingAgent.calls == [['one', instrumentation], ['two', instrumentation], [null, instrumentation]]
+    2 * log.debug('Generating direct premain call for agent class ' + agentClassName)
+    1 * log.debug('Agent class ' + agentClassName + ' not found in agent JAR, starting it reflectively')
+  }
+
+  def 'find premain method descriptor'() {
+    given:
+    def agentClassResource = RecordingAgent.name.replace('.', '/') + '.class'
+    def agentJar = ZipCentralDirectory.of(createZip((agentClassResource): RecordingAgent.getResourceAsStream('/' + agentClassResource).bytes))
+
+    expect:
+    LauncherClassGenerator.findPremainDescriptor(agentJar, RecordingAgent.name) ==
+      '(Ljava/lang/String;Ljava/lang/instrument/Instrumentation;)V'
+    LauncherClassGenerator.findPremainDescriptor(agentJar, 'org.acme.Missing') == null
+  }
+
+  private static byte[] createZip(Map<String, byte[]> entries) {
+    def bytes = new ByteArrayOutputStream()
+    new ZipOutputStream(bytes).withCloseable { zip ->
+      entries.each { name, content ->
+        zip.putNextEntry(new ZipEntry(name))
+        zip.write(content)
+        zip.closeEntry()
+      }
+    }
+    bytes.toByteArray()
+  }
+
+  static class RecordingAgent {
+    static final List<List<Object>> calls = []
+
+    static void premain(String agentArgs, Instrumentation inst) {
+      calls << [agentArgs, inst]
+    }
+  }
+
+  @CompileStatic
+  static class DefiningClassLoader extends ClassLoader {
+    DefiningClassLoader(ClassLoader parent) {
+      super(parent)
+    }
+
+    Class<?> define(byte[] classFile) {
+      defineClass(LauncherClassGenerator.CLASS_NAME, classFile, 0, classFile.length)
+    }
+  }
+}
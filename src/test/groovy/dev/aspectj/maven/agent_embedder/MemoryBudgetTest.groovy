@@ -0,0 +1,119 @@
+package dev.aspectj.maven.agent_embedder
+
+import org.apache.maven.plugin.logging.Log
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+
+class MemoryBudgetTest extends Specification {
+  static final long MB = 1024 * 1024
+
+  Log log = Mock()
+
+  def 'reserve within budget, tracking peak of concurrent reservations'() {
+    given:
+    MemoryBudget budget = new MemoryBudget()
+
+    when:
+    def first = budget.reserve(10 * MB, 10 * MB, 100 * MB, MemoryBudgetMode.SPILL, log)
+    def second = budget.reserve(30 * MB, 30 * MB, 100 * MB, MemoryBudgetMode.SPILL, log)
+
+    then:
+    !first.spill
+    !second.spill
+    first.bytes == 20 * MB
+    second.bytes == 60 * MB
+    budget.reservedBytes == 80 * MB
+    first.peakBytes == 80 * MB
+    second.peakBytes == 80 * MB
+    0 * log.info(_)
+
+    when:
+    second.close()
+    second.close()
+
+    then:
+    budget.reservedBytes == 20 * MB
+    first.peakBytes == 80 * MB
+
+    cleanup:
+    first?.close()
+  }
+
+  def 'spill when exceeding budget'() {
+    given:
+    MemoryBudget budget = new MemoryBudget()
+    def first = budget.reserve(40 * MB, 40 * MB, 100 * MB, MemoryBudgetMode.SPILL, log)
+
+    when:
+    def second = budget.reserve(15 * MB, 15 * MB, 100 * MB, MemoryBudgetMode.SPILL, log)
+
+    then:
+    second.spill
+    second.bytes == 15 * MB
+    second.waitNanos == 0
+    budget.reservedBytes == 95 * MB
+    1 * log.info('Memory budget exceeded, spilling agent entries to temporary files: 30.0 MB needed, 80.0 MB of 100.0 MB reserved')
+
+    cleanup:
+    first?.close()
+    second?.close()
+  }
+
+  @Unroll('#mode')
+  def 'wait when exceeding budget, until concurrent execution releases it'() {
+    given:
+    MemoryBudget budget = new MemoryBudget()
+    def first = budget.reserve(45 * MB, 45 * MB, 100 * MB, MemoryBudgetMode.THROTTLE, log)
+    def executor = Executors.newSingleThreadExecutor()
+
+    when:
+    Future<MemoryBudget.Reservation> second = executor.submit(
+      { budget.reserve(15 * MB, 15 * MB, 100 * MB, mode, log) } as Callable<MemoryBudget.Reservation>
+    )
+    second.get(200, TimeUnit.MILLISECONDS)
+
+    then:
+    thrown TimeoutException
+    1 * log.info({ it.startsWith('Waiting for memory budget: ' + neededMB) })
+
+    when:
+    first.close()
+
+    then:
+    second.get(10, TimeUnit.SECONDS).waitNanos > 0
+    second.get().spill == (mode == MemoryBudgetMode.SPILL)
+
+    cleanup:
+    first?.close()
+    second?.get()?.close()
+    executor.shutdownNow()
+
+    where:
+    mode                      | neededMB
+    MemoryBudgetMode.THROTTLE | '30.0 MB needed'
+    // Even after spilling, the agent JARs exceed the budget, i.e. spill mode has to wait, too
+    MemoryBudgetMode.SPILL    | '15.0 MB needed'
+  }
+
+  def 'proceed when exceeding whole budget without concurrent reservations'() {
+    given:
+    MemoryBudget budget = new MemoryBudget()
+
+    when:
+    def reservation = budget.reserve(200 * MB, 0, 100 * MB, MemoryBudgetMode.THROTTLE, log)
+
+    then:
+    reservation.bytes == 200 * MB
+    reservation.waitNanos == 0
+    reservation.peakBytes == 200 * MB
+
+    cleanup:
+    reservation?.close()
+  }
+}
@@ -0,0 +1,96 @@
+package dev.aspectj.maven.agent_embedder
+
+import dev.aspectj.maven.tools.ZipCentralDirectory
+import org.apache.maven.plugin.logging.Log
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import static dev.aspectj.maven.agent_embedder.AgentJarShrinkerTest.createZip
+
+class MultiReleaseMergerTest extends Specification {
+  static final String MULTI_RELEASE_MANIFEST = 'Manifest-Version: 1.0\nMulti-Release: true\n\n'
+
+  Log log = Mock()
+
+  @Unroll('versions #minVersion to #maxVersion')
+  def 'keep versioned entries used in target runtime range'() {
+    given:
+    AgentJar agentJar = createAgentJar(MULTI_RELEASE_MANIFEST)
+    MultiReleaseMerger merger = new MultiReleaseMerger(log, minVersion, maxVersion)
+
+    when:
+    AgentJar mergedAgentJar = merger.merge(agentJar)
+    def versionedEntries = mergedAgentJar.entries*.name.findAll { it.startsWith('META-INF/versions/') && !it.endsWith('/') }
+
+    then:
+    versionedEntries as Set == expectedEntries.collect { 'META-INF/versions/' + it } as Set
+    mergedAgentJar.entries*.name.containsAll(['META-INF/MANIFEST.MF', 'org/acme/A.class', 'org/acme/B.class'])
+    merger.multiReleaseRequired == !expectedEntries.empty
+
+    and: 'directories of versions without remaining entries are dropped'
+    mergedAgentJar.entries*.name.findAll { it.startsWith('META-INF/versions/') && it.endsWith('/') && it.count('/') == 3 } as Set ==
+      expectedEntries.collect { 'META-INF/versions/' + it.split('/')[0] + '/' } as Set
+
+    where:
+    minVersion | maxVersion | expectedEntries
+    null       | null       | ['9/org/acme/A.class', '11/org/acme/A.class', '17/org/acme/A.class', '21/org/acme/B.class']
+    11         | null       | ['11/org/acme/A.class', '17/org/acme/A.class', '21/org/acme/B.class']
+    12         | 17         | ['11/org/acme/A.class', '17/org/acme/A.class']
+    17         | 17         | ['17/org/acme/A.class']
+    null       | 8          | []
+  }
+
+  def 'drop versioned entries of agent JARs which are no multi-release JARs'() {
+    given:
+    AgentJar agentJar = createAgentJar('Manifest-Version: 1.0\n\n')
+    MultiReleaseMerger merger = new MultiReleaseMerger(log, null, null)
+
+    when:
+    AgentJar mergedAgentJar = merger.merge(agentJar)
+
+    then:
+    mergedAgentJar.entries*.name as Set == ['META-INF/', 'META-INF/MANIFEST.MF', 'org/', 'org/acme/', 'org/acme/A.class', 'org/acme/B.class'] as Set
+    !merger.multiReleaseRequired
+    1 * log.info('Dropping 4 versioned entries of non-Multi-Release agent JAR /agent.jar, which the JVM would never use')
+  }
+
+  def 'leave agent JARs without versioned entries untouched'() {
+    given:
+    AgentJar agentJar = new AgentJar(
+      new JavaAgentInfo(), '/agent.jar',
+      ZipCentralDirectory.of(createZip('META-INF/MANIFEST.MF': MULTI_RELEASE_MANIFEST.bytes, 'org/acme/A.class': [] as byte[])),
+      null
+    )
+    MultiReleaseMerger merger = new MultiReleaseMerger(log, 11, 17)
+
+    when:
+    AgentJar mergedAgentJar = merger.merge(agentJar)
+
+    then:
+    mergedAgentJar.is(agentJar)
+    !merger.multiReleaseRequired
+    0 * log._
+  }
+
+  static AgentJar createAgentJar(String manifest) {
+    Map<String, byte[]> entries = [
+      'META-INF/': null,
+      'META-INF/MANIFEST.MF': manifest.bytes,
+      'org/': null,
+      'org/acme/': null,
+      'org/acme/A.class': 'A'.bytes,
+      'org/acme/B.class': 'B'.bytes
+    ]
+    ['9/org/acme/A.class', '11/org/acme/A.class', '17/org/acme/A.class', '21/org/acme/B.class'].each { versionedName ->
+      String[] parts = versionedName.split('/')
+      String directory = 'META-INF/versions/'
+      entries.put(directory, null)
+      for (int i = 0; i < parts.length - 1; i++) {
+        directory += parts[i] + '/'
+        entries.put(directory, null)
+      }
+      entries.put('META-INF/versions/' + versionedName, versionedName.bytes)
+    }
+    new AgentJar(new JavaAgentInfo(), '/agent.jar', ZipCentralDirectory.of(createZip(entries)), null)
+  }
+}
@@ -0,0 +1,126 @@
+package dev.aspectj.maven.agent_embedder
+
+import dev.aspectj.maven.agent_embedder.SharedAgentJarCache.CachedAgentJar
+import dev.aspectj.maven.tools.ZipCentralDirectory
+import spock.lang.Specification
+import spock.lang.TempDir
+
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.attribute.FileTime
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+import static dev.aspectj.maven.agent_embedder.AgentJarShrinkerTest.createZip
+
+class SharedAgentJarCacheTest extends Specification {
+  @TempDir
+  Path tempDir
+
+  def 'read agent JAR only once, also when requested concurrently'() {
+    given:
+    SharedAgentJarCache cache = new SharedAgentJarCache(8)
+    Path agentJarPath = createAgentJar('agent.jar')
+    AtomicInteger loadCount = new AtomicInteger()
+    CountDownLatch start = new CountDownLatch(1)
+    def executor = Executors.newFixedThreadPool(8)
+
+    when:
+    def futures = (1..8).collect {
+      executor.submit({
+        start.await()
+        cache.get(agentJarPath, { loadCount.incrementAndGet(); load(agentJarPath) })
+      } as java.util.concurrent.Callable<CachedAgentJar>)
+    }
+    start.countDown()
+    def agentJars = futures*.get(10, TimeUnit.SECONDS)
+
+    then:
+    loadCount.get() == 1
+    agentJars.unique(false) { System.identityHashCode(it) }.size() == 1
+    cache.size() == 1
+
+    cleanup:
+    executor.shutdownNow()
+  }
+
+  def 'read agent JAR again after it changed'() {
+    given:
+    SharedAgentJarCache cache = new SharedAgentJarCache(8)
+    Path agentJarPath = createAgentJar('agent.jar')
+    CachedAgentJar agentJar = cache.get(agentJarPath, { load(agentJarPath) })
+
+    expect:
+    cache.get(agentJarPath, { load(agentJarPath) }).is(agentJar)
+
+    when:
+    Files.setLastModifiedTime(agentJarPath, FileTime.fromMillis(Files.getLastModifiedTime(agentJarPath).toMillis() + 2000))
+
+    then:
+    !cache.get(agentJarPath, { load(agentJarPath) }).is(agentJar)
+  }
+
+  def 'do not cache failures'() {
+    given:
+    SharedAgentJarCache cache = new SharedAgentJarCache(8)
+    Path agentJarPath = createAgentJar('agent.jar')
+
+    when:
+    cache.get(agentJarPath, { throw new IOException('read error') })
+
+    then:
+    IOException exception = thrown()
+    exception.message == 'read error'
+    cache.size() == 0
+
+    and:
+    cache.get(agentJarPath, { load(agentJarPath) })
+    cache.size() == 1
+  }
+
+  def 'read agent JAR content using cached entries'() {
+    given:
+    SharedAgentJarCache cache = new SharedAgentJarCache(8)
+    Path agentJarPath = createAgentJar('agent.jar')
+    CachedAgentJar agentJar = cache.get(agentJarPath, { load(agentJarPath) })
+
+    when: 'another execution reads the agent JAR content again, but not its central directory'
+    def zip = ZipCentralDirectory.of(Files.readAllBytes(agentJarPath), cache.get(agentJarPath, { load(agentJarPath) }).entries)
+
+    then:
+    zip.entries.is(agentJar.entries)
+    new String(zip.readAllBytes(zip.getEntry('META-INF/MANIFEST.MF'))).contains('Agent-Class: org.acme.MyAgent')
+  }
+
+  def 'evict least recently used agent JARs when exceeding maximum number'() {
+    given:
+    Path agentJarPath1 = createAgentJar('agent1.jar')
+    Path agentJarPath2 = createAgentJar('agent2.jar')
+    Path agentJarPath3 = createAgentJar('agent3.jar')
+    SharedAgentJarCache cache = new SharedAgentJarCache(2)
+    CachedAgentJar agentJar1 = cache.get(agentJarPath1, { load(agentJarPath1) })
+    CachedAgentJar agentJar2 = cache.get(agentJarPath2, { load(agentJarPath2) })
+
+    when: 'using the first agent JAR again makes the second one the least recently used one'
+    cache.get(agentJarPath1, { load(agentJarPath1) })
+    cache.get(agentJarPath3, { load(agentJarPath3) })
+
+    then:
+    cache.size() == 2
+    cache.get(agentJarPath1, { load(agentJarPath1) }).is(agentJar1)
+    !cache.get(agentJarPath2, { load(agentJarPath2) }).is(agentJar2)
+  }
+
+  private Path createAgentJar(String fileName) {
+    Files.write(
+      tempDir.resolve(fileName),
+      createZip('META-INF/MANIFEST.MF': 'Manifest-Version: 1.0\nAgent-Class: org.acme.MyAgent\n\n'.bytes)
+    )
+  }
+
+  private static CachedAgentJar load(Path agentJarPath) {
+    new CachedAgentJar(ZipCentralDirectory.of(Files.readAllBytes(agentJarPath)).entries, new AgentJarMetadata(null))
+  }
+}
@@ -0,0 +1,86 @@
+package dev.aspectj.maven.agent_embedder
+
+import dev.aspectj.maven.tools.ZipCentralDirectory
+import org.apache.maven.plugin.logging.Log
+import spock.lang.Specification
+
+import java.nio.file.Files
+import java.nio.file.Path
+
+import static dev.aspectj.maven.agent_embedder.AgentJarShrinkerTest.createZip
+
+class StartupEntryOrderTest extends Specification {
+  Log log = Mock()
+
+  def 'read class-loading lists in class list and unified logging formats'() {
+    given:
+    Path classList = Files.createTempFile('startup', '.classlist')
+    classList.toFile().text = '''\
+      # NOTE: Do not modify this file.
+      java/lang/Object id: 0
+      org/acme/Main id: 1
+      @lambda-proxy org/acme/Main run ()Ljava/lang/Runnable;
+      [0.012s][info][class,load] org.acme.Helper source: file:/app.jar
+      org.acme.Other$Inner
+    '''.stripIndent()
+
+    expect:
+    StartupEntryOrder.readClassList(classList) == ['java/lang/Object', 'org/acme/Main', 'org/acme/Helper', 'org/acme/Other$Inner']
+
+    cleanup:
+    Files.deleteIfExists(classList)
+  }
+
+  def 'order manifest, recorded classes, launcher, agent and main classes'() {
+    given:
+    ZipCentralDirectory artifact = ZipCentralDirectory.of(createZip(
+      'META-INF/': null,
+      'META-INF/MANIFEST.MF': 'Manifest-Version: 1.0\nMain-Class: org.acme.Main\n\n'.bytes,
+      'org/acme/Main.class': [] as byte[],
+      'org/acme/Util.class': [] as byte[],
+      'org/acme/sub/Unrelated.class': [] as byte[],
+      'BOOT-INF/classes/org/acme/Recorded.class': [] as byte[],
+      'readme.txt': [] as byte[]
+    ))
+    ZipCentralDirectory agentZip = ZipCentralDirectory.of(createZip(
+      'META-INF/MANIFEST.MF': 'Manifest-Version: 1.0\n\n'.bytes,
+      'org/agent/Helper.class': [] as byte[],
+      'org/agent/Agent.class': [] as byte[],
+      'org/agent/agent.properties': [] as byte[]
+    ))
+    JavaAgentInfo agentInfo = new JavaAgentInfo('org.agent', 'agent', null, 'org.agent.Agent', null, null)
+    AgentJar agentJar = new AgentJar(agentInfo, '/agent.jar', agentZip, null)
+    Set<String> entryNames = (artifact.entries*.name + agentZip.entries*.name + 'org/launcher/Launcher.class') as Set
+
+    when:
+    List<String> startupEntryNames = new StartupEntryOrder(log, loadedClasses)
+      .getStartupEntryNames(artifact, entryNames, ['org/launcher/Launcher.class', 'org/launcher/Missing.class'], [agentJar])
+
+    then:
+    startupEntryNames == expectedEntryNames
+    1 * log.info(expectedMessage)
+
+    where:
+    loadedClasses << [
+      null,
+      ['java/lang/Object', 'org/acme/Recorded', 'org/agent/Helper']
+    ]
+    expectedEntryNames << [
+      [
+        'META-INF/', 'META-INF/MANIFEST.MF',
+        'org/launcher/Launcher.class', 'org/agent/Agent.class', 'org/agent/Helper.class',
+        'org/acme/Main.class', 'org/acme/Util.class'
+      ],
+      [
+        'META-INF/', 'META-INF/MANIFEST.MF',
+        'BOOT-INF/classes/org/acme/Recorded.class', 'org/agent/Helper.class',
+        'org/launcher/Launcher.class', 'org/agent/Agent.class',
+        'org/acme/Main.class', 'org/acme/Util.class'
+      ]
+    ]
+    expectedMessage << [
+      'Ordering 7 entries for startup',
+      'Ordering 8 entries for startup, 2 of them from class-loading list'
+    ]
+  }
+}
@@ -0,0 +1,68 @@
+package dev.aspectj.maven.tools
+
+import com.google.common.jimfs.Configuration
+import com.google.common.jimfs.Jimfs
+import dev.aspectj.maven.tools.ZipFileSystemTool.VirtualNestedZipFileSystem
+import spock.lang.Specification
+import spock.lang.TempDir
+import spock.lang.Unroll
+
+import java.nio.file.Files
+import java.nio.file.Path
+
+import static dev.aspectj.maven.tools.ZipFileSystemTool.getZipFS
+
+class ZipFileSystemToolTest extends Specification {
+  @TempDir
+  Path tempDir
+
+  @Unroll('Java #javaVersion, use temp file: #useTempFile')
+  def 'open zip archive on default FS directly'() {
+    given:
+    def zipPath = tempDir.resolve('direct.zip')
+
+    when: 'creating a zip archive'
+    def zipFS = getZipFS(zipPath, true, useTempFile, javaVersion)
+    zipFS.withCloseable {
+      Files.write(zipFS.getPath('hello.txt'), 'Hello direct!'.bytes)
+    }
+
+    then: 'no temporary copy is needed'
+    !(zipFS instanceof VirtualNestedZipFileSystem)
+    zipFS.provider().is(ZipFileSystemTool.zipFSProvider)
+
+    when: 'opening it again'
+    zipFS = getZipFS(zipPath, false, useTempFile, javaVersion)
+    def content = zipFS.withCloseable {
+      new String(Files.readAllBytes(zipFS.getPath('hello.txt')))
+    }
+
+    then:
+    !(zipFS instanceof VirtualNestedZipFileSystem)
+    content == 'Hello direct!'
+
+    where:
+    [javaVersion, useTempFile] << [[8, 11], [false, true]].combinations()
+  }
+
+  def 'open zip archive on other FS via temporary copy on Java 11'() {
+    given:
+    def fileSystem = Jimfs.newFileSystem(Configuration.unix())
+    def zipPath = fileSystem.getPath('/nested.zip')
+
+    when:
+    def zipFS = getZipFS(zipPath, true, false, 11)
+    zipFS.withCloseable {
+      Files.write(zipFS.getPath('hello.txt'), 'Hello nested!'.bytes)
+    }
+
+    then:
+    zipFS instanceof VirtualNestedZipFileSystem
+    getZipFS(zipPath, false, false, 11).withCloseable {
+      new String(Files.readAllBytes(it.getPath('hello.txt')))
+    } == 'Hello nested!'
+
+    cleanup:
+    fileSystem?.close()
+  }
+}